@@ -18,31 +18,67 @@ package net.smacke.jaydio.examples;
 import java.io.File;
 import java.io.IOException;
 
-import net.smacke.jaydio.DirectRandomAccessFile;
+import net.smacke.jaydio.copy.FileCopier;
 
+/**
+ * Copies a file or a directory tree with {@link FileCopier}, printing progress and
+ * throughput as it goes.
+ *
+ * <pre>
+ * JaydioCp [--bs=BYTES] [--depth=N] [--ranges=N] [--files=N] SRC DST
+ * </pre>
+ */
 public class JaydioCp {
-	
+
 	public static void main(String[] args) throws IOException {
-		
-		int bufferSize = 
-				// use 8 MiB buffers by default
-				args.length >= 3 ? Integer.parseInt(args[3]) : (1<<23);
-		
-		byte[] buf = new byte[bufferSize];
-
-		DirectRandomAccessFile fin = 
-				new DirectRandomAccessFile(new File(args[0]), "r", bufferSize);
-		
-		DirectRandomAccessFile fout =
-				new DirectRandomAccessFile(new File(args[1]), "rw", bufferSize);
-		
-		while (fin.getFilePointer() < fin.length()) {
-			int remaining = (int)Math.min(bufferSize, fin.length()-fin.getFilePointer());
-			fin.read(buf,0,remaining);
-			fout.write(buf,0,remaining);
+		final FileCopier copier = new FileCopier();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("--"); i++) {
+			final String arg = args[i];
+			final String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--bs=")) {
+				copier.setBufferSize(Integer.parseInt(value));
+			} else if (arg.startsWith("--depth=")) {
+				copier.setQueueDepth(Integer.parseInt(value));
+			} else if (arg.startsWith("--ranges=")) {
+				copier.setRangeWorkers(Integer.parseInt(value));
+			} else if (arg.startsWith("--files=")) {
+				copier.setFileWorkers(Integer.parseInt(value));
+			} else {
+				usage();
+			}
+		}
+		if (args.length - i != 2) {
+			usage();
 		}
-		
-		fin.close();
-		fout.close();
+
+		final long start = System.nanoTime();
+		copier.setProgress(new FileCopier.Progress() {
+			private long lastReport = start;
+
+			@Override
+			public synchronized void update(long bytesCopied, long bytesTotal) {
+				final long now = System.nanoTime();
+				if (now - lastReport >= 1000000000L || bytesCopied == bytesTotal) {
+					lastReport = now;
+					System.err.printf("\r%,d / %,d bytes (%.0f%%), %.1f MiB/s   ",
+							bytesCopied, bytesTotal, 100.0 * bytesCopied / Math.max(1, bytesTotal),
+							mibPerSecond(bytesCopied, now - start));
+				}
+			}
+		});
+		final long bytes = copier.copy(new File(args[i]), new File(args[i + 1]));
+		final long elapsed = System.nanoTime() - start;
+		System.err.printf("%ncopied %,d bytes in %.2f s, %.1f MiB/s%n",
+				bytes, elapsed / 1e9, mibPerSecond(bytes, elapsed));
+	}
+
+	private static double mibPerSecond(long bytes, long nanos) {
+		return bytes / (1024.0 * 1024.0) / Math.max(nanos / 1e9, 1e-9);
+	}
+
+	private static void usage() {
+		System.err.println("usage: JaydioCp [--bs=BYTES] [--depth=N] [--ranges=N] [--files=N] SRC DST");
+		System.exit(2);
 	}
 }
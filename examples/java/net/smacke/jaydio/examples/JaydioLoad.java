@@ -0,0 +1,408 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.DirectRandomAccessFile;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.stats.LatencyHistogram;
+
+/**
+ * A fio-like workload generator which goes through jaydio's own code path, so that
+ * alignment and copy overheads of the library show up in the numbers. </p>
+ *
+ * <pre>
+ * java JaydioLoad --file=/mnt/ssd/load.dat --size=4g --bs=4k --rwmix=70 \
+ *     --dist=zipf:1.1 --threads=8 --runtime=60 --engine=raf --window=1m
+ * </pre>
+ *
+ * <p> Options, with sizes taking k, m and g suffixes:
+ * <ul>
+ * <li> <tt>--file</tt>: the file to work on; created and filled up to <tt>--size</tt> if shorter
+ * <li> <tt>--size</tt>: the part of the file which gets accessed (default 1g)
+ * <li> <tt>--bs</tt>: bytes per operation (default 4k)
+ * <li> <tt>--window</tt>: the {@link DirectRandomAccessFile} buffer size (default 1m)
+ * <li> <tt>--rwmix</tt>: percentage of operations which are reads (default 100)
+ * <li> <tt>--dist</tt>: <tt>seq</tt>, <tt>random</tt> or <tt>zipf:THETA</tt> (default random)
+ * <li> <tt>--threads</tt>: number of threads (default 1)
+ * <li> <tt>--runtime</tt>: seconds to run for (default 10)
+ * <li> <tt>--engine</tt>: <tt>raf</tt> for one {@link DirectRandomAccessFile} per thread,
+ *      or <tt>channel</tt> for positional I/O on a shared {@link DirectIoByteChannel},
+ *      which needs block aligned <tt>--bs</tt> (default raf)
+ * </ul>
+ * With <tt>seq</tt>, each thread walks its own slice of the file. Offsets are always
+ * multiples of <tt>--bs</tt>. </p>
+ *
+ * @author smacke
+ *
+ */
+public class JaydioLoad {
+
+	private final File file;
+	private final long size;
+	private final int bs;
+	private final int window;
+	private final int readPercent;
+	private final String dist;
+	private final double theta;
+	private final int threads;
+	private final long runtimeNanos;
+	private final boolean channelEngine;
+
+	private JaydioLoad(String[] args) {
+		String file = null;
+		long size = 1L << 30;
+		int bs = 4 << 10;
+		int window = 1 << 20;
+		int readPercent = 100;
+		String dist = "random";
+		int threads = 1;
+		int runtime = 10;
+		String engine = "raf";
+		for (String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				throw usage("bad argument " + arg);
+			}
+			final String key = arg.substring(2, eq);
+			final String value = arg.substring(eq + 1);
+			if (key.equals("file")) {
+				file = value;
+			} else if (key.equals("size")) {
+				size = parseSize(value);
+			} else if (key.equals("bs")) {
+				bs = (int) parseSize(value);
+			} else if (key.equals("window")) {
+				window = (int) parseSize(value);
+			} else if (key.equals("rwmix")) {
+				readPercent = Integer.parseInt(value);
+			} else if (key.equals("dist")) {
+				dist = value;
+			} else if (key.equals("threads")) {
+				threads = Integer.parseInt(value);
+			} else if (key.equals("runtime")) {
+				runtime = Integer.parseInt(value);
+			} else if (key.equals("engine")) {
+				engine = value;
+			} else {
+				throw usage("unknown option --" + key);
+			}
+		}
+		if (file == null) {
+			throw usage("--file is required");
+		}
+		if (readPercent < 0 || readPercent > 100) {
+			throw usage("--rwmix must be between 0 and 100");
+		}
+		if (!engine.equals("raf") && !engine.equals("channel")) {
+			throw usage("--engine must be raf or channel");
+		}
+		if (bs <= 0 || size < bs) {
+			throw usage("--size must hold at least one block of --bs");
+		}
+		// with seq, each thread needs a slice of at least one block
+		if (threads <= 0 || threads > size / bs) {
+			throw usage("--threads must be between 1 and the " + size / bs + " blocks of --bs in --size");
+		}
+		this.theta = dist.startsWith("zipf:") ? Double.parseDouble(dist.substring(5)) : 0;
+		if (!dist.equals("seq") && !dist.equals("random") && !(theta > 0 && theta != 1)) {
+			throw usage("--dist must be seq, random or zipf:THETA with THETA > 0 and not 1");
+		}
+		this.file = new File(file);
+		this.size = size;
+		this.bs = bs;
+		this.window = window;
+		this.readPercent = readPercent;
+		this.dist = dist;
+		this.threads = threads;
+		this.runtimeNanos = runtime * 1000000000L;
+		this.channelEngine = engine.equals("channel");
+	}
+
+	private static IllegalArgumentException usage(String message) {
+		return new IllegalArgumentException(message + "\nusage: JaydioLoad --file=PATH [--size=1g] [--bs=4k] "
+				+ "[--window=1m] [--rwmix=100] [--dist=seq|random|zipf:THETA] [--threads=1] [--runtime=10] "
+				+ "[--engine=raf|channel]");
+	}
+
+	private static long parseSize(String s) {
+		final char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+		final int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+		return Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1)) << shift;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new JaydioLoad(args).run();
+	}
+
+	private void run() throws Exception {
+		prepareFile();
+		final DirectIoLib lib = DirectIoLib.getLibForPath(file.getAbsoluteFile().getParent());
+		final DirectIoByteChannel channel;
+		if (channelEngine) {
+			if (bs % lib.blockSize() != 0) {
+				throw usage("--engine=channel needs --bs to be a multiple of the block size " + lib.blockSize());
+			}
+			channel = DirectIoByteChannel.getChannel(lib, file, readPercent == 100);
+		} else {
+			channel = null;
+		}
+		final Offsets zipf = theta > 0 ? new Zipf(size / bs, theta) : null;
+
+		final List<Worker> workers = new ArrayList<Worker>();
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < threads; i++) {
+			final Offsets offsets;
+			if (dist.equals("seq")) {
+				final long slice = size / bs / threads;
+				offsets = new Sequential(i * slice, slice);
+			} else if (zipf != null) {
+				offsets = zipf;
+			} else {
+				offsets = new Uniform(size / bs);
+			}
+			final Worker w = new Worker(i, offsets, channel != null ? null
+					: new DirectRandomAccessFile(file, readPercent == 100 ? "r" : "rw", window),
+					channel, lib, start);
+			workers.add(w);
+			w.start();
+		}
+		final long began = System.nanoTime();
+		start.countDown();
+		for (Worker w : workers) {
+			w.join();
+		}
+		final long elapsed = System.nanoTime() - began;
+		if (channel != null) {
+			channel.close();
+		}
+
+		final LatencyHistogram reads = new LatencyHistogram();
+		final LatencyHistogram writes = new LatencyHistogram();
+		for (Worker w : workers) {
+			if (w.failure != null) {
+				throw w.failure;
+			}
+			reads.add(w.reads);
+			writes.add(w.writes);
+		}
+		System.out.println(String.format(Locale.ROOT, "%s: bs=%d window=%d rwmix=%d dist=%s threads=%d engine=%s",
+				file, bs, window, readPercent, dist, threads, channelEngine ? "channel" : "raf"));
+		report("read", reads, elapsed);
+		report("write", writes, elapsed);
+	}
+
+	private void report(String name, LatencyHistogram h, long elapsedNanos) {
+		if (h.count() == 0) {
+			return;
+		}
+		final double seconds = elapsedNanos / 1e9;
+		System.out.println(String.format(Locale.ROOT,
+				"%-5s: ops=%d iops=%.0f bw=%.1fMiB/s lat(us): avg=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+				name, h.count(), h.count() / seconds, h.count() * (double) bs / seconds / (1 << 20),
+				h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+				h.percentile(99.9) / 1e3, h.max() / 1e3));
+	}
+
+	// extends the file to size with random bytes, so that every read has something to read
+	private void prepareFile() throws IOException {
+		if (file.length() >= size) {
+			return;
+		}
+		final DirectRandomAccessFile raf = new DirectRandomAccessFile(file, "rw", window);
+		try {
+			final byte[] chunk = new byte[1 << 20];
+			new Random(42).nextBytes(chunk);
+			raf.seek(raf.length());
+			while (raf.length() < size) {
+				raf.write(chunk, 0, (int) Math.min(chunk.length, size - raf.length()));
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private final class Worker extends Thread {
+
+		final Offsets offsets;
+		final DirectRandomAccessFile raf;
+		final DirectIoByteChannel channel;
+		final AlignedDirectByteBuffer aligned;
+		final CountDownLatch start;
+		final Random random;
+		final byte[] buf = new byte[bs];
+		final LatencyHistogram reads = new LatencyHistogram();
+		final LatencyHistogram writes = new LatencyHistogram();
+		Exception failure;
+
+		Worker(int id, Offsets offsets, DirectRandomAccessFile raf, DirectIoByteChannel channel,
+				DirectIoLib lib, CountDownLatch start) {
+			super("jaydio-load-" + id);
+			this.offsets = offsets;
+			this.raf = raf;
+			this.channel = channel;
+			this.aligned = channel != null ? AlignedDirectByteBuffer.allocate(lib, bs) : null;
+			this.start = start;
+			this.random = new Random(id);
+			random.nextBytes(buf);
+		}
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+				final long deadline = System.nanoTime() + runtimeNanos;
+				long now = System.nanoTime();
+				while (now < deadline) {
+					final long offset = offsets.next(random) * bs;
+					final boolean read = random.nextInt(100) < readPercent;
+					if (read) {
+						read(offset);
+					} else {
+						write(offset);
+					}
+					final long done = System.nanoTime();
+					(read ? reads : writes).record(done - now);
+					now = done;
+				}
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				try {
+					if (raf != null) {
+						raf.close();
+					}
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+				if (aligned != null) {
+					aligned.close();
+				}
+			}
+		}
+
+		private void read(long offset) throws IOException {
+			if (raf != null) {
+				raf.seek(offset);
+				raf.readFully(buf, 0, bs);
+			} else {
+				aligned.clear();
+				channel.read(aligned, offset);
+			}
+		}
+
+		private void write(long offset) throws IOException {
+			if (raf != null) {
+				raf.seek(offset);
+				raf.write(buf, 0, bs);
+			} else {
+				aligned.clear();
+				channel.write(aligned, offset);
+			}
+		}
+	}
+
+	// hands out block numbers
+	private interface Offsets {
+		long next(Random random);
+	}
+
+	private static final class Sequential implements Offsets {
+		private final long first;
+		private final long count;
+		private long i;
+
+		Sequential(long first, long count) {
+			this.first = first;
+			this.count = count;
+		}
+
+		@Override
+		public long next(Random random) {
+			final long block = first + i;
+			i = (i + 1) % count;
+			return block;
+		}
+	}
+
+	private static final class Uniform implements Offsets {
+		private final long count;
+
+		Uniform(long count) {
+			this.count = count;
+		}
+
+		@Override
+		public long next(Random random) {
+			return (long) (random.nextDouble() * count);
+		}
+	}
+
+	/**
+	 * Zipfian block numbers, following Gray et al., "Quickly generating billion-record
+	 * synthetic databases". The hottest blocks are scattered over the file rather than
+	 * packed at its start, so that they don't all share a window. Immutable once
+	 * built, so one instance serves every thread.
+	 */
+	private static final class Zipf implements Offsets {
+		private final long count;
+		private final double theta;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+
+		Zipf(long count, double theta) {
+			this.count = count;
+			this.theta = theta;
+			double zeta = 0;
+			for (long i = 1; i <= count; i++) {
+				zeta += 1 / Math.pow(i, theta);
+			}
+			this.zetan = zeta;
+			final double zeta2 = 1 + 1 / Math.pow(2, theta);
+			this.alpha = 1 / (1 - theta);
+			this.eta = (1 - Math.pow(2.0 / count, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		@Override
+		public long next(Random random) {
+			final double u = random.nextDouble();
+			final double uz = u * zetan;
+			long rank;
+			if (uz < 1) {
+				rank = 0;
+			} else if (uz < 1 + Math.pow(0.5, theta)) {
+				rank = 1;
+			} else {
+				rank = (long) (count * Math.pow(eta * u - eta + 1, alpha));
+			}
+			rank = Math.min(rank, count - 1);
+			// a multiplicative hash, to scatter hot ranks over the file
+			return ((rank * 0x9E3779B97F4A7C15L) >>> 1) % count;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.benchmarks;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+
+/**
+ * The file APIs compared by the benchmarks. </p>
+ *
+ * @author smacke
+ *
+ */
+public enum Api {
+
+	/**
+	 * A {@link DirectIoByteChannelAligner}, which buffers in an aligned window
+	 * and bypasses the page cache
+	 */
+	JAYDIO {
+		@Override
+		FileTarget open(File file, int windowSize, int blockSize) throws IOException {
+			final DirectIoByteChannelAligner channel = DirectIoByteChannelAligner.open(file, windowSize, false);
+			return new FileTarget() {
+				@Override
+				public void read(long position, byte[] dst, int offset, int length) throws IOException {
+					channel.position(position);
+					if (channel.readBytes(dst, offset, length) != length) {
+						throw new EOFException();
+					}
+				}
+
+				@Override
+				public void write(long position, byte[] src, int offset, int length) throws IOException {
+					channel.position(position);
+					channel.writeBytes(src, offset, length);
+				}
+
+				@Override
+				public void sync() throws IOException {
+					channel.flush();
+					channel.force(false);
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+	},
+
+	/**
+	 * {@link RandomAccessFile}, going through the page cache
+	 */
+	RANDOM_ACCESS_FILE {
+		@Override
+		FileTarget open(File file, int windowSize, int blockSize) throws IOException {
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			return new FileTarget() {
+				@Override
+				public void read(long position, byte[] dst, int offset, int length) throws IOException {
+					raf.seek(position);
+					raf.readFully(dst, offset, length);
+				}
+
+				@Override
+				public void write(long position, byte[] src, int offset, int length) throws IOException {
+					raf.seek(position);
+					raf.write(src, offset, length);
+				}
+
+				@Override
+				public void sync() throws IOException {
+					raf.getChannel().force(false);
+				}
+
+				@Override
+				public void close() throws IOException {
+					raf.close();
+				}
+			};
+		}
+	},
+
+	/**
+	 * {@link FileChannel} with heap buffers, going through the page cache
+	 */
+	FILE_CHANNEL {
+		@Override
+		FileTarget open(File file, int windowSize, int blockSize) throws IOException {
+			final FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return new FileTarget() {
+				@Override
+				public void read(long position, byte[] dst, int offset, int length) throws IOException {
+					readFully(channel, ByteBuffer.wrap(dst, offset, length), position);
+				}
+
+				@Override
+				public void write(long position, byte[] src, int offset, int length) throws IOException {
+					writeFully(channel, ByteBuffer.wrap(src, offset, length), position);
+				}
+
+				@Override
+				public void sync() throws IOException {
+					channel.force(false);
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+	},
+
+	/**
+	 * A read-write mapping of the whole file, which therefore has to be smaller than 2 GiB
+	 */
+	MMAP {
+		@Override
+		FileTarget open(File file, int windowSize, int blockSize) throws IOException {
+			final FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			return new FileTarget() {
+				@Override
+				public void read(long position, byte[] dst, int offset, int length) {
+					map.get((int) position, dst, offset, length);
+				}
+
+				@Override
+				public void write(long position, byte[] src, int offset, int length) {
+					map.put((int) position, src, offset, length);
+				}
+
+				@Override
+				public void sync() {
+					map.force();
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+	},
+
+	/**
+	 * {@link FileChannel} opened with {@link ExtendedOpenOption#DIRECT}, transferring
+	 * through an aligned direct buffer. Positions and lengths must be block aligned,
+	 * since unlike Jaydio, nothing here fixes up unaligned requests.
+	 */
+	DIRECT_OPEN_OPTION {
+		@Override
+		FileTarget open(File file, final int windowSize, final int blockSize) throws IOException {
+			final FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+			final ByteBuffer aligned = ByteBuffer.allocateDirect(windowSize + blockSize).alignedSlice(blockSize);
+			return new FileTarget() {
+				@Override
+				public void read(long position, byte[] dst, int offset, int length) throws IOException {
+					checkAligned(position, length);
+					while (length > 0) {
+						final int n = Math.min(length, aligned.capacity());
+						aligned.clear().limit(n);
+						readFully(channel, aligned, position);
+						aligned.flip();
+						aligned.get(dst, offset, n);
+						position += n;
+						offset += n;
+						length -= n;
+					}
+				}
+
+				@Override
+				public void write(long position, byte[] src, int offset, int length) throws IOException {
+					checkAligned(position, length);
+					while (length > 0) {
+						final int n = Math.min(length, aligned.capacity());
+						aligned.clear();
+						aligned.put(src, offset, n).flip();
+						writeFully(channel, aligned, position);
+						position += n;
+						offset += n;
+						length -= n;
+					}
+				}
+
+				private void checkAligned(long position, int length) {
+					if (position % blockSize != 0 || length % blockSize != 0) {
+						throw new IllegalArgumentException("O_DIRECT needs block aligned transfers, got "
+								+ length + " bytes at " + position);
+					}
+				}
+
+				@Override
+				public void sync() throws IOException {
+					channel.force(false);
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+	};
+
+	/**
+	 * Opens an existing file for reading and writing.
+	 * 
+	 * @param file The file to open
+	 * 
+	 * @param windowSize The buffer size for APIs which buffer on their own
+	 * 
+	 * @param blockSize The file system block size
+	 */
+	abstract FileTarget open(File file, int windowSize, int blockSize) throws IOException;
+
+	private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			final int n = channel.read(dst, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) {
+			position += channel.write(src, position);
+		}
+	}
+}
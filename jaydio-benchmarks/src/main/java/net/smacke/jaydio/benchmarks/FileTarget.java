@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The operations every benchmarked file API has to offer, so that one benchmark
+ * method can drive all of them. Reads and writes are positional, and always transfer
+ * exactly the requested number of bytes. </p>
+ *
+ * @author smacke
+ *
+ */
+interface FileTarget extends Closeable {
+
+	/**
+	 * Reads <tt>length</tt> bytes at <tt>position</tt> into <tt>dst</tt>.
+	 */
+	void read(long position, byte[] dst, int offset, int length) throws IOException;
+
+	/**
+	 * Writes <tt>length</tt> bytes from <tt>src</tt> at <tt>position</tt>.
+	 */
+	void write(long position, byte[] src, int offset, int length) throws IOException;
+
+	/**
+	 * Makes everything written so far durable, the way this API would for a
+	 * commit: data only, without forcing metadata that isn't needed to read it back.
+	 */
+	void sync() throws IOException;
+}
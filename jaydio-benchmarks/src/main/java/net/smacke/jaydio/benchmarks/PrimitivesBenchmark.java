@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.smacke.jaydio.DirectRandomAccessFile;
+
+/**
+ * Element at a time versus bulk {@link DirectRandomAccessFile} primitives, over
+ * {@value #COUNT} elements per invocation. Scores are per element. </p>
+ *
+ * @author smacke
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrimitivesBenchmark {
+
+	static final int COUNT = 1 << 16;
+
+	@Param({ "65536", "1048576" })
+	public int windowSize;
+
+	private File file;
+	private DirectRandomAccessFile raf;
+	private final byte[] bytes = new byte[COUNT];
+	private final int[] ints = new int[COUNT];
+	private final long[] longs = new long[COUNT];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = TestFile.create(8L * COUNT);
+		raf = new DirectRandomAccessFile(file, "rw", windowSize);
+		final SplittableRandom random = new SplittableRandom(42);
+		random.nextBytes(bytes);
+		for (int i = 0; i < COUNT; i++) {
+			ints[i] = random.nextInt();
+			longs[i] = random.nextLong();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		raf.close();
+		file.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void writeByteLoop() throws IOException {
+		raf.seek(0);
+		for (int i = 0; i < COUNT; i++) {
+			raf.write(bytes[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void writeBytesBulk() throws IOException {
+		raf.seek(0);
+		raf.write(bytes, 0, COUNT);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void writeIntLoop() throws IOException {
+		raf.seek(0);
+		for (int i = 0; i < COUNT; i++) {
+			raf.writeInt(ints[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void writeIntsBulk() throws IOException {
+		raf.seek(0);
+		raf.writeInts(ints, ByteOrder.BIG_ENDIAN);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public int readIntLoop() throws IOException {
+		raf.seek(0);
+		int sum = 0;
+		for (int i = 0; i < COUNT; i++) {
+			sum += raf.readInt();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public int[] readIntsBulk() throws IOException {
+		raf.seek(0);
+		raf.readInts(ints, ByteOrder.BIG_ENDIAN);
+		return ints;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void writeLongLoop() throws IOException {
+		raf.seek(0);
+		for (int i = 0; i < COUNT; i++) {
+			raf.writeLong(longs[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public void writeLongsBulk() throws IOException {
+		raf.seek(0);
+		raf.writeLongs(longs, ByteOrder.nativeOrder());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public long readLongLoop() throws IOException {
+		raf.seek(0);
+		long sum = 0;
+		for (int i = 0; i < COUNT; i++) {
+			sum += raf.readLong();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public long[] readLongsBulk() throws IOException {
+		raf.seek(0);
+		raf.readLongs(longs, ByteOrder.nativeOrder());
+		return longs;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, which takes the usual JMH
+ * options, always with the GC profiler attached so that allocation rates get
+ * reported next to throughput and latency percentiles. </p>
+ *
+ * <pre>
+ * java -Djaydio.bench.dir=/mnt/ssd -jar target/benchmarks.jar ReadBenchmark -p api=JAYDIO,FILE_CHANNEL
+ * </pre>
+ *
+ * @author smacke
+ *
+ */
+public final class RunBenchmarks {
+
+	private RunBenchmarks() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		final CommandLineOptions cli = new CommandLineOptions(args);
+		if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+			// let JMH's own main deal with everything that isn't a run
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder()
+				.parent(cli)
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import net.smacke.jaydio.DirectIoLib;
+
+/**
+ * Creates and deletes the files the benchmarks work on. They go into the directory
+ * named by the <tt>jaydio.bench.dir</tt> system property, or the working directory
+ * if it isn't set; note that tmpfs, where <tt>/tmp</tt> often lives, does not
+ * support O_DIRECT. </p>
+ *
+ * @author smacke
+ *
+ */
+final class TestFile {
+
+	private TestFile() {
+	}
+
+	/**
+	 * @return A new file of <tt>size</tt> random bytes
+	 */
+	static File create(long size) throws IOException {
+		final File dir = new File(System.getProperty("jaydio.bench.dir", "."));
+		final File file = File.createTempFile("jaydio-bench", ".dat", dir);
+		file.deleteOnExit();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final byte[] chunk = new byte[1 << 20];
+			new Random(42).nextBytes(chunk);
+			for (long written = 0; written < size; written += chunk.length) {
+				raf.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+			}
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @return The block size which O_DIRECT transfers on <tt>file</tt> have to be aligned to
+	 */
+	static int blockSize(File file) {
+		return DirectIoLib.getLibForPath(file.getParent() == null ? "." : file.getParent()).blockSize();
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sequential and random writes of <tt>transferSize</tt> bytes through each {@link Api},
+ * plus the cost of making a write durable. For Jaydio, that is flushing the aligner's
+ * window and then forcing the file; for the other APIs, it is forcing whatever the
+ * page cache holds. </p>
+ *
+ * @author smacke
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+	@Param({ "JAYDIO", "RANDOM_ACCESS_FILE", "FILE_CHANNEL", "MMAP", "DIRECT_OPEN_OPTION" })
+	public Api api;
+
+	@Param({ "4096", "65536", "1048576" })
+	public int transferSize;
+
+	/**
+	 * The buffer size of Jaydio and the DIRECT open option; sweep it with -p windowSize=...
+	 */
+	@Param({ "1048576" })
+	public int windowSize;
+
+	@Param({ "268435456" })
+	public long fileSize;
+
+	private File file;
+	private FileTarget target;
+	private byte[] buf;
+	private long position;
+	private long slots;
+	private SplittableRandom random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = TestFile.create(fileSize);
+		target = api.open(file, windowSize, TestFile.blockSize(file));
+		buf = new byte[transferSize];
+		new SplittableRandom(7).nextBytes(buf);
+		slots = fileSize / transferSize;
+		random = new SplittableRandom(42);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		target.close();
+		file.delete();
+	}
+
+	private long nextSequential() {
+		if (position + transferSize > fileSize) {
+			position = 0;
+		}
+		final long p = position;
+		position += transferSize;
+		return p;
+	}
+
+	@Benchmark
+	public void sequentialWrite() throws IOException {
+		target.write(nextSequential(), buf, 0, transferSize);
+	}
+
+	@Benchmark
+	public void randomWrite() throws IOException {
+		target.write(random.nextLong(slots) * transferSize, buf, 0, transferSize);
+	}
+
+	/**
+	 * One sequential write followed by a sync, like a log committing a record.
+	 */
+	@Benchmark
+	public void durableWrite() throws IOException {
+		target.write(nextSequential(), buf, 0, transferSize);
+		target.sync();
+	}
+}
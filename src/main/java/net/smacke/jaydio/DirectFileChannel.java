@@ -0,0 +1,380 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.stats.IoStats;
+
+/**
+ * A {@link FileChannel} doing direct I/O, so that code written against the JDK's channel
+ * API gets <tt>O_DIRECT</tt> behavior without changes. </p>
+ *
+ * <p> Every operation, including the ones using and updating this channel's position, is
+ * translated into a positional {@link DirectIoByteChannelAligner#read(long, byte[], int, int) read}
+ * or {@link DirectIoByteChannelAligner#write(long, byte[], int, int) write} of the underlying
+ * aligner. Nothing is cached, so all operations see each other's effects, and, as required
+ * of a {@link FileChannel}, instances are safe for use by multiple threads. Buffers of either
+ * kind are copied straight from and to the aligner's aligned scratch buffers, and
+ * {@link #transferTo} and {@link #transferFrom} go through pooled direct buffers of at most
+ * {@value #CHUNK_SIZE} bytes, so that no temporary arrays are needed. </p>
+ *
+ * <p> File locks are taken through a regular JDK {@link FileChannel} opened on the same file
+ * when first needed. Memory mapping is not supported, since it would bypass direct I/O. </p>
+ *
+ * @author smacke
+ *
+ */
+public class DirectFileChannel extends FileChannel {
+
+	/**
+	 * The largest number of bytes moved at once by {@link #transferTo} and {@link #transferFrom}
+	 */
+	public static final int CHUNK_SIZE = 1 << 20;
+
+	private final File file;
+	private final DirectIoByteChannelAligner aligner;
+	private final boolean readOnly;
+
+	private final Object positionLock = new Object();
+	// guarded by positionLock
+	private long position;
+
+	// guarded by this channel's monitor; only opened for locking
+	private FileChannel lockChannel;
+
+	// direct buffers for transferTo and transferFrom, shared by all threads
+	private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	public static DirectFileChannel open(File path) throws IOException {
+		return open(path, false);
+	}
+
+	public static DirectFileChannel open(File path, boolean readOnly) throws IOException {
+		DirectIoLib lib = DirectIoLib.getLibForPath(path.toString());
+		return open(lib, path, readOnly);
+	}
+
+	public static DirectFileChannel open(DirectIoLib lib, File path, boolean readOnly) throws IOException {
+		DirectIoByteChannel channel = DirectIoByteChannel.getChannel(lib, path, readOnly);
+		// all I/O is positional, so the aligner's window is never used; keep it small
+		AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, lib.blockSize());
+		return new DirectFileChannel(path, new DirectIoByteChannelAligner(lib, channel, buffer), readOnly);
+	}
+
+	protected DirectFileChannel(File file, DirectIoByteChannelAligner aligner, boolean readOnly) {
+		this.file = file;
+		this.aligner = aligner;
+		this.readOnly = readOnly;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void ensureWritable() {
+		if (readOnly) {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized (positionLock) {
+			final int n = read(dst, position);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		checkBounds(offset, length, dsts.length);
+		synchronized (positionLock) {
+			long total = 0;
+			for (int i=offset; i<offset+length; i++) {
+				final int n = read(dsts[i], position);
+				if (n < 0) {
+					return total == 0 ? -1 : total;
+				}
+				position += n;
+				total += n;
+				if (dsts[i].hasRemaining()) {
+					break; // hit EOF
+				}
+			}
+			return total;
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		ensureOpen();
+		if (position < 0) {
+			throw new IllegalArgumentException("negative position: " + position);
+		}
+		return aligner.read(position, dst);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		synchronized (positionLock) {
+			final int n = write(src, position);
+			position += n;
+			return n;
+		}
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		checkBounds(offset, length, srcs.length);
+		synchronized (positionLock) {
+			long total = 0;
+			for (int i=offset; i<offset+length; i++) {
+				final int n = write(srcs[i], position);
+				position += n;
+				total += n;
+			}
+			return total;
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		ensureOpen();
+		ensureWritable();
+		if (position < 0) {
+			throw new IllegalArgumentException("negative position: " + position);
+		}
+		return aligner.write(position, src);
+	}
+
+	private static void checkBounds(int offset, int length, int size) {
+		if (offset < 0 || length < 0 || offset > size - length) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		ensureOpen();
+		synchronized (positionLock) {
+			return position;
+		}
+	}
+
+	@Override
+	public DirectFileChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("negative position: " + newPosition);
+		}
+		synchronized (positionLock) {
+			position = newPosition;
+		}
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return aligner.size();
+	}
+
+	@Override
+	public DirectFileChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if (size < 0) {
+			throw new IllegalArgumentException("negative size: " + size);
+		}
+		ensureWritable();
+		if (size < aligner.size()) {
+			aligner.truncate(size);
+		}
+		synchronized (positionLock) {
+			position = Math.min(position, size);
+		}
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		ensureOpen();
+		aligner.force(metaData);
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("negative position or count: " + position + ", " + count);
+		}
+		if (count == 0 || position >= aligner.size()) {
+			return 0;
+		}
+		final ByteBuffer chunk = takeChunk(Math.min(count, aligner.size() - position));
+		try {
+			long done = 0;
+			while (done < count) {
+				chunk.clear();
+				chunk.limit((int) Math.min(chunk.capacity(), count - done));
+				final int n = aligner.read(position + done, chunk);
+				if (n <= 0) {
+					break;
+				}
+				chunk.flip();
+				while (chunk.hasRemaining()) {
+					if (target.write(chunk) <= 0) {
+						// e.g. a non-blocking target which is full
+						return done + n - chunk.remaining();
+					}
+				}
+				done += n;
+			}
+			return done;
+		} finally {
+			chunks.offer(chunk);
+		}
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ensureOpen();
+		ensureWritable();
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("negative position or count: " + position + ", " + count);
+		}
+		if (count == 0 || position > aligner.size()) {
+			return 0;
+		}
+		final ByteBuffer chunk = takeChunk(count);
+		try {
+			long done = 0;
+			while (done < count) {
+				chunk.clear();
+				chunk.limit((int) Math.min(chunk.capacity(), count - done));
+				if (src.read(chunk) <= 0) {
+					break;
+				}
+				chunk.flip();
+				done += aligner.write(position + done, chunk);
+			}
+			return done;
+		} finally {
+			chunks.offer(chunk);
+		}
+	}
+
+	// a pooled direct buffer of up to CHUNK_SIZE bytes, at least count bytes if possible
+	private ByteBuffer takeChunk(long count) {
+		final int capacity = (int) Math.min(count, CHUNK_SIZE);
+		final ByteBuffer chunk = chunks.poll();
+		if (chunk != null && chunk.capacity() >= capacity) {
+			return chunk;
+		}
+		// a smaller one is left to the garbage collector
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * @return The I/O counters of this file
+	 */
+	public IoStats getStats() {
+		return aligner.getStats();
+	}
+
+	/**
+	 * Not supported, since memory mapped I/O goes through the page cache.
+	 *
+	 * @throws UnsupportedOperationException Always
+	 */
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) {
+		throw new UnsupportedOperationException("memory mapping would bypass direct I/O");
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		ensureOpen();
+		return new DelegatingLock(this, lockChannel().lock(position, size, shared));
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		ensureOpen();
+		final FileLock lock = lockChannel().tryLock(position, size, shared);
+		return lock == null ? null : new DelegatingLock(this, lock);
+	}
+
+	private synchronized FileChannel lockChannel() throws IOException {
+		if (lockChannel == null) {
+			lockChannel = new RandomAccessFile(file, readOnly ? "r" : "rw").getChannel();
+		}
+		return lockChannel;
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		try {
+			aligner.close();
+		} finally {
+			synchronized (this) {
+				if (lockChannel != null) {
+					lockChannel.close();
+				}
+			}
+		}
+	}
+
+	// a lock taken through the helper channel, but reporting this channel as its owner
+	private static final class DelegatingLock extends FileLock {
+
+		private final FileLock delegate;
+
+		DelegatingLock(DirectFileChannel channel, FileLock delegate) {
+			super(channel, delegate.position(), delegate.size(), delegate.isShared());
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean isValid() {
+			return delegate.isValid();
+		}
+
+		@Override
+		public void release() throws IOException {
+			delegate.release();
+		}
+	}
+}
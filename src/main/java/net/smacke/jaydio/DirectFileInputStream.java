@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+
+/**
+ * An {@link InputStream} reading a file with direct I/O, so that it can be plugged
+ * under anything which takes a stream, like {@link java.util.zip.GZIPInputStream} or
+ * {@link java.io.BufferedReader}, without another layer of buffering. </p>
+ *
+ * <p> Bulk reads copy straight from the aligner's window, or for large reads, from its
+ * aligned staging buffer, into the caller's array. Sequential readahead grows the
+ * window up to {@value #DEFAULT_MAX_READAHEAD} bytes by default, so streaming a large
+ * file takes few, large reads, and none of it goes through the page cache. Since the
+ * file is seekable, {@link #mark(int)} and {@link #reset()} are supported for any
+ * read limit. </p>
+ *
+ * @author smacke
+ *
+ */
+public class DirectFileInputStream extends InputStream {
+
+	/**
+	 * The cap on sequential readahead for streams opened by file name
+	 */
+	public static final int DEFAULT_MAX_READAHEAD = 8 << 20;
+
+	private static final int TRANSFER_CHUNK_SIZE = 1 << 20;
+
+	private final DirectIoByteChannelAligner channel;
+	private long mark;
+
+	/**
+	 * @param file The file to read
+	 * 
+	 * @throws IOException
+	 */
+	public DirectFileInputStream(File file) throws IOException {
+		this(DirectIoByteChannelAligner.open(file, true));
+		channel.setMaxReadahead(DEFAULT_MAX_READAHEAD);
+	}
+
+	/**
+	 * @param channel The channel to read from, starting at its current position. It
+	 *        gets closed along with this stream.
+	 */
+	public DirectFileInputStream(DirectIoByteChannelAligner channel) {
+		this.channel = channel;
+		this.mark = channel.position();
+	}
+
+	/**
+	 * @return The channel underneath this stream, e.g. to enable prefetching on it
+	 */
+	public DirectIoByteChannelAligner getChannel() {
+		return channel;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return channel.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException("offset " + off + ", length " + len + ", array length " + b.length);
+		}
+		if (len == 0) {
+			return 0;
+		}
+		return channel.readBytes(b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		final long position = channel.position();
+		final long skipped = Math.max(0, Math.min(n, channel.size() - position));
+		channel.position(position + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, channel.size() - channel.position()));
+	}
+
+	/**
+	 * Reads everything up to EOF and writes it to <tt>out</tt>, in chunks of up to
+	 * a megabyte.
+	 * 
+	 * @param out The stream to write to
+	 * 
+	 * @return The number of bytes transferred
+	 * 
+	 * @throws IOException
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		final byte[] chunk = new byte[Math.max(1, Math.min(TRANSFER_CHUNK_SIZE, available()))];
+		long total = 0;
+		int n;
+		while ((n = read(chunk, 0, chunk.length)) > 0) {
+			out.write(chunk, 0, n);
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	/**
+	 * Remembers the current position. Since this stream can seek, nothing needs to be
+	 * kept around, and <tt>readLimit</tt> is ignored.
+	 */
+	@Override
+	public synchronized void mark(int readLimit) {
+		mark = channel.position();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		channel.position(mark);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+
+/**
+ * An {@link OutputStream} writing a file with direct I/O, so that it can be plugged
+ * under anything which takes a stream, like {@link java.util.zip.GZIPOutputStream} or
+ * {@link java.io.ObjectOutputStream}, without another layer of buffering. </p>
+ *
+ * <p> Small writes gather in an aligned window of {@value #DEFAULT_BUFFER_SIZE} bytes
+ * by default, which is written out whenever it fills up; the block aligned interior of
+ * large writes goes to the file directly. {@link #flush()} writes out the window, so
+ * that other readers of the file see everything written so far. </p>
+ *
+ * @author smacke
+ *
+ */
+public class DirectFileOutputStream extends OutputStream {
+
+	/**
+	 * The window size of streams opened by file name
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	private final DirectIoByteChannelAligner channel;
+
+	/**
+	 * Opens <tt>file</tt> for writing, truncating it first.
+	 * 
+	 * @param file The file to write
+	 * 
+	 * @throws IOException
+	 */
+	public DirectFileOutputStream(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * @param file The file to write
+	 * 
+	 * @param append Whether to write after the existing contents of the file,
+	 *        rather than truncating it first
+	 * 
+	 * @throws IOException
+	 */
+	public DirectFileOutputStream(File file, boolean append) throws IOException {
+		this(file, append, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param file The file to write
+	 * 
+	 * @param append Whether to write after the existing contents of the file,
+	 *        rather than truncating it first
+	 * 
+	 * @param bufferSize The size of the window, a multiple of the file system block size
+	 * 
+	 * @throws IOException
+	 */
+	public DirectFileOutputStream(File file, boolean append, int bufferSize) throws IOException {
+		this(DirectIoByteChannelAligner.open(file, bufferSize, false));
+		try {
+			if (append) {
+				channel.position(channel.size());
+			} else {
+				channel.truncate(0);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param channel The channel to write to, starting at its current position. It
+	 *        gets closed along with this stream.
+	 */
+	public DirectFileOutputStream(DirectIoByteChannelAligner channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * @return The channel underneath this stream, e.g. to enable write-behind on it
+	 */
+	public DirectIoByteChannelAligner getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		channel.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException("offset " + off + ", length " + len + ", array length " + b.length);
+		}
+		channel.writeBytes(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		channel.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+
+/**
+ * A {@link Writer} which writes text at the file pointer of a
+ * {@link DirectRandomAccessFile}. </p>
+ *
+ * <p> Chars are gathered in a fixed size buffer, and then encoded by a single
+ * {@link CharsetEncoder} straight into the file's aligned window, so that writing
+ * a string costs no garbage and no copy through an intermediate byte array. Like
+ * {@link java.io.OutputStreamWriter}, malformed and unmappable input is replaced
+ * rather than reported. </p>
+ *
+ * <p> {@link #flush()} hands the gathered chars to the file, after which they are
+ * visible through it; like anything else written to the file, they reach the device
+ * as the window moves on, or when the file is closed. Closing the writer closes
+ * the file. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class DirectFileWriter extends Writer {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final DirectRandomAccessFile file;
+	private final DirectIoByteChannelAligner channel;
+	private final CharsetEncoder encoder;
+	private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+	private boolean closed;
+
+	/**
+	 * Writes UTF-8.
+	 * 
+	 * @param file The file to write to, starting at its file pointer
+	 */
+	public DirectFileWriter(DirectRandomAccessFile file) {
+		this(file, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * @param file The file to write to, starting at its file pointer
+	 * 
+	 * @param charset The charset to encode chars with
+	 */
+	public DirectFileWriter(DirectRandomAccessFile file, Charset charset) {
+		this.file = file;
+		this.channel = file.channel();
+		this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("writer is closed");
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		if (!chars.hasRemaining()) {
+			drain(false);
+		}
+		chars.put((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || off > cbuf.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (!chars.hasRemaining()) {
+				drain(false);
+			}
+			final int n = Math.min(len, chars.remaining());
+			chars.put(cbuf, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || off > str.length() - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (!chars.hasRemaining()) {
+				drain(false);
+			}
+			final int n = Math.min(len, chars.remaining());
+			str.getChars(off, off + n, chars.array(), chars.arrayOffset() + chars.position());
+			chars.position(chars.position() + n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	// encodes what has been gathered; only an incomplete surrogate pair may be left over
+	private void drain(boolean endOfInput) throws IOException {
+		chars.flip();
+		try {
+			final CoderResult result = channel.encode(chars, encoder, endOfInput);
+			if (result.isError()) {
+				result.throwException();
+			}
+		} finally {
+			chars.compact();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drain(false);
+	}
+
+	/**
+	 * Encodes everything written so far, including whatever state the encoder
+	 * still holds, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			drain(true);
+			final ByteBuffer tail = ByteBuffer.allocate(16);
+			encoder.flush(tail);
+			file.write(tail.array(), 0, tail.position());
+		} finally {
+			file.close();
+		}
+	}
+}
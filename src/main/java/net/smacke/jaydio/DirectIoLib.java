@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.jfr.IoEvents;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -168,9 +169,10 @@ public class DirectIoLib {
     // -- Java interfaces to native methods
 
     /**
-     * Interface into native pread function. Always reads an entire buffer,
-     * unlike {@link #pwrite(int, AlignedDirectByteBuffer, long) pwrite()} which uses buffer state
-     * to determine how much of buffer to write.</p>
+     * Interface into native pread function. Reads bytes corresponding to the nearest file
+     * system block boundaries between <tt>buf.position()</tt> and <tt>buf.limit()</tt>, just
+     * like {@link #pwrite(int, AlignedDirectByteBuffer, long) pwrite()} writes them. The
+     * position and limit of <tt>buf</tt> are left untouched.</p>
      *
      * @param fd
      *        A file discriptor to pass to native pread
@@ -186,8 +188,18 @@ public class DirectIoLib {
      * @throws IOException
      */
     public int pread(int fd, AlignedDirectByteBuffer buf, long offset) throws IOException {
-        buf.clear(); // so that we read an entire buffer
-        int n = pread(fd, buf.pointer(), new NativeLong(buf.capacity()), new NativeLong(offset)).intValue();
+        // must always read whole blocks
+        final int start = buf.position();
+        assert start == blockStart(start);
+        final int toRead = blockEnd(buf.limit()) - start;
+
+        final Object event = IoEvents.begin(IoEvents.READ);
+        int n;
+        try {
+            n = pread(fd, buf.pointer().share(start), new NativeLong(toRead), new NativeLong(offset)).intValue();
+        } finally {
+            IoEvents.commit(event, fd, offset, toRead);
+        }
         if (n==0) throw new EOFException("Tried to read past EOF at offset " + offset + " into ByteBuffer " + buf);
         if (n < 0) {
             throw new IOException("error reading file at offset " + offset + ": " + getLastError());
@@ -221,7 +233,13 @@ public class DirectIoLib {
     	assert start == blockStart(start);
         final int toWrite = blockEnd(buf.limit()) - start;
 
-        int n = pwrite(fd, buf.pointer().share(start), new NativeLong(toWrite), new NativeLong(offset)).intValue();
+        final Object event = IoEvents.begin(IoEvents.WRITE);
+        int n;
+        try {
+            n = pwrite(fd, buf.pointer().share(start), new NativeLong(toWrite), new NativeLong(offset)).intValue();
+        } finally {
+            IoEvents.commit(event, fd, offset, toWrite);
+        }
         if (n < 0) {
             throw new IOException("error writing file at offset " + offset + ": " + getLastError());
         }
@@ -246,16 +264,44 @@ public class DirectIoLib {
      * @throws IOException
      */
     public int oDirectOpen(String pathname, boolean readOnly) throws IOException {
-        int flags = OpenFlags.O_DIRECT;
+        return open(pathname, readOnly, OpenFlags.O_DIRECT);
+    }
+
+    /**
+     * Like {@link #oDirectOpen(String, boolean)}, but without the <tt>O_DIRECT</tt> flag,
+     * so that I/O goes through the page cache, e.g. for memory mapping.
+     *
+     * @param pathname
+     * 		  The path to the file to open
+     *
+     * @param readOnly
+     *        Whether to pass in <tt>O_RDONLY</tt>
+     *
+     * @return An integer file descriptor for the opened file
+     *
+     * @throws IOException
+     */
+    public int bufferedOpen(String pathname, boolean readOnly) throws IOException {
+        return open(pathname, readOnly, 0);
+    }
+
+    private int open(String pathname, boolean readOnly, int flags) throws IOException {
         if (readOnly) {
             flags |= OpenFlags.O_RDONLY;
         } else {
             flags |= OpenFlags.O_RDWR | OpenFlags.O_CREAT;
         }
-        int fd = open(pathname, flags, 00644);
+        final Object event = IoEvents.begin(IoEvents.OPEN);
+        int fd;
+        try {
+            fd = open(pathname, flags, 00644);
+        } finally {
+            IoEvents.commit(event, pathname, 0, 0);
+        }
         if (fd < 0) {
             throw new IOException("Error opening " + pathname + ", got " + getLastError());
         }
+        IoEvents.opened(fd, pathname);
         return fd;
     }
 
@@ -268,6 +314,15 @@ public class DirectIoLib {
         return strerror(Native.getLastError());
     }
 
+    /**
+     * @param errnum An error number, e.g. as returned by {@link #posix_fallocate(int, long, long)}
+     *
+     * @return The error message corresponding to <tt>errnum</tt>
+     */
+    public static String getError(int errnum) {
+        return strerror(errnum);
+    }
+
     
     // -- alignment logic utility methods
 
@@ -289,6 +344,17 @@ public class DirectIoLib {
         return fsBlockSize;
     }
 
+    /**
+     * Returns the default cap on how large sequential readahead may grow
+     * the window of a channel doing O_DIRECT I/O. This is 1 MiB, or the
+     * block size if that happens to be larger.
+     *
+     * @return The default readahead cap
+     */
+    public int defaultReadaheadSize() {
+        return Math.max(fsBlockSize, blockStart(1 << 20));
+    }
+
     /**
      * Given <tt>value</tt>, find the largest number less than or equal
      * to <tt>value</tt> which is a multiple of the fs block size.
@@ -409,6 +475,94 @@ public class DirectIoLib {
 
     public static native int ftruncate(int fd, long length);
 
+    /**
+     * {@link #ftruncate(int, long)}, recorded as a JFR event, see {@link IoEvents}.
+     *
+     * @param fd The file descriptor of the file to truncate
+     *
+     * @param length The new length of the file
+     *
+     * @return 0 on success, -1 on error
+     */
+    public static int truncate(int fd, long length) {
+        final Object event = IoEvents.begin(IoEvents.TRUNCATE);
+        try {
+            return ftruncate(fd, length);
+        } finally {
+            IoEvents.commit(event, fd, 0, length);
+        }
+    }
+
+    /**
+     * See "man 2 fsync".
+     * 
+     * @param fd The file descriptor of the file to sync
+     * 
+     * @return 0 on success, -1 on error
+     */
+    public static native int fsync(int fd);
+
+    /**
+     * See "man 2 fdatasync". Like {@link #fsync(int)}, but skips metadata which
+     * isn't needed to read the data back.
+     * 
+     * @param fd The file descriptor of the file to sync
+     * 
+     * @return 0 on success, -1 on error
+     */
+    public static native int fdatasync(int fd);
+
+    /**
+     * See "man 3 posix_fallocate". Allocates disk space for the given range, extending
+     * the file if necessary, so that later writes to it cannot run out of space.
+     * 
+     * @param fd The file descriptor of the file to allocate space for
+     * 
+     * @param offset Where the range starts
+     * 
+     * @param len The length of the range
+     * 
+     * @return 0 on success, or an error number (<tt>errno</tt> is not set)
+     */
+    public static native int posix_fallocate(int fd, long offset, long len);
+
+    /**
+     * See "man 2 mmap". Flags are in {@link MmapFlags}.
+     * 
+     * @return The address of the mapping, or {@link MmapFlags#MAP_FAILED} on error
+     */
+    public static native Pointer mmap(Pointer addr, NativeLong length, int prot, int flags, int fd, NativeLong offset);
+
+    /**
+     * See "man 2 munmap".
+     * 
+     * @return 0 on success, -1 on error
+     */
+    public static native int munmap(Pointer addr, NativeLong length);
+
+    /**
+     * See "man 2 madvise". Advice values are in {@link MmapFlags}.
+     * 
+     * @return 0 on success, -1 on error
+     */
+    public static native int madvise(Pointer addr, NativeLong length, int advice);
+
+    /**
+     * See "man 2 msync". Flags are in {@link MmapFlags}.
+     * 
+     * @return 0 on success, -1 on error
+     */
+    public static native int msync(Pointer addr, NativeLong length, int flags);
+
+    /**
+     * See "man 2 lseek". Besides the usual <tt>whence</tt> values, Linux supports
+     * <tt>SEEK_DATA</tt> (3) and <tt>SEEK_HOLE</tt> (4) for finding the allocated
+     * parts of sparse files.
+     * 
+     * @return The resulting offset, or -1 on error
+     */
+    public static native long lseek(int fd, long offset, int whence);
+
     private static native NativeLong pwrite(int fd, Pointer buf, NativeLong count, NativeLong offset);
     private static native NativeLong pread(int fd, Pointer buf, NativeLong count, NativeLong offset);
     private static native int open(String pathname, int flags);
@@ -23,8 +23,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
 
 import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+import net.smacke.jaydio.channel.MmapByteChannel;
+import net.smacke.jaydio.stats.IoStats;
 
 /**
  * Class to emulate the behavior of {@link RandomAccessFile}, but using direct I/O.
@@ -33,13 +38,21 @@ import net.smacke.jaydio.align.DirectIoByteChannelAligner;
  */
 public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable {
 	
-	// "\uFEFF" doesn't seem to work for some reason... hacky workaround
-	private static final String UTF8_BOM = Character.toString((char)0xEF) +
-			Character.toString((char)0xBB) +
-			Character.toString((char)0xBF);
+	private static final char BYTE_ORDER_MARK = '\uFEFF';
+	
+	// number of chars which writeBytes(String) and writeChars(String) encode at a time
+	private static final int TEXT_CHUNK = 4096;
 	
 	private DirectIoByteChannelAligner channel;
 	
+	// encodes single ints and longs, so that each takes one trip through the channel
+	private final byte[] scratch = new byte[8];
+	// reused by readLine(), allocated on first use
+	private LineBuffer line;
+	// reused by the string methods, grown as needed
+	private byte[] text;
+	private char[] utfChars;
+	
 	/**
 	 * @param name The name of the file to open
 	 * 
@@ -76,6 +89,39 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 	public DirectRandomAccessFile(File file, String mode, int bufferSize)
 		throws IOException {
 		
+		final boolean readOnly = isReadOnly(file, mode);
+		this.channel = bufferSize!=-1 ? 
+				DirectIoByteChannelAligner.open(file, bufferSize, readOnly) :
+				DirectIoByteChannelAligner.open(file, readOnly);
+	}
+
+	private DirectRandomAccessFile(DirectIoByteChannelAligner channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Opens a file which is accessed through a memory mapping rather than direct I/O,
+	 * see {@link MmapByteChannel}. This pays off for small files which are read often;
+	 * large files which are read once should use direct I/O. Apart from that, the
+	 * returned file behaves exactly like one opened with a constructor.
+	 * 
+	 * @param file The file to open
+	 * 
+	 * @param mode Either "rw" or "r", depending on whether this file is read only
+	 * 
+	 * @param populate Whether to read the whole file into memory up front
+	 * 
+	 * @param advice How the file is going to be accessed
+	 * 
+	 * @throws IOException
+	 */
+	public static DirectRandomAccessFile openMapped(File file, String mode, boolean populate,
+			MmapByteChannel.Advice advice) throws IOException {
+		final boolean readOnly = isReadOnly(file, mode);
+		return new DirectRandomAccessFile(DirectIoByteChannelAligner.openMapped(file, readOnly, populate, advice));
+	}
+
+	private static boolean isReadOnly(File file, String mode) throws FileNotFoundException {
 		boolean readOnly = false;
 		if (mode.equals("r")) {
 			readOnly = true;
@@ -86,10 +132,7 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 		if (readOnly && !file.isFile()) {
 			throw new FileNotFoundException("couldn't find file " + file);
 		}
-		
-		this.channel = bufferSize!=-1 ? 
-				DirectIoByteChannelAligner.open(file, bufferSize, readOnly) :
-				DirectIoByteChannelAligner.open(file, readOnly);
+		return readOnly;
 	}
 
 	@Override
@@ -97,6 +140,18 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 		channel.close();
 	}
 
+	DirectIoByteChannelAligner channel() {
+		return channel;
+	}
+
+	/**
+	 * @return The I/O counters of this file, e.g. to tell whether a slow job waits
+	 *         for the device or keeps moving the window around
+	 */
+	public IoStats getStats() {
+		return channel.getStats();
+	}
+
 	@Override
 	public void write(int v) throws IOException {
 		channel.write(v);
@@ -122,9 +177,22 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 		write(b);
 	}
 
+	/**
+	 * Writes the low byte of each char in <tt>s</tt>, as specified by
+	 * {@link DataOutput#writeBytes(String)}. To write text in a real charset,
+	 * use a {@link DirectFileWriter}.
+	 */
 	@Override
 	public void writeBytes(String s) throws IOException {
-		write(s.getBytes());
+		final int n = s.length();
+		final byte[] bytes = textBuffer(Math.min(n, TEXT_CHUNK));
+		for (int from = 0; from < n; from += TEXT_CHUNK) {
+			final int to = Math.min(n, from + TEXT_CHUNK);
+			for (int i = from; i < to; i++) {
+				bytes[i - from] = (byte) s.charAt(i);
+			}
+			write(bytes, 0, to - from);
+		}
 	}
 
 	@Override
@@ -135,17 +203,18 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 
 	@Override
 	public void writeChars(String s) throws IOException {
-		int numChars = s.length();
-		int numBytes = 2*numChars;
-		byte[] sBytes = new byte[numBytes];
-		char[] sChars = new char[numChars];
-		s.getChars(0, numChars, sChars, 0);
-		int bPos = 0;
-		for (int i = 0; i < numChars; i++) {
-            sBytes[bPos++] = (byte)(sChars[i] >>> 8);
-            sBytes[bPos++] = (byte)(sChars[i] >>> 0);
+		final int n = s.length();
+		final byte[] bytes = textBuffer(2 * Math.min(n, TEXT_CHUNK));
+		for (int from = 0; from < n; from += TEXT_CHUNK) {
+			final int to = Math.min(n, from + TEXT_CHUNK);
+			int b = 0;
+			for (int i = from; i < to; i++) {
+				final char c = s.charAt(i);
+				bytes[b++] = (byte) (c >>> 8);
+				bytes[b++] = (byte) c;
+			}
+			write(bytes, 0, b);
 		}
-		write(sBytes, 0, numBytes);
 	}
 
 	@Override
@@ -160,22 +229,19 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 
 	@Override
 	public void writeInt(int v) throws IOException {
-		write((v >>> 24) & 0xFF);
-		write((v >>> 16) & 0xFF);
-		write((v >>> 8) & 0xFF);
-		write(v & 0xFF);
+		scratch[0] = (byte) (v >>> 24);
+		scratch[1] = (byte) (v >>> 16);
+		scratch[2] = (byte) (v >>> 8);
+		scratch[3] = (byte) v;
+		write(scratch, 0, 4);
 	}
 
 	@Override
 	public void writeLong(long v) throws IOException {
-		write((int)(v >>> 56) & 0xFF);
-		write((int)(v >>> 48) & 0xFF);
-		write((int)(v >>> 40) & 0xFF);
-		write((int)(v >>> 32) & 0xFF);
-		write((int)(v >>> 24) & 0xFF);
-		write((int)(v >>> 16) & 0xFF);
-		write((int)(v >>> 8) & 0xFF);
-		write((int)v & 0xFF);
+		for (int i = 0; i < 8; i++) {
+			scratch[i] = (byte) (v >>> (56 - 8 * i));
+		}
+		write(scratch, 0, 8);
 	}
 
 	@Override
@@ -185,10 +251,55 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 		
 	}
 
+	/**
+	 * Writes <tt>s</tt> in modified UTF-8, preceded by its encoded length, as specified by
+	 * {@link DataOutput#writeUTF(String)}. The encoding goes into an array which is reused
+	 * from call to call, and then reaches the channel in one transfer.
+	 * 
+	 * @throws UTFDataFormatException If the encoding is longer than 65535 bytes
+	 */
 	@Override
 	public void writeUTF(String s) throws IOException {
-		// TODO TODO TODO
-		throw new UnsupportedOperationException("not implemented yet!");
+		final int n = s.length();
+		int utfLength = 0;
+		for (int i = 0; i < n; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				utfLength++;
+			} else if (c <= 0x07FF) {
+				utfLength += 2;
+			} else {
+				utfLength += 3;
+			}
+		}
+		if (utfLength > 65535) {
+			throw new UTFDataFormatException("encoded string too long: " + utfLength + " bytes");
+		}
+		final byte[] bytes = textBuffer(utfLength + 2);
+		int b = 0;
+		bytes[b++] = (byte) (utfLength >>> 8);
+		bytes[b++] = (byte) utfLength;
+		for (int i = 0; i < n; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				bytes[b++] = (byte) c;
+			} else if (c <= 0x07FF) {
+				bytes[b++] = (byte) (0xC0 | (c >> 6));
+				bytes[b++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				bytes[b++] = (byte) (0xE0 | (c >> 12));
+				bytes[b++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[b++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		write(bytes, 0, b);
+	}
+
+	private byte[] textBuffer(int length) {
+		if (text == null || text.length < length) {
+			text = new byte[Math.max(length, 64)];
+		}
+		return text;
 	}
 	
 	/**
@@ -272,6 +383,177 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 		channel.readBytes(dst, 0, dst.length);
 	}
 
+	/**
+	 * Reads bytes at the given file offset without moving the file pointer. Unlike the
+	 * other methods of this class, this may be called from many threads at once.
+	 * 
+	 * @param position The file offset at which to start reading
+	 * 
+	 * @param dst The destination byte array
+	 * 
+	 * @param offset The offset within dst to start reading
+	 * 
+	 * @param length The maximum number of bytes to read
+	 * 
+	 * @return The number of bytes read, or -1 at EOF
+	 * 
+	 * @throws IOException
+	 * 
+	 * @see DirectIoByteChannelAligner#read(long, byte[], int, int)
+	 */
+	public int read(long position, byte[] dst, int offset, int length) throws IOException {
+		return channel.read(position, dst, offset, length);
+	}
+
+	/**
+	 * Writes bytes at the given file offset without moving the file pointer. Unlike the
+	 * other methods of this class, this may be called from many threads at once.
+	 * 
+	 * @param position The file offset at which to start writing
+	 * 
+	 * @param src The source byte array
+	 * 
+	 * @param offset The offset within src to start writing from
+	 * 
+	 * @param length The number of bytes to write
+	 * 
+	 * @throws IOException
+	 * 
+	 * @see DirectIoByteChannelAligner#write(long, byte[], int, int)
+	 */
+	public void write(long position, byte[] src, int offset, int length) throws IOException {
+		channel.write(position, src, offset, length);
+	}
+
+	/**
+	 * Reads a batch of byte ranges without moving the file pointer, coalescing them into
+	 * as few aligned reads as possible. This is much cheaper than a {@link #seek(long)} and
+	 * read for each range when the ranges are small and scattered over the file.
+	 * 
+	 * @param offsets The file offset of each range
+	 * 
+	 * @param lengths The length of each range
+	 * 
+	 * @param dst Receives the ranges one after the other, in request order
+	 * 
+	 * @param dstOffset Where in dst the first range goes
+	 * 
+	 * @throws EOFException If any range extends past EOF
+	 * 
+	 * @throws IOException
+	 * 
+	 * @see DirectIoByteChannelAligner#readRanges(long[], int[], byte[], int)
+	 */
+	public void readRanges(long[] offsets, int[] lengths, byte[] dst, int dstOffset) throws IOException {
+		channel.readRanges(offsets, lengths, dst, dstOffset);
+	}
+
+	/**
+	 * Reads <tt>dst.length</tt> ints, decoding them straight out of the aligned window
+	 * rather than assembling each one from single bytes.
+	 * 
+	 * @param dst The destination array
+	 * 
+	 * @param order The byte order of the ints in the file; {@link ByteOrder#BIG_ENDIAN}
+	 *        matches {@link #readInt()}
+	 * 
+	 * @throws EOFException If the file ends before the last int, in which case nothing is read
+	 * 
+	 * @throws IOException
+	 */
+	public void readInts(int[] dst, ByteOrder order) throws IOException {
+		channel.readInts(dst, 0, dst.length, order);
+	}
+
+	/**
+	 * Reads <tt>length</tt> ints into dst, starting at index <tt>offset</tt>.
+	 * 
+	 * @see #readInts(int[], ByteOrder)
+	 */
+	public void readInts(int[] dst, int offset, int length, ByteOrder order) throws IOException {
+		channel.readInts(dst, offset, length, order);
+	}
+
+	/**
+	 * @see #readInts(int[], ByteOrder)
+	 */
+	public void readLongs(long[] dst, ByteOrder order) throws IOException {
+		channel.readLongs(dst, 0, dst.length, order);
+	}
+
+	/**
+	 * @see #readInts(int[], int, int, ByteOrder)
+	 */
+	public void readLongs(long[] dst, int offset, int length, ByteOrder order) throws IOException {
+		channel.readLongs(dst, offset, length, order);
+	}
+
+	/**
+	 * @see #readInts(int[], ByteOrder)
+	 */
+	public void readDoubles(double[] dst, ByteOrder order) throws IOException {
+		channel.readDoubles(dst, 0, dst.length, order);
+	}
+
+	/**
+	 * @see #readInts(int[], int, int, ByteOrder)
+	 */
+	public void readDoubles(double[] dst, int offset, int length, ByteOrder order) throws IOException {
+		channel.readDoubles(dst, offset, length, order);
+	}
+
+	/**
+	 * Writes all of src, encoding the ints straight into the aligned window rather
+	 * than writing them a byte at a time.
+	 * 
+	 * @param src The source array
+	 * 
+	 * @param order The byte order of the ints in the file; {@link ByteOrder#BIG_ENDIAN}
+	 *        matches {@link #writeInt(int)}
+	 * 
+	 * @throws IOException
+	 */
+	public void writeInts(int[] src, ByteOrder order) throws IOException {
+		channel.writeInts(src, 0, src.length, order);
+	}
+
+	/**
+	 * Writes <tt>length</tt> ints from src, starting at index <tt>offset</tt>.
+	 * 
+	 * @see #writeInts(int[], ByteOrder)
+	 */
+	public void writeInts(int[] src, int offset, int length, ByteOrder order) throws IOException {
+		channel.writeInts(src, offset, length, order);
+	}
+
+	/**
+	 * @see #writeInts(int[], ByteOrder)
+	 */
+	public void writeLongs(long[] src, ByteOrder order) throws IOException {
+		channel.writeLongs(src, 0, src.length, order);
+	}
+
+	/**
+	 * @see #writeInts(int[], int, int, ByteOrder)
+	 */
+	public void writeLongs(long[] src, int offset, int length, ByteOrder order) throws IOException {
+		channel.writeLongs(src, offset, length, order);
+	}
+
+	/**
+	 * @see #writeInts(int[], ByteOrder)
+	 */
+	public void writeDoubles(double[] src, ByteOrder order) throws IOException {
+		channel.writeDoubles(src, 0, src.length, order);
+	}
+
+	/**
+	 * @see #writeInts(int[], int, int, ByteOrder)
+	 */
+	public void writeDoubles(double[] src, int offset, int length, ByteOrder order) throws IOException {
+		channel.writeDoubles(src, offset, length, order);
+	}
+
 	@Override
 	public void readFully(byte[] src) throws IOException {
 		readFully(src, 0, src.length);
@@ -279,59 +561,87 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 
 	@Override
 	public void readFully(byte[] src, int offset, int length) throws IOException {
-		read(src,offset,length);
+		final int n = channel.readBytes(src, offset, length);
+		if (length > 0 && n < length) {
+			throw new EOFException("wanted " + length + " bytes at offset " + (channel.position() - Math.max(n, 0))
+					+ " but file length is " + channel.size());
+		}
 	}
 
 	@Override
 	public int readInt() throws IOException {
-		int b1 = this.readDetectEOF();
-		int b2 = this.readDetectEOF();
-		int b3 = this.readDetectEOF();
-		int b4 = this.readDetectEOF();
-		return ((b1<<24) + (b2<<16) + (b3<<8) + b4);
+		readFully(scratch, 0, 4);
+		return ((scratch[0] & 0xFF) << 24) | ((scratch[1] & 0xFF) << 16) | ((scratch[2] & 0xFF) << 8)
+				| (scratch[3] & 0xFF);
 	}
 	
-	private static String sanitizeUtf8Bom(String s) {
-        if (s.startsWith(UTF8_BOM)) {
-            s = s.substring(UTF8_BOM.length());
-        }
-        return s;
-    }
-
+	/**
+	 * Reads the next line, decoding it as UTF-8. Lines end with <tt>'\n'</tt>,
+	 * <tt>'\r'</tt> or <tt>"\r\n"</tt>, or at EOF; the terminator is not part of
+	 * the returned string. A leading byte order mark is dropped. </p>
+	 * 
+	 * <p> Unlike {@link DataInput#readLine()}, which widens each byte to a char, this
+	 * decodes multi-byte sequences properly. Use {@link #readLine(LineBuffer)} to avoid
+	 * allocating a string per line. </p>
+	 * 
+	 * @return The next line, or <tt>null</tt> at EOF
+	 * 
+	 * @throws IOException
+	 */
 	@Override
 	public String readLine() throws IOException {
-//		boolean sanitizeBOM = getFilePointer()==0;
-		StringBuilder instr = new StringBuilder();
-		int c;
-		while ((c=read()) != -1) {
-			if (c=='\n') {
-				break;
-			} else if (c=='\r') {
-				// advance if next char is '\n'
-				long pos = getFilePointer();
-				if (read()!='\n') {
-					seek(pos);
-				}
-				break;
-			} else {
-				instr.append((char)c);
-			}
+		if (line == null) {
+			line = new LineBuffer();
 		}
-		
-		if (c==-1 && instr.length()==0) {
+		if (!readLine(line)) {
 			return null;
 		}
-		
-		String ret = instr.toString();
-//		if (sanitizeBOM) {
-		return sanitizeUtf8Bom(ret);
-//		}
-//		return ret;
+		final String ret = line.toString();
+		if (ret.length() > 0 && ret.charAt(0) == BYTE_ORDER_MARK) {
+			return ret.substring(1);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the bytes of the next line into <tt>line</tt>, which decodes them as UTF-8
+	 * only if its chars are asked for. Line terminators are the same as for
+	 * {@link #readLine()}, but byte order marks are left alone. The aligned window is
+	 * scanned for the terminator in bulk, and once <tt>line</tt> has grown to fit the
+	 * longest line, nothing gets allocated.
+	 * 
+	 * @param line Receives the line, without its terminator
+	 * 
+	 * @return <tt>false</tt> if the file pointer was already at EOF
+	 * 
+	 * @throws IOException
+	 */
+	public boolean readLine(LineBuffer line) throws IOException {
+		int length = 0;
+		while (true) {
+			final byte[] bytes = line.ensureCapacity(length + 1);
+			final int n = channel.readLineBytes(bytes, length, bytes.length - length);
+			if (n < 0) {
+				line.setByteLength(length);
+				return length > 0;
+			}
+			length += n;
+			final byte last = bytes[length - 1];
+			if (last == '\n' || last == '\r') {
+				line.setByteLength(length - 1);
+				return true;
+			}
+		}
 	}
 
 	@Override
 	public long readLong() throws IOException {
-		return ((long)(readInt()) << 32) + (readInt() & 0xFFFFFFFFL);
+		readFully(scratch, 0, 8);
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (scratch[i] & 0xFF);
+		}
+		return v;
 	}
 
 	@Override
@@ -343,8 +653,37 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 
 	@Override
 	public String readUTF() throws IOException {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException("not implemented yet!");
+		final int utfLength = readUnsignedShort();
+		final byte[] bytes = textBuffer(utfLength);
+		readFully(bytes, 0, utfLength);
+		if (utfChars == null || utfChars.length < utfLength) {
+			utfChars = new char[Math.max(utfLength, 64)];
+		}
+		final char[] chars = utfChars;
+		int n = 0;
+		int i = 0;
+		while (i < utfLength) {
+			final int c = bytes[i] & 0xFF;
+			if (c < 0x80) {
+				chars[n++] = (char) c;
+				i++;
+			} else if ((c & 0xE0) == 0xC0) {
+				if (i + 1 >= utfLength || (bytes[i + 1] & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("malformed input around byte " + i);
+				}
+				chars[n++] = (char) (((c & 0x1F) << 6) | (bytes[i + 1] & 0x3F));
+				i += 2;
+			} else if ((c & 0xF0) == 0xE0) {
+				if (i + 2 >= utfLength || (bytes[i + 1] & 0xC0) != 0x80 || (bytes[i + 2] & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("malformed input around byte " + i);
+				}
+				chars[n++] = (char) (((c & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F));
+				i += 3;
+			} else {
+				throw new UTFDataFormatException("malformed input around byte " + i);
+			}
+		}
+		return new String(chars, 0, n);
 	}
 
 	@Override
@@ -389,6 +728,47 @@ public class DirectRandomAccessFile implements DataInput, DataOutput, Closeable
 		return channel.position();
 	}
 	
+	/**
+	 * Enables asynchronous prefetching for sequential reads.
+	 * 
+	 * @param buffers The number of aligned window buffers to cycle through
+	 * 		  (2 for double buffering). Values below 2 disable prefetching.
+	 * 
+	 * @throws IOException
+	 * 
+	 * @see DirectIoByteChannelAligner#setPrefetchDepth(int)
+	 */
+	public void setPrefetchDepth(int buffers) throws IOException {
+		channel.setPrefetchDepth(buffers);
+	}
+	
+	/**
+	 * Enables write-behind, so that sequential writers don't wait for the disk
+	 * every time they cross a buffer boundary.
+	 * 
+	 * @param maxOutstandingBytes The most dirty bytes that may be queued for writing
+	 * 
+	 * @param maxDirtyAge How long written data may stay in the current buffer, or 0 for no limit
+	 * 
+	 * @param unit The unit of <tt>maxDirtyAge</tt>
+	 * 
+	 * @throws IOException
+	 * 
+	 * @see DirectIoByteChannelAligner#enableWriteBehind(long, long, TimeUnit)
+	 */
+	public void enableWriteBehind(long maxOutstandingBytes, long maxDirtyAge, TimeUnit unit) throws IOException {
+		channel.enableWriteBehind(maxOutstandingBytes, maxDirtyAge, unit);
+	}
+	
+	/**
+	 * Waits for all queued writes and disables write-behind.
+	 * 
+	 * @throws IOException If any queued write failed
+	 */
+	public void disableWriteBehind() throws IOException {
+		channel.disableWriteBehind();
+	}
+	
 	/**
 	 * @return The current length of the file
 	 */
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * A reusable holder for one line of UTF-8 text, filled by
+ * {@link DirectRandomAccessFile#readLine(LineBuffer)}. </p>
+ *
+ * <p> The raw bytes of the line are available through {@link #bytes()} and
+ * {@link #byteLength()} without any decoding at all. The {@link CharSequence} methods
+ * decode them lazily, into a char array which is reused from line to line, so that
+ * reading a file line by line allocates nothing once the buffers have grown to fit the
+ * longest line. Lines which are pure ASCII skip the charset decoder. Malformed input
+ * is replaced with U+FFFD. </p>
+ *
+ * <p> The contents are only valid until the next line is read into this buffer; use
+ * {@link #toString()} to keep them. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class LineBuffer implements CharSequence {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] bytes;
+	private int byteLength;
+
+	private char[] chars;
+	private int charLength;
+	private boolean decoded;
+	private CharsetDecoder decoder;
+
+	public LineBuffer() {
+		this(128);
+	}
+
+	/**
+	 * @param capacity The initial number of bytes which fit without growing
+	 */
+	public LineBuffer(int capacity) {
+		this.bytes = new byte[Math.max(capacity, 1)];
+		this.chars = new char[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * @return The array holding the line's bytes from index 0 to {@link #byteLength()},
+	 *         without the line terminator
+	 */
+	public byte[] bytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of bytes in the line, without the line terminator
+	 */
+	public int byteLength() {
+		return byteLength;
+	}
+
+	// returns the byte array, grown to at least capacity bytes if need be
+	byte[] ensureCapacity(int capacity) {
+		if (bytes.length < capacity) {
+			bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, capacity));
+		}
+		return bytes;
+	}
+
+	void setByteLength(int byteLength) {
+		this.byteLength = byteLength;
+		this.decoded = false;
+	}
+
+	private void decode() {
+		if (decoded) {
+			return;
+		}
+		if (chars.length < byteLength) {
+			// UTF-8 never decodes to more chars than it has bytes
+			chars = new char[Math.max(2 * chars.length, byteLength)];
+		}
+		int i = 0;
+		while (i < byteLength && bytes[i] >= 0) {
+			chars[i] = (char) bytes[i];
+			i++;
+		}
+		if (i < byteLength) {
+			if (decoder == null) {
+				decoder = UTF8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			final CharBuffer out = CharBuffer.wrap(chars);
+			out.position(i);
+			decoder.reset();
+			decoder.decode(ByteBuffer.wrap(bytes, i, byteLength - i), out, true);
+			decoder.flush(out);
+			i = out.position();
+		}
+		charLength = i;
+		decoded = true;
+	}
+
+	@Override
+	public int length() {
+		decode();
+		return charLength;
+	}
+
+	@Override
+	public char charAt(int index) {
+		decode();
+		if (index < 0 || index >= charLength) {
+			throw new IndexOutOfBoundsException("index " + index + ", length " + charLength);
+		}
+		return chars[index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		decode();
+		if (start < 0 || start > end || end > charLength) {
+			throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + charLength);
+		}
+		return new String(chars, start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		decode();
+		return new String(chars, 0, charLength);
+	}
+}
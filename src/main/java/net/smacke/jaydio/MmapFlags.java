@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Constants for {@link DirectIoLib#mmap}, {@link DirectIoLib#madvise} and
+ * {@link DirectIoLib#msync} (Linux values). </p>
+ *
+ * @author smacke
+ *
+ */
+public final class MmapFlags {
+    public static final int PROT_READ = 0x1;
+    public static final int PROT_WRITE = 0x2;
+
+    public static final int MAP_SHARED = 0x01;
+    public static final int MAP_POPULATE = 0x08000;
+    public static final Pointer MAP_FAILED = Pointer.createConstant(-1);
+
+    public static final int MADV_NORMAL = 0;
+    public static final int MADV_RANDOM = 1;
+    public static final int MADV_SEQUENTIAL = 2;
+    public static final int MADV_WILLNEED = 3;
+    public static final int MADV_DONTNEED = 4;
+
+    public static final int MS_ASYNC = 1;
+    public static final int MS_SYNC = 4;
+
+    private MmapFlags() {}
+}
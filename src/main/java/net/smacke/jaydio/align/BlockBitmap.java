@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size bitmap with one bit per block of a {@link ByteChannelAligner} window. </p>
+ *
+ * <p> Ranges are set and cleared a whole word at a time, and runs of set bits are found
+ * with {@link Long#numberOfTrailingZeros(long)}, so that the cost of marking and scanning
+ * scales with the number of words touched rather than the number of blocks. Bits past
+ * {@link #size()} are always clear. </p>
+ *
+ * @author smacke
+ *
+ */
+final class BlockBitmap {
+
+	private static final int ADDRESS_BITS = 6;
+	private static final long WORD_MASK = 0xFFFFFFFFFFFFFFFFL;
+
+	private final long[] words;
+	private final int size;
+
+	/**
+	 * @param size The number of bits, all initially clear
+	 */
+	BlockBitmap(int size) {
+		this.size = size;
+		this.words = new long[(size + 63) >>> ADDRESS_BITS];
+	}
+
+	/**
+	 * @return The number of bits in this bitmap
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return Whether the bit at <tt>index</tt> is set
+	 */
+	boolean get(int index) {
+		return (words[index >>> ADDRESS_BITS] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Sets the bits in <tt>[from, to)</tt>.
+	 */
+	void set(int from, int to) {
+		assert 0 <= from && from <= to && to <= size : "bad range [" + from + ", " + to + ") for size " + size;
+		if (from == to) {
+			return;
+		}
+		final int first = from >>> ADDRESS_BITS;
+		final int last = (to - 1) >>> ADDRESS_BITS;
+		// shifts are mod 64, so these are the masks for the partial end words
+		final long firstMask = WORD_MASK << from;
+		final long lastMask = WORD_MASK >>> -to;
+		if (first == last) {
+			words[first] |= firstMask & lastMask;
+			return;
+		}
+		words[first] |= firstMask;
+		for (int i = first + 1; i < last; i++) {
+			words[i] = WORD_MASK;
+		}
+		words[last] |= lastMask;
+	}
+
+	/**
+	 * Clears the bits in <tt>[from, to)</tt>.
+	 */
+	void clear(int from, int to) {
+		assert 0 <= from && from <= to && to <= size : "bad range [" + from + ", " + to + ") for size " + size;
+		if (from == to) {
+			return;
+		}
+		final int first = from >>> ADDRESS_BITS;
+		final int last = (to - 1) >>> ADDRESS_BITS;
+		final long firstMask = WORD_MASK << from;
+		final long lastMask = WORD_MASK >>> -to;
+		if (first == last) {
+			words[first] &= ~(firstMask & lastMask);
+			return;
+		}
+		words[first] &= ~firstMask;
+		for (int i = first + 1; i < last; i++) {
+			words[i] = 0;
+		}
+		words[last] &= ~lastMask;
+	}
+
+	/**
+	 * Clears every bit.
+	 */
+	void clear() {
+		Arrays.fill(words, 0);
+	}
+
+	/**
+	 * @return The number of set bits
+	 */
+	int cardinality() {
+		int n = 0;
+		for (long w : words) {
+			n += Long.bitCount(w);
+		}
+		return n;
+	}
+
+	/**
+	 * @return The index of the first set bit at or after <tt>from</tt>, or -1 if there is none
+	 */
+	int nextSetBit(int from) {
+		if (from >= size) {
+			return -1;
+		}
+		int i = from >>> ADDRESS_BITS;
+		long w = words[i] & (WORD_MASK << from);
+		while (w == 0) {
+			if (++i == words.length) {
+				return -1;
+			}
+			w = words[i];
+		}
+		return (i << ADDRESS_BITS) + Long.numberOfTrailingZeros(w);
+	}
+
+	/**
+	 * @return The index of the first clear bit at or after <tt>from</tt>, or
+	 *         {@link #size()} if every bit from there on is set
+	 */
+	int nextClearBit(int from) {
+		if (from >= size) {
+			return size;
+		}
+		int i = from >>> ADDRESS_BITS;
+		long w = ~words[i] & (WORD_MASK << from);
+		while (w == 0) {
+			if (++i == words.length) {
+				return size;
+			}
+			w = ~words[i];
+		}
+		return Math.min(size, (i << ADDRESS_BITS) + Long.numberOfTrailingZeros(w));
+	}
+
+	/**
+	 * @return The index one past the last set bit, or 0 if no bit is set
+	 */
+	int length() {
+		for (int i = words.length - 1; i >= 0; i--) {
+			if (words[i] != 0) {
+				return (i << ADDRESS_BITS) + 64 - Long.numberOfLeadingZeros(words[i]);
+			}
+		}
+		return 0;
+	}
+}
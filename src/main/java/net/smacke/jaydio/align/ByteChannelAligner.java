@@ -18,14 +18,25 @@ package net.smacke.jaydio.align;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
-import java.util.Arrays;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.JaydioByteBuffer;
+import net.smacke.jaydio.channel.BlockLocks;
 import net.smacke.jaydio.channel.BufferedChannel;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.channel.ReadPlan;
+import net.smacke.jaydio.jfr.IoEvents;
+import net.smacke.jaydio.stats.IoStats;
 
 
 /**
@@ -35,21 +46,90 @@ import net.smacke.jaydio.channel.BufferedChannel;
  * strange alignment rules. It may seem like overkill to segment out the alignment logic necessary
  * for this into its own abstract class, separate from any actual channel, but this allows for highly
  * flexible testing with mock objects, to avoid doing actual heavy-weight I/O when possible. </p>
+ *
+ * <p> The window is the part of the buffer which currently mirrors the file. It starts out
+ * as large as the buffer handed to the constructor, but grows geometrically (up to
+ * {@link #getMaxReadahead()} bytes) while the channel is being refilled sequentially, and
+ * shrinks back as soon as a refill happens somewhere else in the file. Larger buffers are
+ * obtained through {@link #allocateBuffer(int)} as needed; subclasses which don't override
+ * it keep a fixed window and can't use the features below which need extra buffers. </p>
+ *
+ * <p> Sequential readers can additionally {@link #setPrefetchDepth(int) enable prefetching},
+ * in which case the windows following the current one are read on a background thread
+ * into a small ring of buffers, so that crossing a window boundary usually doesn't have
+ * to wait for the device. </p>
+ *
+ * <p> Producers can likewise {@link #enableWriteBehind(long, long, TimeUnit) enable write-behind},
+ * in which case full windows are handed to a background thread for writing while the producer
+ * continues in a fresh buffer. </p>
+ *
+ * <p> Transfers spanning at least two windows' worth of whole blocks bypass the window:
+ * their block aligned interior moves between the channel and a large staging buffer
+ * in chunks of up to {@value #MAX_STAGING_SIZE} bytes, and only the unaligned head and
+ * tail go through the window. </p>
+ *
+ * <p> Instances are meant to be used by one thread at a time, with the exception of the
+ * positional {@link #read(long, byte[], int, int)} and {@link #write(long, byte[], int, int)},
+ * which may be called from any number of threads at once. </p>
  * 
  * @author smacke
  * 
  */
 public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements SeekableByteChannel {
+
+	/**
+	 * The largest staging buffer used for transfers which bypass the window
+	 */
+	public static final int MAX_STAGING_SIZE = DirectIoByteChannel.MAX_STAGING_SIZE;
+
+	// largest temporary array used to copy from and to ByteBuffers without an array
+	static final int BYTE_BUFFER_CHUNK_SIZE = 64 << 10;
+
+	// number of locks guarding read-modify-write of blocks by positional writes
+	private static final int BLOCK_LOCK_STRIPES = 64;
+
 	T buffer;
     BufferedChannel<T> channel;
 
     private DirectIoLib lib;
-    private boolean isOpen;
+    private volatile boolean isOpen;
     private long filePos;
-    private long fileLength;
+    // also extended by positional writes from other threads
+    private final AtomicLong fileLength;
     
-    private boolean[] dirty;
+    // one bit per block of the buffer; dirty blocks are always valid
+    private BlockBitmap dirty;
     private boolean globalDirty;
+    // blocks of the window which mirror (or are newer than) the channel;
+    // the window is only read from the channel as reads and partial writes need it
+    private BlockBitmap valid;
+    // System.nanoTime() at which globalDirty last became true
+    private long dirtySince;
+
+    // number of bytes, starting at filePos, that the buffer currently mirrors
+    private int windowSize;
+    private Readahead readahead;
+    private Prefetcher<T> prefetcher;
+    private WriteBehind<T> writeBehind;
+    // allocated on the first large transfer, and kept until close()
+    private T staging;
+    // false once allocateBuffer turned out not to be implemented
+    private volatile boolean canAllocate = true;
+    // single byte reads and writes, which are too cheap to pay for atomic counter
+    // updates each time. The window has one user at a time, so they're counted in
+    // plain fields, and folded into stats when the window is refilled, flushed or
+    // moved, or the channel closed.
+    private long byteReads;
+    private long byteWrites;
+    // nio view of the window buffer, for scanning and bulk decoding in place
+    private ByteBuffer view;
+    private T viewed;
+
+    // scratch buffers for positional reads and writes, shared by all threads
+    private final ConcurrentLinkedQueue<T> scratch = new ConcurrentLinkedQueue<T>();
+    private final BlockLocks blockLocks;
+    // shared with the channel, which counts the physical side
+    private final IoStats stats;
 
     // TODO (smacke): It may be good to support all the various options that
     // Java FileChannel does, e.g. APPEND, TRUNCATE_EXISTING, CREATE_NEW, CREATE,
@@ -61,17 +141,240 @@ public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements
     	this.buffer = buffer;
     	this.channel = channel;
     	this.isOpen = true;
-    	this.fileLength = channel.size();
-    	dirty = new boolean[buffer.capacity() / lib.blockSize()];
-    	Arrays.fill(dirty, false);
+    	this.fileLength = new AtomicLong(channel.size());
+    	this.stats = channel.getStats();
+    	this.blockLocks = new BlockLocks(lib.blockSize(), BLOCK_LOCK_STRIPES);
+    	dirty = new BlockBitmap(buffer.capacity() / lib.blockSize());
+    	valid = new BlockBitmap(buffer.capacity() / lib.blockSize());
     	globalDirty = false;
-    	positionBufferForFlushAndRefill(0);
+    	windowSize = buffer.capacity();
+    	readahead = new Readahead(windowSize, lib.defaultReadaheadSize());
+    	// the window starts out at 0 without anything in it
+    	readahead.nextWindow(0);
+    	filePos = 0;
+    	clearWindow();
+    }
+
+    /**
+     * Allocates a new buffer of the same kind as the one this aligner was created with.
+     * Used when readahead grows the window past the capacity of the current buffer, and
+     * for staging, scratch, prefetch and write-behind buffers. </p>
+     *
+     * <p> The default implementation throws {@link UnsupportedOperationException}, so that
+     * subclasses written before this method existed keep compiling. Such aligners work
+     * with the buffer they were created with alone: the window never grows, and large
+     * transfers go through it. Prefetching, write-behind, and the positional and batched
+     * reads and writes need buffers of their own, and throw
+     * {@link UnsupportedOperationException} instead. </p>
+     *
+     * @param capacity The requested capacity, always a multiple of the block size
+     *
+     * @return A new, empty buffer with the requested capacity
+     */
+    protected T allocateBuffer(int capacity) {
+    	throw new UnsupportedOperationException(getClass().getName() + " does not implement allocateBuffer(int)");
+    }
+
+    // like allocateBuffer, but null if the subclass doesn't implement it
+    private T tryAllocateBuffer(int capacity) {
+    	if (!canAllocate) {
+    		return null;
+    	}
+    	try {
+    		return allocateBuffer(capacity);
+    	} catch (UnsupportedOperationException e) {
+    		canAllocate = false;
+    		return null;
+    	}
+    }
+
+    // fails early for features which would otherwise allocate in the background
+    private void ensureCanAllocate() {
+    	final T probe = tryAllocateBuffer(lib.blockSize());
+    	if (probe == null) {
+    		throw new UnsupportedOperationException(getClass().getName() + " does not implement allocateBuffer(int)");
+    	}
+    	probe.close();
+    }
+
+    /**
+     * @return The largest number of bytes that a single sequential refill may fetch
+     */
+    public int getMaxReadahead() {
+    	return readahead.maxWindow();
+    }
+
+    /**
+     * Sets the cap on how far sequential readahead may grow the window. Values no
+     * larger than the initial buffer capacity disable readahead. </p>
+     *
+     * @param maxReadahead The new cap, in bytes. Rounded down to a multiple of the block size.
+     */
+    public void setMaxReadahead(int maxReadahead) {
+    	readahead.setMaxWindow(lib.blockStart(Math.max(0, maxReadahead)));
+    }
+
+    /**
+     * @return The I/O counters of the underlying file, which this aligner adds its
+     *         logical reads and writes and its window activity to
+     */
+    public IoStats getStats() {
+    	return stats;
+    }
+
+    /**
+     * @return The {@link DirectIoLib} used to align this channel
+     */
+    protected DirectIoLib lib() {
+    	return lib;
+    }
+
+    /**
+     * @return The number of window buffers used for prefetching, including the current
+     *         window, or 1 if prefetching is disabled
+     */
+    public int getPrefetchDepth() {
+    	return prefetcher == null ? 1 : prefetcher.depth();
+    }
+
+    /**
+     * Enables or disables asynchronous prefetching. With prefetching enabled, whenever the
+     * window is refilled sequentially, a background I/O thread starts reading the windows
+     * that readahead would fetch next into a ring of <tt>buffers</tt> buffers (the current
+     * window included, so 2 means double buffering). Any write, truncate, or non-sequential
+     * refill drops whatever is in flight. </p>
+     *
+     * @param buffers The number of buffers in the ring. Values below 2 disable prefetching.
+     *
+     * @throws IOException
+     */
+    public void setPrefetchDepth(int buffers) throws IOException {
+    	ensureOpen();
+    	if (buffers == getPrefetchDepth() || (buffers < 2 && prefetcher == null)) {
+    		return;
+    	}
+    	if (prefetcher != null) {
+    		prefetcher.close();
+    		prefetcher = null;
+    	}
+    	if (buffers >= 2) {
+    		ensureCanAllocate();
+    		prefetcher = new Prefetcher<T>(this, channel, buffers);
+    	}
+    }
+
+    /**
+     * Enables write-behind. With write-behind enabled, windows which need to be written
+     * out because the file pointer moves past them are handed to a background thread,
+     * and the caller continues with a fresh buffer. Reading back data which is still
+     * being written waits for it, and {@link #flush()}, {@link #truncate(long)} and
+     * {@link #close()} wait for all of it. </p>
+     *
+     * <p> If a background write fails, the failure is thrown from every subsequent
+     * operation on this channel, including {@link #close()}. </p>
+     *
+     * @param maxOutstandingBytes How many dirty bytes may be queued for writing before
+     *        handing over another window waits for the oldest ones to be written
+     *
+     * @param maxDirtyAge How long the current window may stay dirty before a background
+     *        thread writes it out, even if nobody touches this channel in the meantime.
+     *        Values of 0 or less mean no limit.
+     *
+     * @param unit The unit of <tt>maxDirtyAge</tt>
+     *
+     * @throws IOException
+     */
+    public void enableWriteBehind(long maxOutstandingBytes, long maxDirtyAge, TimeUnit unit) throws IOException {
+    	ensureOpen();
+    	ensureWritable();
+    	if (maxOutstandingBytes <= 0) {
+    		throw new IllegalArgumentException("maxOutstandingBytes must be positive, was " + maxOutstandingBytes);
+    	}
+    	ensureCanAllocate();
+    	disableWriteBehind();
+    	writeBehind = new WriteBehind<T>(this, channel, lib.blockSize(),
+    			maxOutstandingBytes, Math.max(0, unit.toNanos(maxDirtyAge)));
+    }
+
+    /**
+     * Waits for all background writes and goes back to writing windows synchronously.
+     *
+     * @throws IOException If any background write failed
+     */
+    public void disableWriteBehind() throws IOException {
+    	final WriteBehind<T> wb = writeBehind;
+    	if (wb == null) {
+    		return;
+    	}
+    	wb.lock();
+    	try {
+    		writeBehind = null;
+    		wb.close();
+    	} finally {
+    		wb.unlock();
+    	}
+    }
+
+    /**
+     * @return Whether {@link #enableWriteBehind(long, long, TimeUnit) write-behind} is enabled
+     */
+    public boolean isWriteBehindEnabled() {
+    	return writeBehind != null;
+    }
+
+    // package private for tests
+    int windowSize() {
+    	return windowSize;
+    }
+
+    // package private for tests
+    int prefetchHits() {
+    	return prefetcher == null ? 0 : prefetcher.hits();
     }
     
-    private void ensureOpen() throws ClosedChannelException {
+    private void ensureOpen() throws IOException {
     	if (!isOpen) {
     		throw new ClosedChannelException();
     	}
+    	if (writeBehind != null) {
+    		writeBehind.checkError();
+    	}
+    }
+
+    // With write-behind, every operation holds the window lock so that the
+    // dirty age timer can safely write the window out on its own thread.
+    // Without it, these are no-ops.
+    private void lockWindow() {
+    	if (writeBehind != null) {
+    		writeBehind.lock();
+    	}
+    }
+
+    private void unlockWindow() {
+    	if (writeBehind != null) {
+    		writeBehind.unlock();
+    	}
+    }
+
+    /**
+     * Writes out the current window if it has been dirty for at least <tt>maxAgeNanos</tt>.
+     * Called periodically by the {@link WriteBehind} timer on its own thread; gives up
+     * immediately if the window is in use.
+     */
+    void expireDirtyWindow(long maxAgeNanos) {
+    	final WriteBehind<T> wb = writeBehind;
+    	if (wb == null || !wb.tryLock()) {
+    		return;
+    	}
+    	try {
+    		if (isOpen && writeBehind == wb && globalDirty && System.nanoTime() - dirtySince >= maxAgeNanos) {
+    			flushWindow();
+    		}
+    	} catch (IOException e) {
+    		wb.fail(e);
+    	} finally {
+    		wb.unlock();
+    	}
     }
     
     private void ensureWritable() throws NonWritableChannelException {
@@ -83,16 +386,40 @@ public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements
     @Override
     public void close() throws IOException {
         if (isOpen) {
+        	final WriteBehind<T> wb = writeBehind;
+        	lockWindow();
             try {
+            	if (prefetcher != null) {
+            		prefetcher.close();
+            	}
             	if (!channel.isReadOnly()) {
             		truncate(size());
             	}
             } finally {
+            	foldByteCounts();
             	isOpen = false;
+            	writeBehind = null;
             	try {
-            		channel.close();
+            		if (wb != null) {
+            			try {
+            				wb.close();
+            			} finally {
+            				wb.unlock();
+            			}
+            		}
             	} finally {
-            		buffer.close();
+            		try {
+            			channel.close();
+            		} finally {
+            			buffer.close();
+            			view = null;
+            			viewed = null;
+            			if (staging != null) {
+            				staging.close();
+            				staging = null;
+            			}
+            			freeScratch();
+            		}
             	}
             }
         }
@@ -100,57 +427,158 @@ public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements
 
     @Override
     public long position() {
-        return filePos + buffer.position();
+    	lockWindow();
+    	try {
+    		return filePos + buffer.position();
+    	} finally {
+    		unlockWindow();
+    	}
     }
 
     @Override
     public ByteChannelAligner<T> position(long pos) throws IOException {
-    	ensureOpen();
-        final long alignedPos = lib.blockStart(pos);
-        if (filePos != alignedPos) { // if we need to seek() outside the current window
-        	flush();
-            if (alignedPos < size()) {
-                positionBufferForFlushAndRefill(alignedPos);
-                flushAndRefill();
-            }
-            else {
-            	// now we're past the current channel size
-            	// reads throw EOFException
-            	// writes leave intermediate bytes unspecified
-                filePos = alignedPos;
-            }
-        }
-        // seek to correct place within buffer window
-        final int delta = (int) (pos - alignedPos);
-        buffer.position(delta);
-        return this;
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		seek(pos);
+    		return this;
+    	} finally {
+    		unlockWindow();
+    	}
     }
 
-    private void positionBufferForFlushAndRefill(long position) {
-    	assert lib.blockStart(position) == position;
-        buffer.clear(); // in case limit() < capacity()
-        filePos = position - buffer.capacity();
-        // we only refill when at capacity
-        buffer.position(buffer.capacity());
+    private void seek(long pos) throws IOException {
+    	if (pos < filePos || pos >= filePos + windowSize) {
+    		// nothing is read until a read or a partial write needs it,
+    		// so seeking somewhere only to overwrite it costs no reads
+    		moveWindow(lib.blockStart(pos));
+    	}
+    	// seek to correct place within buffer window; beyond the current
+    	// channel size, reads throw EOFException and writes leave
+    	// intermediate bytes unspecified
+    	buffer.position((int) (pos - filePos));
+    }
+
+    // retires the current window and places an empty one at alignedPos,
+    // sized by readahead
+    private void moveWindow(long alignedPos) throws IOException {
+    	assert lib.blockStart(alignedPos) == alignedPos;
+    	retireWindow();
+    	stats.recordWindowSwitch();
+    	filePos = alignedPos;
+    	final int newSize = readahead.nextWindow(alignedPos);
+    	final T prefetched = prefetcher != null ? prefetcher.take(alignedPos, newSize) : null;
+    	if (prefetched != null) {
+    		installWindow(prefetched, newSize);
+    	} else {
+    		resizeWindow(newSize);
+    	}
+    }
+
+    private void clearWindow() {
+    	buffer.clear();
+    	buffer.limit(windowSize);
+    }
+
+    // only called right after the window was retired, i.e. when it is clean
+    private void resizeWindow(int newSize) {
+    	assert !globalDirty;
+    	final T grown = newSize > buffer.capacity() ? tryAllocateBuffer(newSize) : null;
+    	if (grown != null) {
+    		buffer.close();
+    		buffer = grown;
+    		dirty = new BlockBitmap(newSize / lib.blockSize());
+    		valid = new BlockBitmap(newSize / lib.blockSize());
+    	} else {
+    		// without allocateBuffer, the window can't grow past the buffer
+    		newSize = Math.min(newSize, buffer.capacity());
+    		valid.clear();
+    	}
+    	windowSize = newSize;
+    	clearWindow();
+    }
+
+    // swaps in a buffer that the prefetcher has already filled
+    private void installWindow(T filled, int newSize) {
+    	assert !globalDirty;
+    	prefetcher.release(buffer);
+    	buffer = filled;
+    	if (dirty.size() < buffer.capacity() / lib.blockSize()) {
+    		dirty = new BlockBitmap(buffer.capacity() / lib.blockSize());
+    		valid = new BlockBitmap(buffer.capacity() / lib.blockSize());
+    	} else {
+    		valid.clear();
+    	}
+    	valid.set(0, newSize / lib.blockSize());
+    	windowSize = newSize;
+    	clearWindow();
+    }
+
+    // anything in flight may be about to go stale
+    private void cancelPrefetch() {
+    	if (prefetcher != null) {
+    		prefetcher.cancel();
+    	}
     }
 
     @Override
     public long size() {
-        return fileLength;
+        return fileLength.get();
+    }
+
+    private void extendLength(long end) {
+    	long current;
+    	while (end > (current = fileLength.get())) {
+    		if (fileLength.compareAndSet(current, end)) {
+    			return;
+    		}
+    	}
     }
 
     
     public int readBytes(byte[] dst, int offset, int length) throws IOException {
-    	ensureOpen();
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		final int n = readBytesLocked(dst, offset, length);
+    		if (n > 0) {
+    			stats.recordLogicalRead(n);
+    		}
+    		return n;
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    private int readBytesLocked(byte[] dst, int offset, int length) throws IOException {
     	if (position() > size()) {
     		throw new EOFException("trying to read at " + position() + " , length is " + size());
     	} else if (position() == size()) {
     		return -1; //SeekableByteChannel contract
     	}
-    	int total = 0;
-    	if (buffer.remaining() == 0) {
-    		flushAndRefill();
+    	// never hand out what lies past EOF
+    	length = (int) Math.min(length, size() - position());
+    	final long start = position();
+    	final long interiorStart = lib.blockEnd(start);
+    	final long interiorEnd = lib.blockStart(start + length);
+    	if (isLargeTransfer(interiorStart, interiorEnd)) {
+    		int total = readThroughWindow(dst, offset, (int) (interiorStart - start));
+    		offset += total;
+    		moveWindow(interiorEnd);
+    		transferInterior(dst, offset, interiorStart, interiorEnd, false);
+    		offset += (int) (interiorEnd - interiorStart);
+    		total += (int) (interiorEnd - interiorStart);
+    		return total + readThroughWindow(dst, offset, (int) (start + length - interiorEnd));
     	}
+    	return readThroughWindow(dst, offset, length);
+    }
+
+    private int readThroughWindow(byte[] dst, int offset, int length) throws IOException {
+    	if (length == 0) {
+    		return 0;
+    	}
+    	int total = 0;
+    	prepareRead();
     	while (buffer.remaining() > 0 && length > buffer.remaining()) {
     		final int toRead = buffer.remaining();
     		total += toRead;
@@ -174,43 +602,140 @@ public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements
     @Override
     public int read(ByteBuffer dst) throws IOException {
     	ensureOpen();
-    	final int ret = readBytes(dst.array(), dst.position(), dst.remaining());
-    	dst.position(dst.position() + ret);
-    	return ret;
+    	if (dst.hasArray()) {
+    		final int ret = readBytes(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+    		if (ret > 0) {
+    			dst.position(dst.position() + ret);
+    		}
+    		return ret;
+    	}
+    	// direct buffers have no array to read into
+    	final byte[] chunk = new byte[Math.min(dst.remaining(), BYTE_BUFFER_CHUNK_SIZE)];
+    	int total = 0;
+    	while (dst.hasRemaining()) {
+    		final int n = readBytes(chunk, 0, Math.min(chunk.length, dst.remaining()));
+    		if (n <= 0) {
+    			return total == 0 ? n : total;
+    		}
+    		dst.put(chunk, 0, n);
+    		total += n;
+    	}
+    	return total;
     }
     
     public int writeBytes(byte[] src, int offset, int length) throws IOException {
-    	ensureOpen();
-    	ensureWritable();
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		ensureWritable();
+    		cancelPrefetch();
+    		final int n = writeBytesLocked(src, offset, length);
+    		stats.recordLogicalWrite(n);
+    		return n;
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    private int writeBytesLocked(byte[] src, int offset, int length) throws IOException {
+    	final long start = position();
+    	final long interiorStart = lib.blockEnd(start);
+    	final long interiorEnd = lib.blockStart(start + length);
+    	if (isLargeTransfer(interiorStart, interiorEnd)) {
+    		int total = writeThroughWindow(src, offset, (int) (interiorStart - start));
+    		offset += total;
+    		// the old window's dirty blocks must land before the interior does
+    		moveWindow(interiorEnd);
+    		transferInterior(src, offset, interiorStart, interiorEnd, true);
+    		offset += (int) (interiorEnd - interiorStart);
+    		total += (int) (interiorEnd - interiorStart);
+    		extendLength(interiorEnd);
+    		return total + writeThroughWindow(src, offset, (int) (start + length - interiorEnd));
+    	}
+    	return writeThroughWindow(src, offset, length);
+    }
+
+    // whether to bypass the window, which needs a staging buffer
+    private boolean isLargeTransfer(long interiorStart, long interiorEnd) {
+    	return interiorEnd - interiorStart >= 2L * windowSize && ensureStaging(interiorEnd - interiorStart);
+    }
+
+    private boolean ensureStaging(long span) {
+    	final int stagingSize = (int) Math.min(span, lib.blockStart(MAX_STAGING_SIZE));
+    	if (staging != null && staging.capacity() >= stagingSize) {
+    		return true;
+    	}
+    	final T grown = tryAllocateBuffer(stagingSize);
+    	if (grown == null) {
+    		return false;
+    	}
+    	if (staging != null) {
+    		staging.close();
+    	}
+    	staging = grown;
+    	return true;
+    }
+
+    // moves the block aligned range [interiorStart, interiorEnd) between the array and
+    // the channel through the staging buffer. The window must not overlap the range.
+    private void transferInterior(byte[] array, int offset, long interiorStart, long interiorEnd,
+    		boolean write) throws IOException {
+    	assert lib.blockStart(interiorStart) == interiorStart && lib.blockStart(interiorEnd) == interiorEnd;
+    	assert interiorEnd <= filePos || filePos + windowSize <= interiorStart;
+    	if (writeBehind != null) {
+    		writeBehind.awaitOverlapping(interiorStart, interiorEnd);
+    	}
+    	long pos = interiorStart;
+    	while (pos < interiorEnd) {
+    		final int chunk = (int) Math.min(interiorEnd - pos, staging.capacity());
+    		staging.clear();
+    		staging.limit(chunk);
+    		if (write) {
+    			staging.put(array, offset, chunk);
+    			staging.position(0);
+    		}
+    		// the channel may transfer less than asked for; keep going until the chunk is done
+    		int done = 0;
+    		while (done < chunk) {
+    			staging.position(done);
+    			final int n = write ? channel.write(staging, pos + done) : channel.read(staging, pos + done);
+    			if (n <= 0) {
+    				throw new EOFException("could not transfer " + (chunk - done) + " bytes at offset " + (pos + done));
+    			}
+    			done += n;
+    		}
+    		if (!write) {
+    			staging.position(0);
+    			staging.get(array, offset, chunk);
+    		}
+    		offset += chunk;
+    		pos += chunk;
+    	}
+    }
+
+    private int writeThroughWindow(byte[] src, int offset, int length) throws IOException {
     	int total = 0;
-    	boolean bufferHasMoved = false;
-    	if (buffer.remaining() == 0) {
-    		bufferHasMoved = true;
-    		flushAndForwardBufferWithoutRefill();
-    	}
-    	while (length > buffer.remaining()) {
-            final int toWrite = buffer.remaining();
-            total += toWrite;
-            // set blocks which we are about to write to as being dirty
-            setDirtyBlocksInRange(buffer.position(), buffer.capacity());
-            buffer.put(src, offset, toWrite);
-            offset += toWrite;
-            length -= toWrite;
-            bufferHasMoved = true;
-            flushAndForwardBufferWithoutRefill();
-    	}
-    	assert length <= buffer.remaining();
-    	// if we moved the buffer, we need to keep it in sync with the disk
-    	// assuming we don't next overwrite it completely
-    	if (bufferHasMoved && length < buffer.remaining()) {
-    		positionBufferForFlushAndRefill(filePos);
-    		flushAndRefill();
+    	while (length > 0) {
+    		if (buffer.remaining() == 0) {
+    			flushAndForwardBufferWithoutRefill();
+    		}
+    		final int toWrite = Math.min(length, buffer.remaining());
+    		final int start = buffer.position();
+    		// only partially overwritten blocks need their old contents
+    		if (start % lib.blockSize() != 0) {
+    			ensureValidForWrite(start, start + 1);
+    		}
+    		if ((start + toWrite) % lib.blockSize() != 0) {
+    			ensureValidForWrite(start + toWrite - 1, start + toWrite);
+    		}
+    		// set blocks which we are about to write to as being dirty
+    		setDirtyBlocksInRange(start, start + toWrite);
+    		buffer.put(src, offset, toWrite);
+    		offset += toWrite;
+    		length -= toWrite;
+    		total += toWrite;
     	}
-    	// set blocks which we are about to write to as being dirty
-    	setDirtyBlocksInRange(buffer.position(), buffer.position() + length);
-        total += length;
-        buffer.put(src, offset, length);
-        fileLength = Math.max(fileLength, position());
+        extendLength(position());
     	return total;
     }
     
@@ -218,66 +743,792 @@ public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements
     public int write(ByteBuffer src) throws IOException {
     	ensureOpen();
     	ensureWritable();
-    	final int ret = writeBytes(src.array(), src.position(), src.remaining());
-    	src.position(src.position() + ret);
-    	return ret;
+    	if (src.hasArray()) {
+    		final int ret = writeBytes(src.array(), src.arrayOffset() + src.position(), src.remaining());
+    		src.position(src.position() + ret);
+    		return ret;
+    	}
+    	// direct and read only buffers have no accessible array to write from
+    	final byte[] chunk = new byte[Math.min(src.remaining(), BYTE_BUFFER_CHUNK_SIZE)];
+    	int total = 0;
+    	while (src.hasRemaining()) {
+    		final int n = Math.min(chunk.length, src.remaining());
+    		src.get(chunk, 0, n);
+    		total += writeBytes(chunk, 0, n);
+    	}
+    	return total;
     }
     
     public void write(int b) throws IOException {
-    	ensureOpen();
-    	ensureWritable();
-    	if (buffer.remaining() == 0) {
-    		flushAndRefill();
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		ensureWritable();
+    		cancelPrefetch();
+    		if (buffer.remaining() == 0) {
+    			flushAndForwardBufferWithoutRefill();
+    		}
+    		ensureValidForWrite(buffer.position(), buffer.position() + 1);
+    		setDirtyBlocksInRange(buffer.position(), buffer.position() + 1);
+    		buffer.put((byte) b);
+    		extendLength(position());
+    		byteWrites++;
+    	} finally {
+    		unlockWindow();
     	}
-    	dirty[buffer.position() / lib.blockSize()] = true;
-    	buffer.put((byte) b);
-        fileLength = Math.max(fileLength, position());
     }
     
     public int read() throws IOException {
-    	ensureOpen();
-    	if (position() > size()) {
-    		throw new EOFException("trying to read at " + position() + " , length is " + size());
-    	} else if (position() == size()) {
-    		return -1; //SeekableByteChannel contract
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		if (position() > size()) {
+    			throw new EOFException("trying to read at " + position() + " , length is " + size());
+    		} else if (position() == size()) {
+    			return -1; //SeekableByteChannel contract
+    		}
+    		prepareRead();
+    		byteReads++;
+    		return buffer.get() & 0xFF;
+    	} finally {
+    		unlockWindow();
     	}
-    	if (buffer.remaining() == 0) {
-    		flushAndRefill();
+    }
+    
+    /**
+     * Reads <tt>length</tt> ints starting at the current position, decoding them
+     * straight out of the window with the given byte order. </p>
+     *
+     * <p> Unlike {@link #readBytes(byte[], int, int)}, this either reads everything or
+     * nothing: if the file ends before the last int, nothing is read and the position
+     * stays where it was. </p>
+     *
+     * @param dst The array to read into
+     *
+     * @param offset The index within <tt>dst</tt> of the first int to read
+     *
+     * @param length The number of ints to read
+     *
+     * @param order The byte order of the ints in the file
+     *
+     * @throws EOFException If fewer than <tt>4*length</tt> bytes are left
+     *
+     * @throws IOException
+     */
+    public void readInts(int[] dst, int offset, int length, ByteOrder order) throws IOException {
+    	checkRange(offset, length, dst.length);
+    	readElements(dst, offset, length, 4, order);
+    }
+
+    /**
+     * Reads <tt>length</tt> longs, like {@link #readInts(int[], int, int, ByteOrder)}.
+     */
+    public void readLongs(long[] dst, int offset, int length, ByteOrder order) throws IOException {
+    	checkRange(offset, length, dst.length);
+    	readElements(dst, offset, length, 8, order);
+    }
+
+    /**
+     * Reads <tt>length</tt> doubles, like {@link #readInts(int[], int, int, ByteOrder)}.
+     */
+    public void readDoubles(double[] dst, int offset, int length, ByteOrder order) throws IOException {
+    	checkRange(offset, length, dst.length);
+    	readElements(dst, offset, length, 8, order);
+    }
+
+    /**
+     * Writes <tt>length</tt> ints at the current position, encoding them straight
+     * into the window with the given byte order.
+     *
+     * @param src The array to write from
+     *
+     * @param offset The index within <tt>src</tt> of the first int to write
+     *
+     * @param length The number of ints to write
+     *
+     * @param order The byte order of the ints in the file
+     *
+     * @throws IOException
+     */
+    public void writeInts(int[] src, int offset, int length, ByteOrder order) throws IOException {
+    	checkRange(offset, length, src.length);
+    	writeElements(src, offset, length, 4, order);
+    }
+
+    /**
+     * Writes <tt>length</tt> longs, like {@link #writeInts(int[], int, int, ByteOrder)}.
+     */
+    public void writeLongs(long[] src, int offset, int length, ByteOrder order) throws IOException {
+    	checkRange(offset, length, src.length);
+    	writeElements(src, offset, length, 8, order);
+    }
+
+    /**
+     * Writes <tt>length</tt> doubles, like {@link #writeInts(int[], int, int, ByteOrder)}.
+     */
+    public void writeDoubles(double[] src, int offset, int length, ByteOrder order) throws IOException {
+    	checkRange(offset, length, src.length);
+    	writeElements(src, offset, length, 8, order);
+    }
+
+    /**
+     * Encodes chars from <tt>src</tt> at the current position, with the encoder writing
+     * straight into the window instead of into an intermediate byte array. Like
+     * {@link CharsetEncoder#encode(CharBuffer, ByteBuffer, boolean)}, this may leave some
+     * chars in <tt>src</tt>, e.g. a high surrogate whose low half hasn't been seen yet;
+     * the window itself never runs out of space. Flushing the encoder is up to the
+     * caller.
+     *
+     * @param src The chars to encode
+     *
+     * @param encoder The encoder to use
+     *
+     * @param endOfInput Whether <tt>src</tt> holds the last of the input
+     *
+     * @return The encoder's result; either underflow, or an error which the
+     *         encoder is configured to report
+     *
+     * @throws IOException
+     */
+    public CoderResult encode(CharBuffer src, CharsetEncoder encoder, boolean endOfInput) throws IOException {
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		ensureWritable();
+    		cancelPrefetch();
+    		final long startPosition = position();
+    		CoderResult result;
+    		while (true) {
+    			if (buffer.remaining() == 0) {
+    				flushAndForwardBufferWithoutRefill();
+    			}
+    			final int start = buffer.position();
+    			if (start % lib.blockSize() != 0) {
+    				ensureValidForWrite(start, start + 1);
+    			}
+    			final ByteBuffer out = windowView(buffer.remaining());
+    			result = encoder.encode(src, out, endOfInput);
+    			if (out.position() > 0) {
+    				final int end = start + out.position();
+    				ensureTailValid(start, end);
+    				setDirtyBlocksInRange(start, end);
+    				buffer.position(end);
+    			} else if (result.isOverflow()) {
+    				// the window ends in the middle of the next char
+    				final ByteBuffer straddle = ByteBuffer.allocate(16);
+    				result = encoder.encode(src, straddle, endOfInput);
+    				writeThroughWindow(straddle.array(), 0, straddle.position());
+    			}
+    			if (!result.isOverflow()) {
+    				break;
+    			}
+    		}
+    		extendLength(position());
+    		stats.recordLogicalWrite(position() - startPosition);
+    		return result;
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    // bytes [start, end) of the window were just written in place, before anyone knew
+    // where they would end; if the last block is partial and still has to be read from
+    // the channel, read it without losing the new bytes
+    private void ensureTailValid(int start, int end) throws IOException {
+    	final int bs = lib.blockSize();
+    	if (end % bs == 0 || valid.get((end - 1) / bs)) {
+    		return;
+    	}
+    	final int tailStart = Math.max(start, lib.blockStart(end - 1));
+    	final byte[] tail = new byte[end - tailStart];
+    	buffer.get(tailStart, tail, 0, tail.length);
+    	ensureValidForWrite(end - 1, end);
+    	buffer.put(tailStart, tail, 0, tail.length);
+    }
+
+    /**
+     * Reads the bytes of one line starting at the current position: everything up to and
+     * including the first <tt>'\n'</tt> or <tt>'\r'</tt>, or up to <tt>length</tt> bytes
+     * if no terminator comes before that. A <tt>'\n'</tt> right after a <tt>'\r'</tt> is
+     * consumed as part of the same terminator, without being copied. </p>
+     *
+     * <p> The window is scanned for the terminator in place, so that a line costs a
+     * single copy rather than one call per byte, and nothing is ever read twice. </p>
+     *
+     * @param dst The array to read into
+     *
+     * @param offset The offset within <tt>dst</tt> of the first byte to read
+     *
+     * @param length The maximum number of bytes to read
+     *
+     * @return The number of bytes read, including the terminator if one was found,
+     *         or -1 if the position is at EOF
+     *
+     * @throws IOException
+     */
+    public int readLineBytes(byte[] dst, int offset, int length) throws IOException {
+    	checkRange(offset, length, dst.length);
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		if (position() > size()) {
+    			throw new EOFException("trying to read at " + position() + " , length is " + size());
+    		} else if (position() == size()) {
+    			return -1;
+    		}
+    		int total = 0;
+    		while (total < length && position() < size()) {
+    			prepareRead();
+    			final int start = buffer.position();
+    			final int end = start + (int) Math.min(Math.min(buffer.remaining(), length - total), size() - position());
+    			final ByteBuffer bytes = window();
+    			int i = start;
+    			byte b = 0;
+    			while (i < end) {
+    				b = bytes.get(i++);
+    				if (b == '\n' || b == '\r') {
+    					break;
+    				}
+    			}
+    			buffer.get(dst, offset + total, i - start);
+    			total += i - start;
+    			if (b == '\n' || b == '\r') {
+    				if (b == '\r' && position() < size()) {
+    					prepareRead();
+    					if (window().get(buffer.position()) == '\n') {
+    						buffer.position(buffer.position() + 1);
+    					}
+    				}
+    				break;
+    			}
+    		}
+    		stats.recordLogicalRead(total);
+    		return total;
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    private static void checkRange(int offset, int length, int arrayLength) {
+    	if (offset < 0 || length < 0 || offset > arrayLength - length) {
+    		throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + arrayLength);
+    	}
+    }
+
+    // array is an int[], long[] or double[] holding elements of width bytes
+    private void readElements(Object array, int offset, int length, int width, ByteOrder order) throws IOException {
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		final long bytes = (long) length * width;
+    		if (position() + bytes > size()) {
+    			throw new EOFException("wanted " + bytes + " bytes at offset " + position() + " but file length is " + size());
+    		}
+    		while (length > 0) {
+    			prepareRead();
+    			final int n = Math.min(length, buffer.remaining() / width);
+    			if (n == 0) {
+    				// the next element straddles the end of the window
+    				final byte[] element = new byte[width];
+    				readThroughWindow(element, 0, width);
+    				copyElements(ByteBuffer.wrap(element), order, array, offset, 1, false);
+    			} else {
+    				copyElements(windowView(n * width), order, array, offset, n, false);
+    				buffer.position(buffer.position() + n * width);
+    			}
+    			offset += Math.max(n, 1);
+    			length -= Math.max(n, 1);
+    		}
+    		stats.recordLogicalRead(bytes);
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    private void writeElements(Object array, int offset, int length, int width, ByteOrder order) throws IOException {
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		ensureWritable();
+    		cancelPrefetch();
+    		final long bytes = (long) length * width;
+    		while (length > 0) {
+    			if (buffer.remaining() == 0) {
+    				flushAndForwardBufferWithoutRefill();
+    			}
+    			final int n = Math.min(length, buffer.remaining() / width);
+    			if (n == 0) {
+    				final byte[] element = new byte[width];
+    				copyElements(ByteBuffer.wrap(element), order, array, offset, 1, true);
+    				writeThroughWindow(element, 0, width);
+    			} else {
+    				final int start = buffer.position();
+    				final int end = start + n * width;
+    				// only partially overwritten blocks need their old contents
+    				if (start % lib.blockSize() != 0) {
+    					ensureValidForWrite(start, start + 1);
+    				}
+    				if (end % lib.blockSize() != 0) {
+    					ensureValidForWrite(end - 1, end);
+    				}
+    				setDirtyBlocksInRange(start, end);
+    				copyElements(windowView(n * width), order, array, offset, n, true);
+    				buffer.position(end);
+    			}
+    			offset += Math.max(n, 1);
+    			length -= Math.max(n, 1);
+    		}
+    		extendLength(position());
+    		stats.recordLogicalWrite(bytes);
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    // a view of the whole window buffer, made again only when the buffer is replaced
+    private ByteBuffer window() {
+    	if (viewed != buffer) {
+    		view = buffer.asByteBuffer();
+    		viewed = buffer;
+    	}
+    	return view;
+    }
+
+    // the length bytes of the window starting at its position, without copying
+    private ByteBuffer windowView(int length) {
+    	final ByteBuffer bytes = window().duplicate();
+    	bytes.limit(buffer.position() + length);
+    	bytes.position(buffer.position());
+    	return bytes.slice();
+    }
+
+    // moves length elements between the array and the start of bytes, in the given byte order
+    private static void copyElements(ByteBuffer bytes, ByteOrder order, Object array, int offset, int length,
+    		boolean write) {
+    	bytes.order(order);
+    	if (array instanceof int[]) {
+    		if (write) {
+    			bytes.asIntBuffer().put((int[]) array, offset, length);
+    		} else {
+    			bytes.asIntBuffer().get((int[]) array, offset, length);
+    		}
+    	} else if (array instanceof long[]) {
+    		if (write) {
+    			bytes.asLongBuffer().put((long[]) array, offset, length);
+    		} else {
+    			bytes.asLongBuffer().get((long[]) array, offset, length);
+    		}
+    	} else {
+    		if (write) {
+    			bytes.asDoubleBuffer().put((double[]) array, offset, length);
+    		} else {
+    			bytes.asDoubleBuffer().get((double[]) array, offset, length);
+    		}
     	}
-    	return buffer.get() & 0xFF;
     }
     
+    /**
+     * Reads up to <tt>length</tt> bytes starting at file offset <tt>position</tt>, without
+     * touching this channel's position or window. Like {@link java.nio.channels.FileChannel#read(ByteBuffer, long)},
+     * this may be called from many threads at once, each getting its own scratch buffer
+     * for the aligned transfer. </p>
+     *
+     * <p> Positional reads and writes go straight to the underlying channel. They do not
+     * see bytes written through the window which haven't been {@link #flush() flushed}
+     * yet, and bytes they write may be overwritten when a window covering them gets
+     * flushed. Callers mixing both kinds of access have to flush in between. </p>
+     *
+     * @param position The file offset at which to start reading
+     *
+     * @param dst The array to read into
+     *
+     * @param offset The offset within <tt>dst</tt> of the first byte to read
+     *
+     * @param length The maximum number of bytes to read
+     *
+     * @return The number of bytes read, or -1 if <tt>position</tt> is at or past EOF
+     *
+     * @throws IOException
+     */
+    public int read(long position, byte[] dst, int offset, int length) throws IOException {
+    	return read(position, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    /**
+     * Like {@link #read(long, byte[], int, int)}, but reads into the remaining bytes of
+     * <tt>dst</tt>, advancing its position. Direct buffers are copied straight from the
+     * scratch buffer, without going through the heap. </p>
+     *
+     * @param position The file offset at which to start reading
+     *
+     * @param dst The buffer to read into
+     *
+     * @return The number of bytes read, or -1 if <tt>position</tt> is at or past EOF
+     *
+     * @throws IOException
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+    	if (!isOpen) {
+    		throw new ClosedChannelException();
+    	}
+    	if (position < 0) {
+    		throw new IllegalArgumentException("negative position: " + position);
+    	}
+    	if (!dst.hasRemaining()) {
+    		return 0;
+    	} else if (position >= size()) {
+    		return -1;
+    	}
+    	final long end = Math.min(position + dst.remaining(), size());
+    	final T buf = takeScratch(lib.blockEnd(end) - lib.blockStart(position));
+    	try {
+    		final ByteBuffer view = buf.asByteBuffer();
+    		long pos = position;
+    		while (pos < end) {
+    			final long blockPos = lib.blockStart(pos);
+    			final long chunkEnd = Math.min(end, blockPos + buf.capacity());
+    			buf.clear();
+    			readScratch(buf, 0, blockPos, (int) (chunkEnd - blockPos));
+    			view.limit((int) (chunkEnd - blockPos));
+    			view.position((int) (pos - blockPos));
+    			dst.put(view);
+    			pos = chunkEnd;
+    		}
+    		stats.recordLogicalRead(end - position);
+    		return (int) (end - position);
+    	} finally {
+    		releaseScratch(buf);
+    	}
+    }
+
+    /**
+     * Writes <tt>length</tt> bytes at file offset <tt>position</tt>, without touching this
+     * channel's position or window, growing the file if necessary. May be called from many
+     * threads at once; partially overwritten blocks are read, patched and written back under
+     * a lock, so that concurrent writes to disjoint byte ranges never lose each other's bytes.
+     * See {@link #read(long, byte[], int, int)} for how this interacts with the window. </p>
+     *
+     * @param position The file offset at which to start writing
+     *
+     * @param src The array to write from
+     *
+     * @param offset The offset within <tt>src</tt> of the first byte to write
+     *
+     * @param length The number of bytes to write
+     *
+     * @return The number of bytes written, i.e. <tt>length</tt>
+     *
+     * @throws IOException
+     */
+    public int write(long position, byte[] src, int offset, int length) throws IOException {
+    	return write(position, ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * Like {@link #write(long, byte[], int, int)}, but writes the remaining bytes of
+     * <tt>src</tt>, advancing its position. Direct buffers are copied straight into the
+     * scratch buffer, without going through the heap. </p>
+     *
+     * @param position The file offset at which to start writing
+     *
+     * @param src The buffer to write from
+     *
+     * @return The number of bytes written, i.e. the bytes <tt>src</tt> had remaining
+     *
+     * @throws IOException
+     */
+    public int write(long position, ByteBuffer src) throws IOException {
+    	if (!isOpen) {
+    		throw new ClosedChannelException();
+    	}
+    	ensureWritable();
+    	if (position < 0) {
+    		throw new IllegalArgumentException("negative position: " + position);
+    	}
+    	final int length = src.remaining();
+    	if (length == 0) {
+    		return 0;
+    	}
+    	final int bs = lib.blockSize();
+    	final long end = position + length;
+    	final T buf = takeScratch(lib.blockEnd(end) - lib.blockStart(position));
+    	try {
+    		final ByteBuffer view = buf.asByteBuffer();
+    		final int srcLimit = src.limit();
+    		long pos = position;
+    		while (pos < end) {
+    			final long blockPos = lib.blockStart(pos);
+    			final long chunkEnd = Math.min(end, blockPos + buf.capacity());
+    			final long spanEnd = lib.blockEnd(chunkEnd);
+    			final int span = (int) (spanEnd - blockPos);
+    			blockLocks.lock(blockPos, spanEnd, true);
+    			try {
+    				buf.clear();
+    				// partially overwritten edge blocks keep the rest of their bytes
+    				if (pos != blockPos) {
+    					readScratch(buf, 0, blockPos, bs);
+    					stats.recordReadModifyWrite(bs);
+    				}
+    				if (chunkEnd != spanEnd && (pos == blockPos || span > bs)) {
+    					readScratch(buf, span - bs, spanEnd - bs, bs);
+    					stats.recordReadModifyWrite(bs);
+    				}
+    				view.clear();
+    				view.position((int) (pos - blockPos));
+    				src.limit(src.position() + (int) (chunkEnd - pos));
+    				view.put(src);
+    				src.limit(srcLimit);
+    				buf.clear();
+    				buf.limit(span);
+    				int done = 0;
+    				while (done < span) {
+    					buf.position(done);
+    					final int written = channel.write(buf, blockPos + done);
+    					if (written <= 0) {
+    						throw new IOException("could not write " + (span - done) + " bytes at offset " + (blockPos + done));
+    					}
+    					done += written;
+    				}
+    				pos = chunkEnd;
+    			} finally {
+    				blockLocks.unlock(blockPos, spanEnd, true);
+    			}
+    			extendLength(chunkEnd);
+    		}
+    		stats.recordLogicalWrite(length);
+    		return length;
+    	} finally {
+    		releaseScratch(buf);
+    	}
+    }
+
+    /**
+     * Reads a batch of byte ranges, e.g. the records needed for one lookup, without
+     * touching this channel's position or window. The ranges are coalesced into as few
+     * aligned reads as possible, see {@link ReadPlan}, and packed into <tt>dst</tt> one
+     * after the other in request order. Dirty window contents are flushed first, so
+     * that the ranges reflect everything written so far. </p>
+     *
+     * @param offsets The file offset of each range
+     *
+     * @param lengths The length of each range
+     *
+     * @param dst Receives the ranges
+     *
+     * @param dstOffset Where in <tt>dst</tt> the first range goes
+     *
+     * @throws EOFException If any range extends past EOF
+     *
+     * @throws IOException
+     */
+    public void readRanges(long[] offsets, int[] lengths, byte[] dst, int dstOffset) throws IOException {
+    	final ReadPlan plan = ReadPlan.create(lib, offsets, lengths);
+    	if (dstOffset < 0 || dstOffset > dst.length - plan.totalLength()) {
+    		throw new IndexOutOfBoundsException();
+    	}
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		if (plan.end() > size()) {
+    			throw new EOFException("range ends at " + plan.end() + ", length is " + size());
+    		}
+    		flushLocked();
+    		if (plan.runs() == 0) {
+    			return;
+    		}
+    		final T buf = takeScratch(plan.maxRunLength());
+    		try {
+    			for (int r=0; r<plan.runs(); r++) {
+    				for (long start=plan.runStart(r); start<plan.runEnd(r); start+=buf.capacity()) {
+    					final int length = (int) Math.min(buf.capacity(), plan.runEnd(r) - start);
+    					readScratch(buf, 0, start, length);
+    					buf.clear();
+    					plan.scatter(r, start, length, buf, dst, dstOffset);
+    				}
+    			}
+    			stats.recordLogicalRead(plan.totalLength());
+    		} finally {
+    			releaseScratch(buf);
+    		}
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    // reads the file's bytes [filePosition, filePosition + length) into buf at bufOffset,
+    // zeroing whatever lies past the end of the channel. bufOffset and filePosition must be
+    // block aligned; leaves buf's position and limit unspecified.
+    private void readScratch(T buf, int bufOffset, long filePosition, int length) throws IOException {
+    	buf.clear();
+    	buf.limit(bufOffset + lib.blockEnd(length));
+    	int done = 0;
+    	while (done < length) {
+    		buf.position(bufOffset + done);
+    		final int asked = buf.remaining();
+    		int n;
+    		try {
+    			n = channel.read(buf, filePosition + done);
+    		} catch (EOFException e) {
+    			n = 0;
+    		}
+    		if (n <= 0) {
+    			break;
+    		}
+    		done += n;
+    		if (n < asked) {
+    			break; // hit EOF
+    		}
+    	}
+    	if (done < length) {
+    		buf.position(bufOffset + Math.max(done, 0));
+    		buf.put(new byte[length - Math.max(done, 0)]);
+    	}
+    }
+
+    private T takeScratch(long span) {
+    	final int capacity = (int) Math.min(span, lib.blockStart(MAX_STAGING_SIZE));
+    	final T buf = scratch.poll();
+    	if (buf != null) {
+    		if (buf.capacity() >= capacity) {
+    			return buf;
+    		}
+    		buf.close();
+    	}
+    	return allocateBuffer(capacity);
+    }
+
+    private void releaseScratch(T buf) {
+    	scratch.offer(buf);
+    	if (!isOpen) {
+    		freeScratch(); // closed in the meantime
+    	}
+    }
+
+    private void freeScratch() {
+    	T buf;
+    	while ((buf = scratch.poll()) != null) {
+    		buf.close();
+    	}
+    }
+
     private void flushAndForwardBufferWithoutRefill() throws IOException {
     	assert buffer.remaining() == 0;
-        flush();
-        filePos += buffer.capacity();
-        buffer.clear();
+        retireWindow();
+        stats.recordWindowSwitch();
+        filePos += windowSize;
+        valid.clear();
+        clearWindow();
+    }
+
+    // must hold the window
+    private void foldByteCounts() {
+    	if (byteReads != 0) {
+    		stats.recordLogicalReads(byteReads, byteReads);
+    		byteReads = 0;
+    	}
+    	if (byteWrites != 0) {
+    		stats.recordLogicalWrites(byteWrites, byteWrites);
+    		byteWrites = 0;
+    	}
+    }
+
+    // Writes out the current window because the file pointer is about to leave it.
+    // With write-behind, the window's buffer is handed off instead, and replaced
+    // with a fresh one; callers must not rely on the buffer's contents afterwards.
+    private void retireWindow() throws IOException {
+    	foldByteCounts();
+    	if (writeBehind == null || !globalDirty) {
+    		flushWindow();
+    		return;
+    	}
+    	final BlockBitmap toWrite = dirty;
+    	buffer = writeBehind.submit(buffer, filePos, toWrite);
+    	dirty = new BlockBitmap(toWrite.size());
+    	globalDirty = false;
+    	clearWindow();
     }
     
     // sets blocks to dirty if buffer bytes in [start,stop)
     // have been written
     private void setDirtyBlocksInRange(int start, int stop) {
-        for (int i=start / lib.blockSize(); i*lib.blockSize() < stop; i++) {
-            dirty[i] = true;
-        }
+        dirty.set(start / lib.blockSize(), lib.blockEnd(stop) / lib.blockSize());
+        valid.set(start / lib.blockSize(), lib.blockEnd(stop) / lib.blockSize());
         // also set the global dirty bit to true
-        globalDirty = true;
+        if (!globalDirty) {
+        	globalDirty = true;
+        	dirtySince = System.nanoTime();
+        }
     }
     
-    private void refill() throws IOException {
-    	assert buffer.position() == 0;
-        if (position() < size()) {
-            assert lib.blockStart(filePos) == filePos :
-            	"filePos is not a multiple of " + lib.blockSize() + ": filePos=" + filePos;
-            channel.read(buffer, filePos);
-            buffer.clear();
-        }
+    // makes sure that the bytes from the current position to the end of
+    // the window can be read, moving the window forward if it is used up
+    private void prepareRead() throws IOException {
+    	if (buffer.remaining() == 0) {
+    		flushAndRefill();
+    	} else {
+    		// the window was sized by readahead for reading it to the end
+    		ensureValid(buffer.position(), windowSize);
+    	}
     }
 
     private void flushAndRefill() throws IOException {
     	assert buffer.remaining() == 0;
-    	flushAndForwardBufferWithoutRefill();
-    	refill();
+    	moveWindow(filePos + windowSize);
+    	ensureValid(0, windowSize);
+    	// don't read ahead into data which may still be on its way to the channel
+    	if (prefetcher != null && readahead.isSequential() && (writeBehind == null || writeBehind.isIdle())) {
+    		prefetcher.fill(filePos + windowSize, windowSize, readahead.maxWindow(), size());
+    	}
+    }
+
+    // like ensureValid, for blocks about to be partially overwritten
+    private void ensureValidForWrite(int from, int to) throws IOException {
+    	stats.recordReadModifyWrite(ensureValid(from, to));
+    }
+
+    // reads the blocks overlapping buffer bytes [from, to) which are not valid yet,
+    // leaving the buffer's position and limit alone; returns the number of bytes read
+    private int ensureValid(int from, int to) throws IOException {
+    	final int bs = lib.blockSize();
+    	final int end = lib.blockEnd(to) / bs;
+    	int i = valid.nextClearBit(from / bs);
+    	if (i >= end) {
+    		return 0;
+    	}
+    	int read = 0;
+    	final int oldPos = buffer.position();
+    	final int oldLim = buffer.limit();
+    	try {
+    		while (i < end) {
+    			int j = valid.nextSetBit(i);
+    			j = j < 0 || j > end ? end : j;
+    			final long start = filePos + (long) i * bs;
+    			// blocks past EOF have nothing to read
+    			if (start < size()) {
+    				if (writeBehind != null) {
+    					writeBehind.awaitOverlapping(start, filePos + (long) j * bs);
+    				}
+    				buffer.clear();
+    				buffer.limit(j * bs);
+    				buffer.position(i * bs);
+    				final Object event = IoEvents.begin(IoEvents.REFILL);
+    				try {
+    					read += channel.read(buffer, start);
+    				} finally {
+    					IoEvents.commit(event, stats.getName(), start, (long) (j - i) * bs);
+    				}
+    				stats.recordRefill();
+    				foldByteCounts();
+    			}
+    			valid.set(i, j);
+    			i = valid.nextClearBit(j);
+    		}
+    	} finally {
+    		buffer.clear();
+    		buffer.limit(oldLim);
+    		buffer.position(oldPos);
+    	}
+    	return read;
     }
 
 	@Override
@@ -287,43 +1538,99 @@ public abstract class ByteChannelAligner <T extends JaydioByteBuffer> implements
 
 	@Override
 	public ByteChannelAligner<T> truncate(final long size) throws IOException {
-		ensureOpen();
-		ensureWritable();
-		flush();
-		channel.truncate(size);
-		fileLength = size;
-		return this;
+		lockWindow();
+		try {
+			ensureOpen();
+			ensureWritable();
+			cancelPrefetch();
+			flushLocked();
+			channel.truncate(size);
+			fileLength.set(size);
+			return this;
+		} finally {
+			unlockWindow();
+		}
 	}
 
+	/**
+	 * Writes all dirty blocks to the underlying channel. With write-behind enabled,
+	 * this also waits for all background writes.
+	 * 
+	 * @throws IOException
+	 */
     public void flush() throws IOException {
-    	ensureOpen();
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		flushLocked();
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    private void flushLocked() throws IOException {
+    	// older background writes may overlap the current window, and must not land after it
+    	if (writeBehind != null) {
+    		writeBehind.drain();
+    	}
+    	flushWindow();
+    }
+
+    /**
+     * Flushes this channel, and forces everything written to it onto the storage device.
+     *
+     * @param metaData Whether file metadata must be forced as well
+     *
+     * @throws IOException
+     *
+     * @see java.nio.channels.FileChannel#force(boolean)
+     */
+    public void force(boolean metaData) throws IOException {
+    	lockWindow();
+    	try {
+    		ensureOpen();
+    		if (!channel.isReadOnly()) {
+    			flushLocked();
+    			channel.force(metaData);
+    		}
+    	} finally {
+    		unlockWindow();
+    	}
+    }
+
+    // synchronously writes the dirty blocks of the current window
+    private void flushWindow() throws IOException {
+    	foldByteCounts();
     	if (!globalDirty) { // nothing to do
     		return;
     	}
     	// read only channels cannot get here since there
     	// will not be any dirty bits
     	ensureWritable();
+    	stats.recordFlush();
     	final int oldPos = buffer.position();
     	final int oldLim = buffer.limit();
         assert (lib.blockStart(filePos)) == filePos;
-        for (int i=0; i<dirty.length; i++) {
-        	int j=i;
-        	while(j < dirty.length && dirty[j]) {
-        		dirty[j] = false;
-        		j++;
-        	}
-        	if (i==j) {
-        		continue;
+        final Object event = IoEvents.begin(IoEvents.FLUSH);
+        final long dirtyBytes = event != null ? (long) dirty.cardinality() * lib.blockSize() : 0;
+        try {
+        	// write each run of dirty blocks with a single call
+        	for (int i=dirty.nextSetBit(0); i >= 0; i=dirty.nextSetBit(i)) {
+        		final int j = dirty.nextClearBit(i);
+        		buffer.clear(); // so that the positioning below doesn't break
+        		buffer.limit(j*lib.blockSize());
+        		buffer.position(i*lib.blockSize());
+
+        		channel.write(buffer, filePos + buffer.position());
+        		dirty.clear(i, j);
+        		i=j;
         	}
-        	buffer.position(i*lib.blockSize());
-        	buffer.limit(j*lib.blockSize());
-        	
-        	channel.write(buffer, filePos + buffer.position());
-        	buffer.clear(); // so that subsequent positionings don't break
-        	i=j;
+        } finally {
+        	IoEvents.commit(event, stats.getName(), filePos, dirtyBytes);
         }
-        buffer.position(oldPos);
+        buffer.clear();
         buffer.limit(oldLim);
+        buffer.position(oldPos);
         globalDirty = false;
     }
 
@@ -0,0 +1,471 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.JaydioByteBuffer;
+import net.smacke.jaydio.channel.BufferedChannel;
+
+/**
+ * A cached, block aligned view of a {@link BufferedChannel} which, unlike
+ * {@link ByteChannelAligner}, may be read and written by many threads at once. </p>
+ *
+ * <p> The file is divided into pages of <tt>pageSize</tt> bytes, which are cached in a fixed
+ * number of frames. Page <tt>p</tt> can only live in frame <tt>p % pages</tt>, so finding a
+ * page never needs a global lookup. Each frame has its own read/write lock: any number of
+ * threads may copy out of a frame at once, while loading, evicting, flushing and writing
+ * a frame are exclusive. Accesses to pages in different frames therefore never contend. </p>
+ *
+ * <p> The price of that is that the cache is direct mapped: two hot pages whose numbers are
+ * congruent modulo <tt>pages</tt> keep evicting each other (writing the other back first if
+ * it is dirty, under the frame's write lock), however much of the rest of the cache is idle.
+ * Access patterns striding by a multiple of <tt>pages * pageSize</tt> bytes hit this worst
+ * case; an odd or prime number of pages makes it less likely. </p>
+ *
+ * <p> Reads and writes spanning several pages lock one page at a time, so they are not
+ * atomic with respect to other threads. Dirty pages are written back when they get evicted,
+ * on {@link #flush()}, and on {@link #close()}. Partially written pages are read from the
+ * channel first; pages which get overwritten completely are not. </p>
+ *
+ * @author smacke
+ *
+ */
+public abstract class ConcurrentByteChannelAligner<T extends JaydioByteBuffer> implements Channel {
+
+	private static final class Frame<T> {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		// everything below is guarded by lock
+		T buffer;
+		long page = -1;
+		BlockBitmap dirty;
+		// may be peeked at without the lock, to skip clean frames on flush()
+		volatile boolean anyDirty;
+	}
+
+	private final DirectIoLib lib;
+	private final BufferedChannel<T> channel;
+	private final int pageSize;
+	private final Frame<T>[] frames;
+	// never written; used to zero parts of pages which lie past EOF
+	private final byte[] zeros;
+	private final AtomicLong fileLength;
+	private volatile boolean isOpen;
+
+	/**
+	 * @param lib The {@link DirectIoLib} whose block size to align to
+	 *
+	 * @param channel The channel to cache
+	 *
+	 * @param pageSize The number of bytes per cached page; a multiple of the block size
+	 *
+	 * @param pages The number of pages to cache
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentByteChannelAligner(DirectIoLib lib, BufferedChannel<T> channel, int pageSize, int pages) {
+		if (pageSize <= 0 || pageSize % lib.blockSize() != 0) {
+			throw new IllegalArgumentException("The page size must be a multiple of the file system block size");
+		}
+		if (pages <= 0) {
+			throw new IllegalArgumentException("Need at least one page, got " + pages);
+		}
+		this.lib = lib;
+		this.channel = channel;
+		this.pageSize = pageSize;
+		this.frames = (Frame<T>[]) new Frame<?>[pages];
+		for (int i=0; i<pages; i++) {
+			frames[i] = new Frame<T>();
+		}
+		this.zeros = new byte[pageSize];
+		this.fileLength = new AtomicLong(channel.size());
+		this.isOpen = true;
+	}
+
+	/**
+	 * Allocates a page buffer of the kind that the channel reads and writes.
+	 *
+	 * @param capacity The page size
+	 *
+	 * @return A new, empty buffer with the requested capacity
+	 */
+	protected abstract T allocateBuffer(int capacity);
+
+	/**
+	 * @return The {@link DirectIoLib} used to align this channel
+	 */
+	protected DirectIoLib lib() {
+		return lib;
+	}
+
+	public int pageSize() {
+		return pageSize;
+	}
+
+	public int pages() {
+		return frames.length;
+	}
+
+	public long size() {
+		return fileLength.get();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return isOpen;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!isOpen) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void ensureWritable() throws NonWritableChannelException {
+		if (channel.isReadOnly()) {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	private void extendLength(long end) {
+		long current;
+		while (end > (current = fileLength.get())) {
+			if (fileLength.compareAndSet(current, end)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads up to <tt>length</tt> bytes starting at file offset <tt>position</tt>.
+	 *
+	 * @return The number of bytes read, or -1 if <tt>position</tt> is at or past EOF
+	 *
+	 * @throws IOException
+	 */
+	public int read(long position, byte[] dst, int offset, int length) throws IOException {
+		ensureOpen();
+		if (position < 0) {
+			throw new IllegalArgumentException("negative position: " + position);
+		}
+		if (length == 0) {
+			return 0;
+		} else if (position >= size()) {
+			return -1;
+		}
+		final long end = Math.min(position + length, size());
+		long pos = position;
+		while (pos < end) {
+			final long page = pos / pageSize;
+			final int inPage = (int) (pos - page * pageSize);
+			final int n = (int) Math.min(end - pos, pageSize - inPage);
+			final Frame<T> frame = lockForRead(page);
+			try {
+				frame.buffer.get(inPage, dst, offset, n);
+			} finally {
+				frame.lock.readLock().unlock();
+			}
+			offset += n;
+			pos += n;
+		}
+		return (int) (end - position);
+	}
+
+	/**
+	 * Writes <tt>length</tt> bytes at file offset <tt>position</tt>, growing the file
+	 * if necessary.
+	 *
+	 * @return The number of bytes written, i.e. <tt>length</tt>
+	 *
+	 * @throws IOException
+	 */
+	public int write(long position, byte[] src, int offset, int length) throws IOException {
+		ensureOpen();
+		ensureWritable();
+		if (position < 0) {
+			throw new IllegalArgumentException("negative position: " + position);
+		}
+		final long end = position + length;
+		long pos = position;
+		while (pos < end) {
+			final long page = pos / pageSize;
+			final int inPage = (int) (pos - page * pageSize);
+			final int n = (int) Math.min(end - pos, pageSize - inPage);
+			// a page which gets overwritten completely doesn't need to be read first
+			final Frame<T> frame = lockForWrite(page, n < pageSize);
+			try {
+				frame.buffer.put(inPage, src, offset, n);
+				frame.dirty.set(inPage / lib.blockSize(), lib.blockEnd(inPage + n) / lib.blockSize());
+				frame.anyDirty = true;
+				extendLength(pos + n);
+			} finally {
+				frame.lock.writeLock().unlock();
+			}
+			offset += n;
+			pos += n;
+		}
+		return length;
+	}
+
+	private Frame<T> frameFor(long page) {
+		return frames[(int) (page % frames.length)];
+	}
+
+	// returns the frame holding page, read locked
+	private Frame<T> lockForRead(long page) throws IOException {
+		final Frame<T> frame = frameFor(page);
+		frame.lock.readLock().lock();
+		if (frame.page == page) {
+			return frame;
+		}
+		frame.lock.readLock().unlock();
+		frame.lock.writeLock().lock();
+		try {
+			// somebody else may have loaded it in the meantime
+			if (frame.page != page) {
+				load(frame, page, true);
+			}
+			// downgrade, so that other readers can get in right away
+			frame.lock.readLock().lock();
+		} finally {
+			frame.lock.writeLock().unlock();
+		}
+		return frame;
+	}
+
+	// returns the frame holding page, write locked
+	private Frame<T> lockForWrite(long page, boolean needContents) throws IOException {
+		final Frame<T> frame = frameFor(page);
+		frame.lock.writeLock().lock();
+		try {
+			if (frame.page != page) {
+				load(frame, page, needContents);
+			}
+		} catch (IOException e) {
+			frame.lock.writeLock().unlock();
+			throw e;
+		} catch (RuntimeException e) {
+			frame.lock.writeLock().unlock();
+			throw e;
+		}
+		return frame;
+	}
+
+	// evicts whatever frame holds, and makes it hold page instead. Needs the write lock.
+	private void load(Frame<T> frame, long page, boolean needContents) throws IOException {
+		assert frame.lock.isWriteLockedByCurrentThread();
+		ensureOpen(); // close() may have freed the buffer while we waited for the lock
+		if (frame.anyDirty) {
+			flushFrame(frame);
+		}
+		frame.page = -1; // in case the read below fails
+		if (frame.buffer == null) {
+			frame.buffer = allocateBuffer(pageSize);
+			frame.dirty = new BlockBitmap(pageSize / lib.blockSize());
+		}
+		final long pageStart = page * pageSize;
+		int filled = 0;
+		if (needContents && pageStart < size()) {
+			filled = readPage(frame.buffer, pageStart);
+		}
+		if (needContents && filled < pageSize) {
+			// past EOF; make sure that growing the file later doesn't expose stale bytes
+			frame.buffer.clear();
+			frame.buffer.put(filled, zeros, 0, pageSize - filled);
+		}
+		frame.buffer.clear();
+		frame.buffer.limit(pageSize);
+		frame.page = page;
+	}
+
+	// reads as much of the page as the channel has, returning how many bytes that was
+	private int readPage(T buffer, long pageStart) throws IOException {
+		buffer.clear();
+		buffer.limit((int) Math.min(pageSize, lib.blockEnd(size() - pageStart)));
+		int done = 0;
+		while (buffer.position() < buffer.limit()) {
+			final int asked = buffer.remaining();
+			int n;
+			try {
+				n = channel.read(buffer, pageStart + done);
+			} catch (EOFException e) {
+				n = 0;
+			}
+			if (n <= 0) {
+				break;
+			}
+			done += n;
+			if (n < asked) {
+				break; // hit EOF
+			}
+			buffer.position(done);
+		}
+		return Math.max(done, 0);
+	}
+
+	// writes the dirty blocks of frame. Needs the write lock.
+	private void flushFrame(Frame<T> frame) throws IOException {
+		assert frame.lock.isWriteLockedByCurrentThread();
+		final BlockBitmap dirty = frame.dirty;
+		final T buffer = frame.buffer;
+		final long pageStart = frame.page * pageSize;
+		final int bs = lib.blockSize();
+		try {
+			for (int i=dirty.nextSetBit(0); i >= 0; i=dirty.nextSetBit(i)) {
+				final int j = dirty.nextClearBit(i);
+				buffer.clear();
+				buffer.limit(j*bs);
+				int done = i*bs;
+				while (done < j*bs) {
+					buffer.position(done);
+					final int n = channel.write(buffer, pageStart + done);
+					if (n <= 0) {
+						throw new IOException("could not write " + (j*bs - done) + " bytes at offset " + (pageStart + done));
+					}
+					done += n;
+				}
+				dirty.clear(i, j);
+				i = j;
+			}
+			frame.anyDirty = false;
+		} finally {
+			buffer.clear();
+			buffer.limit(pageSize);
+		}
+	}
+
+	/**
+	 * Writes all dirty pages to the underlying channel. Writes which happen
+	 * concurrently with this call may or may not be included.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		for (Frame<T> frame : frames) {
+			if (!frame.anyDirty) {
+				continue;
+			}
+			frame.lock.writeLock().lock();
+			try {
+				if (frame.anyDirty) {
+					flushFrame(frame);
+				}
+			} finally {
+				frame.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	// locks every frame in index order; single page operations never hold more than one
+	// frame lock, so this can't deadlock with them
+	private void lockAll() {
+		for (Frame<T> frame : frames) {
+			frame.lock.writeLock().lock();
+		}
+	}
+
+	private void unlockAll() {
+		for (int i=frames.length-1; i>=0; i--) {
+			frames[i].lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the file size. No page can be read or written while this runs.
+	 *
+	 * @throws IOException
+	 */
+	public ConcurrentByteChannelAligner<T> truncate(long size) throws IOException {
+		ensureOpen();
+		ensureWritable();
+		lockAll();
+		try {
+			for (Frame<T> frame : frames) {
+				if (frame.anyDirty) {
+					flushFrame(frame);
+				}
+			}
+			channel.truncate(size);
+			fileLength.set(size);
+			for (Frame<T> frame : frames) {
+				final long pageStart = frame.page * pageSize;
+				if (frame.page < 0 || pageStart + pageSize <= size) {
+					continue;
+				}
+				if (pageStart >= size) {
+					frame.page = -1;
+				} else {
+					// the cut off part must read as zeros if the file grows again
+					final int keep = (int) (size - pageStart);
+					frame.buffer.put(keep, zeros, 0, pageSize - keep);
+				}
+			}
+		} finally {
+			unlockAll();
+		}
+		return this;
+	}
+
+	/**
+	 * Flushes all dirty pages, trims the channel to {@link #size()}, and closes it.
+	 * Reads and writes racing with this call fail with {@link ClosedChannelException}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!isOpen) {
+			return;
+		}
+		lockAll();
+		try {
+			if (!isOpen) {
+				return;
+			}
+			try {
+				for (Frame<T> frame : frames) {
+					if (frame.anyDirty) {
+						flushFrame(frame);
+					}
+				}
+				if (!channel.isReadOnly()) {
+					// whole block writes may have gone past the logical end
+					channel.truncate(size());
+				}
+			} finally {
+				isOpen = false;
+				try {
+					channel.close();
+				} finally {
+					for (Frame<T> frame : frames) {
+						frame.page = -1;
+						if (frame.buffer != null) {
+							frame.buffer.close();
+							frame.buffer = null;
+						}
+					}
+				}
+			}
+		} finally {
+			unlockAll();
+		}
+	}
+}
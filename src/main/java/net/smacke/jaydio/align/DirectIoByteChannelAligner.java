@@ -21,7 +21,9 @@ import java.io.IOException;
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
 import net.smacke.jaydio.channel.BufferedChannel;
+import net.smacke.jaydio.channel.ChecksummedByteChannel;
 import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.channel.MmapByteChannel;
 
 public class DirectIoByteChannelAligner extends ByteChannelAligner<AlignedDirectByteBuffer> {
 	
@@ -33,6 +35,11 @@ public class DirectIoByteChannelAligner extends ByteChannelAligner<AlignedDirect
 		super(lib, channel, buffer);
 	}
 
+	@Override
+	protected AlignedDirectByteBuffer allocateBuffer(int capacity) {
+		return AlignedDirectByteBuffer.allocate(lib(), capacity);
+	}
+
     public static DirectIoByteChannelAligner open(File path) throws IOException {
     	DirectIoLib lib = DirectIoLib.getLibForPath(path.toString());
         return open(lib, path, lib.defaultBufferSize(), false);
@@ -62,4 +69,44 @@ public class DirectIoByteChannelAligner extends ByteChannelAligner<AlignedDirect
         return new DirectIoByteChannelAligner(lib, channel, buffer);
     }
 
+    /**
+     * Like {@link #open(DirectIoLib, File, int, boolean)}, but going through a memory
+     * mapping of the file rather than direct I/O, see {@link MmapByteChannel}.
+     */
+    public static DirectIoByteChannelAligner openMapped(File path, boolean readOnly, boolean populate,
+    		MmapByteChannel.Advice advice) throws IOException {
+    	DirectIoLib lib = DirectIoLib.getLibForPath(path.toString());
+    	return openMapped(lib, path, lib.defaultBufferSize(), readOnly, populate, advice);
+    }
+
+    public static DirectIoByteChannelAligner openMapped(DirectIoLib lib, File path, int bufferSize, boolean readOnly,
+    		boolean populate, MmapByteChannel.Advice advice) throws IOException {
+        if (bufferSize < 0 || (bufferSize % lib.blockSize() != 0)) {
+            throw new IllegalArgumentException("The buffer capacity must be a multiple of the file system block size");
+        }
+        BufferedChannel<AlignedDirectByteBuffer> channel = MmapByteChannel.getChannel(lib, path, readOnly, populate, advice);
+        AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, bufferSize);
+        return new DirectIoByteChannelAligner(lib, channel, buffer);
+    }
+
+    /**
+     * Like {@link #open(DirectIoLib, File, int, boolean)}, but keeping a CRC32C of every
+     * block, which is checked whenever the block is read back, see
+     * {@link ChecksummedByteChannel}.
+     */
+    public static DirectIoByteChannelAligner openChecksummed(File path, boolean readOnly) throws IOException {
+    	DirectIoLib lib = DirectIoLib.getLibForPath(path.toString());
+    	return openChecksummed(lib, path, lib.defaultBufferSize(), readOnly);
+    }
+
+    public static DirectIoByteChannelAligner openChecksummed(DirectIoLib lib, File path, int bufferSize,
+    		boolean readOnly) throws IOException {
+        if (bufferSize < 0 || (bufferSize % lib.blockSize() != 0)) {
+            throw new IllegalArgumentException("The buffer capacity must be a multiple of the file system block size");
+        }
+        BufferedChannel<AlignedDirectByteBuffer> channel = ChecksummedByteChannel.getChannel(lib, path, readOnly);
+        AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, bufferSize);
+        return new DirectIoByteChannelAligner(lib, channel, buffer);
+    }
+
 }
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.BufferedChannel;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+
+public class DirectIoConcurrentByteChannelAligner extends ConcurrentByteChannelAligner<AlignedDirectByteBuffer> {
+
+	public DirectIoConcurrentByteChannelAligner(DirectIoLib lib,
+			BufferedChannel<AlignedDirectByteBuffer> channel, int pageSize, int pages) {
+		super(lib, channel, pageSize, pages);
+	}
+
+	@Override
+	protected AlignedDirectByteBuffer allocateBuffer(int capacity) {
+		return AlignedDirectByteBuffer.allocate(lib(), capacity);
+	}
+
+    public static DirectIoConcurrentByteChannelAligner open(File path, int pageSize, int pages) throws IOException {
+    	DirectIoLib lib = DirectIoLib.getLibForPath(path.toString());
+        return open(lib, path, pageSize, pages, false);
+    }
+
+    public static DirectIoConcurrentByteChannelAligner open(File path, int pageSize, int pages, boolean readOnly) throws IOException {
+    	DirectIoLib lib = DirectIoLib.getLibForPath(path.toString());
+        return open(lib, path, pageSize, pages, readOnly);
+    }
+
+    public static DirectIoConcurrentByteChannelAligner open(DirectIoLib lib, File path, int pageSize, int pages, boolean readOnly) throws IOException {
+        if (pageSize <= 0 || (pageSize % lib.blockSize() != 0)) {
+            throw new IllegalArgumentException("The page size must be a multiple of the file system block size");
+        }
+        BufferedChannel<AlignedDirectByteBuffer> channel = DirectIoByteChannel.getChannel(lib, path, readOnly);
+        return new DirectIoConcurrentByteChannelAligner(lib, channel, pageSize, pages);
+    }
+
+}
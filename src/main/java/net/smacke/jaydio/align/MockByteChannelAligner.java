@@ -16,6 +16,7 @@
 package net.smacke.jaydio.align;
 
 import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.JavaHeapByteBuffer;
 import net.smacke.jaydio.buffer.JaydioByteBuffer;
 import net.smacke.jaydio.channel.BufferedChannel;
 
@@ -26,4 +27,9 @@ public class MockByteChannelAligner extends ByteChannelAligner<JaydioByteBuffer>
 		super(lib, channel, buffer);
 	}
 
+	@Override
+	protected JaydioByteBuffer allocateBuffer(int capacity) {
+		return JavaHeapByteBuffer.allocate(capacity);
+	}
+
 }
@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.smacke.jaydio.buffer.JaydioByteBuffer;
+import net.smacke.jaydio.channel.BufferedChannel;
+
+/**
+ * Keeps the windows following a sequentially read {@link ByteChannelAligner} window
+ * in flight on a background I/O thread, so that crossing a window boundary does not
+ * have to wait for the device. Together with the aligner's current buffer, at most
+ * <tt>depth</tt> buffers are ever in use. </p>
+ *
+ * <p> Instances are confined to the thread using the owning aligner; only the reads
+ * themselves happen on the background thread. </p>
+ *
+ * @author smacke
+ *
+ */
+final class Prefetcher<T extends JaydioByteBuffer> {
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final class Window<T> {
+		final long start;
+		final int size;
+		final T buffer;
+		// whoever sets this first owns the buffer: the read, or a cancel
+		// that gets there before the read has started
+		final AtomicBoolean claimed = new AtomicBoolean();
+		Future<Integer> result;
+
+		Window(long start, int size, T buffer) {
+			this.start = start;
+			this.size = size;
+			this.buffer = buffer;
+		}
+	}
+
+	private final ByteChannelAligner<T> owner;
+	private final BufferedChannel<T> channel;
+	private final int depth;
+	private final ExecutorService io;
+
+	private final LinkedList<Window<T>> inFlight = new LinkedList<Window<T>>();
+	private final List<T> spare = new ArrayList<T>();
+	private int hits;
+
+	/**
+	 * @param owner The aligner whose windows get prefetched; used to allocate buffers
+	 *
+	 * @param channel The channel to read from
+	 *
+	 * @param depth The total number of buffers in the ring, including the
+	 *        aligner's current one. Must be at least 2.
+	 */
+	Prefetcher(ByteChannelAligner<T> owner, BufferedChannel<T> channel, int depth) {
+		assert depth >= 2;
+		this.owner = owner;
+		this.channel = channel;
+		this.depth = depth;
+		this.io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jaydio-prefetch-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	int depth() {
+		return depth;
+	}
+
+	int hits() {
+		return hits;
+	}
+
+	/**
+	 * Hands out the prefetched window starting at <tt>start</tt>, waiting for it if
+	 * it is still being read. If the next window in flight is not the requested one,
+	 * the access pattern has changed, and everything in flight is dropped.
+	 *
+	 * @return A buffer holding the <tt>size</tt> bytes at <tt>start</tt> between
+	 *         position 0 and its limit, or <tt>null</tt> if that window wasn't prefetched
+	 *
+	 * @throws IOException If the background read failed
+	 */
+	T take(long start, int size) throws IOException {
+		final Window<T> next = inFlight.peek();
+		if (next == null || next.start != start || next.size != size) {
+			cancel();
+			return null;
+		}
+		inFlight.poll();
+		try {
+			await(next.result);
+		} catch (IOException e) {
+			spare.add(next.buffer);
+			cancel();
+			throw e;
+		}
+		hits++;
+		next.buffer.clear();
+		next.buffer.limit(size);
+		return next.buffer;
+	}
+
+	/**
+	 * Gives a buffer which is no longer needed by the aligner back to the ring.
+	 */
+	void release(T buffer) {
+		spare.add(buffer);
+	}
+
+	/**
+	 * Tops up the ring with the windows following the aligner's current window,
+	 * assuming that readahead keeps doubling the window size up to <tt>maxSize</tt>.
+	 *
+	 * @param windowEnd Where the aligner's current window ends
+	 *
+	 * @param windowSize The size of the aligner's current window
+	 *
+	 * @param maxSize The readahead cap
+	 *
+	 * @param fileLength No window starting at or past this offset is prefetched
+	 */
+	void fill(long windowEnd, int windowSize, int maxSize, long fileLength) {
+		long start = windowEnd;
+		int size = windowSize;
+		if (!inFlight.isEmpty()) {
+			final Window<T> last = inFlight.getLast();
+			start = last.start + last.size;
+			size = last.size;
+		}
+		while (inFlight.size() < depth - 1 && start < fileLength) {
+			size = (int) Math.min((long) size << 1, maxSize);
+			submit(start, size);
+			start += size;
+		}
+	}
+
+	private void submit(final long start, final int size) {
+		final T buffer = obtain(size);
+		buffer.clear();
+		buffer.limit(size);
+		final Window<T> w = new Window<T>(start, size, buffer);
+		w.result = io.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				if (!w.claimed.compareAndSet(false, true)) {
+					return 0;
+				}
+				return channel.read(buffer, start);
+			}
+		});
+		inFlight.add(w);
+	}
+
+	private T obtain(int capacity) {
+		for (int i = 0; i < spare.size(); i++) {
+			if (spare.get(i).capacity() >= capacity) {
+				return spare.remove(i);
+			}
+		}
+		if (!spare.isEmpty()) {
+			// too small to be useful anymore
+			spare.remove(spare.size() - 1).close();
+		}
+		return owner.allocateBuffer(capacity);
+	}
+
+	/**
+	 * Drops every window in flight, waiting for reads which have already started.
+	 * Must be called before anything is written to the channel, so that no stale
+	 * window is ever handed out.
+	 */
+	void cancel() {
+		while (!inFlight.isEmpty()) {
+			final Window<T> w = inFlight.poll();
+			// Future.cancel() also succeeds on a read that is already running,
+			// and would not wait for it to stop writing into the buffer
+			if (!w.claimed.compareAndSet(false, true)) {
+				try {
+					await(w.result);
+				} catch (IOException ignored) {
+					// nobody is going to look at this window anyway
+				}
+			}
+			spare.add(w.buffer);
+		}
+	}
+
+	/**
+	 * Cancels everything in flight, frees all spare buffers and stops the I/O thread.
+	 */
+	void close() {
+		try {
+			cancel();
+		} finally {
+			io.shutdown();
+			for (T b : spare) {
+				b.close();
+			}
+			spare.clear();
+		}
+	}
+
+	private static void await(Future<Integer> f) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					f.get();
+					return;
+				} catch (InterruptedException e) {
+					// the read is in progress on the I/O thread and will finish
+					// on its own; we cannot give up on it without leaking it
+					interrupted = true;
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IOException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+/**
+ * Keeps track of how a {@link ByteChannelAligner} moves its window, and decides how
+ * many bytes the next refill should fetch. This plays the role that the kernel's
+ * readahead logic would normally play, since <tt>O_DIRECT</tt> bypasses it. </p>
+ *
+ * <p> Every refill which starts exactly where the previous one ended is considered
+ * sequential, and doubles the window (up to {@link #maxWindow()}). Any other refill
+ * is considered random, and shrinks the window back to {@link #minWindow()}. </p>
+ *
+ * @author smacke
+ *
+ */
+final class Readahead {
+
+	private final int minWindow;
+	private int maxWindow;
+	private int window;
+
+	// where the next refill must start in order to count as sequential
+	private long sequentialStart;
+	private boolean sequential;
+
+	Readahead(int minWindow, int maxWindow) {
+		this.minWindow = minWindow;
+		this.maxWindow = Math.max(minWindow, maxWindow);
+		this.window = minWindow;
+		this.sequentialStart = -1;
+	}
+
+	/**
+	 * @param start The (block aligned) file offset at which a refill is about to happen
+	 *
+	 * @return The number of bytes that the refill at <tt>start</tt> should fetch
+	 */
+	int nextWindow(long start) {
+		sequential = start == sequentialStart;
+		if (sequential) {
+			// guard against int overflow for huge caps
+			window = (int) Math.min((long) window << 1, maxWindow);
+		} else {
+			window = minWindow;
+		}
+		sequentialStart = start + window;
+		return window;
+	}
+
+	/**
+	 * @return Whether the last call to {@link #nextWindow(long)} was for a sequential refill
+	 */
+	boolean isSequential() {
+		return sequential;
+	}
+
+	int minWindow() {
+		return minWindow;
+	}
+
+	int maxWindow() {
+		return maxWindow;
+	}
+
+	/**
+	 * @param maxWindow The new cap on the window size. Values smaller than
+	 *        {@link #minWindow()} disable readahead altogether.
+	 */
+	void setMaxWindow(int maxWindow) {
+		this.maxWindow = Math.max(minWindow, maxWindow);
+		this.window = Math.min(window, this.maxWindow);
+	}
+}
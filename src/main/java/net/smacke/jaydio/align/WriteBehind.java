@@ -0,0 +1,314 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.smacke.jaydio.buffer.JaydioByteBuffer;
+import net.smacke.jaydio.channel.BufferedChannel;
+
+/**
+ * Writes windows retired by a {@link ByteChannelAligner} on a background thread, so
+ * that the thread producing the data does not have to wait for the device every time
+ * it crosses a window boundary. </p>
+ *
+ * <p> The aligner hands over a window buffer together with a snapshot of its dirty
+ * blocks, and gets a clean buffer back to continue with. At most
+ * <tt>maxOutstanding</tt> dirty bytes may be queued; beyond that, handing over a
+ * window waits for the oldest ones to be written. A periodic timer makes sure that
+ * the aligner's current window never stays dirty for longer than the configured
+ * maximum age, even if the producer goes idle. </p>
+ *
+ * <p> Write failures are remembered, and rethrown by {@link #checkError()} (which
+ * the aligner calls on every operation) until the aligner is closed. </p>
+ *
+ * @author smacke
+ *
+ */
+final class WriteBehind<T extends JaydioByteBuffer> {
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final class Pending<T> {
+		final long start;
+		final long end;
+		final long bytes;
+		final T buffer;
+		final Future<?> result;
+
+		Pending(long start, long end, long bytes, T buffer, Future<?> result) {
+			this.start = start;
+			this.end = end;
+			this.bytes = bytes;
+			this.buffer = buffer;
+			this.result = result;
+		}
+	}
+
+	private final ByteChannelAligner<T> owner;
+	private final BufferedChannel<T> channel;
+	private final int blockSize;
+	private final long maxOutstanding;
+	private final long maxDirtyAgeNanos;
+	private final ScheduledThreadPoolExecutor flusher;
+
+	// held by the aligner for the duration of each of its operations, so
+	// that the dirty age timer never touches a window which is in use
+	private final ReentrantLock windowLock = new ReentrantLock();
+
+	// only touched by the aligner's thread
+	private final LinkedList<Pending<T>> pending = new LinkedList<Pending<T>>();
+	private final List<T> spare = new ArrayList<T>();
+	private long outstanding;
+
+	private volatile IOException failure;
+
+	/**
+	 * @param owner The aligner whose windows get written; used to allocate buffers
+	 *
+	 * @param channel The channel to write to
+	 *
+	 * @param blockSize The block size of the aligner's dirty bits
+	 *
+	 * @param maxOutstanding The maximum number of dirty bytes queued for writing
+	 *
+	 * @param maxDirtyAgeNanos The maximum time that the aligner's current window may
+	 *        stay dirty, or 0 for no limit
+	 */
+	WriteBehind(ByteChannelAligner<T> owner, BufferedChannel<T> channel, int blockSize,
+			long maxOutstanding, long maxDirtyAgeNanos) {
+		this.owner = owner;
+		this.channel = channel;
+		this.blockSize = blockSize;
+		this.maxOutstanding = maxOutstanding;
+		this.maxDirtyAgeNanos = maxDirtyAgeNanos;
+		this.flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jaydio-write-behind-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (maxDirtyAgeNanos > 0) {
+			final long period = Math.max(maxDirtyAgeNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					WriteBehind.this.owner.expireDirtyWindow(WriteBehind.this.maxDirtyAgeNanos);
+				}
+			}, period, period, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	void lock() {
+		windowLock.lock();
+	}
+
+	boolean tryLock() {
+		return windowLock.tryLock();
+	}
+
+	void unlock() {
+		windowLock.unlock();
+	}
+
+	/**
+	 * Queues the dirty blocks of <tt>window</tt> for writing, and returns a clean
+	 * buffer of at least the same capacity for the aligner to continue with.
+	 *
+	 * @param window The window buffer, which now belongs to this object
+	 *
+	 * @param filePos The file offset mirrored by the start of <tt>window</tt>
+	 *
+	 * @param dirty Which blocks of <tt>window</tt> need writing; now belongs to this object
+	 *
+	 * @throws IOException If waiting for earlier writes revealed a failure
+	 */
+	T submit(final T window, final long filePos, final BlockBitmap dirty) throws IOException {
+		final long bytes = (long) dirty.cardinality() * blockSize;
+		final int last = dirty.length();
+		reap();
+		while (!pending.isEmpty() && outstanding + bytes > maxOutstanding) {
+			awaitOldest();
+		}
+		checkError();
+
+		final Future<?> result = flusher.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeDirtyRuns(window, filePos, dirty);
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		});
+		pending.add(new Pending<T>(filePos, filePos + (long) last * blockSize, bytes, window, result));
+		outstanding += bytes;
+		return obtain(window.capacity());
+	}
+
+	private void writeDirtyRuns(T window, long filePos, BlockBitmap dirty) throws IOException {
+		if (failure != null) {
+			return; // don't write anything after a failure, the file is broken anyway
+		}
+		channel.getStats().recordFlush();
+		for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i)) {
+			final int j = dirty.nextClearBit(i);
+			window.clear();
+			window.limit(j * blockSize);
+			window.position(i * blockSize);
+			channel.write(window, filePos + window.position());
+			i = j;
+		}
+	}
+
+	private T obtain(int capacity) {
+		for (int i = 0; i < spare.size(); i++) {
+			if (spare.get(i).capacity() >= capacity) {
+				return spare.remove(i);
+			}
+		}
+		return owner.allocateBuffer(capacity);
+	}
+
+	// recycles the buffers of writes which have already completed
+	private void reap() {
+		while (!pending.isEmpty() && pending.peek().result.isDone()) {
+			awaitOldest();
+		}
+	}
+
+	private void awaitOldest() {
+		final Pending<T> p = pending.poll();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					p.result.get();
+					break;
+				} catch (InterruptedException e) {
+					// the write is in progress and will finish on its own
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// failures are recorded by the task itself; this is something worse
+					final Throwable cause = e.getCause();
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw (RuntimeException) cause;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			outstanding -= p.bytes;
+			spare.add(p.buffer);
+		}
+	}
+
+	/**
+	 * @return <tt>true</tt> if no writes are queued
+	 */
+	boolean isIdle() {
+		reap();
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Waits until no queued write overlaps <tt>[start, end)</tt>, so
+	 * that the range may safely be read back from the channel.
+	 */
+	void awaitOverlapping(long start, long end) throws IOException {
+		reap();
+		int last = -1;
+		int i = 0;
+		for (Pending<T> p : pending) {
+			if (p.start < end && start < p.end) {
+				last = i;
+			}
+			i++;
+		}
+		// writes complete in order, so waiting for the last overlapping
+		// one means waiting for everything queued before it too
+		for (; last >= 0; last--) {
+			awaitOldest();
+		}
+		checkError();
+	}
+
+	/**
+	 * Waits for every queued write.
+	 */
+	void drain() throws IOException {
+		while (!pending.isEmpty()) {
+			awaitOldest();
+		}
+		checkError();
+	}
+
+	/**
+	 * Records a failure which happened outside of a queued write, e.g.
+	 * while the timer was flushing the aligner's current window.
+	 */
+	void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * @throws IOException The first failure of any write done on behalf of the aligner
+	 */
+	void checkError() throws IOException {
+		final IOException e = failure;
+		if (e != null) {
+			throw new IOException("background write failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Waits for every queued write, frees all buffers, and stops the background thread.
+	 *
+	 * @throws IOException If any background write failed
+	 */
+	void close() throws IOException {
+		try {
+			flusher.shutdown();
+			while (!pending.isEmpty()) {
+				awaitOldest();
+			}
+		} finally {
+			for (T b : spare) {
+				b.close();
+			}
+			spare.clear();
+		}
+		checkError();
+	}
+}
@@ -0,0 +1,661 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.stats.IoStats;
+
+/**
+ * A B+tree in a single <tt>O_DIRECT</tt> file, mapping byte array keys to byte array
+ * values, for indexes which must not compete with everything else for the OS page
+ * cache. Keys are ordered as unsigned bytes, lexicographically. </p>
+ *
+ * <p> The file is an array of pages, each a multiple of the block size. Page 0 holds
+ * the tree's metadata, and all other pages are leaves, inner nodes or on the free
+ * list; see {@link Node} for their layout. Pages are cached by a {@link PageCache} of
+ * <tt>cachePages</tt> pages, which writes dirty pages back when evicting them. Leaves
+ * are split at the median byte, and their separators are shortened to the shortest
+ * prefix that still separates them. Removing entries never merges pages, but pages
+ * which become empty are unlinked and put on the free list, where new pages are
+ * taken from first. </p>
+ *
+ * <p> {@link #bulkLoad(Iterator, float)} builds a tree from sorted entries bottom up,
+ * writing every page once, in page order. {@link #scan(byte[], byte[])} walks a range
+ * of keys, reading the following leaves ahead in the background. </p>
+ *
+ * <p> The file is consistent only after {@link #flush()} or {@link #close()}; there is
+ * no log, so a crash in between may leave a tree that can't be opened anymore, which
+ * has to be rebuilt from its source. The methods of a tree are synchronized, so it may
+ * be shared by several threads, but they don't run concurrently. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class BTree implements Closeable {
+
+	public static final int DEFAULT_PAGE_SIZE = 8192;
+	public static final int DEFAULT_CACHE_PAGES = 4096;
+	public static final int DEFAULT_SCAN_PREFETCH = 8;
+
+	private static final long MAGIC = 0x4A41594254524545L; // "JAYBTREE"
+	private static final int VERSION = 1;
+	private static final int META_SIZE = 60;
+
+	private final DirectIoByteChannel channel;
+	private final PageCache cache;
+	private final int pageSize;
+	private final int maxEntrySize;
+
+	private long root;
+	private int height;
+	private long pageCount;
+	private long freeHead;
+	private long entries;
+
+	// bumped by every change, to invalidate cursors
+	private int modCount;
+	private int scanPrefetch = DEFAULT_SCAN_PREFETCH;
+	private boolean closed;
+
+	// the path taken by the last descent, from the root down
+	private long[] pathIds = new long[8];
+	private Node[] pathNodes = new Node[8];
+	private int[] pathIndexes = new int[8];
+
+	public static BTree open(File file) throws IOException {
+		final DirectIoLib lib = DirectIoLib.getLibForPath(file.getAbsoluteFile().getParent());
+		return open(lib, file, DirectIoLib.lcm(DEFAULT_PAGE_SIZE, lib.blockSize()), DEFAULT_CACHE_PAGES);
+	}
+
+	/**
+	 * Opens the tree in <tt>file</tt>, creating an empty one if the file doesn't exist
+	 * or is empty.
+	 *
+	 * @param pageSize The page size of a new tree; a multiple of the block size, and at
+	 *        least 256 bytes. Existing trees keep the page size they were created with.
+	 *
+	 * @param cachePages The number of pages to cache in memory
+	 */
+	public static BTree open(DirectIoLib lib, File file, int pageSize, int cachePages) throws IOException {
+		if (cachePages < 1) {
+			throw new IllegalArgumentException("need at least one cache page, got " + cachePages);
+		}
+		final DirectIoByteChannel channel = DirectIoByteChannel.getChannel(lib, file, false);
+		try {
+			if (channel.size() == 0) {
+				checkPageSize(lib, pageSize);
+				final BTree tree = new BTree(lib, channel, pageSize, cachePages);
+				tree.root = 1;
+				tree.height = 1;
+				tree.pageCount = 2;
+				tree.cache.put(1, Node.leaf());
+				tree.flush();
+				return tree;
+			}
+			final ByteBuffer meta = ByteBuffer.wrap(readMeta(lib, channel));
+			if (meta.getLong() != MAGIC) {
+				throw new IOException(file + " is not a B+tree");
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(meta.array(), 0, META_SIZE - 4);
+			if (meta.getInt(META_SIZE - 4) != (int) crc.getValue()) {
+				throw new IOException(file + " has a corrupt header");
+			}
+			final int version = meta.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			pageSize = meta.getInt();
+			checkPageSize(lib, pageSize);
+			final BTree tree = new BTree(lib, channel, pageSize, cachePages);
+			tree.root = meta.getLong();
+			tree.height = meta.getInt();
+			meta.getInt();
+			tree.pageCount = meta.getLong();
+			tree.freeHead = meta.getLong();
+			tree.entries = meta.getLong();
+			return tree;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void checkPageSize(DirectIoLib lib, int pageSize) {
+		if (pageSize < 256 || pageSize % lib.blockSize() != 0) {
+			throw new IllegalArgumentException("page size " + pageSize + " must be a multiple of the block size "
+					+ lib.blockSize() + " and at least 256 bytes");
+		}
+	}
+
+	private static byte[] readMeta(DirectIoLib lib, DirectIoByteChannel channel) throws IOException {
+		final AlignedDirectByteBuffer block = AlignedDirectByteBuffer.allocate(lib, lib.blockSize());
+		try {
+			if (channel.read(block, 0) < META_SIZE) {
+				throw new IOException("file is too short for a B+tree header");
+			}
+			final byte[] meta = new byte[META_SIZE];
+			block.get(0, meta, 0, META_SIZE);
+			return meta;
+		} finally {
+			block.close();
+		}
+	}
+
+	private BTree(DirectIoLib lib, DirectIoByteChannel channel, int pageSize, int cachePages) {
+		this.channel = channel;
+		this.pageSize = pageSize;
+		this.maxEntrySize = (pageSize - Node.HEADER_SIZE - 8) / 4 - Node.INNER_ENTRY_OVERHEAD;
+		this.cache = new PageCache(lib, channel, pageSize, cachePages);
+	}
+
+	/**
+	 * @return The largest total size of a key and its value. Bounded so that every
+	 *         page holds at least four entries.
+	 */
+	public int maxEntrySize() {
+		return maxEntrySize;
+	}
+
+	public int pageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return The number of entries
+	 */
+	public synchronized long size() {
+		return entries;
+	}
+
+	/**
+	 * @param leaves How many leaves {@link BTreeCursor cursors} read ahead. The default
+	 *        is {@value #DEFAULT_SCAN_PREFETCH}; 0 turns reading ahead off.
+	 */
+	public synchronized void setScanPrefetch(int leaves) {
+		if (leaves < 0) {
+			throw new IllegalArgumentException("prefetch distance must not be negative, got " + leaves);
+		}
+		this.scanPrefetch = leaves;
+	}
+
+	/**
+	 * @return The number of page lookups served by the cache
+	 */
+	public long cacheHits() {
+		return cache.hits();
+	}
+
+	/**
+	 * @return The number of page lookups which had to read the page themselves, rather
+	 *         than finding it cached or already being read ahead
+	 */
+	public long cacheMisses() {
+		return cache.misses();
+	}
+
+	/**
+	 * @return The I/O counters of the tree's file
+	 */
+	public IoStats getStats() {
+		return channel.getStats();
+	}
+
+	/**
+	 * @return A copy of the value of <tt>key</tt>, or <tt>null</tt> if there is none
+	 */
+	public synchronized byte[] get(byte[] key) throws IOException {
+		ensureOpen();
+		final Node leaf = pathNodes[descend(key)];
+		final int i = leaf.search(key);
+		final byte[] value = i >= 0 ? leaf.values[i].clone() : null;
+		cache.trim();
+		return value;
+	}
+
+	/**
+	 * Sets the value of <tt>key</tt>. Both arrays are copied.
+	 *
+	 * @return The previous value of <tt>key</tt>, or <tt>null</tt> if there was none
+	 *
+	 * @throws IllegalArgumentException If the key and value together are larger than
+	 *         {@link #maxEntrySize()}
+	 */
+	public synchronized byte[] put(byte[] key, byte[] value) throws IOException {
+		ensureOpen();
+		checkEntry(key, value);
+		final int level = descend(key);
+		final Node leaf = pathNodes[level];
+		final int i = leaf.search(key);
+		byte[] previous = null;
+		if (i >= 0) {
+			previous = leaf.values[i];
+			leaf.setValue(i, value.clone());
+		} else {
+			leaf.insertEntry(-(i + 1), key.clone(), value.clone());
+			entries++;
+		}
+		leaf.dirty = true;
+		modCount++;
+		split(level);
+		cache.trim();
+		return previous;
+	}
+
+	/**
+	 * @return <tt>true</tt> if there was an entry for <tt>key</tt>
+	 */
+	public synchronized boolean remove(byte[] key) throws IOException {
+		ensureOpen();
+		int level = descend(key);
+		final Node leaf = pathNodes[level];
+		final int i = leaf.search(key);
+		if (i < 0) {
+			cache.trim();
+			return false;
+		}
+		leaf.removeEntry(i);
+		leaf.dirty = true;
+		entries--;
+		modCount++;
+		if (leaf.count == 0) {
+			// unlink the empty leaf, and any parents left without children
+			while (level > 0) {
+				free(pathIds[level]);
+				final Node parent = pathNodes[level - 1];
+				if (parent.count > 0) {
+					parent.removeChild(pathIndexes[level - 1]);
+					parent.dirty = true;
+					break;
+				}
+				level--;
+			}
+			if (level == 0 && height > 1) {
+				// can't happen while the root keeps at least two children, but just in case
+				free(root);
+				root = allocate(Node.leaf());
+				height = 1;
+			}
+		}
+		// a root with a single child is a wasted level
+		while (height > 1) {
+			final Node r = cache.get(root);
+			if (r.count > 0) {
+				break;
+			}
+			free(root);
+			root = r.children[0];
+			height--;
+		}
+		cache.trim();
+		return true;
+	}
+
+	/**
+	 * Returns a cursor over the entries with keys in <tt>[from, to)</tt>. The cursor is
+	 * invalidated by any change to the tree.
+	 *
+	 * @param from The first key, or <tt>null</tt> to start at the smallest key
+	 *
+	 * @param to The key to stop at, or <tt>null</tt> to go on to the largest key
+	 */
+	public BTreeCursor scan(byte[] from, byte[] to) {
+		return new BTreeCursor(this, from == null ? null : from.clone(), to == null ? null : to.clone());
+	}
+
+	/**
+	 * Fills an empty tree with entries in strictly increasing key order, much faster
+	 * than putting them one by one: the tree is built bottom up, and every page is
+	 * written once, in page order, when it is evicted from the cache. If loading
+	 * fails, the tree stays empty.
+	 *
+	 * @param sorted The entries
+	 *
+	 * @param fill How full to make each page, between 0 (exclusive) and 1. Leaving room
+	 *        makes later insertions cheaper.
+	 *
+	 * @throws IllegalStateException If the tree is not empty
+	 *
+	 * @throws IllegalArgumentException If the keys are not strictly increasing, or an
+	 *         entry is larger than {@link #maxEntrySize()}
+	 */
+	public synchronized void bulkLoad(Iterator<? extends Map.Entry<byte[], byte[]>> sorted, float fill)
+			throws IOException {
+		ensureOpen();
+		if (!(fill > 0 && fill <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1], got " + fill);
+		}
+		if (entries != 0) {
+			throw new IllegalStateException("can only bulk load an empty tree, this one has " + entries + " entries");
+		}
+		modCount++;
+		final long start = pageCount;
+		boolean loaded = false;
+		try {
+			final BulkLoader loader = new BulkLoader(Math.max(Node.HEADER_SIZE + 8, (int) (pageSize * fill)));
+			while (sorted.hasNext()) {
+				final Map.Entry<byte[], byte[]> e = sorted.next();
+				loader.add(e.getKey(), e.getValue());
+			}
+			if (loader.count > 0) {
+				final long oldRoot = root;
+				loader.finish();
+				entries = loader.count;
+				free(oldRoot);
+			}
+			loaded = true;
+		} finally {
+			if (!loaded) {
+				cache.discardFrom(start);
+				pageCount = start;
+			}
+		}
+		cache.trim();
+	}
+
+	// builds the tree bottom up, keeping one unfinished node per level
+	private final class BulkLoader {
+		final int limit;
+		// the node being filled at each level above the leaves, and the separator which
+		// goes before it in its parent (null for the first node of a level)
+		final List<Node> levels = new ArrayList<Node>();
+		final List<byte[]> separators = new ArrayList<byte[]>();
+		Node leaf = Node.leaf();
+		byte[] leafSeparator;
+		long count;
+
+		BulkLoader(int limit) {
+			this.limit = limit;
+		}
+
+		void add(byte[] key, byte[] value) throws IOException {
+			checkEntry(key, value);
+			if (leaf.count > 0) {
+				final byte[] last = leaf.keys[leaf.count - 1];
+				if (compare(last, key) >= 0) {
+					throw new IllegalArgumentException("keys must be strictly increasing, got "
+							+ Arrays.toString(key) + " after " + Arrays.toString(last));
+				}
+				if (leaf.bytes() + Node.LEAF_ENTRY_OVERHEAD + key.length + value.length > limit) {
+					final byte[] separator = separator(last, key);
+					finishLeaf();
+					leaf = Node.leaf();
+					leafSeparator = separator;
+				}
+			}
+			leaf.insertEntry(leaf.count, key.clone(), value.clone());
+			count++;
+		}
+
+		private void finishLeaf() throws IOException {
+			final long id = pageCount++;
+			cache.put(id, leaf);
+			addChild(0, leafSeparator, id);
+			cache.trim();
+		}
+
+		private void addChild(int level, byte[] separator, long child) {
+			if (level == levels.size()) {
+				levels.add(Node.inner(child));
+				separators.add(separator);
+				return;
+			}
+			final Node n = levels.get(level);
+			if (n.count > 0 && n.bytes() + Node.INNER_ENTRY_OVERHEAD + separator.length > limit) {
+				final long id = pageCount++;
+				cache.put(id, n);
+				addChild(level + 1, separators.get(level), id);
+				levels.set(level, Node.inner(child));
+				separators.set(level, separator);
+			} else {
+				n.insertChild(n.count, separator, child);
+			}
+		}
+
+		void finish() throws IOException {
+			finishLeaf();
+			for (int level = 0; ; level++) {
+				final Node n = levels.get(level);
+				if (level + 1 < levels.size()) {
+					final long id = pageCount++;
+					cache.put(id, n);
+					addChild(level + 1, separators.get(level), id);
+				} else if (n.count == 0) {
+					// a single child needs no node above it
+					root = n.children[0];
+					height = level + 1;
+					return;
+				} else {
+					root = pageCount++;
+					cache.put(root, n);
+					height = level + 2;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes every dirty page and the header, and makes them durable.
+	 */
+	public synchronized void flush() throws IOException {
+		ensureOpen();
+		cache.flush();
+		final byte[] meta = new byte[pageSize];
+		final ByteBuffer b = ByteBuffer.wrap(meta);
+		b.putLong(MAGIC).putInt(VERSION).putInt(pageSize);
+		b.putLong(root).putInt(height).putInt(0);
+		b.putLong(pageCount).putLong(freeHead).putLong(entries);
+		final CRC32 crc = new CRC32();
+		crc.update(meta, 0, META_SIZE - 4);
+		b.putInt((int) crc.getValue());
+		cache.writeRaw(0, meta);
+		if (channel.size() > pageCount * pageSize) {
+			// pages written by a failed bulk load
+			channel.truncate(pageCount * pageSize);
+		}
+		channel.force(true);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			try {
+				cache.close();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void checkEntry(byte[] key, byte[] value) {
+		if (key.length + value.length > maxEntrySize) {
+			throw new IllegalArgumentException("entry of " + (key.length + value.length)
+					+ " bytes is larger than the maximum of " + maxEntrySize);
+		}
+	}
+
+	/**
+	 * Walks from the root down to the leaf which covers <tt>key</tt>, recording the
+	 * path in <tt>pathIds</tt>, <tt>pathNodes</tt> and <tt>pathIndexes</tt>.
+	 *
+	 * @return The level of the leaf, i.e. the height minus one
+	 */
+	private int descend(byte[] key) throws IOException {
+		if (pathIds.length < height) {
+			pathIds = new long[height];
+			pathNodes = new Node[height];
+			pathIndexes = new int[height];
+		}
+		long id = root;
+		for (int level = 0; level < height; level++) {
+			final Node n = cache.get(id);
+			pathIds[level] = id;
+			pathNodes[level] = n;
+			if (level == height - 1) {
+				if (!n.isLeaf()) {
+					throw new IOException("page " + id + " should be a leaf");
+				}
+				return level;
+			} else if (n.type != Node.INNER) {
+				throw new IOException("page " + id + " should be an inner node");
+			}
+			pathIndexes[level] = n.childIndex(key);
+			id = n.children[pathIndexes[level]];
+		}
+		throw new IOException("tree has no levels");
+	}
+
+	/**
+	 * Splits the node at <tt>level</tt> of the last path if it overflows its page, and
+	 * its parents as long as they overflow in turn.
+	 */
+	private void split(int level) throws IOException {
+		while (pathNodes[level].bytes() > pageSize) {
+			final Node n = pathNodes[level];
+			final int at = n.splitPoint();
+			final byte[] separator;
+			final Node right;
+			if (n.isLeaf()) {
+				right = n.splitLeaf(at);
+				separator = separator(n.keys[n.count - 1], right.keys[0]);
+			} else {
+				separator = n.keys[at];
+				right = n.splitInner(at);
+			}
+			n.dirty = true;
+			final long rightId = allocate(right);
+			if (level == 0) {
+				final Node newRoot = Node.inner(pathIds[0]);
+				newRoot.insertChild(0, separator, rightId);
+				root = allocate(newRoot);
+				height++;
+				return;
+			}
+			final Node parent = pathNodes[level - 1];
+			parent.insertChild(pathIndexes[level - 1], separator, rightId);
+			parent.dirty = true;
+			level--;
+		}
+	}
+
+	private long allocate(Node n) throws IOException {
+		final long id;
+		if (freeHead != 0) {
+			id = freeHead;
+			final Node free = cache.get(id);
+			if (free.type != Node.FREE) {
+				throw new IOException("page " + id + " on the free list is in use");
+			}
+			freeHead = free.children[0];
+		} else {
+			id = pageCount++;
+		}
+		cache.put(id, n);
+		return id;
+	}
+
+	private void free(long id) {
+		cache.put(id, Node.free(freeHead));
+		freeHead = id;
+	}
+
+	// -- for cursors, which hold the tree's lock
+
+	long root() {
+		return root;
+	}
+
+	int height() {
+		return height;
+	}
+
+	int modCount() {
+		return modCount;
+	}
+
+	int scanPrefetch() {
+		return scanPrefetch;
+	}
+
+	Node node(long id) throws IOException {
+		ensureOpen();
+		return cache.get(id);
+	}
+
+	void prefetch(long[] ids, int offset, int length) {
+		cache.prefetch(ids, offset, length);
+	}
+
+	void trimCache() throws IOException {
+		cache.trim();
+	}
+
+	/**
+	 * @return The shortest key which is larger than <tt>left</tt> and no larger than
+	 *         <tt>right</tt>, given that <tt>left</tt> is smaller than <tt>right</tt>
+	 */
+	static byte[] separator(byte[] left, byte[] right) {
+		int n = 0;
+		while (n < left.length && left[n] == right[n]) {
+			n++;
+		}
+		return Arrays.copyOf(right, n + 1);
+	}
+
+	/**
+	 * Compares keys as unsigned bytes, lexicographically; a proper prefix comes first.
+	 */
+	static int compare(byte[] a, byte[] b) {
+		final int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			final int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.btree;
+
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Walks the entries of a {@link BTree} in key order, from a start key up to an end
+ * key. </p>
+ *
+ * <p> The cursor keeps the path from the root to its current leaf, rather than
+ * following links between leaves, so that it knows which leaves come next: whenever
+ * it moves to a leaf, the next {@link BTree#setScanPrefetch(int) few} leaves under the
+ * same parent are read in the background, and a long scan rarely waits for a read.
+ * Any change to the tree invalidates the cursor. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class BTreeCursor {
+
+	private final BTree tree;
+	private final byte[] from;
+	private final byte[] to;
+	private final int expectedModCount;
+
+	// the inner nodes above the current leaf, from the root down, and the child taken in each
+	private Node[] parents;
+	private int[] indexes;
+	private Node leaf;
+	private int position;
+	private boolean done;
+
+	private byte[] key;
+	private byte[] value;
+
+	BTreeCursor(BTree tree, byte[] from, byte[] to) {
+		this.tree = tree;
+		this.from = from;
+		this.to = to;
+		synchronized (tree) {
+			this.expectedModCount = tree.modCount();
+		}
+	}
+
+	/**
+	 * Moves to the next entry.
+	 *
+	 * @return <tt>false</tt> if there are no more entries in the range
+	 *
+	 * @throws ConcurrentModificationException If the tree has changed since the cursor
+	 *         was created
+	 */
+	public boolean next() throws IOException {
+		synchronized (tree) {
+			if (tree.modCount() != expectedModCount) {
+				throw new ConcurrentModificationException("tree changed during the scan");
+			}
+			if (done) {
+				return false;
+			}
+			if (leaf == null) {
+				seek();
+			}
+			while (position == leaf.count) {
+				if (!nextLeaf()) {
+					return finish();
+				}
+			}
+			if (to != null && BTree.compare(leaf.keys[position], to) >= 0) {
+				return finish();
+			}
+			key = leaf.keys[position].clone();
+			value = leaf.values[position].clone();
+			position++;
+			return true;
+		}
+	}
+
+	/**
+	 * @return The key of the current entry, or <tt>null</tt> if {@link #next()} hasn't
+	 *         returned <tt>true</tt>
+	 */
+	public byte[] key() {
+		return key;
+	}
+
+	/**
+	 * @return The value of the current entry, or <tt>null</tt> if {@link #next()}
+	 *         hasn't returned <tt>true</tt>
+	 */
+	public byte[] value() {
+		return value;
+	}
+
+	private boolean finish() {
+		done = true;
+		key = null;
+		value = null;
+		leaf = null;
+		parents = null;
+		return false;
+	}
+
+	private void seek() throws IOException {
+		final int depth = tree.height() - 1;
+		parents = new Node[depth];
+		indexes = new int[depth];
+		long id = tree.root();
+		for (int level = 0; level < depth; level++) {
+			final Node n = tree.node(id);
+			parents[level] = n;
+			indexes[level] = from == null ? 0 : n.childIndex(from);
+			id = n.children[indexes[level]];
+		}
+		leaf = tree.node(id);
+		if (from != null) {
+			final int i = leaf.search(from);
+			position = i >= 0 ? i : -(i + 1);
+		}
+		prefetchSiblings();
+	}
+
+	// moves to the first entry of the next leaf; false if there is none
+	private boolean nextLeaf() throws IOException {
+		int level = parents.length - 1;
+		while (level >= 0 && indexes[level] == parents[level].count) {
+			level--;
+		}
+		if (level < 0) {
+			return false;
+		}
+		indexes[level]++;
+		long id = parents[level].children[indexes[level]];
+		for (level++; level < parents.length; level++) {
+			final Node n = tree.node(id);
+			parents[level] = n;
+			indexes[level] = 0;
+			id = n.children[0];
+		}
+		leaf = tree.node(id);
+		position = 0;
+		prefetchSiblings();
+		tree.trimCache();
+		return true;
+	}
+
+	private void prefetchSiblings() {
+		if (parents.length == 0) {
+			return;
+		}
+		// consecutive pages are read together, which is usually the case after a bulk load
+		final Node parent = parents[parents.length - 1];
+		final int index = indexes[parents.length - 1];
+		final int last = Math.min(parent.count, index + tree.scanPrefetch());
+		if (last > index) {
+			tree.prefetch(parent.children, index + 1, last - index);
+		}
+	}
+}
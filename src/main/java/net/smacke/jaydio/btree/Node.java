@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The decoded contents of one {@link BTree} page: a leaf, an inner node or a page on
+ * the free list. </p>
+ *
+ * <p> Every page starts with an 8 byte header: the page type, three unused bytes, and
+ * the number of entries as a big-endian int. A leaf then holds its entries as key
+ * length, value length (ints), key and value. An inner node holds its first child,
+ * then for every key the key length, the key and the child to the right of the key;
+ * <tt>keys[i]</tt> is larger than every key under <tt>children[i]</tt>, and no larger
+ * than any key under <tt>children[i + 1]</tt>. A free page holds the next free page. </p>
+ *
+ * <p> {@link #bytes()} always gives the encoded size, so that overflowing a page is
+ * noticed as soon as it happens. </p>
+ *
+ * @author smacke
+ *
+ */
+final class Node {
+
+	static final byte LEAF = 1;
+	static final byte INNER = 2;
+	static final byte FREE = 3;
+
+	static final int HEADER_SIZE = 8;
+	static final int LEAF_ENTRY_OVERHEAD = 8;
+	static final int INNER_ENTRY_OVERHEAD = 12;
+
+	private static final byte[][] NO_KEYS = new byte[0][];
+
+	final byte type;
+	int count;
+	byte[][] keys;
+	// leaves only
+	byte[][] values;
+	// inner nodes: count + 1 children; free pages: the next free page
+	long[] children;
+	private int bytes;
+
+	// set whenever the node differs from its page on disk
+	boolean dirty;
+
+	private Node(byte type, int capacity) {
+		this.type = type;
+		this.keys = capacity == 0 ? NO_KEYS : new byte[capacity][];
+		switch (type) {
+		case LEAF:
+			this.values = capacity == 0 ? NO_KEYS : new byte[capacity][];
+			this.bytes = HEADER_SIZE;
+			break;
+		case INNER:
+			this.children = new long[capacity + 1];
+			this.bytes = HEADER_SIZE + 8;
+			break;
+		default:
+			this.children = new long[1];
+			this.bytes = HEADER_SIZE + 8;
+		}
+	}
+
+	static Node leaf() {
+		return new Node(LEAF, 8);
+	}
+
+	/**
+	 * @param child The leftmost child
+	 */
+	static Node inner(long child) {
+		final Node n = new Node(INNER, 8);
+		n.children[0] = child;
+		return n;
+	}
+
+	/**
+	 * @param next The next page on the free list, or 0 for none
+	 */
+	static Node free(long next) {
+		final Node n = new Node(FREE, 0);
+		n.children[0] = next;
+		return n;
+	}
+
+	boolean isLeaf() {
+		return type == LEAF;
+	}
+
+	/**
+	 * @return The size of this node when encoded
+	 */
+	int bytes() {
+		return bytes;
+	}
+
+	private void ensureCapacity() {
+		if (count == keys.length) {
+			final int capacity = Math.max(8, count * 2);
+			keys = Arrays.copyOf(keys, capacity);
+			if (type == LEAF) {
+				values = Arrays.copyOf(values, capacity);
+			} else {
+				children = Arrays.copyOf(children, capacity + 1);
+			}
+		}
+	}
+
+	/**
+	 * @return The index of <tt>key</tt> if it is in this node, otherwise
+	 *         <tt>-(insertion point) - 1</tt>, like {@link Arrays#binarySearch(Object[], Object)}
+	 */
+	int search(byte[] key) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int cmp = BTree.compare(keys[mid], key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	/**
+	 * @return The index of the child of this inner node which covers <tt>key</tt>
+	 */
+	int childIndex(byte[] key) {
+		final int i = search(key);
+		// a key equal to a separator belongs to the right of it
+		return i >= 0 ? i + 1 : -(i + 1);
+	}
+
+	void insertEntry(int index, byte[] key, byte[] value) {
+		ensureCapacity();
+		System.arraycopy(keys, index, keys, index + 1, count - index);
+		System.arraycopy(values, index, values, index + 1, count - index);
+		keys[index] = key;
+		values[index] = value;
+		count++;
+		bytes += LEAF_ENTRY_OVERHEAD + key.length + value.length;
+	}
+
+	void setValue(int index, byte[] value) {
+		bytes += value.length - values[index].length;
+		values[index] = value;
+	}
+
+	void removeEntry(int index) {
+		bytes -= LEAF_ENTRY_OVERHEAD + keys[index].length + values[index].length;
+		count--;
+		System.arraycopy(keys, index + 1, keys, index, count - index);
+		System.arraycopy(values, index + 1, values, index, count - index);
+		keys[count] = null;
+		values[count] = null;
+	}
+
+	/**
+	 * Inserts <tt>key</tt> at <tt>index</tt> into this inner node, with
+	 * <tt>child</tt> right after it.
+	 */
+	void insertChild(int index, byte[] key, long child) {
+		ensureCapacity();
+		System.arraycopy(keys, index, keys, index + 1, count - index);
+		System.arraycopy(children, index + 1, children, index + 2, count - index);
+		keys[index] = key;
+		children[index + 1] = child;
+		count++;
+		bytes += INNER_ENTRY_OVERHEAD + key.length;
+	}
+
+	/**
+	 * Removes child <tt>index</tt> from this inner node, together with the key on its
+	 * left, or for the first child, the key on its right. A node with a single child
+	 * gets freed instead.
+	 */
+	void removeChild(int index) {
+		assert count > 0 : "removing the only child";
+		final int key = index == 0 ? 0 : index - 1;
+		bytes -= INNER_ENTRY_OVERHEAD + keys[key].length;
+		count--;
+		System.arraycopy(keys, key + 1, keys, key, count - key);
+		System.arraycopy(children, index + 1, children, index, count + 1 - index);
+		keys[count] = null;
+	}
+
+	/**
+	 * Moves the entries from <tt>from</tt> on into a new leaf.
+	 */
+	Node splitLeaf(int from) {
+		final Node right = new Node(LEAF, Math.max(8, count - from));
+		for (int i = from; i < count; i++) {
+			right.insertEntry(i - from, keys[i], values[i]);
+			bytes -= LEAF_ENTRY_OVERHEAD + keys[i].length + values[i].length;
+			keys[i] = null;
+			values[i] = null;
+		}
+		count = from;
+		return right;
+	}
+
+	/**
+	 * Moves the keys after <tt>middle</tt> and the children right of it into a new
+	 * inner node. The key at <tt>middle</tt> is dropped; the caller moves it up.
+	 */
+	Node splitInner(int middle) {
+		final Node right = inner(children[middle + 1]);
+		for (int i = middle + 1; i < count; i++) {
+			right.insertChild(i - middle - 1, keys[i], children[i + 1]);
+		}
+		for (int i = middle; i < count; i++) {
+			bytes -= INNER_ENTRY_OVERHEAD + keys[i].length;
+			keys[i] = null;
+		}
+		count = middle;
+		return right;
+	}
+
+	/**
+	 * @return The index at which splitting this node leaves about half of its bytes on
+	 *         either side, and at least one key on the left
+	 */
+	int splitPoint() {
+		final int overhead = type == LEAF ? LEAF_ENTRY_OVERHEAD : INNER_ENTRY_OVERHEAD;
+		int half = (bytes - HEADER_SIZE) / 2;
+		int i = 0;
+		while (i < count - 1) {
+			half -= overhead + keys[i].length + (type == LEAF ? values[i].length : 0);
+			i++;
+			if (half <= 0) {
+				break;
+			}
+		}
+		return i;
+	}
+
+	void encode(ByteBuffer page) {
+		page.put(type).put((byte) 0).putShort((short) 0).putInt(count);
+		switch (type) {
+		case LEAF:
+			for (int i = 0; i < count; i++) {
+				page.putInt(keys[i].length).putInt(values[i].length).put(keys[i]).put(values[i]);
+			}
+			break;
+		case INNER:
+			page.putLong(children[0]);
+			for (int i = 0; i < count; i++) {
+				page.putInt(keys[i].length).put(keys[i]).putLong(children[i + 1]);
+			}
+			break;
+		default:
+			page.putLong(children[0]);
+		}
+	}
+
+	/**
+	 * @param page The page, from its start to its end
+	 *
+	 * @param id The page number, for error messages
+	 *
+	 * @throws IOException If the page doesn't hold a node
+	 */
+	static Node decode(ByteBuffer page, long id) throws IOException {
+		try {
+			final byte type = page.get();
+			page.position(page.position() + 3);
+			final int count = page.getInt();
+			if (count < 0) {
+				throw new IOException("page " + id + " claims " + count + " entries");
+			}
+			switch (type) {
+			case LEAF: {
+				final Node n = new Node(LEAF, count);
+				for (int i = 0; i < count; i++) {
+					final byte[] key = new byte[page.getInt()];
+					final byte[] value = new byte[page.getInt()];
+					page.get(key).get(value);
+					n.insertEntry(i, key, value);
+				}
+				return n;
+			}
+			case INNER: {
+				final Node n = new Node(INNER, count);
+				n.children[0] = page.getLong();
+				for (int i = 0; i < count; i++) {
+					final byte[] key = new byte[page.getInt()];
+					page.get(key);
+					n.insertChild(i, key, page.getLong());
+				}
+				return n;
+			}
+			case FREE:
+				return free(page.getLong());
+			default:
+				throw new IOException("page " + id + " has unknown type " + type);
+			}
+		} catch (RuntimeException e) {
+			// a length pointing past the end of the page, or a negative one
+			throw new IOException("page " + id + " is corrupt", e);
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+
+/**
+ * Keeps decoded {@link BTree} pages in memory, since the tree's file is opened with
+ * <tt>O_DIRECT</tt> and gets no help from the OS page cache. </p>
+ *
+ * <p> Pages are evicted in least recently used order, an eighth of the cache at a
+ * time, and dirty ones are written back sorted by page number, with one <tt>pwrite</tt>
+ * per run of consecutive pages. Pages may also be read ahead on a background thread;
+ * such a read is dropped if the page gets replaced in the meantime, so that it never
+ * overwrites a newer version. </p>
+ *
+ * <p> Except for {@link #prefetch(long) prefetched} reads, all methods must be called
+ * by one thread at a time, which the tree makes sure of. </p>
+ *
+ * @author smacke
+ *
+ */
+final class PageCache {
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	// the largest write when writing back consecutive pages
+	private static final int MAX_WRITE_SIZE = 1 << 20;
+
+	// a background read of consecutive pages, each of which only counts while loading maps it to this
+	private final class Load implements Callable<Void> {
+		final long first;
+		final int count;
+		Future<Void> result;
+
+		Load(long first, int count) {
+			this.first = first;
+			this.count = count;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			final Node[] nodes = new Node[count];
+			try {
+				prefetchBuffer.clear();
+				prefetchBuffer.limit(count * pageSize);
+				final int n = channel.read(prefetchBuffer, first * pageSize);
+				for (int i = 0; i < count && (i + 1) * pageSize <= n; i++) {
+					prefetchBuffer.get(i * pageSize, prefetchScratch, 0, pageSize);
+					nodes[i] = Node.decode(ByteBuffer.wrap(prefetchScratch), first + i);
+				}
+				return null;
+			} finally {
+				// pages which failed to load are read again, and fail, when they are needed
+				synchronized (PageCache.this) {
+					for (int i = 0; i < count; i++) {
+						final long id = first + i;
+						if (loading.get(id) == this) {
+							loading.remove(id);
+							if (nodes[i] != null && !pages.containsKey(id)) {
+								pages.put(id, nodes[i]);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private final DirectIoByteChannel channel;
+	private final int pageSize;
+	private final int capacity;
+
+	// guarded by this
+	private final LinkedHashMap<Long, Node> pages = new LinkedHashMap<Long, Node>(16, 0.75f, true);
+	private final Map<Long, Load> loading = new HashMap<Long, Load>();
+	private long hits;
+	private long misses;
+
+	private final ExecutorService prefetcher;
+	private final AlignedDirectByteBuffer readBuffer;
+	private final AlignedDirectByteBuffer writeBuffer;
+	private final byte[] scratch;
+	// only touched by the prefetch thread
+	private final AlignedDirectByteBuffer prefetchBuffer;
+	private final byte[] prefetchScratch;
+
+	/**
+	 * @param capacity The number of pages to keep in memory; at least 1
+	 */
+	PageCache(DirectIoLib lib, DirectIoByteChannel channel, int pageSize, int capacity) {
+		this.channel = channel;
+		this.pageSize = pageSize;
+		this.capacity = capacity;
+		this.readBuffer = AlignedDirectByteBuffer.allocate(lib, pageSize);
+		this.writeBuffer = AlignedDirectByteBuffer.allocate(lib, Math.max(1, MAX_WRITE_SIZE / pageSize) * pageSize);
+		this.prefetchBuffer = AlignedDirectByteBuffer.allocate(lib, writeBuffer.capacity());
+		this.scratch = new byte[pageSize];
+		this.prefetchScratch = new byte[pageSize];
+		this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jaydio-btree-prefetch-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * @return The node in page <tt>id</tt>, read from the file if necessary
+	 */
+	Node get(long id) throws IOException {
+		final Load pending;
+		synchronized (this) {
+			final Node n = pages.get(id);
+			if (n != null) {
+				hits++;
+				return n;
+			}
+			pending = loading.get(id);
+		}
+		if (pending != null) {
+			await(pending.result);
+			synchronized (this) {
+				final Node n = pages.get(id);
+				if (n != null) {
+					hits++;
+					return n;
+				}
+			}
+		}
+		final Node n = read(id, readBuffer, scratch);
+		synchronized (this) {
+			misses++;
+			loading.remove(id);
+			pages.put(id, n);
+		}
+		return n;
+	}
+
+	// waits for a background read, whose failure doesn't matter to anyone but the reader
+	private static void await(Future<Void> f) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				f.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Starts reading the pages <tt>ids[offset, offset + length)</tt> in the background,
+	 * except those which are cached already, with one read per run of consecutive pages.
+	 * The pages must have been written to the file before.
+	 */
+	synchronized void prefetch(long[] ids, int offset, int length) {
+		final int maxPages = prefetchBuffer.capacity() / pageSize;
+		final int end = offset + length;
+		for (int i = offset; i < end; ) {
+			final long first = ids[i];
+			if (pages.containsKey(first) || loading.containsKey(first)) {
+				i++;
+				continue;
+			}
+			int n = 1;
+			while (i + n < end && n < maxPages && ids[i + n] == first + n
+					&& !pages.containsKey(first + n) && !loading.containsKey(first + n)) {
+				n++;
+			}
+			final Load load = new Load(first, n);
+			for (int j = 0; j < n; j++) {
+				loading.put(first + j, load);
+			}
+			load.result = prefetcher.submit(load);
+			i += n;
+		}
+	}
+
+	/**
+	 * Caches <tt>node</tt> as the new, dirty contents of page <tt>id</tt>.
+	 */
+	synchronized void put(long id, Node node) {
+		node.dirty = true;
+		loading.remove(id);
+		pages.put(id, node);
+	}
+
+	/**
+	 * Drops every page from <tt>first</tt> on without writing it.
+	 */
+	synchronized void discardFrom(long first) {
+		for (Iterator<Long> i = pages.keySet().iterator(); i.hasNext(); ) {
+			if (i.next() >= first) {
+				i.remove();
+			}
+		}
+		for (Iterator<Long> i = loading.keySet().iterator(); i.hasNext(); ) {
+			if (i.next() >= first) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Evicts the least recently used pages if the cache is over capacity.
+	 */
+	void trim() throws IOException {
+		final Map<Long, Node> victims = new HashMap<Long, Node>();
+		synchronized (this) {
+			if (pages.size() <= capacity) {
+				return;
+			}
+			final int n = pages.size() - capacity + capacity / 8;
+			final Iterator<Map.Entry<Long, Node>> i = pages.entrySet().iterator();
+			while (victims.size() < n) {
+				final Map.Entry<Long, Node> e = i.next();
+				victims.put(e.getKey(), e.getValue());
+			}
+		}
+		// written before being removed, so that a failed write loses nothing
+		writeBack(victims);
+		synchronized (this) {
+			pages.keySet().removeAll(victims.keySet());
+		}
+	}
+
+	/**
+	 * Writes every dirty page.
+	 */
+	void flush() throws IOException {
+		final Map<Long, Node> dirty = new HashMap<Long, Node>();
+		synchronized (this) {
+			for (Map.Entry<Long, Node> e : pages.entrySet()) {
+				if (e.getValue().dirty) {
+					dirty.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+		writeBack(dirty);
+	}
+
+	private void writeBack(Map<Long, Node> nodes) throws IOException {
+		final List<Long> ids = new ArrayList<Long>();
+		for (Map.Entry<Long, Node> e : nodes.entrySet()) {
+			if (e.getValue().dirty) {
+				ids.add(e.getKey());
+			}
+		}
+		Collections.sort(ids);
+		final int maxPages = writeBuffer.capacity() / pageSize;
+		final ByteBuffer page = ByteBuffer.wrap(scratch);
+		for (int i = 0; i < ids.size(); ) {
+			final long first = ids.get(i);
+			int n = 0;
+			writeBuffer.clear();
+			while (i < ids.size() && n < maxPages && ids.get(i) == first + n) {
+				final Node node = nodes.get(ids.get(i));
+				assert node.bytes() <= pageSize : "page " + ids.get(i) + " overflows";
+				Arrays.fill(scratch, (byte) 0);
+				page.clear();
+				node.encode(page);
+				writeBuffer.put(n * pageSize, scratch, 0, pageSize);
+				i++;
+				n++;
+			}
+			writeBuffer.limit(n * pageSize);
+			channel.write(writeBuffer, first * pageSize);
+			for (int j = i - n; j < i; j++) {
+				nodes.get(ids.get(j)).dirty = false;
+			}
+		}
+	}
+
+	private Node read(long id, AlignedDirectByteBuffer buffer, byte[] dst) throws IOException {
+		buffer.clear();
+		buffer.limit(pageSize);
+		if (channel.read(buffer, id * pageSize) < pageSize) {
+			throw new IOException("page " + id + " is past the end of the file");
+		}
+		buffer.get(0, dst, 0, pageSize);
+		return Node.decode(ByteBuffer.wrap(dst), id);
+	}
+
+	/**
+	 * Reads page <tt>id</tt> without decoding or caching it.
+	 */
+	byte[] readRaw(long id) throws IOException {
+		readBuffer.clear();
+		readBuffer.limit(pageSize);
+		if (channel.read(readBuffer, id * pageSize) < pageSize) {
+			throw new IOException("page " + id + " is past the end of the file");
+		}
+		final byte[] page = new byte[pageSize];
+		readBuffer.get(0, page, 0, pageSize);
+		return page;
+	}
+
+	/**
+	 * Writes page <tt>id</tt>, which must not be cached, straight to the file.
+	 */
+	void writeRaw(long id, byte[] page) throws IOException {
+		writeBuffer.clear();
+		writeBuffer.put(0, page, 0, pageSize);
+		writeBuffer.limit(pageSize);
+		channel.write(writeBuffer, id * pageSize);
+	}
+
+	/**
+	 * Waits for background reads and frees the buffers. Dirty pages are not written.
+	 */
+	void close() {
+		prefetcher.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (prefetcher.awaitTermination(1, TimeUnit.MINUTES)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				// the reads use prefetchBuffer, which we are about to free
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		readBuffer.close();
+		writeBuffer.close();
+		prefetchBuffer.close();
+	}
+}
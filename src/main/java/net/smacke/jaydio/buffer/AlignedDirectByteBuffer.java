@@ -85,6 +85,14 @@ public final class AlignedDirectByteBuffer extends AbstractBuffer implements Jay
         return this;
     }
 
+    @Override
+    public AlignedDirectByteBuffer get(int index, byte[] dst, int offset, int length) {
+        checkWithinBounds(offset, length, dst.length);
+        checkWithinBounds(index, length, limit);
+        pointer.read(index, dst, offset, length);
+        return this;
+    }
+
     @Override
     public AlignedDirectByteBuffer get(byte[] dst) {
         return get(dst, 0, dst.length);
@@ -111,6 +119,14 @@ public final class AlignedDirectByteBuffer extends AbstractBuffer implements Jay
         return this;
     }
 
+    @Override
+    public AlignedDirectByteBuffer put(int index, byte[] src, int offset, int length) {
+        checkWithinBounds(offset, length, src.length);
+        checkWithinBounds(index, length, limit);
+        pointer.write(index, src, offset, length);
+        return this;
+    }
+
     @Override
     public AlignedDirectByteBuffer put(byte[] src) {
         return this.put(src, 0, src.length);
@@ -153,6 +169,11 @@ public final class AlignedDirectByteBuffer extends AbstractBuffer implements Jay
         return copy;
     }
 
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return pointer.getByteBuffer(0, capacity);
+    }
+
     /**
      * @return A view of the native memory which backs this buffer
      */
@@ -56,6 +56,14 @@ public class JavaHeapByteBuffer extends AbstractBuffer implements JaydioByteBuff
         return this;
     }
 
+    @Override
+    public JavaHeapByteBuffer put(int index, byte[] src, int offset, int length) {
+        checkWithinBounds(offset, length, src.length);
+        checkWithinBounds(index, length, limit);
+        System.arraycopy(src, offset, backing, index, length);
+        return this;
+    }
+
 	@Override
 	public JavaHeapByteBuffer put(ByteBuffer src) {
     	final int length = Math.min(this.remaining(), src.remaining());
@@ -86,6 +94,14 @@ public class JavaHeapByteBuffer extends AbstractBuffer implements JaydioByteBuff
         return this;
     }
 
+    @Override
+    public JavaHeapByteBuffer get(int index, byte[] dst, int offset, int length) {
+        checkWithinBounds(offset, length, dst.length);
+        checkWithinBounds(index, length, limit);
+        System.arraycopy(backing, index, dst, offset, length);
+        return this;
+    }
+
 	@Override
 	public JavaHeapByteBuffer get(ByteBuffer dst) {
     	final int length = Math.min(this.remaining(), dst.remaining());
@@ -99,6 +115,11 @@ public class JavaHeapByteBuffer extends AbstractBuffer implements JaydioByteBuff
         return this.get(dst, 0, dst.length);
     }
 
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(backing, 0, capacity);
+    }
+
     @Override
     public JavaHeapByteBuffer copy() {
         JavaHeapByteBuffer copy = new JavaHeapByteBuffer(position, limit, capacity);
@@ -47,6 +47,27 @@ public interface JaydioByteBuffer extends Buffer {
     public JaydioByteBuffer get(java.nio.ByteBuffer dst);
 
 
+    /**
+     * Absolute bulk get. Copies <tt>length</tt> bytes starting at <tt>index</tt> into
+     * <tt>dst</tt>, without looking at or changing this buffer's position. Since no
+     * buffer state changes, concurrent absolute gets are safe.
+     * 
+     * @param index The index in this buffer of the first byte to read
+     * 
+     * @param dst The array into which to read
+     * 
+     * @param offset The offset within <tt>dst</tt> of the first byte to write
+     * 
+     * @param length The number of bytes to read
+     * 
+     * @return This buffer
+     * 
+     * @throws IndexOutOfBoundsException If the range is outside of <tt>dst</tt>, or
+     *         outside of this buffer's limit
+     */
+    public JaydioByteBuffer get(int index, byte[] dst, int offset, int length);
+
+
     /**
      * @see java.nio.ByteBuffer#put(byte)
      */
@@ -63,6 +84,26 @@ public interface JaydioByteBuffer extends Buffer {
      * @see java.nio.ByteBuffer#put(byte[], int, int)
      */
     public JaydioByteBuffer put(byte[] src, int offset, int length);
+
+
+    /**
+     * Absolute bulk put. Copies <tt>length</tt> bytes from <tt>src</tt> into this buffer
+     * starting at <tt>index</tt>, without looking at or changing this buffer's position.
+     * 
+     * @param index The index in this buffer of the first byte to write
+     * 
+     * @param src The array from which to write
+     * 
+     * @param offset The offset within <tt>src</tt> of the first byte to read
+     * 
+     * @param length The number of bytes to write
+     * 
+     * @return This buffer
+     * 
+     * @throws IndexOutOfBoundsException If the range is outside of <tt>src</tt>, or
+     *         outside of this buffer's limit
+     */
+    public JaydioByteBuffer put(int index, byte[] src, int offset, int length);
     
     
     /**
@@ -76,6 +117,17 @@ public interface JaydioByteBuffer extends Buffer {
     public JaydioByteBuffer put(java.nio.ByteBuffer src);
     
     
+    /**
+     * Returns a {@link java.nio.ByteBuffer} sharing this buffer's content from index 0
+     * up to its capacity, so that bulk views like {@link java.nio.ByteBuffer#asIntBuffer()}
+     * can be used on it without copying. The view has its own position, limit and byte
+     * order, and must not be used after this buffer is closed.
+     * 
+     * @return A new view of this buffer's content
+     */
+    public java.nio.ByteBuffer asByteBuffer();
+    
+    
     // override return type
     @Override
     public JaydioByteBuffer copy();
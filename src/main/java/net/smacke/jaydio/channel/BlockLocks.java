@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks over the blocks of a file. Block <tt>b</tt> is guarded by
+ * stripe <tt>b % stripes</tt>, and a range of blocks takes its stripes in ascending order,
+ * so that any two threads locking overlapping ranges can never deadlock. Ranges covering
+ * at least as many blocks as there are stripes simply take all of them. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class BlockLocks {
+
+	private final int blockSize;
+	private final ReentrantReadWriteLock[] stripes;
+
+	/**
+	 * @param blockSize The size of the blocks being locked
+	 * @param stripes The number of locks shared among all blocks
+	 */
+	public BlockLocks(int blockSize, int stripes) {
+		if (blockSize <= 0 || stripes <= 0) {
+			throw new IllegalArgumentException("blockSize and stripes must be positive");
+		}
+		this.blockSize = blockSize;
+		this.stripes = new ReentrantReadWriteLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Locks the stripes of all blocks overlapping [from, to).
+	 *
+	 * @param write Whether to take the write locks rather than the read locks
+	 */
+	public void lock(long from, long to, boolean write) {
+		final long first = from / blockSize;
+		final int count = count(first, to);
+		final int start = (int) (first % stripes.length);
+		final int end = Math.min(start + count, stripes.length);
+		// the stripes past the end of the array wrap around to the lowest ones
+		for (int i = 0; i < start + count - stripes.length; i++) {
+			stripe(i, write).lock();
+		}
+		for (int i = start; i < end; i++) {
+			stripe(i, write).lock();
+		}
+	}
+
+	/**
+	 * Unlocks what {@link #lock(long, long, boolean)} locked for the same arguments.
+	 */
+	public void unlock(long from, long to, boolean write) {
+		final long first = from / blockSize;
+		final int count = count(first, to);
+		final int start = (int) (first % stripes.length);
+		final int end = Math.min(start + count, stripes.length);
+		for (int i = end - 1; i >= start; i--) {
+			stripe(i, write).unlock();
+		}
+		for (int i = start + count - stripes.length - 1; i >= 0; i--) {
+			stripe(i, write).unlock();
+		}
+	}
+
+	/**
+	 * Write locks every stripe, and so every block of the file.
+	 */
+	public void lockAll() {
+		lock(0, (long) stripes.length * blockSize, true);
+	}
+
+	/**
+	 * Unlocks what {@link #lockAll()} locked.
+	 */
+	public void unlockAll() {
+		unlock(0, (long) stripes.length * blockSize, true);
+	}
+
+	private int count(long first, long to) {
+		final long last = (to + blockSize - 1) / blockSize;
+		return (int) Math.max(0, Math.min(last - first, stripes.length));
+	}
+
+	private Lock stripe(int i, boolean write) {
+		return write ? stripes[i].writeLock() : stripes[i].readLock();
+	}
+}
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.nio.channels.Channel;
 
 import net.smacke.jaydio.buffer.Buffer;
+import net.smacke.jaydio.stats.IoStats;
 
 
 /**
@@ -32,7 +33,9 @@ public interface BufferedChannel <T extends Buffer> extends Channel {
 
 
     /**
-     * Writes from the <tt>src</tt> buffer into this channel at <tt>position</tt>. </p>
+     * Writes from the <tt>src</tt> buffer into this channel at <tt>position</tt>. The bytes
+     * between <tt>src.position()</tt> and <tt>src.limit()</tt> are written, and the position
+     * and limit of <tt>src</tt> are left untouched. </p>
      *
      * @param src
      *        The {@link Buffer} to write from
@@ -49,7 +52,9 @@ public interface BufferedChannel <T extends Buffer> extends Channel {
     
     
     /**
-     * Reads from this channel into the <tt>dst</tt> buffer from <tt>position</tt>. </p>
+     * Reads from this channel into the <tt>dst</tt> buffer from <tt>position</tt>. The bytes
+     * between <tt>dst.position()</tt> and <tt>dst.limit()</tt> are filled, and the position
+     * and limit of <tt>dst</tt> are left untouched. </p>
      *
      * @param dst
      *        The {@link Buffer} to read into 
@@ -87,9 +92,31 @@ public interface BufferedChannel <T extends Buffer> extends Channel {
      */
     public BufferedChannel<T> truncate(long fileLength) throws IOException;
 
+
+    /**
+     * Forces everything written to this channel onto the storage device. Direct I/O
+     * bypasses the page cache, but not the device's own write cache. </p>
+     *
+     * @param metaData Whether file metadata (e.g. modification times) must be
+     *        forced as well, as opposed to just what is needed to read the data back
+     *
+     * @throws IOException
+     *
+     * @see java.nio.channels.FileChannel#force(boolean)
+     */
+    public void force(boolean metaData) throws IOException;
+
     
     /**
      * @return The file descriptor for this channel
      */
     public int getFD();
+
+
+    /**
+     * @return The I/O counters of this channel's file. The channel itself records
+     *         every read and write reaching the device; whatever sits on top of it
+     *         records its own operations into the same instance.
+     */
+    public IoStats getStats();
 }
\ No newline at end of file
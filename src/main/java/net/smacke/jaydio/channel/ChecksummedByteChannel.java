@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.stats.IoStats;
+
+/**
+ * A {@link BufferedChannel} which keeps a CRC32C of every block of another channel's
+ * file, and checks it whenever the block is read back, so that corruption below the
+ * application (bit rot, torn or misdirected writes) surfaces as an
+ * {@link IOException} rather than as bad data. </p>
+ *
+ * <p> The checksums live in a sidecar file next to the data, see {@link #sidecarFile(File)},
+ * 4 bytes per block, so that the data file keeps its layout and its alignment. They are
+ * computed from the caller's buffer as it is written and verified in the caller's buffer
+ * as it is read, so under a {@link net.smacke.jaydio.align.ByteChannelAligner
+ * ByteChannelAligner} every window flush and every refill (including prefetches and
+ * background writes) is covered, without an extra copy. A block whose checksum was
+ * never recorded, e.g. one written before the sidecar existed, is not checked. The last
+ * block of the file is checksummed as if it were padded with zeroes. </p>
+ *
+ * <p> Like the channels it wraps, this channel may be used by several threads at once.
+ * Writing a block's data and its checksum is atomic with respect to verifying them, so
+ * readers never see one without the other. It is not atomic with respect to crashes,
+ * though, so a block torn by a crash is reported as corrupt when it is next read. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class ChecksummedByteChannel implements BufferedChannel<AlignedDirectByteBuffer> {
+
+	private static final int CHECKSUM_SIZE = 4;
+
+	private static final int BLOCK_LOCK_STRIPES = 64;
+
+	private final DirectIoLib lib;
+	private final BufferedChannel<AlignedDirectByteBuffer> channel;
+	private final File file;
+	// null if the channel is read only and there is no sidecar
+	private final RandomAccessFile sidecar;
+	private final FileChannel checksums;
+	// reads verify under the read locks of their blocks' stripes, writes and truncation
+	// update data and checksums under the write locks
+	private final BlockLocks blockLocks;
+
+	/**
+	 * @return The file holding the checksums of <tt>file</tt>
+	 */
+	public static File sidecarFile(File file) {
+		return new File(file.getPath() + ".crc32c");
+	}
+
+	/**
+	 * Checksums a {@link DirectIoByteChannel} on <tt>file</tt>.
+	 */
+	public static ChecksummedByteChannel getChannel(File file, boolean readOnly) throws IOException {
+		DirectIoLib lib = DirectIoLib.getLibForPath(file.toString());
+		return getChannel(lib, file, readOnly);
+	}
+
+	public static ChecksummedByteChannel getChannel(DirectIoLib lib, File file, boolean readOnly) throws IOException {
+		return wrap(lib, DirectIoByteChannel.getChannel(lib, file, readOnly), file);
+	}
+
+	/**
+	 * @param channel The channel to checksum, which now belongs to the returned one
+	 *
+	 * @param file The file underlying <tt>channel</tt>, next to which the checksums are kept
+	 */
+	public static ChecksummedByteChannel wrap(DirectIoLib lib, BufferedChannel<AlignedDirectByteBuffer> channel,
+			File file) throws IOException {
+		final File f = sidecarFile(file);
+		RandomAccessFile sidecar = null;
+		try {
+			if (!channel.isReadOnly() || f.exists()) {
+				sidecar = new RandomAccessFile(f, channel.isReadOnly() ? "r" : "rw");
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new ChecksummedByteChannel(lib, channel, file, sidecar);
+	}
+
+	private ChecksummedByteChannel(DirectIoLib lib, BufferedChannel<AlignedDirectByteBuffer> channel, File file,
+			RandomAccessFile sidecar) {
+		this.lib = lib;
+		this.channel = channel;
+		this.file = file;
+		this.sidecar = sidecar;
+		this.checksums = sidecar == null ? null : sidecar.getChannel();
+		this.blockLocks = new BlockLocks(lib.blockSize(), BLOCK_LOCK_STRIPES);
+	}
+
+	// 0 marks a block without a checksum, so that holes in the sidecar read as such
+	private static int checksum(ByteBuffer data, int zeroPadding) {
+		final int crc = Crc32c.compute(data, zeroPadding);
+		return crc == 0 ? 1 : crc;
+	}
+
+	// appends the checksums of the n bytes of buffer from its position, block by block
+	private void compute(AlignedDirectByteBuffer buffer, int n, ByteBuffer checksums) {
+		final int blockSize = lib.blockSize();
+		final ByteBuffer view = buffer.asByteBuffer();
+		for (int off = 0; off < n; off += blockSize) {
+			final int length = Math.min(blockSize, n - off);
+			view.clear();
+			view.position(buffer.position() + off);
+			view.limit(buffer.position() + off + length);
+			checksums.putInt(checksum(view, blockSize - length));
+		}
+	}
+
+	private ByteBuffer readChecksums(long firstBlock, int count) throws IOException {
+		final ByteBuffer stored = ByteBuffer.allocate(count * CHECKSUM_SIZE);
+		final long position = firstBlock * CHECKSUM_SIZE;
+		while (stored.hasRemaining()) {
+			if (checksums.read(stored, position + stored.position()) < 0) {
+				break; // past the end of the sidecar, so not recorded
+			}
+		}
+		stored.clear();
+		return stored;
+	}
+
+	private void writeChecksums(long firstBlock, ByteBuffer computed) throws IOException {
+		final long position = firstBlock * CHECKSUM_SIZE;
+		while (computed.hasRemaining()) {
+			checksums.write(computed, position + computed.position());
+		}
+	}
+
+	// returns the first corrupt block, or -1
+	private long verify(AlignedDirectByteBuffer dst, long position, int n) throws IOException {
+		final int blocks = (n + lib.blockSize() - 1) / lib.blockSize();
+		final long firstBlock = position / lib.blockSize();
+		final ByteBuffer stored = readChecksums(firstBlock, blocks);
+		final ByteBuffer computed = ByteBuffer.allocate(blocks * CHECKSUM_SIZE);
+		compute(dst, n, computed);
+		computed.flip();
+		for (int i = 0; i < blocks; i++) {
+			final int expected = stored.getInt();
+			if (expected != 0 && expected != computed.getInt(i * CHECKSUM_SIZE)) {
+				return firstBlock + i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int read(AlignedDirectByteBuffer dst, long position) throws IOException {
+		assert position == lib.blockStart(position);
+		if (checksums == null) {
+			return channel.read(dst, position);
+		}
+		final long end = position + lib.blockEnd(dst.limit()) - dst.position();
+		blockLocks.lock(position, end, false);
+		try {
+			final int n = channel.read(dst, position);
+			final long corrupt = verify(dst, position, n);
+			if (corrupt >= 0) {
+				throw new IOException("Checksum mismatch in block " + corrupt + " (offset "
+						+ corrupt * lib.blockSize() + ") of " + file);
+			}
+			return n;
+		} finally {
+			blockLocks.unlock(position, end, false);
+		}
+	}
+
+	@Override
+	public int write(AlignedDirectByteBuffer src, long position) throws IOException {
+		assert position == lib.blockStart(position);
+		final int blockSize = lib.blockSize();
+		final long end = position + lib.blockEnd(src.limit()) - src.position();
+		final long firstBlock = position / blockSize;
+		blockLocks.lock(position, end, true);
+		try {
+			final int n;
+			try {
+				n = channel.write(src, position);
+			} catch (IOException e) {
+				// some of the blocks may have been written nonetheless
+				writeChecksums(firstBlock, ByteBuffer.allocate((int) ((end - position) / blockSize) * CHECKSUM_SIZE));
+				throw e;
+			}
+			final int whole = n / blockSize;
+			final ByteBuffer computed = ByteBuffer.allocate((n + blockSize - 1) / blockSize * CHECKSUM_SIZE);
+			compute(src, whole * blockSize, computed);
+			if (whole * blockSize < n) {
+				// the rest of a partially written block is unknown, so stop checking it
+				computed.putInt(0);
+			}
+			computed.flip();
+			writeChecksums(firstBlock, computed);
+			return n;
+		} finally {
+			blockLocks.unlock(position, end, true);
+		}
+	}
+
+	@Override
+	public ChecksummedByteChannel truncate(long fileLength) throws IOException {
+		blockLocks.lockAll();
+		try {
+			truncateLocked(fileLength);
+		} finally {
+			blockLocks.unlockAll();
+		}
+		return this;
+	}
+
+	private void truncateLocked(long fileLength) throws IOException {
+		channel.truncate(fileLength);
+		final int blockSize = lib.blockSize();
+		final long blocks = (fileLength + blockSize - 1) / blockSize;
+		checksums.truncate(blocks * CHECKSUM_SIZE);
+		final int tail = (int) (fileLength - lib.blockStart(fileLength));
+		if (tail > 0) {
+			// the last block now ends early, so it gets checksummed with zeroes instead
+			final AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, blockSize);
+			try {
+				buffer.limit(tail);
+				final int n = channel.read(buffer, lib.blockStart(fileLength));
+				final ByteBuffer computed = ByteBuffer.allocate(CHECKSUM_SIZE);
+				compute(buffer, n, computed);
+				computed.flip();
+				writeChecksums(blocks - 1, computed);
+			} finally {
+				buffer.close();
+			}
+		}
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		channel.force(metaData);
+		if (checksums != null) {
+			checksums.force(metaData);
+		}
+	}
+
+	@Override
+	public long size() {
+		return channel.size();
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return channel.isReadOnly();
+	}
+
+	@Override
+	public int getFD() {
+		return channel.getFD();
+	}
+
+	@Override
+	public IoStats getStats() {
+		return channel.getStats();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!isOpen()) {
+			return;
+		}
+		try {
+			if (!isReadOnly()) {
+				// the inner channel trims the file to its length on closing; so must we
+				truncate(size());
+			}
+		} finally {
+			try {
+				if (sidecar != null) {
+					sidecar.close();
+				}
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli), as used by iSCSI, ext4 and most storage formats. </p>
+ *
+ * <p> On Java 9 and later this uses <tt>java.util.zip.CRC32C</tt>, which the JIT
+ * replaces with the CPU's CRC32 instructions, and which reads direct buffers in
+ * place. We build for Java 8, so it is looked up reflectively; on older runtimes, or
+ * if the lookup fails, a slicing-by-8 table implementation takes over, which is
+ * several times slower but still reads direct buffers without copying them. </p>
+ *
+ * @author smacke
+ *
+ */
+final class Crc32c {
+
+	private static final int POLYNOMIAL = 0x82F63B78; // reversed 0x1EDC6F41
+
+	private static final int[][] TABLES = new int[8][256];
+
+	private static final byte[] ZEROS = new byte[8192];
+
+	private static final Constructor<?> JDK_CONSTRUCTOR;
+	private static final Method JDK_UPDATE;
+
+	// one JDK instance per thread, since they are not thread safe
+	private static final ThreadLocal<Checksum> JDK_CRC = new ThreadLocal<Checksum>() {
+		@Override
+		protected Checksum initialValue() {
+			try {
+				return (Checksum) JDK_CONSTRUCTOR.newInstance();
+			} catch (Exception e) {
+				throw new IllegalStateException("could not create a CRC32C", e);
+			}
+		}
+	};
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i;
+			for (int k = 0; k < 8; k++) {
+				c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+			}
+			TABLES[0][i] = c;
+		}
+		for (int t = 1; t < 8; t++) {
+			for (int i = 0; i < 256; i++) {
+				final int c = TABLES[t - 1][i];
+				TABLES[t][i] = (c >>> 8) ^ TABLES[0][c & 0xFF];
+			}
+		}
+
+		Constructor<?> constructor = null;
+		Method update = null;
+		try {
+			final Class<?> c = Class.forName("java.util.zip.CRC32C");
+			constructor = c.getConstructor();
+			update = c.getMethod("update", ByteBuffer.class);
+		} catch (Exception e) {
+			// before Java 9
+		}
+		JDK_CONSTRUCTOR = constructor;
+		JDK_UPDATE = update;
+	}
+
+	private Crc32c() {
+	}
+
+	/**
+	 * @return Whether the JDK's (intrinsified) implementation is used
+	 */
+	static boolean isIntrinsic() {
+		return JDK_UPDATE != null;
+	}
+
+	/**
+	 * @param data The bytes between the position and the limit are checksummed; the
+	 *        position is left untouched
+	 *
+	 * @param zeroPadding The number of zero bytes to checksum after <tt>data</tt>
+	 *
+	 * @return The CRC32C of <tt>data</tt> followed by <tt>zeroPadding</tt> zeroes
+	 */
+	static int compute(ByteBuffer data, int zeroPadding) {
+		if (JDK_UPDATE != null) {
+			final Checksum crc = JDK_CRC.get();
+			crc.reset();
+			try {
+				JDK_UPDATE.invoke(crc, data.duplicate());
+			} catch (Exception e) {
+				throw new IllegalStateException("CRC32C failed", e);
+			}
+			for (int n = zeroPadding; n > 0; n -= ZEROS.length) {
+				crc.update(ZEROS, 0, Math.min(n, ZEROS.length));
+			}
+			return (int) crc.getValue();
+		}
+		int crc = update(0, data.duplicate());
+		for (int n = zeroPadding; n > 0; n -= ZEROS.length) {
+			crc = update(crc, ByteBuffer.wrap(ZEROS, 0, Math.min(n, ZEROS.length)));
+		}
+		return crc;
+	}
+
+	/**
+	 * @return The CRC32C of <tt>b[offset, offset + length)</tt>
+	 */
+	static int compute(byte[] b, int offset, int length) {
+		return compute(ByteBuffer.wrap(b, offset, length), 0);
+	}
+
+	// the table implementation; consumes data
+	static int update(int crc, ByteBuffer data) {
+		final int[] t0 = TABLES[0];
+		final int[] t1 = TABLES[1];
+		final int[] t2 = TABLES[2];
+		final int[] t3 = TABLES[3];
+		final int[] t4 = TABLES[4];
+		final int[] t5 = TABLES[5];
+		final int[] t6 = TABLES[6];
+		final int[] t7 = TABLES[7];
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		int c = ~crc;
+		while (data.remaining() >= 8) {
+			final long v = data.getLong() ^ (c & 0xFFFFFFFFL);
+			c = t7[(int) v & 0xFF] ^ t6[(int) (v >>> 8) & 0xFF] ^ t5[(int) (v >>> 16) & 0xFF]
+					^ t4[(int) (v >>> 24) & 0xFF] ^ t3[(int) (v >>> 32) & 0xFF] ^ t2[(int) (v >>> 40) & 0xFF]
+					^ t1[(int) (v >>> 48) & 0xFF] ^ t0[(int) (v >>> 56)];
+		}
+		while (data.hasRemaining()) {
+			c = (c >>> 8) ^ t0[(c ^ data.get()) & 0xFF];
+		}
+		return ~c;
+	}
+}
@@ -15,16 +15,23 @@
  */
 package net.smacke.jaydio.channel;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.NonWritableChannelException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.align.ByteChannelAligner;
 import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.jfr.IoEvents;
+import net.smacke.jaydio.stats.IoStats;
 import net.smacke.jaydio.buffer.JavaHeapByteBuffer;
 
+import com.sun.jna.Native;
+
 /**
  * An {@link BufferedChannel} implementation which uses {@link DirectIoLib}
  * for JNA hooks to native Linux methods. Particular, the O_DIRECT flag is used. </p>
@@ -40,11 +47,26 @@ import net.smacke.jaydio.buffer.JavaHeapByteBuffer;
  */
 public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectByteBuffer> {
 
+	/**
+	 * The largest staging buffer used by {@link #readRanges(long[], int[], byte[], int)}, and
+	 * by {@link ByteChannelAligner} for transfers which bypass its window
+	 */
+	public static final int MAX_STAGING_SIZE = 8 << 20;
+
+	// lseek() whence values and errors for finding holes; see "man 2 lseek"
+	private static final int SEEK_DATA = 3;
+	private static final int SEEK_HOLE = 4;
+	private static final int ENXIO = 6;
+	private static final int EINVAL = 22;
+
     private DirectIoLib lib;
     private int fd;
-    private boolean isOpen;
-    private long fileLength;
+    private volatile boolean isOpen;
+    private volatile long fileLength;
     private boolean isReadOnly;
+    private final IoStats stats;
+    // staging buffers of readRanges, kept for the next call
+    private final Queue<AlignedDirectByteBuffer> staging = new ConcurrentLinkedQueue<AlignedDirectByteBuffer>();
 
     public static DirectIoByteChannel getChannel(File file, boolean readOnly) throws IOException {
     	DirectIoLib lib = DirectIoLib.getLibForPath(file.toString());
@@ -54,15 +76,16 @@ public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectB
     public static DirectIoByteChannel getChannel(DirectIoLib lib, File file, boolean readOnly) throws IOException {
         int fd = lib.oDirectOpen(file.toString(), readOnly);
         long length = file.length();
-        return new DirectIoByteChannel(lib, fd, length, readOnly);
+        return new DirectIoByteChannel(lib, fd, length, readOnly, file.toString());
     }
 
-    private DirectIoByteChannel(DirectIoLib lib, int fd, long fileLength, boolean readOnly) {
+    private DirectIoByteChannel(DirectIoLib lib, int fd, long fileLength, boolean readOnly, String name) {
     	this.lib = lib;
         this.fd = fd;
         this.isOpen = true;
         this.isReadOnly = readOnly;
         this.fileLength = fileLength;
+        this.stats = new IoStats(name);
     }
 
     private void ensureOpen() throws ClosedChannelException {
@@ -81,7 +104,10 @@ public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectB
     @Override
     public int read(AlignedDirectByteBuffer dst, long position) throws IOException {
     	ensureOpen();
-        return lib.pread(fd, dst, position);
+    	final long start = System.nanoTime();
+        final int n = lib.pread(fd, dst, position);
+        stats.recordPhysicalRead(n, System.nanoTime() - start);
+        return n;
     }
 
     @Override
@@ -90,18 +116,110 @@ public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectB
     	ensureWritable();
         assert src.position() == lib.blockStart(src.position());
 
+        final long start = System.nanoTime();
         int written = lib.pwrite(fd, src, position);
+        stats.recordPhysicalWrite(written, System.nanoTime() - start);
 
         // update file length if we wrote past it
-        fileLength = Math.max(position + written, fileLength);
+        extendLength(position + written);
         return written;
     }
+
+    /**
+     * Reads a batch of byte ranges with as few aligned reads as possible: the ranges are
+     * sorted, those in the same or adjacent blocks are merged into runs, and each run is
+     * fetched with one read of up to {@value #MAX_STAGING_SIZE} bytes.
+     * The ranges are packed into <tt>dst</tt> one after the other in request order.
+     *
+     * @param offsets The file offset of each range
+     *
+     * @param lengths The length of each range
+     *
+     * @param dst Receives the ranges
+     *
+     * @param dstOffset Where in <tt>dst</tt> the first range goes
+     *
+     * @throws EOFException If any range extends past EOF
+     *
+     * @throws IOException
+     *
+     * @see ReadPlan
+     */
+    public void readRanges(long[] offsets, int[] lengths, byte[] dst, int dstOffset) throws IOException {
+    	ensureOpen();
+    	final ReadPlan plan = ReadPlan.create(lib, offsets, lengths);
+    	if (dstOffset < 0 || dstOffset > dst.length - plan.totalLength()) {
+    		throw new IndexOutOfBoundsException();
+    	}
+    	if (plan.end() > size()) {
+    		throw new EOFException("range ends at " + plan.end() + ", length is " + size());
+    	}
+    	if (plan.runs() == 0) {
+    		return;
+    	}
+    	final AlignedDirectByteBuffer buf = takeStaging(plan.maxRunLength());
+    	final int capacity = buf.capacity();
+    	try {
+    		for (int r=0; r<plan.runs(); r++) {
+    			for (long start=plan.runStart(r); start<plan.runEnd(r); start+=capacity) {
+    				final int length = (int) Math.min(capacity, plan.runEnd(r) - start);
+    				buf.clear();
+    				buf.limit(length);
+    				int done = 0;
+    				while (done < length) {
+    					buf.position(done);
+    					final int asked = length - done;
+    					final int n = read(buf, start + done);
+    					done += n;
+    					if (n < asked) {
+    						break; // the last block of the file
+    					}
+    				}
+    				buf.clear();
+    				plan.scatter(r, start, length, buf, dst, dstOffset);
+    			}
+    		}
+    	} finally {
+    		releaseStaging(buf);
+    	}
+    }
+
+    private AlignedDirectByteBuffer takeStaging(long span) {
+    	final int capacity = (int) Math.min(span, lib.blockStart(MAX_STAGING_SIZE));
+    	final AlignedDirectByteBuffer buf = staging.poll();
+    	if (buf != null) {
+    		if (buf.capacity() >= capacity) {
+    			return buf;
+    		}
+    		buf.close();
+    	}
+    	return AlignedDirectByteBuffer.allocate(lib, capacity);
+    }
+
+    private void releaseStaging(AlignedDirectByteBuffer buf) {
+    	staging.offer(buf);
+    	if (!isOpen) {
+    		freeStaging(); // closed in the meantime
+    	}
+    }
+
+    private void freeStaging() {
+    	AlignedDirectByteBuffer buf;
+    	while ((buf = staging.poll()) != null) {
+    		buf.close();
+    	}
+    }
+
+    // writes may come from several threads at once
+    private synchronized void extendLength(long end) {
+    	fileLength = Math.max(end, fileLength);
+    }
     
     @Override
     public DirectIoByteChannel truncate(final long length) throws IOException {
     	ensureOpen();
     	ensureWritable();
-        if (DirectIoLib.ftruncate(fd, length) < 0) {
+        if (DirectIoLib.truncate(fd, length) < 0) {
             throw new IOException("Error during truncate on descriptor " + fd + ": " +
             		DirectIoLib.getLastError());
         }
@@ -109,6 +227,84 @@ public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectB
     	return this;
     }
 
+    @Override
+    public void force(boolean metaData) throws IOException {
+    	ensureOpen();
+    	final int ret = metaData ? DirectIoLib.fsync(fd) : DirectIoLib.fdatasync(fd);
+    	if (ret < 0) {
+    		throw new IOException("Error syncing descriptor " + fd + ": " + DirectIoLib.getLastError());
+    	}
+    }
+
+    /**
+     * Allocates disk space for the first <tt>length</tt> bytes of the file. The
+     * size reported by {@link #size()} doesn't change, so unless the file is
+     * written up to there, the allocation is released again by {@link #close()}.
+     *
+     * @param length The number of bytes to allocate space for
+     *
+     * @throws IOException If the space could not be allocated
+     */
+    public void preallocate(long length) throws IOException {
+    	ensureOpen();
+    	ensureWritable();
+    	final int ret = DirectIoLib.posix_fallocate(fd, 0, length);
+    	if (ret != 0) {
+    		throw new IOException("Error allocating " + length + " bytes for descriptor " + fd + ": " +
+    				DirectIoLib.getError(ret));
+    	}
+    }
+
+    /**
+     * Finds where the data following a hole starts, so that copies can skip the
+     * unallocated parts of sparse files. On file systems which can't tell, the
+     * whole file counts as data.
+     *
+     * @param from The offset to start looking at
+     *
+     * @return The offset of the first byte at or after <tt>from</tt> which is not in
+     *         a hole, or -1 if there is none before EOF
+     *
+     * @throws IOException
+     */
+    public long nextData(long from) throws IOException {
+    	ensureOpen();
+    	final long ret = DirectIoLib.lseek(fd, from, SEEK_DATA);
+    	if (ret >= 0) {
+    		return ret;
+    	}
+    	final int errno = Native.getLastError();
+    	if (errno == ENXIO) {
+    		return -1;
+    	} else if (errno == EINVAL) {
+    		return from < size() ? from : -1;
+    	}
+    	throw new IOException("Error seeking data on descriptor " + fd + ": " + DirectIoLib.getError(errno));
+    }
+
+    /**
+     * @param from The offset to start looking at, which must be before EOF
+     *
+     * @return The offset of the first byte at or after <tt>from</tt> which is in a
+     *         hole; EOF counts as one
+     *
+     * @throws IOException
+     *
+     * @see #nextData(long)
+     */
+    public long nextHole(long from) throws IOException {
+    	ensureOpen();
+    	final long ret = DirectIoLib.lseek(fd, from, SEEK_HOLE);
+    	if (ret >= 0) {
+    		return ret;
+    	}
+    	final int errno = Native.getLastError();
+    	if (errno == EINVAL) {
+    		return size();
+    	}
+    	throw new IOException("Error seeking hole on descriptor " + fd + ": " + DirectIoLib.getError(errno));
+    }
+
     @Override
     public long size() {
         return fileLength;
@@ -118,6 +314,11 @@ public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectB
     public int getFD() {
     	return fd;
     }
+
+    @Override
+    public IoStats getStats() {
+    	return stats;
+    }
     
     
     @Override
@@ -141,7 +342,13 @@ public final class DirectIoByteChannel implements BufferedChannel<AlignedDirectB
             }
         } finally {
         	isOpen = false;
-            if (lib.close(fd) < 0) {
+        	freeStaging();
+        	stats.close();
+            final Object event = IoEvents.begin(IoEvents.CLOSE);
+            final int ret = lib.close(fd);
+            IoEvents.commit(event, fd, 0, 0);
+            IoEvents.closed(fd);
+            if (ret < 0) {
                 throw new IOException("Error closing file with descriptor " + fd + ": " +
                                         DirectIoLib.getLastError());
             }
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.MmapFlags;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.jfr.IoEvents;
+import net.smacke.jaydio.stats.IoStats;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * A {@link BufferedChannel} over a memory mapping of the file, for small, hot, read-mostly
+ * files where sharing the page cache beats the copies of direct I/O. It works with the
+ * same buffers as {@link DirectIoByteChannel}, so it can be used under a
+ * {@link net.smacke.jaydio.align.DirectIoByteChannelAligner DirectIoByteChannelAligner}
+ * (and hence a {@link net.smacke.jaydio.DirectRandomAccessFile DirectRandomAccessFile})
+ * without changing any call sites. </p>
+ *
+ * <p> The whole file is mapped shared, optionally with <tt>MAP_POPULATE</tt> to fault it in
+ * up front, and with an {@link Advice} passed to <tt>madvise</tt>. Reads and writes copy
+ * between the mapping and the buffer; writes past the end of the file grow it first, and
+ * remap it when it outgrows the mapping. Like {@link DirectIoByteChannel}, transfers cover
+ * whole blocks, and this channel may be used by several threads at once. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class MmapByteChannel implements BufferedChannel<AlignedDirectByteBuffer> {
+
+	/**
+	 * How the mapping is going to be accessed, see "man 2 madvise".
+	 */
+	public enum Advice {
+		NORMAL(MmapFlags.MADV_NORMAL),
+		RANDOM(MmapFlags.MADV_RANDOM),
+		SEQUENTIAL(MmapFlags.MADV_SEQUENTIAL),
+		WILLNEED(MmapFlags.MADV_WILLNEED);
+
+		final int value;
+
+		private Advice(int value) {
+			this.value = value;
+		}
+	}
+
+	private final DirectIoLib lib;
+	private final int fd;
+	private final boolean isReadOnly;
+	private final boolean populate;
+	private final Advice advice;
+
+	// mapping and sizes may only change under the write lock; fileSize <= mappingSize
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Pointer mapping;
+	private long mappingSize;
+	// the size of the file itself, as opposed to the logical fileLength
+	private long fileSize;
+	private volatile long fileLength;
+	private volatile boolean isOpen;
+	// physical transfers are the copies to and from the mapping
+	private final IoStats stats;
+
+	public static MmapByteChannel getChannel(File file, boolean readOnly) throws IOException {
+		DirectIoLib lib = DirectIoLib.getLibForPath(file.toString());
+		return getChannel(lib, file, readOnly, false, Advice.NORMAL);
+	}
+
+	/**
+	 * @param populate Whether to fault in the whole file when mapping it
+	 *
+	 * @param advice Passed to <tt>madvise</tt> for the whole mapping
+	 */
+	public static MmapByteChannel getChannel(DirectIoLib lib, File file, boolean readOnly, boolean populate,
+			Advice advice) throws IOException {
+		int fd = lib.bufferedOpen(file.toString(), readOnly);
+		MmapByteChannel channel = new MmapByteChannel(lib, fd, file.length(), readOnly, populate, advice,
+				file.toString());
+		try {
+			channel.remap(file.length());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private MmapByteChannel(DirectIoLib lib, int fd, long fileLength, boolean readOnly, boolean populate,
+			Advice advice, String name) {
+		this.lib = lib;
+		this.fd = fd;
+		this.fileSize = fileLength;
+		this.fileLength = fileLength;
+		this.isReadOnly = readOnly;
+		this.populate = populate;
+		this.advice = advice;
+		this.isOpen = true;
+		this.stats = new IoStats(name);
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void ensureWritable() {
+		if (isReadOnly()) {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	@Override
+	public int read(AlignedDirectByteBuffer dst, long position) throws IOException {
+		lock.readLock().lock();
+		try {
+			ensureOpen();
+			assert dst.position() == lib.blockStart(dst.position());
+			if (position >= fileSize) {
+				throw new EOFException("Tried to read past EOF at offset " + position + " into " + dst);
+			}
+			final int n = (int) Math.min(lib.blockEnd(dst.limit()) - dst.position(), fileSize - position);
+			final long start = System.nanoTime();
+			dst.pointer().getByteBuffer(dst.position(), n).put(mapping.getByteBuffer(position, n));
+			stats.recordPhysicalRead(n, System.nanoTime() - start);
+			return n;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int write(AlignedDirectByteBuffer src, long position) throws IOException {
+		ensureWritable();
+		assert src.position() == lib.blockStart(src.position());
+		final int n = lib.blockEnd(src.limit()) - src.position();
+		if (n == 0) {
+			ensureOpen();
+			return 0;
+		}
+		final long end = position + n;
+		while (true) {
+			lock.readLock().lock();
+			try {
+				ensureOpen();
+				// checked under the same lock as the copy, since a concurrent truncate may
+				// shrink the file, or remap it, right after it was grown for this write
+				if (end <= fileSize && end <= mappingSize) {
+					final long start = System.nanoTime();
+					mapping.getByteBuffer(position, n).put(src.pointer().getByteBuffer(src.position(), n));
+					stats.recordPhysicalWrite(n, System.nanoTime() - start);
+					extendLength(end);
+					return n;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			growFileSize(end);
+		}
+	}
+
+	// writes may come from several threads at once
+	private synchronized void extendLength(long end) {
+		fileLength = Math.max(end, fileLength);
+	}
+
+	// grows the file and the mapping so that bytes up to end may be written
+	private void growFileSize(long end) throws IOException {
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			if (end > fileSize) {
+				if (DirectIoLib.truncate(fd, end) < 0) {
+					throw new IOException("Error growing descriptor " + fd + " to " + end + " bytes: "
+							+ DirectIoLib.getLastError());
+				}
+				fileSize = end;
+			}
+			if (end > mappingSize) {
+				// leave room to grow, so that appending doesn't remap every time
+				remap(Math.max(end, 2*mappingSize));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// must hold the write lock, or be the only thread knowing about this channel
+	private void remap(long size) throws IOException {
+		unmap();
+		size = lib.blockEnd(size);
+		if (size == 0) {
+			return; // mmap doesn't do empty mappings
+		}
+		final int prot = isReadOnly ? MmapFlags.PROT_READ : MmapFlags.PROT_READ | MmapFlags.PROT_WRITE;
+		final int flags = MmapFlags.MAP_SHARED | (populate ? MmapFlags.MAP_POPULATE : 0);
+		final Pointer p = DirectIoLib.mmap(null, new NativeLong(size), prot, flags, fd, new NativeLong(0));
+		if (p == null || p.equals(MmapFlags.MAP_FAILED)) {
+			throw new IOException("Error mapping " + size + " bytes of descriptor " + fd + ": "
+					+ DirectIoLib.getLastError());
+		}
+		mapping = p;
+		mappingSize = size;
+		if (advice != Advice.NORMAL && DirectIoLib.madvise(p, new NativeLong(size), advice.value) < 0) {
+			throw new IOException("Error advising " + advice + " for descriptor " + fd + ": "
+					+ DirectIoLib.getLastError());
+		}
+	}
+
+	private void unmap() throws IOException {
+		if (mapping == null) {
+			return;
+		}
+		final Pointer p = mapping;
+		final long size = mappingSize;
+		mapping = null;
+		mappingSize = 0;
+		if (DirectIoLib.munmap(p, new NativeLong(size)) < 0) {
+			throw new IOException("Error unmapping descriptor " + fd + ": " + DirectIoLib.getLastError());
+		}
+	}
+
+	@Override
+	public MmapByteChannel truncate(long length) throws IOException {
+		lock.writeLock().lock();
+		try {
+			ensureOpen();
+			ensureWritable();
+			if (DirectIoLib.truncate(fd, length) < 0) {
+				throw new IOException("Error during truncate on descriptor " + fd + ": " +
+						DirectIoLib.getLastError());
+			}
+			// the mapping may now extend past EOF, but nothing there gets touched
+			fileSize = length;
+			fileLength = length;
+			if (length > mappingSize) {
+				remap(length);
+			}
+			return this;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		lock.readLock().lock();
+		try {
+			ensureOpen();
+			if (mapping != null && DirectIoLib.msync(mapping, new NativeLong(mappingSize), MmapFlags.MS_SYNC) < 0) {
+				throw new IOException("Error syncing mapping of descriptor " + fd + ": " + DirectIoLib.getLastError());
+			}
+			final int ret = metaData ? DirectIoLib.fsync(fd) : DirectIoLib.fdatasync(fd);
+			if (ret < 0) {
+				throw new IOException("Error syncing descriptor " + fd + ": " + DirectIoLib.getLastError());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long size() {
+		return fileLength;
+	}
+
+	@Override
+	public int getFD() {
+		return fd;
+	}
+
+	@Override
+	public IoStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return isOpen;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return isReadOnly;
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!isOpen()) {
+				return;
+			}
+			try {
+				unmap();
+				if (!isReadOnly()) {
+					if (DirectIoLib.truncate(fd, fileLength) < 0) {
+						throw new IOException("Error during truncate on descriptor " + fd + ": " +
+								DirectIoLib.getLastError());
+					}
+				}
+			} finally {
+				isOpen = false;
+				stats.close();
+				final Object event = IoEvents.begin(IoEvents.CLOSE);
+				final int ret = lib.close(fd);
+				IoEvents.commit(event, fd, 0, 0);
+				IoEvents.closed(fd);
+				if (ret < 0) {
+					throw new IOException("Error closing file with descriptor " + fd + ": " +
+							DirectIoLib.getLastError());
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
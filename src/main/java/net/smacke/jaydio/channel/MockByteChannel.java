@@ -21,6 +21,7 @@ import java.nio.channels.NonWritableChannelException;
 
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.JaydioByteBuffer;
+import net.smacke.jaydio.stats.IoStats;
 
 
 /**
@@ -32,13 +33,15 @@ import net.smacke.jaydio.buffer.JaydioByteBuffer;
  */
 public final class MockByteChannel implements BufferedChannel<JaydioByteBuffer> {
 
-    private long fileLength;
+    // volatile since background writes may extend the file
+    private volatile long fileLength;
     private boolean isOpen;
     private boolean isReadOnly;
 
     // keep the underlying "file" in-memory
     // allows for lightweight mock testing
     private byte[] file;
+    private final IoStats stats = new IoStats("mock");
 
     /**
      * Factory method returning a new {@link MockByteChannel}. </p>
@@ -69,12 +72,13 @@ public final class MockByteChannel implements BufferedChannel<JaydioByteBuffer>
     @Override
     public int read(JaydioByteBuffer dst, long position) throws ClosedChannelException {
     	ensureOpen();
-        dst.clear();
-        int endPos = Math.min((int)position + dst.limit(), (int)size());
+        final int oldPos = dst.position();
+        int endPos = Math.min((int)position + dst.remaining(), (int)size());
         for (int i = (int)position; i < endPos; i++) {
             dst.put(file[i]);
         }
-        dst.clear();
+        dst.position(oldPos);
+        stats.recordPhysicalRead(endPos - position, 0);
         return (int)(endPos - position);
     }
 
@@ -82,17 +86,23 @@ public final class MockByteChannel implements BufferedChannel<JaydioByteBuffer>
     public int write(JaydioByteBuffer src, long position) throws IOException {
     	ensureOpen();
     	ensureWritable();
-        int oldPos = src.position();
-        src.position(0);
+        final int oldPos = src.position();
+        final int length = src.remaining();
 
-        for (int i = (int)position; i < position + src.limit(); i++) {
+        for (int i = (int)position; i < position + length; i++) {
             file[i] = src.get();
         }
 
         // If write past current EOF, update the file length.
-        fileLength = Math.max(position + src.limit(), fileLength);
+        extendLength(position + length);
         src.position(oldPos);
-        return src.limit();
+        stats.recordPhysicalWrite(length, 0);
+        return length;
+    }
+
+    // writes may come from several threads at once
+    private synchronized void extendLength(long end) {
+    	fileLength = Math.max(end, fileLength);
     }
 
     private void ensureOpen() throws ClosedChannelException {
@@ -131,13 +141,24 @@ public final class MockByteChannel implements BufferedChannel<JaydioByteBuffer>
 		return this;
 	}
 
+	@Override
+	public void force(boolean metaData) throws ClosedChannelException {
+		ensureOpen(); // nothing to force, the "file" lives on java heap
+	}
+
 	@Override
 	public int getFD() {
 		throw new UnsupportedOperationException("mock channel is not backed by file");
 	}
 
+	@Override
+	public IoStats getStats() {
+		return stats;
+	}
+
     @Override
     public void close() throws IOException {
         isOpen = false;
+        stats.close();
     }
 }
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.JaydioByteBuffer;
+
+/**
+ * Plans the aligned reads for a batch of byte ranges. Ranges are sorted by offset, and
+ * merged into runs of consecutive blocks wherever they fall in the same or adjacent
+ * blocks, so that each run can be fetched with one large aligned read (or a few, if
+ * it is larger than the buffer used). Once a run, or a chunk of it, is in a buffer,
+ * {@link #scatter} copies each range's share into its place in the destination
+ * array, where the ranges are packed one after the other in request order. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class ReadPlan {
+
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int[] dstOffsets;
+	private final int[] order;
+	private final long[] runStarts;
+	private final long[] runEnds;
+	// the requests of run i are order[runFirst[i]] ... order[runFirst[i+1] - 1]
+	private final int[] runFirst;
+	private final int runs;
+	private final int totalLength;
+
+	/**
+	 * @param lib Gives the block size
+	 *
+	 * @param offsets The file offset of each range
+	 *
+	 * @param lengths The length of each range
+	 *
+	 * @throws IllegalArgumentException If the arrays differ in length, or a range
+	 *         has a negative offset or length
+	 */
+	public static ReadPlan create(DirectIoLib lib, final long[] offsets, int[] lengths) {
+		if (offsets.length != lengths.length) {
+			throw new IllegalArgumentException(offsets.length + " offsets but " + lengths.length + " lengths");
+		}
+		long total = 0;
+		for (int i=0; i<offsets.length; i++) {
+			if (offsets[i] < 0 || lengths[i] < 0) {
+				throw new IllegalArgumentException("bad range " + i + ": " + lengths[i] + " bytes at " + offsets[i]);
+			}
+			total += lengths[i];
+		}
+		if (total > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("ranges add up to " + total + " bytes");
+		}
+		return new ReadPlan(lib, offsets, lengths, (int) total);
+	}
+
+	private ReadPlan(DirectIoLib lib, final long[] offsets, int[] lengths, int totalLength) {
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.totalLength = totalLength;
+		this.dstOffsets = new int[offsets.length];
+		int dst = 0;
+		for (int i=0; i<offsets.length; i++) {
+			dstOffsets[i] = dst;
+			dst += lengths[i];
+		}
+
+		final Integer[] sorted = new Integer[offsets.length];
+		int n = 0;
+		for (int i=0; i<offsets.length; i++) {
+			if (lengths[i] > 0) {
+				sorted[n++] = i;
+			}
+		}
+		Arrays.sort(sorted, 0, n, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return offsets[a] < offsets[b] ? -1 : (offsets[a] == offsets[b] ? 0 : 1);
+			}
+		});
+		this.order = new int[n];
+		this.runStarts = new long[n];
+		this.runEnds = new long[n];
+		this.runFirst = new int[n + 1];
+		int r = -1;
+		for (int k=0; k<n; k++) {
+			final int i = sorted[k];
+			order[k] = i;
+			final long start = lib.blockStart(offsets[i]);
+			final long end = lib.blockEnd(offsets[i] + lengths[i]);
+			if (r >= 0 && start <= runEnds[r]) {
+				runEnds[r] = Math.max(runEnds[r], end);
+			} else {
+				r++;
+				runStarts[r] = start;
+				runEnds[r] = end;
+				runFirst[r] = k;
+			}
+		}
+		this.runs = r + 1;
+		runFirst[runs] = n;
+	}
+
+	/**
+	 * @return The number of aligned runs to read
+	 */
+	public int runs() {
+		return runs;
+	}
+
+	/**
+	 * @return The block aligned file offset where run <tt>run</tt> starts
+	 */
+	public long runStart(int run) {
+		return runStarts[run];
+	}
+
+	/**
+	 * @return The block aligned file offset where run <tt>run</tt> ends
+	 */
+	public long runEnd(int run) {
+		return runEnds[run];
+	}
+
+	/**
+	 * @return The size of the largest run
+	 */
+	public long maxRunLength() {
+		long max = 0;
+		for (int r=0; r<runs; r++) {
+			max = Math.max(max, runEnds[r] - runStarts[r]);
+		}
+		return max;
+	}
+
+	/**
+	 * @return The end of the furthest range, i.e. the file size needed to read all of them
+	 */
+	public long end() {
+		long end = 0;
+		for (int k=0; k<order.length; k++) {
+			end = Math.max(end, offsets[order[k]] + lengths[order[k]]);
+		}
+		return end;
+	}
+
+	/**
+	 * @return The combined length of all ranges, i.e. the room they need in the destination
+	 */
+	public int totalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Copies the parts of the ranges in run <tt>run</tt> which lie within
+	 * <tt>[chunkStart, chunkStart + chunkLength)</tt> from <tt>buf</tt> into <tt>dst</tt>.
+	 *
+	 * @param buf Holds the file's bytes from <tt>chunkStart</tt> at index 0
+	 *
+	 * @param dst Receives the ranges one after the other, in request order
+	 *
+	 * @param dstOffset Where in <tt>dst</tt> the first range goes
+	 */
+	public void scatter(int run, long chunkStart, int chunkLength, JaydioByteBuffer buf, byte[] dst, int dstOffset) {
+		final long chunkEnd = chunkStart + chunkLength;
+		for (int k=runFirst[run]; k<runFirst[run + 1]; k++) {
+			final int i = order[k];
+			final long from = Math.max(offsets[i], chunkStart);
+			final long to = Math.min(offsets[i] + lengths[i], chunkEnd);
+			if (from < to) {
+				buf.get((int) (from - chunkStart), dst, dstOffset + dstOffsets[i] + (int) (from - offsets[i]),
+						(int) (to - from));
+			}
+		}
+	}
+}
@@ -0,0 +1,497 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.copy;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+
+/**
+ * Copies files and directory trees with direct I/O, keeping the source and the
+ * destination busy at the same time. </p>
+ *
+ * <p> Each file is copied by a reader, which fills aligned buffers from the source,
+ * and a writer on another thread, which empties them into the destination. The two
+ * are connected by a bounded queue of {@link #setQueueDepth(int) queueDepth} buffers
+ * of {@link #setBufferSize(int) bufferSize} bytes each, so that a copy never holds more
+ * than that much memory per pipeline, whatever the file size. Files of at least
+ * {@link #setParallelThreshold(long) parallelThreshold} bytes are split into
+ * {@link #setRangeWorkers(int) rangeWorkers} ranges, each with its own pipeline, which
+ * helps devices that need many requests in flight. Directory trees are copied by
+ * {@link #setFileWorkers(int) fileWorkers} files at a time. </p>
+ *
+ * <p> Holes in sparse source files are found with <tt>SEEK_DATA</tt> and
+ * <tt>SEEK_HOLE</tt>, and left as holes in the destination. Modification times are
+ * preserved, and symbolic links inside directory trees are copied as links. </p>
+ *
+ * <p> Instances may be reused, but not by several threads at once. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class FileCopier {
+
+	/**
+	 * Receives progress updates while copying. Updates come from the copying
+	 * threads, so implementations have to be thread safe, and should be quick.
+	 */
+	public interface Progress {
+		/**
+		 * @param bytesCopied The number of bytes copied so far, counting skipped holes
+		 *
+		 * @param bytesTotal The total size of everything being copied
+		 */
+		void update(long bytesCopied, long bytesTotal);
+	}
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private int bufferSize = 8 << 20;
+	private int queueDepth = 4;
+	private int rangeWorkers = 1;
+	private long parallelThreshold = 1L << 30;
+	private int fileWorkers = 4;
+	private Progress progress;
+
+	// state of the copy in progress
+	private ExecutorService stages;
+	private AtomicLong copied;
+	private long total;
+
+	// one buffer on its way from the reader to the writer
+	private static final class Chunk {
+		final AlignedDirectByteBuffer buffer;
+		final long position;
+		final int length; // whole blocks
+		final int bytes; // of which the file really has this many
+
+		Chunk(AlignedDirectByteBuffer buffer, long position, int length, int bytes) {
+			this.buffer = buffer;
+			this.position = position;
+			this.length = length;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final Chunk END = new Chunk(null, -1, 0, 0);
+
+	/**
+	 * @param bufferSize The size of each buffer; rounded up to the block sizes involved.
+	 *        The default is 8 MiB.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("buffer size must be positive, got " + bufferSize);
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @param queueDepth The number of buffers per pipeline, at least 2 so that reading
+	 *        and writing can overlap. The default is 4.
+	 */
+	public void setQueueDepth(int queueDepth) {
+		if (queueDepth < 2) {
+			throw new IllegalArgumentException("queue depth must be at least 2, got " + queueDepth);
+		}
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * @param rangeWorkers The number of pipelines sharing a large file. The default is 1.
+	 */
+	public void setRangeWorkers(int rangeWorkers) {
+		if (rangeWorkers < 1) {
+			throw new IllegalArgumentException("need at least one range worker, got " + rangeWorkers);
+		}
+		this.rangeWorkers = rangeWorkers;
+	}
+
+	/**
+	 * @param parallelThreshold The size from which files get split between range workers.
+	 *        The default is 1 GiB.
+	 */
+	public void setParallelThreshold(long parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * @param fileWorkers The number of files of a directory tree copied at once. The default is 4.
+	 */
+	public void setFileWorkers(int fileWorkers) {
+		if (fileWorkers < 1) {
+			throw new IllegalArgumentException("need at least one file worker, got " + fileWorkers);
+		}
+		this.fileWorkers = fileWorkers;
+	}
+
+	/**
+	 * @param progress Receives progress updates, or <tt>null</tt> for none
+	 */
+	public void setProgress(Progress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Copies a file, or a directory with everything in it. Existing destination files
+	 * are overwritten, and missing parent directories created. A destination which is
+	 * the source itself, or a hard link to it, is refused.
+	 *
+	 * @param src The file or directory to copy
+	 *
+	 * @param dst Where to copy it to
+	 *
+	 * @return The total size of all files copied
+	 *
+	 * @throws IOException If anything failed to copy; the destination is then incomplete
+	 */
+	public long copy(File src, File dst) throws IOException {
+		if (!src.exists()) {
+			throw new FileNotFoundException(src.toString());
+		}
+		checkNotSame(src, dst);
+		final List<File[]> files = new ArrayList<File[]>();
+		if (src.isDirectory()) {
+			collect(src, dst, files);
+		} else {
+			mkdirs(dst.getAbsoluteFile().getParentFile());
+			files.add(new File[] { src, dst });
+		}
+		total = 0;
+		for (File[] f : files) {
+			total += f[0].length();
+		}
+		copied = new AtomicLong();
+		stages = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jaydio-copy-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			if (files.size() == 1) {
+				copyFile(files.get(0)[0], files.get(0)[1]);
+			} else {
+				copyFiles(files);
+			}
+			return total;
+		} finally {
+			stages.shutdownNow();
+			stages = null;
+		}
+	}
+
+	// creates the directories and links of the tree, and lists the files to copy
+	private static void collect(File srcDir, File dstDir, List<File[]> files) throws IOException {
+		mkdirs(dstDir);
+		final File[] children = srcDir.listFiles();
+		if (children == null) {
+			throw new IOException("could not list " + srcDir);
+		}
+		for (File child : children) {
+			final File target = new File(dstDir, child.getName());
+			final Path path = child.toPath();
+			if (Files.isSymbolicLink(path)) {
+				Files.deleteIfExists(target.toPath());
+				Files.createSymbolicLink(target.toPath(), Files.readSymbolicLink(path));
+			} else if (child.isDirectory()) {
+				collect(child, target, files);
+			} else if (child.isFile()) {
+				files.add(new File[] { child, target });
+			}
+		}
+	}
+
+	private static void mkdirs(File dir) throws IOException {
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create directory " + dir);
+		}
+	}
+
+	private void copyFiles(List<File[]> files) throws IOException {
+		final ExecutorService pool = Executors.newFixedThreadPool(fileWorkers, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jaydio-copy-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			final List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final File[] f : files) {
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						copyFile(f[0], f[1]);
+						return null;
+					}
+				}));
+			}
+			awaitAll(results);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// copying a file onto itself would truncate it before reading it
+	private static void checkNotSame(File src, File dst) throws IOException {
+		if (dst.exists() && Files.isSameFile(src.toPath(), dst.toPath())) {
+			throw new IOException("cannot copy " + src + " onto itself as " + dst);
+		}
+	}
+
+	private void copyFile(File src, File dst) throws IOException {
+		// also catches hard links between the source and destination trees
+		checkNotSame(src, dst);
+		final DirectIoLib srcLib = DirectIoLib.getLibForPath(src.getAbsoluteFile().getParent());
+		final DirectIoLib dstLib = DirectIoLib.getLibForPath(dst.getAbsoluteFile().getParent());
+		// block sizes are powers of two, so the larger one suits both files
+		final DirectIoLib lib = srcLib.blockSize() >= dstLib.blockSize() ? srcLib : dstLib;
+		final int chunk = lib.blockEnd(bufferSize);
+
+		final DirectIoByteChannel in = DirectIoByteChannel.getChannel(srcLib, src, true);
+		try {
+			final DirectIoByteChannel out = DirectIoByteChannel.getChannel(dstLib, dst, false);
+			try {
+				final long size = in.size();
+				// start from nothing, so that holes we skip stay holes
+				out.truncate(0);
+				out.truncate(size);
+				final int workers = size >= parallelThreshold ? rangeWorkers : 1;
+				final long perWorker = (size / workers + chunk - 1) / chunk * chunk;
+				final List<Future<Void>> ranges = new ArrayList<Future<Void>>();
+				for (int i = 1; i < workers && i * perWorker < size; i++) {
+					final long start = i * perWorker;
+					final long end = Math.min(size, start + perWorker);
+					ranges.add(stages.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							copyRange(lib, chunk, in, out, start, end);
+							return null;
+						}
+					}));
+				}
+				try {
+					copyRange(lib, chunk, in, out, 0, Math.min(size, workers == 1 ? size : perWorker));
+				} finally {
+					awaitAll(ranges);
+				}
+				// whole blocks were written, so cut the last one back
+				out.truncate(size);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		dst.setLastModified(src.lastModified());
+	}
+
+	// reads the data in [start, end) on this thread, and writes it on another
+	private void copyRange(DirectIoLib lib, int chunk, final DirectIoByteChannel in,
+			final DirectIoByteChannel out, long start, long end) throws IOException {
+		final BlockingQueue<AlignedDirectByteBuffer> free = new ArrayBlockingQueue<AlignedDirectByteBuffer>(queueDepth);
+		final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(queueDepth + 1);
+		final List<AlignedDirectByteBuffer> buffers = new ArrayList<AlignedDirectByteBuffer>();
+		Future<Void> writer = null;
+		try {
+			for (int i = 0; i < queueDepth; i++) {
+				final AlignedDirectByteBuffer b = AlignedDirectByteBuffer.allocate(lib, chunk);
+				buffers.add(b);
+				free.add(b);
+			}
+			final AtomicLong failed = new AtomicLong();
+			writer = stages.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException, InterruptedException {
+					Chunk c = null;
+					try {
+						while ((c = full.take()) != END) {
+							writeChunk(out, c);
+							free.put(c.buffer);
+							c = null;
+						}
+						return null;
+					} finally {
+						if (c != null && c != END) {
+							// hand back the failed buffer, so that a reader waiting for
+							// one wakes up, sees the failure and stops
+							failed.set(1);
+							free.offer(c.buffer);
+						}
+					}
+				}
+			});
+			try {
+				long pos = start;
+				while (pos < end && failed.get() == 0) {
+					final long data = in.nextData(pos);
+					if (data < 0 || data >= end) {
+						advance(end - pos);
+						break;
+					}
+					final long dataStart = lib.blockStart(data);
+					advance(dataStart - pos);
+					final long dataEnd = Math.min(end, lib.blockEnd(in.nextHole(data)));
+					for (long p = dataStart; p < dataEnd && failed.get() == 0; ) {
+						final AlignedDirectByteBuffer b = free.take();
+						final int n = (int) Math.min(chunk, dataEnd - p);
+						readChunk(in, b, p, n);
+						full.put(new Chunk(b, p, n, (int) Math.min(n, in.size() - p)));
+						p += n;
+					}
+					pos = dataEnd;
+				}
+			} finally {
+				full.put(END);
+			}
+			await(writer);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("copy interrupted");
+		} finally {
+			if (writer != null && !writer.isDone()) {
+				writer.cancel(true);
+				awaitQuietly(writer);
+			}
+			for (AlignedDirectByteBuffer b : buffers) {
+				b.close();
+			}
+		}
+	}
+
+	private static void readChunk(DirectIoByteChannel in, AlignedDirectByteBuffer b, long position, int length)
+			throws IOException {
+		b.clear();
+		b.limit(length);
+		int done = 0;
+		// the file may end in the middle of its last block; the rest of that
+		// block gets written anyway, and cut off by the final truncate
+		while (done < length && position + done < in.size()) {
+			b.position(done);
+			done += in.read(b, position + done);
+		}
+	}
+
+	private void writeChunk(DirectIoByteChannel out, Chunk c) throws IOException {
+		final AlignedDirectByteBuffer b = c.buffer;
+		b.clear();
+		b.limit(c.length);
+		int done = 0;
+		while (done < c.length) {
+			b.position(done);
+			final int n = out.write(b, c.position + done);
+			if (n <= 0) {
+				throw new IOException("could not write at offset " + (c.position + done));
+			}
+			done += n;
+		}
+		advance(c.bytes);
+	}
+
+	private void advance(long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		final long now = copied.addAndGet(bytes);
+		final Progress p = progress;
+		if (p != null) {
+			p.update(now, total);
+		}
+	}
+
+	// waits for every task, and then rethrows the first failure
+	private static void awaitAll(List<Future<Void>> futures) throws IOException {
+		IOException failure = null;
+		for (Future<Void> f : futures) {
+			try {
+				await(f);
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static void await(Future<Void> f) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					f.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					f.cancel(true);
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					} else if (cause instanceof InterruptedException) {
+						throw new InterruptedIOException("copy interrupted");
+					}
+					throw new IOException(cause);
+				} catch (java.util.concurrent.CancellationException e) {
+					throw new InterruptedIOException("copy cancelled");
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void awaitQuietly(Future<Void> f) {
+		try {
+			await(f);
+		} catch (IOException ignored) {
+			// the first failure has been reported already
+		} catch (RuntimeException ignored) {
+			// same
+		}
+	}
+}
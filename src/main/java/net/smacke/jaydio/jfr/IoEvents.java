@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.jfr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events for native I/O, so that slow <tt>O_DIRECT</tt>
+ * operations, which JFR otherwise only shows as opaque native time, can be correlated
+ * with GC pauses, safepoints and everything else in a recording. </p>
+ *
+ * <p> Every operation is wrapped like this:
+ * <pre>
+ * final Object event = IoEvents.begin(IoEvents.READ);
+ * try {
+ *     // the operation
+ * } finally {
+ *     IoEvents.commit(event, fd, offset, length);
+ * }
+ * </pre>
+ * Unless a recording is running, {@link #begin(int)} returns <tt>null</tt> after a single
+ * volatile read, and {@link #commit(Object, int, long, long)} does nothing. While a
+ * recording is running, events are only committed if they are enabled and took at least
+ * their threshold, 10 ms by default. Both can be changed in the recording's settings, e.g.
+ * <tt>net.smacke.jaydio.Read#threshold=1 ms</tt>. </p>
+ *
+ * <p> On JVMs without the <tt>jdk.jfr</tt> API, i.e. before JDK 8u262, this class does
+ * nothing at all. The event classes are only ever loaded reflectively, so nothing else
+ * in jaydio depends on that API. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class IoEvents {
+
+	/** <tt>pread</tt> of aligned blocks */
+	public static final int READ = 0;
+	/** <tt>pwrite</tt> of aligned blocks */
+	public static final int WRITE = 1;
+	/** <tt>ftruncate</tt>; the length is the new file length */
+	public static final int TRUNCATE = 2;
+	/** Opening a file */
+	public static final int OPEN = 3;
+	/** Closing a file */
+	public static final int CLOSE = 4;
+	/** An aligner writing out the dirty blocks of its window */
+	public static final int FLUSH = 5;
+	/** An aligner reading blocks into its window */
+	public static final int REFILL = 6;
+
+	private static final Logger logger = LoggerFactory.getLogger(IoEvents.class);
+
+	private static final Recorder recorder = createRecorder();
+
+	private IoEvents() {
+	}
+
+	private static Recorder createRecorder() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		try {
+			return (Recorder) Class.forName("net.smacke.jaydio.jfr.JfrRecorder").getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			// the reflective lookup or the constructor failed
+			logger.debug("JFR events disabled", e);
+			return null;
+		} catch (LinkageError e) {
+			// the JVM has jdk.jfr, but not everything that JfrRecorder uses
+			logger.debug("JFR events disabled", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return Whether this JVM supports JFR events at all
+	 */
+	public static boolean isAvailable() {
+		return recorder != null;
+	}
+
+	/**
+	 * Starts timing an operation.
+	 *
+	 * @param kind One of the constants of this class, e.g. {@link #READ}
+	 *
+	 * @return A token to pass to <tt>commit</tt>, or <tt>null</tt> if no recording is running
+	 */
+	public static Object begin(int kind) {
+		return recorder == null ? null : recorder.begin(kind);
+	}
+
+	/**
+	 * Finishes timing an operation on an open file descriptor, and records it if
+	 * it was slow enough.
+	 *
+	 * @param event What {@link #begin(int)} returned; may be <tt>null</tt>
+	 *
+	 * @param fd The file descriptor operated on, announced by {@link #opened(int, String)}
+	 *
+	 * @param offset The file offset of the operation, or 0 if there is none
+	 *
+	 * @param length The number of bytes involved, or 0 if there are none
+	 */
+	public static void commit(Object event, int fd, long offset, long length) {
+		if (event != null) {
+			recorder.commit(event, recorder.path(fd), offset, length);
+		}
+	}
+
+	/**
+	 * Like {@link #commit(Object, int, long, long)}, for operations which know the path
+	 * but not the descriptor of the file.
+	 */
+	public static void commit(Object event, String path, long offset, long length) {
+		if (event != null) {
+			recorder.commit(event, path, offset, length);
+		}
+	}
+
+	/**
+	 * Remembers which file a new descriptor belongs to, so that events on the
+	 * descriptor can name the file.
+	 */
+	public static void opened(int fd, String path) {
+		if (recorder != null) {
+			recorder.opened(fd, path);
+		}
+	}
+
+	/**
+	 * Forgets what {@link #opened(int, String)} remembered, once the descriptor is closed.
+	 */
+	public static void closed(int fd) {
+		if (recorder != null) {
+			recorder.closed(fd);
+		}
+	}
+}
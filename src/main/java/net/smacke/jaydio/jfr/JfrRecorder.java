@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.jfr;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Threshold;
+
+/**
+ * Records {@link IoEvents} as JFR events. Only loaded reflectively, and only if the
+ * <tt>jdk.jfr</tt> API exists. </p>
+ *
+ * <p> Events are only created while some recording is running, which a listener keeps
+ * track of; whether a recording actually wants them is up to JFR. </p>
+ *
+ * @author smacke
+ *
+ */
+final class JfrRecorder extends Recorder {
+
+	@Category({ "Jaydio", "I/O" })
+	@Threshold("10 ms")
+	abstract static class IoEvent extends Event {
+		@Label("Path")
+		@Description("The file operated on")
+		String path;
+
+		@Label("Offset")
+		@Description("The file offset of the operation")
+		long offset;
+
+		@Label("Length")
+		@DataAmount
+		long length;
+	}
+
+	@Name("net.smacke.jaydio.Read")
+	@Label("Direct Read")
+	@Description("pread of aligned blocks")
+	static final class ReadEvent extends IoEvent {
+	}
+
+	@Name("net.smacke.jaydio.Write")
+	@Label("Direct Write")
+	@Description("pwrite of aligned blocks")
+	static final class WriteEvent extends IoEvent {
+	}
+
+	@Name("net.smacke.jaydio.Truncate")
+	@Label("Truncate")
+	@Description("ftruncate; the length is the new file length")
+	static final class TruncateEvent extends IoEvent {
+	}
+
+	@Name("net.smacke.jaydio.Open")
+	@Label("Open")
+	static final class OpenEvent extends IoEvent {
+	}
+
+	@Name("net.smacke.jaydio.Close")
+	@Label("Close")
+	static final class CloseEvent extends IoEvent {
+	}
+
+	@Name("net.smacke.jaydio.Flush")
+	@Label("Window Flush")
+	@Description("An aligner writing out the dirty blocks of its window")
+	static final class FlushEvent extends IoEvent {
+	}
+
+	@Name("net.smacke.jaydio.Refill")
+	@Label("Window Refill")
+	@Description("An aligner reading blocks into its window")
+	static final class RefillEvent extends IoEvent {
+	}
+
+	private final Set<Recording> running = Collections.newSetFromMap(new ConcurrentHashMap<Recording, Boolean>());
+	private volatile boolean recording;
+
+	JfrRecorder() {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recorderInitialized(FlightRecorder recorder) {
+				for (Recording r : recorder.getRecordings()) {
+					recordingStateChanged(r);
+				}
+			}
+
+			@Override
+			public void recordingStateChanged(Recording r) {
+				if (r.getState() == RecordingState.RUNNING) {
+					running.add(r);
+				} else {
+					running.remove(r);
+				}
+				recording = !running.isEmpty();
+			}
+		});
+	}
+
+	@Override
+	Object begin(int kind) {
+		if (!recording) {
+			return null;
+		}
+		final IoEvent event;
+		switch (kind) {
+		case IoEvents.READ:
+			event = new ReadEvent();
+			break;
+		case IoEvents.WRITE:
+			event = new WriteEvent();
+			break;
+		case IoEvents.TRUNCATE:
+			event = new TruncateEvent();
+			break;
+		case IoEvents.OPEN:
+			event = new OpenEvent();
+			break;
+		case IoEvents.CLOSE:
+			event = new CloseEvent();
+			break;
+		case IoEvents.FLUSH:
+			event = new FlushEvent();
+			break;
+		case IoEvents.REFILL:
+			event = new RefillEvent();
+			break;
+		default:
+			throw new IllegalArgumentException("unknown event kind " + kind);
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void commit(Object token, String path, long offset, long length) {
+		final IoEvent event = (IoEvent) token;
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = path;
+			event.offset = offset;
+			event.length = length;
+			event.commit();
+		}
+	}
+}
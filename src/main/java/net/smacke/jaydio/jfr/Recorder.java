@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.jfr;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What {@link IoEvents} delegates to once it knows that JFR is there. This class must
+ * not refer to the <tt>jdk.jfr</tt> API, so that {@link IoEvents} can be loaded on any JVM.
+ *
+ * @author smacke
+ *
+ */
+abstract class Recorder {
+
+	private final ConcurrentHashMap<Integer, String> paths = new ConcurrentHashMap<Integer, String>();
+
+	abstract Object begin(int kind);
+
+	abstract void commit(Object event, String path, long offset, long length);
+
+	final void opened(int fd, String path) {
+		paths.put(fd, path);
+	}
+
+	final void closed(int fd) {
+		paths.remove(fd);
+	}
+
+	final String path(int fd) {
+		final String path = paths.get(fd);
+		return path != null ? path : "fd " + fd;
+	}
+}
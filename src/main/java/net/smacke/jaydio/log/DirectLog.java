@@ -0,0 +1,737 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+
+/**
+ * An append-only write-ahead log in a directory of <tt>O_DIRECT</tt> segment files,
+ * for many threads appending records and waiting for them to become durable. </p>
+ *
+ * <p> Records are addressed by their log sequence number (LSN), a byte offset into the
+ * log; {@link #append(byte[]) append} returns the LSN just past the new record, which
+ * can then be passed to {@link #sync(long) sync}. Appending doesn't take any lock: each
+ * producer reserves space in the current aligned staging buffer with a compare-and-set,
+ * and copies its record there. A single background thread writes staging buffers to
+ * the current segment as they fill up, and when any thread asks for a sync, it seals
+ * the buffer, writes everything up to there with one <tt>pwrite</tt> and makes it durable
+ * with one <tt>fdatasync</tt>. Threads which ask for a sync while that is going on get
+ * served together by the next round, so the cost of syncing, including re-writing the
+ * partial block at the tail of the log, is shared by all of them. At most
+ * <tt>maxBuffers</tt> staging buffers exist at once; if all of them are waiting to be
+ * written, appending waits too. </p>
+ *
+ * <p> Segments are named after the LSN of their first byte, preallocated when they are
+ * created, and synced before the log moves on to the next one, so that a crash can
+ * only lose records from the tail of the last segment. A record never spans segments.
+ * Each record is stored as its length and a CRC32 checksum (both 4 bytes, big-endian)
+ * followed by its bytes; the checksum covers the length too, so that zeroed or torn
+ * space never passes for a record. Opening a log finds the end of the intact records in
+ * the last segment and continues from there. Use {@link DirectLogReader} to read the
+ * records back. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class DirectLog implements Closeable {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	public static final int DEFAULT_MAX_BUFFERS = 4;
+
+	static final int HEADER_SIZE = 8;
+	static final String SEGMENT_SUFFIX = ".log";
+
+	// set in a batch's reservation counter once no more records may go there
+	private static final long SEALED = 1L << 62;
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final ThreadLocal<CRC32> crcs = new ThreadLocal<CRC32>() {
+		@Override
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+
+	/**
+	 * A staging buffer for a contiguous range of one segment. Index 0 of the buffer
+	 * mirrors the block aligned LSN <tt>fileStart</tt>; records go from <tt>headOffset</tt>
+	 * on, and the bytes before that are filled in from the previous batch when written.
+	 */
+	private static final class Batch {
+		final AlignedDirectByteBuffer buffer;
+		// a big endian view of buffer, which producers write their headers through
+		final ByteBuffer view;
+		final long segment;
+		final long fileStart;
+		final int headOffset;
+		final int limit;
+		// the buffer index where the next record goes, plus SEALED
+		final AtomicLong reserved;
+		// the number of bytes which producers have finished copying in
+		final AtomicLong copied = new AtomicLong();
+
+		Batch(AlignedDirectByteBuffer buffer, long segment, long fileStart, int headOffset, int limit) {
+			this.buffer = buffer;
+			this.view = buffer.asByteBuffer().order(ByteOrder.BIG_ENDIAN);
+			this.segment = segment;
+			this.fileStart = fileStart;
+			this.headOffset = headOffset;
+			this.limit = limit;
+			this.reserved = new AtomicLong(headOffset);
+		}
+
+		int end() {
+			return (int) (reserved.get() & ~SEALED);
+		}
+	}
+
+	private final DirectIoLib lib;
+	private final File dir;
+	private final long segmentSize;
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final int maxRecordSize;
+
+	private volatile Batch current;
+	private final Queue<Batch> sealed = new ConcurrentLinkedQueue<Batch>();
+	private final Queue<AlignedDirectByteBuffer> free = new ConcurrentLinkedQueue<AlignedDirectByteBuffer>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition work = lock.newCondition();
+	private final Condition progress = lock.newCondition();
+	// signalled when a sealed batch gets replaced, or will never be
+	private final Condition installed = lock.newCondition();
+	// signalled when the last producer finishes copying into a sealed batch
+	private final Condition copiedIn = lock.newCondition();
+	// guarded by lock
+	private int allocated;
+	private long syncTarget;
+	private boolean closing;
+
+	private volatile boolean closed;
+	private volatile IOException failure;
+	private volatile long written;
+	private volatile long durable;
+
+	// only touched by the flusher thread once it has started
+	private DirectIoByteChannel channel;
+	private long channelSegment;
+	private final byte[] tail;
+	private final byte[] zeros;
+	private final Thread flusher;
+
+	public static DirectLog open(File dir) throws IOException {
+		return open(DirectIoLib.getLibForPath(dir.toString()), dir, DEFAULT_SEGMENT_SIZE, DEFAULT_BUFFER_SIZE,
+				DEFAULT_MAX_BUFFERS);
+	}
+
+	/**
+	 * Opens the log in <tt>dir</tt>, creating it if necessary.
+	 *
+	 * @param segmentSize The size of each segment file; a multiple of the block size
+	 *
+	 * @param bufferSize The size of each staging buffer; a multiple of the block size no
+	 *        larger than <tt>segmentSize</tt>. This bounds the size of a single record.
+	 *
+	 * @param maxBuffers The maximum number of staging buffers; at least 2
+	 */
+	public static DirectLog open(DirectIoLib lib, File dir, long segmentSize, int bufferSize, int maxBuffers)
+			throws IOException {
+		if (segmentSize % lib.blockSize() != 0 || bufferSize % lib.blockSize() != 0) {
+			throw new IllegalArgumentException("segment size " + segmentSize + " and buffer size " + bufferSize
+					+ " must be multiples of the block size " + lib.blockSize());
+		}
+		if (bufferSize <= lib.blockSize() || bufferSize > segmentSize) {
+			throw new IllegalArgumentException("buffer size " + bufferSize + " must be larger than a block "
+					+ "and no larger than the segment size " + segmentSize);
+		}
+		if (maxBuffers < 2) {
+			throw new IllegalArgumentException("need at least 2 buffers, got " + maxBuffers);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create log directory " + dir);
+		}
+		return new DirectLog(lib, dir, segmentSize, bufferSize, maxBuffers);
+	}
+
+	private DirectLog(DirectIoLib lib, File dir, long segmentSize, int bufferSize, int maxBuffers)
+			throws IOException {
+		this.lib = lib;
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.maxRecordSize = bufferSize - lib.blockSize() - HEADER_SIZE;
+		this.tail = new byte[lib.blockSize()];
+		this.zeros = new byte[lib.blockSize()];
+
+		final long end = recover();
+		written = end;
+		durable = end;
+		current = newBatch(takeBuffer(), channelSegment, end);
+
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "jaydio-log-flusher-" + threadCount.incrementAndGet());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Finds the end of the intact records in the last segment, drops whatever follows,
+	 * and opens that segment for writing.
+	 *
+	 * @return The LSN where the next record goes
+	 */
+	private long recover() throws IOException {
+		final List<Long> segments = listSegments(dir);
+		long end = 0;
+		if (!segments.isEmpty()) {
+			channelSegment = segments.get(segments.size() - 1);
+			final DirectLogReader reader = new DirectLogReader(lib, dir,
+					Collections.singletonList(channelSegment), DirectLogReader.DEFAULT_BUFFER_SIZE);
+			try {
+				while (reader.next() != null) {
+					// just looking for the end
+				}
+				end = Math.max(reader.position(), channelSegment);
+			} finally {
+				reader.close();
+			}
+		}
+		channel = DirectIoByteChannel.getChannel(lib, segmentFile(dir, channelSegment), false);
+		final long offset = end - channelSegment;
+		final long blockStart = lib.blockStart(offset);
+		if (offset > blockStart) {
+			// the partial block at the tail gets re-written along with the next records
+			final AlignedDirectByteBuffer block = AlignedDirectByteBuffer.allocate(lib, lib.blockSize());
+			try {
+				channel.read(block, blockStart);
+				block.get(0, tail, 0, (int) (offset - blockStart));
+			} finally {
+				block.close();
+			}
+		}
+		// truncating drops the blocks past the tail block; bytes an interrupted write left
+		// in the tail block itself stay until it is rewritten, zero padded, with the next records
+		channel.truncate(lib.blockEnd(offset));
+		channel.preallocate(segmentSize);
+		channel.force(true);
+		return end;
+	}
+
+	/**
+	 * @return The largest record which fits in a staging buffer
+	 */
+	public int maxRecordSize() {
+		return maxRecordSize;
+	}
+
+	/**
+	 * @return The LSN just past the last record appended so far
+	 */
+	public long position() {
+		final Batch b = current;
+		return b.fileStart + b.end();
+	}
+
+	/**
+	 * @return The LSN up to which all records are known to be durable
+	 */
+	public long durablePosition() {
+		return durable;
+	}
+
+	public long append(byte[] record) throws IOException {
+		return append(record, 0, record.length);
+	}
+
+	/**
+	 * Appends a record to the log. The record is not durable before a {@link #sync(long)}
+	 * with the returned LSN (or a later one) has returned.
+	 *
+	 * @return The LSN just past the new record
+	 *
+	 * @throws IllegalArgumentException If the record is larger than {@link #maxRecordSize()}
+	 *
+	 * @throws IOException If writing the log failed earlier, or the log is closed
+	 */
+	public long append(byte[] src, int offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || offset > src.length - length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (length > maxRecordSize) {
+			throw new IllegalArgumentException("record of " + length + " bytes is larger than the maximum of "
+					+ maxRecordSize);
+		}
+		final int size = HEADER_SIZE + length;
+		while (true) {
+			final Batch b = current;
+			final long r = b.reserved.get();
+			if ((r & SEALED) != 0) {
+				// whoever sealed it is installing the next batch, which may take a while
+				// if all buffers are waiting to be written
+				awaitInstall(b);
+			} else if (r + size > b.limit) {
+				if (b.reserved.compareAndSet(r, r | SEALED)) {
+					retire(b);
+					final long end = b.fileStart + r;
+					install(b, end + size > b.segment + segmentSize, takeBuffer());
+				}
+			} else if (b.reserved.compareAndSet(r, r + size)) {
+				b.view.putInt((int) r, length);
+				b.view.putInt((int) r + 4, checksum(length, src, offset));
+				b.buffer.put((int) r + HEADER_SIZE, src, offset, length);
+				final long copied = b.copied.addAndGet(size);
+				if ((b.reserved.get() & SEALED) != 0 && copied == b.end() - b.headOffset) {
+					// the flusher may already be waiting to write the batch
+					lock.lock();
+					try {
+						copiedIn.signal();
+					} finally {
+						lock.unlock();
+					}
+				}
+				return b.fileStart + r + size;
+			}
+		}
+	}
+
+	/**
+	 * Waits until every record up to <tt>lsn</tt> is durable. Concurrent calls are
+	 * served by as few writes and syncs as possible.
+	 *
+	 * @param lsn A position returned by {@link #append(byte[])}
+	 *
+	 * @throws IOException If writing or syncing the log failed
+	 */
+	public void sync(long lsn) throws IOException {
+		lsn = Math.min(lsn, position());
+		if (durable >= lsn) {
+			checkError();
+			return;
+		}
+		lock.lock();
+		try {
+			if (lsn > syncTarget) {
+				syncTarget = lsn;
+				work.signal();
+			}
+			while (durable < lsn) {
+				checkError();
+				if (!flusher.isAlive()) {
+					throw new ClosedChannelException();
+				}
+				progress.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+		checkError();
+	}
+
+	/**
+	 * Waits until every record appended so far is durable.
+	 */
+	public void sync() throws IOException {
+		sync(position());
+	}
+
+	/**
+	 * Makes everything appended so far durable, and closes the log.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			// seal the current batch for good; appending fails from here on
+			while (true) {
+				final Batch b = current;
+				final long r = b.reserved.get();
+				if ((r & SEALED) == 0 && b.reserved.compareAndSet(r, r | SEALED)) {
+					sealed.add(b);
+					break;
+				}
+				if (failure != null) {
+					break;
+				}
+				lock.lock();
+				try {
+					while (current == b && failure == null) {
+						installed.awaitUninterruptibly();
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			lock.lock();
+			try {
+				// producers waiting for the next batch give up
+				installed.signalAll();
+				// the flusher stops once it has written everything queued before this
+				closing = true;
+				syncTarget = Long.MAX_VALUE;
+				work.signal();
+			} finally {
+				lock.unlock();
+			}
+			boolean interrupted = false;
+			while (flusher.isAlive()) {
+				try {
+					flusher.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			try {
+				channel.close();
+			} finally {
+				AlignedDirectByteBuffer b;
+				while ((b = free.poll()) != null) {
+					b.close();
+				}
+				Batch s;
+				while ((s = sealed.poll()) != null) {
+					s.buffer.close();
+				}
+			}
+		}
+		checkError();
+	}
+
+	private void ensureOpen() throws IOException {
+		checkError();
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	private void checkError() throws IOException {
+		final IOException e = failure;
+		if (e != null) {
+			throw new IOException("writing the log failed: " + e.getMessage(), e);
+		}
+	}
+
+	private Batch newBatch(AlignedDirectByteBuffer buffer, long segment, long start) {
+		final long fileStart = segment + lib.blockStart(start - segment);
+		final int limit = (int) Math.min(buffer.capacity(), segment + segmentSize - fileStart);
+		return new Batch(buffer, segment, fileStart, (int) (start - fileStart), limit);
+	}
+
+	// queues a batch which was just sealed for writing
+	private void retire(Batch b) {
+		sealed.add(b);
+		lock.lock();
+		try {
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// replaces a sealed batch with the one following it
+	private void install(Batch b, boolean nextSegment, AlignedDirectByteBuffer buffer) {
+		if (nextSegment) {
+			final long segment = b.segment + segmentSize;
+			current = newBatch(buffer, segment, segment);
+		} else {
+			current = newBatch(buffer, b.segment, b.fileStart + b.end());
+		}
+		lock.lock();
+		try {
+			installed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// waits until the sealed batch b has been replaced
+	private void awaitInstall(Batch b) throws IOException {
+		lock.lock();
+		try {
+			while (current == b) {
+				ensureOpen();
+				installed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private AlignedDirectByteBuffer takeBuffer() throws IOException {
+		AlignedDirectByteBuffer b = free.poll();
+		if (b != null) {
+			return b;
+		}
+		lock.lock();
+		try {
+			while ((b = free.poll()) == null) {
+				if (allocated < maxBuffers) {
+					allocated++;
+					return AlignedDirectByteBuffer.allocate(lib, bufferSize);
+				}
+				checkError();
+				progress.awaitUninterruptibly();
+			}
+			return b;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private AlignedDirectByteBuffer tryTakeBuffer() {
+		final AlignedDirectByteBuffer b = free.poll();
+		if (b != null) {
+			return b;
+		}
+		lock.lock();
+		try {
+			if (allocated < maxBuffers) {
+				allocated++;
+				return AlignedDirectByteBuffer.allocate(lib, bufferSize);
+			}
+			return free.poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushLoop() {
+		try {
+			while (true) {
+				final long target;
+				final boolean stop;
+				lock.lock();
+				try {
+					while (sealed.isEmpty() && syncTarget <= durable && !closing) {
+						work.awaitUninterruptibly();
+					}
+					target = syncTarget;
+					stop = closing;
+				} finally {
+					lock.unlock();
+				}
+
+				Batch b;
+				while ((b = sealed.poll()) != null) {
+					write(b);
+				}
+				if (target > written && !stop) {
+					// bring the records which are waited for into the queue
+					sealCurrent();
+					while ((b = sealed.poll()) != null) {
+						write(b);
+					}
+				}
+				if (target > durable && written > durable) {
+					channel.force(false);
+					lock.lock();
+					try {
+						durable = written;
+						progress.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				} else if (target > written && !stop) {
+					// a producer is still between sealing and queueing a batch
+					lock.lock();
+					try {
+						while (sealed.isEmpty() && !closing) {
+							work.awaitUninterruptibly();
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+				if (stop && sealed.isEmpty()) {
+					return;
+				}
+			}
+		} catch (Throwable t) {
+			failure = t instanceof IOException ? (IOException) t : new IOException(t);
+			lock.lock();
+			try {
+				progress.signalAll();
+				installed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// only called by the flusher, which must never wait for a buffer since it's the one freeing them
+	private void sealCurrent() {
+		final AlignedDirectByteBuffer buffer = tryTakeBuffer();
+		if (buffer == null) {
+			return; // everything is queued already, so there'll be another round
+		}
+		final Batch b = current;
+		final long r = b.reserved.get();
+		if ((r & SEALED) == 0 && r > b.headOffset && b.reserved.compareAndSet(r, r | SEALED)) {
+			retire(b);
+			install(b, false, buffer);
+		} else {
+			free.add(buffer);
+		}
+	}
+
+	private void write(Batch b) throws IOException {
+		final int end = b.end();
+		if (b.copied.get() < end - b.headOffset) {
+			// a producer is still copying its record
+			lock.lock();
+			try {
+				while (b.copied.get() < end - b.headOffset) {
+					copiedIn.awaitUninterruptibly();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		final AlignedDirectByteBuffer buffer = b.buffer;
+		if (end > b.headOffset) {
+			if (b.segment != channelSegment) {
+				nextSegment(b.segment);
+			}
+			buffer.put(0, tail, 0, b.headOffset);
+			final int blockEnd = lib.blockEnd(end);
+			buffer.put(end, zeros, 0, blockEnd - end);
+			buffer.position(0);
+			buffer.limit(end);
+			channel.write(buffer, b.fileStart - b.segment);
+			final int blockStart = lib.blockStart(end);
+			buffer.get(blockStart, tail, 0, end - blockStart);
+			written = b.fileStart + end;
+		}
+		buffer.clear();
+		free.add(buffer);
+		lock.lock();
+		try {
+			progress.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void nextSegment(long segment) throws IOException {
+		channel.force(false);
+		channel.close();
+		channelSegment = segment;
+		channel = DirectIoByteChannel.getChannel(lib, segmentFile(dir, segment), false);
+		channel.preallocate(segmentSize);
+		syncDirectory(dir);
+	}
+
+	private static void syncDirectory(File dir) throws IOException {
+		final FileChannel c = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		try {
+			c.force(true);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @return The checksum of a record of <tt>length</tt> bytes from <tt>src[offset]</tt>,
+	 *         which covers the big-endian length too
+	 */
+	static int checksum(int length, byte[] src, int offset) {
+		final CRC32 crc = crcs.get();
+		crc.reset();
+		crc.update(length >>> 24);
+		crc.update(length >>> 16);
+		crc.update(length >>> 8);
+		crc.update(length);
+		crc.update(src, offset, length);
+		return (int) crc.getValue();
+	}
+
+	static void putInt(byte[] b, int index, int value) {
+		b[index] = (byte) (value >>> 24);
+		b[index + 1] = (byte) (value >>> 16);
+		b[index + 2] = (byte) (value >>> 8);
+		b[index + 3] = (byte) value;
+	}
+
+	static int getInt(byte[] b, int index) {
+		return ((b[index] & 0xFF) << 24) | ((b[index + 1] & 0xFF) << 16)
+				| ((b[index + 2] & 0xFF) << 8) | (b[index + 3] & 0xFF);
+	}
+
+	static File segmentFile(File dir, long segment) {
+		return new File(dir, String.format("%020d", segment) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return The first LSNs of the segments in <tt>dir</tt>, in ascending order
+	 */
+	static List<Long> listSegments(File dir) {
+		final List<Long> segments = new ArrayList<Long>();
+		final String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException ignored) {
+						// not ours
+					}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+}
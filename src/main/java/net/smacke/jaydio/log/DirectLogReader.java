@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+
+/**
+ * Reads the records of a {@link DirectLog} back in order, e.g. to recover after a
+ * crash. </p>
+ *
+ * <p> Segments are read sequentially with large aligned reads, and records are
+ * copied out of the read buffer, so that reading the log costs about one
+ * <tt>pread</tt> per buffer full of records. A segment ends at the first record whose
+ * checksum doesn't match (usually the zeroes following the last record); reading then
+ * continues with the next segment. The log must not be appended to while it is
+ * being read. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class DirectLogReader implements Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	private final DirectIoLib lib;
+	private final File dir;
+	private final List<Long> segments;
+	private final AlignedDirectByteBuffer buffer;
+	private final byte[] header = new byte[DirectLog.HEADER_SIZE];
+
+	private int nextSegment;
+	private DirectIoByteChannel channel;
+	private long segment;
+	private long windowStart;
+	private int windowLength;
+	private long offset;
+	private long position;
+
+	public static DirectLogReader open(File dir) throws IOException {
+		return open(DirectIoLib.getLibForPath(dir.toString()), dir, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize The size of each read; a multiple of the block size
+	 */
+	public static DirectLogReader open(DirectIoLib lib, File dir, int bufferSize) throws IOException {
+		if (!dir.isDirectory()) {
+			throw new IOException("no log directory " + dir);
+		}
+		return new DirectLogReader(lib, dir, DirectLog.listSegments(dir), bufferSize);
+	}
+
+	DirectLogReader(DirectIoLib lib, File dir, List<Long> segments, int bufferSize) {
+		this.lib = lib;
+		this.dir = dir;
+		this.segments = segments;
+		this.buffer = AlignedDirectByteBuffer.allocate(lib, bufferSize);
+	}
+
+	/**
+	 * @return The next record, or <tt>null</tt> at the end of the log
+	 */
+	public byte[] next() throws IOException {
+		while (true) {
+			if (channel == null) {
+				if (nextSegment == segments.size()) {
+					return null;
+				}
+				openSegment(segments.get(nextSegment++));
+			}
+			final byte[] record = readRecord();
+			if (record != null) {
+				position = segment + offset;
+				return record;
+			}
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * @return The LSN just past the last record returned by {@link #next()}
+	 */
+	public long position() {
+		return position;
+	}
+
+	private void openSegment(long segment) throws IOException {
+		this.channel = DirectIoByteChannel.getChannel(lib, DirectLog.segmentFile(dir, segment), true);
+		this.segment = segment;
+		this.windowStart = 0;
+		this.windowLength = 0;
+		this.offset = 0;
+	}
+
+	private byte[] readRecord() throws IOException {
+		final long size = channel.size();
+		if (offset + DirectLog.HEADER_SIZE > size) {
+			return null;
+		}
+		copy(offset, header, 0, DirectLog.HEADER_SIZE);
+		final int length = DirectLog.getInt(header, 0);
+		if (length < 0 || offset + DirectLog.HEADER_SIZE + length > size) {
+			return null;
+		}
+		final byte[] record = new byte[length];
+		copy(offset + DirectLog.HEADER_SIZE, record, 0, length);
+		if (DirectLog.checksum(length, record, 0) != DirectLog.getInt(header, 4)) {
+			return null;
+		}
+		offset += DirectLog.HEADER_SIZE + length;
+		return record;
+	}
+
+	// copies the bytes at segment offset pos, refilling the buffer as needed
+	private void copy(long pos, byte[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			if (pos < windowStart || pos >= windowStart + windowLength) {
+				fill(lib.blockStart(pos));
+			}
+			final int index = (int) (pos - windowStart);
+			final int n = Math.min(len, windowLength - index);
+			buffer.get(index, dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void fill(long start) throws IOException {
+		final long size = channel.size();
+		buffer.clear();
+		buffer.limit((int) Math.min(buffer.capacity(), lib.blockEnd(size) - start));
+		final int n = channel.read(buffer, start);
+		windowStart = start;
+		windowLength = (int) Math.min(n, size - start);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		} finally {
+			buffer.close();
+		}
+	}
+}
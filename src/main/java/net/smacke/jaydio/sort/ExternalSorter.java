@@ -0,0 +1,684 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.sort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.smacke.jaydio.DirectFileOutputStream;
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+
+/**
+ * Sorts files of records which don't fit into memory, with direct I/O throughout, so
+ * that sorting hundreds of gigabytes doesn't evict everything else from the page
+ * cache. </p>
+ *
+ * <p> Records either all have the same size, see {@link #fixedSize(int, RecordOrder)},
+ * or are each preceded by their length as a 4 byte big endian int, the way
+ * {@link java.io.DataOutput#writeInt(int)} writes it, see
+ * {@link #lengthPrefixed(RecordOrder)}. The output has the same format as the input. </p>
+ *
+ * <p> The input is read into run buffers, which {@link #setSortThreads(int) sortThreads}
+ * threads sort and spill to temporary files while the next buffer fills. Orders with key
+ * prefixes are radix sorted, see {@link RecordOrder}. The runs are then merged, at most
+ * {@link #setMaxFanIn(int) maxFanIn} at a time, by readers which prefetch their next
+ * window in the background, into output written behind in the background. The sort is
+ * stable: records which compare equal keep their input order. </p>
+ *
+ * <p> {@link #setMemory(long) memory} bounds the run buffers, which take it all; on top
+ * of that, indexing a run takes up to 24 bytes per record while it is being sorted.
+ * Merging needs about three {@link #setMergeBufferSize(int) mergeBufferSize} buffers
+ * per run being merged. </p>
+ *
+ * <p> Instances may be reused, but not by several threads at once. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class ExternalSorter {
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static final int MAX_RUN_SIZE = 1 << 30;
+	private static final int INPUT_BUFFER_SIZE = 8 << 20;
+	private static final int OUTPUT_BUFFER_SIZE = 8 << 20;
+	private static final int SPILL_BUFFER_SIZE = 1 << 20;
+	// how many windows of output may be queued for writing
+	private static final int WRITE_BEHIND_WINDOWS = 4;
+
+	// or -1 for length prefixed records
+	private final int recordSize;
+	private final RecordOrder order;
+
+	private long memory = 256L << 20;
+	private int sortThreads = Runtime.getRuntime().availableProcessors();
+	private int mergeBufferSize = 1 << 20;
+	private int maxFanIn;
+	private File tempDirectory;
+
+	private ExternalSorter(int recordSize, RecordOrder order) {
+		if (order == null) {
+			throw new NullPointerException("order");
+		}
+		this.recordSize = recordSize;
+		this.order = order;
+	}
+
+	/**
+	 * @param recordSize The size of every record
+	 *
+	 * @param order How to sort the records
+	 */
+	public static ExternalSorter fixedSize(int recordSize, RecordOrder order) {
+		if (recordSize <= 0) {
+			throw new IllegalArgumentException("record size must be positive, got " + recordSize);
+		}
+		return new ExternalSorter(recordSize, order);
+	}
+
+	/**
+	 * @param order How to sort the records; compares records without their length prefixes
+	 */
+	public static ExternalSorter lengthPrefixed(RecordOrder order) {
+		return new ExternalSorter(-1, order);
+	}
+
+	/**
+	 * @param memory The memory for run buffers. The default is 256 MiB.
+	 */
+	public void setMemory(long memory) {
+		if (memory <= 0) {
+			throw new IllegalArgumentException("memory must be positive, got " + memory);
+		}
+		this.memory = memory;
+	}
+
+	/**
+	 * @param sortThreads The number of runs sorted at once. The default is the number of processors.
+	 */
+	public void setSortThreads(int sortThreads) {
+		if (sortThreads < 1) {
+			throw new IllegalArgumentException("need at least one sort thread, got " + sortThreads);
+		}
+		this.sortThreads = sortThreads;
+	}
+
+	/**
+	 * @param mergeBufferSize The window size of each run while merging. The default is 1 MiB.
+	 */
+	public void setMergeBufferSize(int mergeBufferSize) {
+		if (mergeBufferSize <= 0) {
+			throw new IllegalArgumentException("merge buffer size must be positive, got " + mergeBufferSize);
+		}
+		this.mergeBufferSize = mergeBufferSize;
+	}
+
+	/**
+	 * @param maxFanIn The most runs merged at once; more runs take several merge passes.
+	 *        The default, 0, derives it from the memory and the merge buffer size.
+	 */
+	public void setMaxFanIn(int maxFanIn) {
+		if (maxFanIn != 0 && maxFanIn < 2) {
+			throw new IllegalArgumentException("fan in must be at least 2, got " + maxFanIn);
+		}
+		this.maxFanIn = maxFanIn;
+	}
+
+	/**
+	 * @param tempDirectory Where to spill runs. The default is the directory of the output.
+	 */
+	public void setTempDirectory(File tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	// the records of one run, packed one after the other
+	private static final class Run {
+		final byte[] data;
+		int used;
+		int count;
+		int[] offsets = new int[1024];
+		int[] lengths = new int[1024];
+
+		Run(int capacity) {
+			data = new byte[capacity];
+		}
+
+		int free() {
+			return data.length - used;
+		}
+
+		void add(int length) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				lengths = Arrays.copyOf(lengths, count * 2);
+			}
+			offsets[count] = used;
+			lengths[count] = length;
+			used += length;
+			count++;
+		}
+
+		void clear() {
+			used = 0;
+			count = 0;
+		}
+	}
+
+	/**
+	 * Sorts <tt>input</tt> into <tt>output</tt>, which is overwritten. The two must differ.
+	 *
+	 * @return The number of records sorted
+	 *
+	 * @throws IOException If reading, spilling or writing failed, or the input is not
+	 *         made of whole records
+	 */
+	public long sort(File input, File output) throws IOException {
+		final File temp = tempDirectory != null ? tempDirectory : output.getAbsoluteFile().getParentFile();
+		final int runSize = (int) Math.min(MAX_RUN_SIZE, memory / (sortThreads + 1));
+		if (runSize < Math.max(recordSize, 1)) {
+			throw new IllegalArgumentException("runs of " + runSize + " bytes can't hold a record of " +
+					recordSize + " bytes; give the sorter more memory");
+		}
+		final List<File> temps = new ArrayList<File>();
+		final ExecutorService pool = Executors.newFixedThreadPool(sortThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jaydio-sort-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			final Spiller spiller = new Spiller(pool, runSize, temp, temps);
+			final long records = readRuns(input, spiller);
+			if (spiller.spilled.isEmpty()) {
+				// everything fit into memory
+				writeRun(spiller.current, output, OUTPUT_BUFFER_SIZE);
+				return records;
+			}
+			spiller.spill(false);
+			List<File> runs = new ArrayList<File>();
+			for (Future<File> f : spiller.spilled) {
+				runs.add(await(f));
+			}
+			pool.shutdown();
+
+			final int fanIn = maxFanIn != 0 ? maxFanIn :
+				(int) Math.max(2, Math.min(1024, memory / (3L * mergeBufferSize)));
+			while (runs.size() > fanIn) {
+				final List<File> next = new ArrayList<File>();
+				for (int i = 0; i < runs.size(); i += fanIn) {
+					final List<File> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+					if (group.size() == 1) {
+						next.add(group.get(0));
+						continue;
+					}
+					final File merged = createTempFile(temp, temps);
+					merge(group, merged, SPILL_BUFFER_SIZE);
+					for (File f : group) {
+						f.delete();
+					}
+					next.add(merged);
+				}
+				runs = next;
+			}
+			merge(runs, output, OUTPUT_BUFFER_SIZE);
+			return records;
+		} finally {
+			pool.shutdownNow();
+			for (File f : temps) {
+				f.delete();
+			}
+		}
+	}
+
+	private static File createTempFile(File dir, List<File> temps) throws IOException {
+		final File f = File.createTempFile("jaydio-sort", ".run", dir);
+		temps.add(f);
+		return f;
+	}
+
+	// hands full runs to the sort threads, and recycles their buffers
+	private final class Spiller {
+		final ExecutorService pool;
+		final int runSize;
+		final File temp;
+		final List<File> temps;
+		final BlockingQueue<Run> free;
+		final List<Future<File>> spilled = new ArrayList<Future<File>>();
+		int allocated;
+		Run current;
+
+		Spiller(ExecutorService pool, int runSize, File temp, List<File> temps) {
+			this.pool = pool;
+			this.runSize = runSize;
+			this.temp = temp;
+			this.temps = temps;
+			this.free = new ArrayBlockingQueue<Run>(sortThreads + 1);
+			this.current = new Run(runSize);
+			this.allocated = 1;
+		}
+
+		// sorts and writes the current run in the background, and starts a new one if more input follows
+		void spill(boolean more) throws IOException {
+			if (current.count == 0) {
+				return;
+			}
+			final Run run = current;
+			final File file = createTempFile(temp, temps);
+			spilled.add(pool.submit(new Callable<File>() {
+				@Override
+				public File call() throws IOException, InterruptedException {
+					try {
+						writeRun(run, file, SPILL_BUFFER_SIZE);
+						return file;
+					} finally {
+						free.put(run);
+					}
+				}
+			}));
+			for (Future<File> f : spilled) {
+				if (f.isDone()) {
+					await(f); // fail early
+				}
+			}
+			if (!more) {
+				return;
+			}
+			Run next = free.poll();
+			if (next == null && allocated < sortThreads + 1) {
+				allocated++;
+				next = new Run(runSize);
+			} else if (next == null) {
+				try {
+					next = free.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("sort interrupted");
+				}
+			}
+			next.clear();
+			current = next;
+		}
+	}
+
+	// reads all records of the input into runs; returns the number of records
+	private long readRuns(File input, Spiller spiller) throws IOException {
+		final DirectIoByteChannelAligner in = DirectIoByteChannelAligner.open(input, INPUT_BUFFER_SIZE, true);
+		try {
+			in.setPrefetchDepth(2);
+			long records = 0;
+			if (recordSize > 0) {
+				while (true) {
+					final int want = spiller.current.free() / recordSize * recordSize;
+					if (want == 0) {
+						spiller.spill(true);
+						continue;
+					}
+					final int n = readFully(in, spiller.current.data, spiller.current.used, want);
+					if (n % recordSize != 0) {
+						throw new IOException("input ends within record " + (records + n / recordSize));
+					}
+					for (int i = 0; i < n; i += recordSize) {
+						spiller.current.add(recordSize);
+					}
+					records += n / recordSize;
+					if (n < want) {
+						return records;
+					}
+				}
+			}
+			final byte[] header = new byte[4];
+			while (true) {
+				final int h = readFully(in, header, 0, 4);
+				if (h == 0) {
+					return records;
+				} else if (h < 4) {
+					throw new IOException("input ends within the length of record " + records);
+				}
+				final int length = readInt(header);
+				if (length < 0) {
+					throw new IOException("record " + records + " has negative length " + length);
+				} else if (length > spiller.runSize) {
+					throw new IOException("record " + records + " of " + length + " bytes doesn't fit into runs of " +
+							spiller.runSize + " bytes; give the sorter more memory");
+				}
+				if (length > spiller.current.free()) {
+					spiller.spill(true);
+				}
+				if (readFully(in, spiller.current.data, spiller.current.used, length) < length) {
+					throw new IOException("input ends within record " + records);
+				}
+				spiller.current.add(length);
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// reads until length bytes are read or the input ends; returns the number read
+	private static int readFully(DirectIoByteChannelAligner in, byte[] dst, int offset, int length)
+			throws IOException {
+		int done = 0;
+		while (done < length) {
+			final int n = in.readBytes(dst, offset + done, length - done);
+			if (n < 0) {
+				break;
+			}
+			done += n;
+		}
+		return done;
+	}
+
+	private static int readInt(byte[] b) {
+		return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+	}
+
+	private static void writeInt(byte[] b, int v) {
+		b[0] = (byte) (v >>> 24);
+		b[1] = (byte) (v >>> 16);
+		b[2] = (byte) (v >>> 8);
+		b[3] = (byte) v;
+	}
+
+	private static DirectFileOutputStream openOutput(File file, int bufferSize) throws IOException {
+		final DirectFileOutputStream out = new DirectFileOutputStream(file, false, bufferSize);
+		try {
+			out.getChannel().enableWriteBehind((long) WRITE_BEHIND_WINDOWS * bufferSize, 0, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		return out;
+	}
+
+	private void writeRun(Run run, File file, int bufferSize) throws IOException {
+		final int[] sorted = sortIndex(run);
+		final DirectFileOutputStream out = openOutput(file, bufferSize);
+		try {
+			final byte[] header = new byte[4];
+			for (int i : sorted) {
+				if (recordSize < 0) {
+					writeInt(header, run.lengths[i]);
+					out.write(header, 0, 4);
+				}
+				out.write(run.data, run.offsets[i], run.lengths[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// -- sorting within a run
+
+	// returns the indices of the run's records in sorted order
+	private int[] sortIndex(Run run) {
+		final int n = run.count;
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			index[i] = i;
+		}
+		if (n < 2) {
+			return index;
+		}
+		final int[] tmp = new int[n];
+		if (!order.hasPrefix()) {
+			mergeSort(run, index, tmp, 0, n);
+			return index;
+		}
+		final long[] prefixes = new long[n];
+		for (int i = 0; i < n; i++) {
+			prefixes[i] = order.prefix(run.data, run.offsets[i], run.lengths[i]);
+		}
+		index = radixSort(index, tmp, prefixes);
+		// only records with equal prefixes still need comparing
+		for (int from = 0; from < n; ) {
+			int to = from + 1;
+			while (to < n && prefixes[index[to]] == prefixes[index[from]]) {
+				to++;
+			}
+			if (to - from > 1) {
+				mergeSort(run, index, tmp, from, to);
+			}
+			from = to;
+		}
+		return index;
+	}
+
+	// stable LSD radix sort of index by the unsigned keys of its elements, a byte per pass;
+	// returns whichever of index and tmp ends up holding the result
+	private static int[] radixSort(int[] index, int[] tmp, long[] keys) {
+		final int n = index.length;
+		final int[] counts = new int[256];
+		int[] src = index;
+		int[] dst = tmp;
+		for (int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++) {
+				counts[(int) (keys[src[i]] >>> shift) & 0xFF]++;
+			}
+			if (counts[(int) (keys[src[0]] >>> shift) & 0xFF] == n) {
+				continue; // every key has the same byte here
+			}
+			int sum = 0;
+			for (int d = 0; d < 256; d++) {
+				final int c = counts[d];
+				counts[d] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				final int r = src[i];
+				dst[counts[(int) (keys[r] >>> shift) & 0xFF]++] = r;
+			}
+			final int[] t = src;
+			src = dst;
+			dst = t;
+		}
+		if (src != index) {
+			System.arraycopy(src, 0, index, 0, n);
+		}
+		return index;
+	}
+
+	// stable sort of index[from, to) by comparing records
+	private void mergeSort(Run run, int[] index, int[] tmp, int from, int to) {
+		if (to - from <= 16) {
+			for (int i = from + 1; i < to; i++) {
+				final int r = index[i];
+				int j = i;
+				while (j > from && compare(run, index[j - 1], r) > 0) {
+					index[j] = index[j - 1];
+					j--;
+				}
+				index[j] = r;
+			}
+			return;
+		}
+		final int mid = (from + to) >>> 1;
+		mergeSort(run, index, tmp, from, mid);
+		mergeSort(run, index, tmp, mid, to);
+		if (compare(run, index[mid - 1], index[mid]) <= 0) {
+			return; // already in order
+		}
+		System.arraycopy(index, from, tmp, from, to - from);
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to) {
+			index[k++] = compare(run, tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+		}
+		while (i < mid) {
+			index[k++] = tmp[i++];
+		}
+		while (j < to) {
+			index[k++] = tmp[j++];
+		}
+	}
+
+	private int compare(Run run, int a, int b) {
+		return order.compare(run.data, run.offsets[a], run.lengths[a], run.data, run.offsets[b], run.lengths[b]);
+	}
+
+	// -- merging runs
+
+	// the next record of one run
+	private final class Cursor {
+		final int run;
+		final DirectIoByteChannelAligner in;
+		final byte[] header = new byte[4];
+		byte[] record = new byte[Math.max(recordSize, 64)];
+		int length;
+		long prefix;
+
+		Cursor(int run, File file) throws IOException {
+			this.run = run;
+			this.in = DirectIoByteChannelAligner.open(file, mergeBufferSize, true);
+			in.setMaxReadahead(mergeBufferSize);
+			in.setPrefetchDepth(2);
+		}
+
+		// false at the end of the run
+		boolean next() throws IOException {
+			if (recordSize > 0) {
+				length = readFully(in, record, 0, recordSize);
+				if (length == 0) {
+					return false;
+				}
+			} else {
+				final int h = readFully(in, header, 0, 4);
+				if (h == 0) {
+					return false;
+				}
+				length = h < 4 ? -1 : readInt(header);
+				if (length > record.length) {
+					record = new byte[Math.max(length, record.length * 2)];
+				}
+				if (length >= 0 && readFully(in, record, 0, length) < length) {
+					length = -1;
+				}
+			}
+			if (length < 0 || (recordSize > 0 && length < recordSize)) {
+				throw new IOException("run " + run + " ends within a record");
+			}
+			if (order.hasPrefix()) {
+				prefix = order.prefix(record, 0, length);
+			}
+			return true;
+		}
+
+		boolean before(Cursor other) {
+			if (order.hasPrefix() && prefix != other.prefix) {
+				return (prefix ^ Long.MIN_VALUE) < (other.prefix ^ Long.MIN_VALUE);
+			}
+			final int cmp = order.compare(record, 0, length, other.record, 0, other.length);
+			// earlier runs hold earlier input, which keeps the sort stable
+			return cmp < 0 || (cmp == 0 && run < other.run);
+		}
+	}
+
+	private void merge(List<File> runs, File output, int bufferSize) throws IOException {
+		final Cursor[] heap = new Cursor[runs.size()];
+		int size = 0;
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				final Cursor c = new Cursor(i, runs.get(i));
+				if (c.next()) {
+					heap[size++] = c;
+				} else {
+					c.in.close();
+				}
+			}
+			for (int i = size / 2 - 1; i >= 0; i--) {
+				siftDown(heap, size, i);
+			}
+			final DirectFileOutputStream out = openOutput(output, bufferSize);
+			try {
+				while (size > 0) {
+					final Cursor c = heap[0];
+					if (recordSize < 0) {
+						out.write(c.header, 0, 4);
+					}
+					out.write(c.record, 0, c.length);
+					if (!c.next()) {
+						c.in.close();
+						heap[0] = heap[--size];
+						heap[size] = null;
+					}
+					siftDown(heap, size, 0);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			for (int i = 0; i < size; i++) {
+				heap[i].in.close();
+			}
+		}
+	}
+
+	private static void siftDown(Cursor[] heap, int size, int i) {
+		final Cursor c = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1].before(heap[child])) {
+				child++;
+			}
+			if (!heap[child].before(c)) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = c;
+	}
+
+	private static <T> T await(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("sort interrupted");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.sort;
+
+/**
+ * The order in which {@link ExternalSorter} sorts records. Records are compared as byte
+ * ranges, without being deserialized. </p>
+ *
+ * <p> Orders may also map records to an unsigned 64 bit key prefix, e.g. the first eight
+ * bytes of the key. Runs are then radix sorted by prefix, and {@link #compare compare()}
+ * is only called to order records with equal prefixes, which is much faster when
+ * prefixes are mostly distinct. </p>
+ *
+ * @author smacke
+ *
+ */
+public abstract class RecordOrder {
+
+	/**
+	 * Compares two records.
+	 *
+	 * @return A negative number, zero, or a positive number as the first record sorts
+	 *         before, together with, or after the second one
+	 */
+	public abstract int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength);
+
+	/**
+	 * @return Whether {@link #prefix(byte[], int, int)} is implemented
+	 */
+	public boolean hasPrefix() {
+		return false;
+	}
+
+	/**
+	 * Maps a record to its key prefix. Prefixes must agree with {@link #compare compare()}:
+	 * whenever a record sorts before another, its prefix must not be greater, compared
+	 * as unsigned numbers.
+	 *
+	 * @return The key prefix of the record
+	 */
+	public long prefix(byte[] record, int offset, int length) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return The unsigned lexicographic order of whole records, with prefixes
+	 */
+	public static RecordOrder bytes() {
+		return bytes(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The unsigned lexicographic order of a key field, with prefixes. A record which ends
+	 * within the field has a shorter key, and a key sorts before all longer keys which
+	 * it is the start of.
+	 *
+	 * @param keyOffset Where the key starts within each record
+	 *
+	 * @param keyLength The length of the key; it ends earlier if the record does
+	 */
+	public static RecordOrder bytes(final int keyOffset, final int keyLength) {
+		if (keyOffset < 0 || keyLength < 0) {
+			throw new IllegalArgumentException("bad key field: offset " + keyOffset + ", length " + keyLength);
+		}
+		return new RecordOrder() {
+			@Override
+			public int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+				final int aKey = keyLength(aLength);
+				final int bKey = keyLength(bLength);
+				final int n = Math.min(aKey, bKey);
+				aOffset += keyOffset;
+				bOffset += keyOffset;
+				for (int i = 0; i < n; i++) {
+					final int cmp = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+					if (cmp != 0) {
+						return cmp;
+					}
+				}
+				return aKey - bKey;
+			}
+
+			@Override
+			public boolean hasPrefix() {
+				return true;
+			}
+
+			@Override
+			public long prefix(byte[] record, int offset, int length) {
+				final int n = Math.min(8, keyLength(length));
+				long prefix = 0;
+				for (int i = 0; i < n; i++) {
+					prefix |= (record[offset + keyOffset + i] & 0xFFL) << (56 - 8 * i);
+				}
+				return prefix;
+			}
+
+			private int keyLength(int recordLength) {
+				return Math.max(0, Math.min(keyLength, recordLength - keyOffset));
+			}
+		};
+	}
+}
@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * I/O counters of one open file, shared by its channel, which records what reaches
+ * the device, and the aligner on top of it, which records what its callers asked
+ * for. Comparing the two tells whether a slow job is bound by the device or by the
+ * window thrashing: e.g. physical reads far exceeding logical reads point to random
+ * access with windows too large, and many read-modify-write bytes to unaligned
+ * writes scattered over the file. </p>
+ *
+ * <p> Counters are atomic and may be updated from any thread. Aligners count single
+ * byte reads and writes locally, and only add them here when their window is refilled,
+ * flushed or moved, or the file closed, so the logical counters may lag behind by
+ * those until then. Every channel gets its own instance, see
+ * {@link net.smacke.jaydio.channel.BufferedChannel#getStats()};
+ * {@link #processSnapshot()} adds up all instances, including those of files which
+ * have been closed. The process-wide totals are also exported through JMX, as
+ * {@value #PROCESS_OBJECT_NAME}, and single files can be exported with
+ * {@link #registerMBean()}. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class IoStats {
+
+	/**
+	 * The JMX name of the process-wide totals
+	 */
+	public static final String PROCESS_OBJECT_NAME = "net.smacke.jaydio:type=IoStats,name=process";
+
+	private static final Logger logger = LoggerFactory.getLogger(IoStats.class);
+
+	static final int LOGICAL_READS = 0;
+	static final int LOGICAL_BYTES_READ = 1;
+	static final int LOGICAL_WRITES = 2;
+	static final int LOGICAL_BYTES_WRITTEN = 3;
+	static final int PHYSICAL_READS = 4;
+	static final int PHYSICAL_BYTES_READ = 5;
+	static final int PHYSICAL_WRITES = 6;
+	static final int PHYSICAL_BYTES_WRITTEN = 7;
+	static final int FLUSHES = 8;
+	static final int REFILLS = 9;
+	static final int WINDOW_SWITCHES = 10;
+	static final int READ_MODIFY_WRITE_BYTES = 11;
+	static final int COUNTERS = 12;
+
+	// files still open, and the sum of all files which have been closed
+	private static final Set<IoStats> live = Collections.newSetFromMap(new ConcurrentHashMap<IoStats, Boolean>());
+	private static final IoStats retired = new IoStats();
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	static {
+		register(PROCESS_OBJECT_NAME, new Bean(null));
+	}
+
+	private final String name;
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private volatile boolean closed;
+	private volatile ObjectName objectName;
+
+	/**
+	 * Creates the counters of a newly opened file, which count towards the
+	 * process-wide totals from now on.
+	 *
+	 * @param name Identifies the file, usually its path
+	 */
+	public IoStats(String name) {
+		this.name = name;
+		live.add(this);
+	}
+
+	private IoStats() {
+		this.name = "process";
+	}
+
+	/**
+	 * @return The name of the file counted
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Counts <tt>bytes</tt> handed to a caller by one read operation.
+	 */
+	public void recordLogicalRead(long bytes) {
+		recordLogicalReads(1, bytes);
+	}
+
+	/**
+	 * Counts <tt>operations</tt> read operations, which handed <tt>bytes</tt> to their
+	 * callers in total, e.g. single byte reads counted locally first.
+	 */
+	public void recordLogicalReads(long operations, long bytes) {
+		counters.addAndGet(LOGICAL_READS, operations);
+		counters.addAndGet(LOGICAL_BYTES_READ, bytes);
+	}
+
+	/**
+	 * Counts <tt>bytes</tt> taken from a caller by one write operation.
+	 */
+	public void recordLogicalWrite(long bytes) {
+		recordLogicalWrites(1, bytes);
+	}
+
+	/**
+	 * Counts <tt>operations</tt> write operations, which took <tt>bytes</tt> from their
+	 * callers in total.
+	 */
+	public void recordLogicalWrites(long operations, long bytes) {
+		counters.addAndGet(LOGICAL_WRITES, operations);
+		counters.addAndGet(LOGICAL_BYTES_WRITTEN, bytes);
+	}
+
+	/**
+	 * Counts one read from the device, e.g. a <tt>pread</tt> call.
+	 *
+	 * @param bytes The number of bytes read
+	 *
+	 * @param nanos How long the read took
+	 */
+	public void recordPhysicalRead(long bytes, long nanos) {
+		counters.incrementAndGet(PHYSICAL_READS);
+		counters.addAndGet(PHYSICAL_BYTES_READ, bytes);
+		readLatency.record(nanos);
+	}
+
+	/**
+	 * Counts one write to the device, e.g. a <tt>pwrite</tt> call.
+	 *
+	 * @param bytes The number of bytes written
+	 *
+	 * @param nanos How long the write took
+	 */
+	public void recordPhysicalWrite(long bytes, long nanos) {
+		counters.incrementAndGet(PHYSICAL_WRITES);
+		counters.addAndGet(PHYSICAL_BYTES_WRITTEN, bytes);
+		writeLatency.record(nanos);
+	}
+
+	/**
+	 * Counts the write-out of one window's dirty blocks.
+	 */
+	public void recordFlush() {
+		counters.incrementAndGet(FLUSHES);
+	}
+
+	/**
+	 * Counts one read of window blocks from the channel.
+	 */
+	public void recordRefill() {
+		counters.incrementAndGet(REFILLS);
+	}
+
+	/**
+	 * Counts the window moving to a different part of the file.
+	 */
+	public void recordWindowSwitch() {
+		counters.incrementAndGet(WINDOW_SWITCHES);
+	}
+
+	/**
+	 * Counts <tt>bytes</tt> read only so that a partially overwritten block could be
+	 * written back whole.
+	 */
+	public void recordReadModifyWrite(long bytes) {
+		if (bytes > 0) {
+			counters.addAndGet(READ_MODIFY_WRITE_BYTES, bytes);
+		}
+	}
+
+	/**
+	 * @return The counters of this file so far
+	 */
+	public IoStatsSnapshot snapshot() {
+		final long[] values = new long[COUNTERS];
+		addTo(values);
+		return new IoStatsSnapshot(name, values, readLatency.copy(), writeLatency.copy());
+	}
+
+	/**
+	 * @return The counters of all files opened by this process so far
+	 */
+	public static IoStatsSnapshot processSnapshot() {
+		final long[] values = new long[COUNTERS];
+		final LatencyHistogram reads = new LatencyHistogram();
+		final LatencyHistogram writes = new LatencyHistogram();
+		synchronized (retired) {
+			retired.addTo(values);
+			reads.add(retired.readLatency);
+			writes.add(retired.writeLatency);
+			for (IoStats s : live) {
+				s.addTo(values);
+				reads.add(s.readLatency);
+				writes.add(s.writeLatency);
+			}
+		}
+		return new IoStatsSnapshot(retired.name, values, reads, writes);
+	}
+
+	private void addTo(long[] values) {
+		for (int i = 0; i < COUNTERS; i++) {
+			values[i] += counters.get(i);
+		}
+	}
+
+	/**
+	 * Exports the counters of this file through JMX, until it gets closed.
+	 *
+	 * @return The name the counters were registered under
+	 *
+	 * @throws JMException If registration failed
+	 */
+	public ObjectName registerMBean() throws JMException {
+		synchronized (this) {
+			if (objectName == null && !closed) {
+				final ObjectName on = new ObjectName("net.smacke.jaydio:type=IoStats,name=" +
+						ObjectName.quote(name) + ",id=" + ids.incrementAndGet());
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(this), on);
+				objectName = on;
+			}
+			return objectName;
+		}
+	}
+
+	/**
+	 * Called when the file is closed: unregisters its MBean, if any, and folds its
+	 * counters into the totals of closed files. Anything recorded afterwards is only
+	 * seen by {@link #snapshot()}.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (objectName != null) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				} catch (JMException e) {
+					logger.debug("could not unregister " + objectName, e);
+				}
+				objectName = null;
+			}
+		}
+		synchronized (retired) {
+			for (int i = 0; i < COUNTERS; i++) {
+				retired.counters.addAndGet(i, counters.get(i));
+			}
+			retired.readLatency.add(readLatency);
+			retired.writeLatency.add(writeLatency);
+			live.remove(this);
+		}
+	}
+
+	private static void register(String name, Object bean) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName on = new ObjectName(name);
+			if (!server.isRegistered(on)) {
+				server.registerMBean(bean, on);
+			}
+		} catch (JMException e) {
+			logger.debug("could not register " + name, e);
+		} catch (SecurityException e) {
+			logger.debug("could not register " + name, e);
+		}
+	}
+
+	// reads a fresh snapshot for every attribute; stats == null means the process totals
+	private static final class Bean implements IoStatsMXBean {
+		private final IoStats stats;
+
+		Bean(IoStats stats) {
+			this.stats = stats;
+		}
+
+		private IoStatsSnapshot get() {
+			return stats == null ? processSnapshot() : stats.snapshot();
+		}
+
+		@Override
+		public String getName() {
+			return stats == null ? "process" : stats.getName();
+		}
+
+		@Override
+		public long getLogicalReads() {
+			return get().getLogicalReads();
+		}
+
+		@Override
+		public long getLogicalBytesRead() {
+			return get().getLogicalBytesRead();
+		}
+
+		@Override
+		public long getLogicalWrites() {
+			return get().getLogicalWrites();
+		}
+
+		@Override
+		public long getLogicalBytesWritten() {
+			return get().getLogicalBytesWritten();
+		}
+
+		@Override
+		public long getPhysicalReads() {
+			return get().getPhysicalReads();
+		}
+
+		@Override
+		public long getPhysicalBytesRead() {
+			return get().getPhysicalBytesRead();
+		}
+
+		@Override
+		public long getPhysicalWrites() {
+			return get().getPhysicalWrites();
+		}
+
+		@Override
+		public long getPhysicalBytesWritten() {
+			return get().getPhysicalBytesWritten();
+		}
+
+		@Override
+		public long getFlushes() {
+			return get().getFlushes();
+		}
+
+		@Override
+		public long getRefills() {
+			return get().getRefills();
+		}
+
+		@Override
+		public long getWindowSwitches() {
+			return get().getWindowSwitches();
+		}
+
+		@Override
+		public long getReadModifyWriteBytes() {
+			return get().getReadModifyWriteBytes();
+		}
+
+		@Override
+		public double getReadAmplification() {
+			return get().getReadAmplification();
+		}
+
+		@Override
+		public double getWriteAmplification() {
+			return get().getWriteAmplification();
+		}
+
+		@Override
+		public double getReadLatencyMeanNanos() {
+			return get().getReadLatency().mean();
+		}
+
+		@Override
+		public long getReadLatency99Nanos() {
+			return get().getReadLatency().percentile(99);
+		}
+
+		@Override
+		public long getReadLatencyMaxNanos() {
+			return get().getReadLatency().max();
+		}
+
+		@Override
+		public double getWriteLatencyMeanNanos() {
+			return get().getWriteLatency().mean();
+		}
+
+		@Override
+		public long getWriteLatency99Nanos() {
+			return get().getWriteLatency().percentile(99);
+		}
+
+		@Override
+		public long getWriteLatencyMaxNanos() {
+			return get().getWriteLatency().max();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.stats;
+
+/**
+ * The JMX view of {@link IoStats}, either of a single file or of the whole process.
+ * Every attribute is read from a fresh {@link IoStatsSnapshot}; latencies are in
+ * nanoseconds. </p>
+ *
+ * @author smacke
+ *
+ */
+public interface IoStatsMXBean {
+
+	String getName();
+
+	long getLogicalReads();
+
+	long getLogicalBytesRead();
+
+	long getLogicalWrites();
+
+	long getLogicalBytesWritten();
+
+	long getPhysicalReads();
+
+	long getPhysicalBytesRead();
+
+	long getPhysicalWrites();
+
+	long getPhysicalBytesWritten();
+
+	long getFlushes();
+
+	long getRefills();
+
+	long getWindowSwitches();
+
+	long getReadModifyWriteBytes();
+
+	double getReadAmplification();
+
+	double getWriteAmplification();
+
+	double getReadLatencyMeanNanos();
+
+	long getReadLatency99Nanos();
+
+	long getReadLatencyMaxNanos();
+
+	double getWriteLatencyMeanNanos();
+
+	long getWriteLatency99Nanos();
+
+	long getWriteLatencyMaxNanos();
+}
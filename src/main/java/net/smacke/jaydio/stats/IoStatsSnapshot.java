@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.stats;
+
+/**
+ * The counters of an {@link IoStats} at one point in time. </p>
+ *
+ * <p> <em>Logical</em> operations are those of the callers of an aligner, e.g. one
+ * {@link net.smacke.jaydio.DirectRandomAccessFile#read(byte[])}; <em>physical</em> ones
+ * are transfers between a channel and the device, e.g. one <tt>pread</tt> call. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class IoStatsSnapshot {
+
+	private final String name;
+	private final long[] values;
+	private final LatencyHistogram readLatency;
+	private final LatencyHistogram writeLatency;
+
+	IoStatsSnapshot(String name, long[] values, LatencyHistogram readLatency, LatencyHistogram writeLatency) {
+		this.name = name;
+		this.values = values;
+		this.readLatency = readLatency;
+		this.writeLatency = writeLatency;
+	}
+
+	/**
+	 * @return The name of the file, or <tt>"process"</tt> for the process-wide totals
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public long getLogicalReads() {
+		return values[IoStats.LOGICAL_READS];
+	}
+
+	public long getLogicalBytesRead() {
+		return values[IoStats.LOGICAL_BYTES_READ];
+	}
+
+	public long getLogicalWrites() {
+		return values[IoStats.LOGICAL_WRITES];
+	}
+
+	public long getLogicalBytesWritten() {
+		return values[IoStats.LOGICAL_BYTES_WRITTEN];
+	}
+
+	/**
+	 * @return The number of reads from the device, i.e. of read system calls
+	 */
+	public long getPhysicalReads() {
+		return values[IoStats.PHYSICAL_READS];
+	}
+
+	public long getPhysicalBytesRead() {
+		return values[IoStats.PHYSICAL_BYTES_READ];
+	}
+
+	/**
+	 * @return The number of writes to the device, i.e. of write system calls
+	 */
+	public long getPhysicalWrites() {
+		return values[IoStats.PHYSICAL_WRITES];
+	}
+
+	public long getPhysicalBytesWritten() {
+		return values[IoStats.PHYSICAL_BYTES_WRITTEN];
+	}
+
+	/**
+	 * @return How often a window's dirty blocks were written out
+	 */
+	public long getFlushes() {
+		return values[IoStats.FLUSHES];
+	}
+
+	/**
+	 * @return How often blocks were read into a window
+	 */
+	public long getRefills() {
+		return values[IoStats.REFILLS];
+	}
+
+	/**
+	 * @return How often a window moved to another part of the file
+	 */
+	public long getWindowSwitches() {
+		return values[IoStats.WINDOW_SWITCHES];
+	}
+
+	/**
+	 * @return The number of bytes read only to complete partially written blocks
+	 */
+	public long getReadModifyWriteBytes() {
+		return values[IoStats.READ_MODIFY_WRITE_BYTES];
+	}
+
+	/**
+	 * @return Physical bytes read per logical byte read, or 0 if nothing was read logically.
+	 *         Includes read-modify-write reads, so it may be positive for write-only workloads.
+	 */
+	public double getReadAmplification() {
+		return ratio(getPhysicalBytesRead(), getLogicalBytesRead());
+	}
+
+	/**
+	 * @return Physical bytes written per logical byte written, or 0 if nothing was
+	 *         written logically
+	 */
+	public double getWriteAmplification() {
+		return ratio(getPhysicalBytesWritten(), getLogicalBytesWritten());
+	}
+
+	/**
+	 * @return Read-modify-write bytes per logical byte written, or 0 if nothing was
+	 *         written logically
+	 */
+	public double getReadModifyWriteAmplification() {
+		return ratio(getReadModifyWriteBytes(), getLogicalBytesWritten());
+	}
+
+	private static double ratio(long x, long y) {
+		return y == 0 ? 0 : (double) x / y;
+	}
+
+	/**
+	 * @return The latencies of physical reads
+	 */
+	public LatencyHistogram getReadLatency() {
+		return readLatency;
+	}
+
+	/**
+	 * @return The latencies of physical writes
+	 */
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: read %d bytes in %d calls (%d bytes in %d device reads, p99 %d us), " +
+				"wrote %d bytes in %d calls (%d bytes in %d device writes, p99 %d us), " +
+				"%d flushes, %d refills, %d window switches, %d read-modify-write bytes",
+				name, getLogicalBytesRead(), getLogicalReads(), getPhysicalBytesRead(), getPhysicalReads(),
+				readLatency.percentile(99) / 1000,
+				getLogicalBytesWritten(), getLogicalWrites(), getPhysicalBytesWritten(), getPhysicalWrites(),
+				writeLatency.percentile(99) / 1000,
+				getFlushes(), getRefills(), getWindowSwitches(), getReadModifyWriteBytes());
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds, which any number of threads
+ * may record into at once. </p>
+ *
+ * <p> Each power of two is split into {@value #SUB_BUCKETS} equally sized buckets, so
+ * reported percentiles are within about 6% of the true value, whatever the scale.
+ * Recording is a few atomic adds and never allocates. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	}
+
+	/**
+	 * @param nanos The latency to record; negative values count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get())) {
+			if (max.compareAndSet(m, nanos)) {
+				break;
+			}
+		}
+	}
+
+	// values below SUB_BUCKETS get a bucket each; above that, v >>> shift is in
+	// [SUB_BUCKETS, 2*SUB_BUCKETS) and picks the sub-bucket of the power of two
+	private static int index(long v) {
+		if (v < SUB_BUCKETS) {
+			return (int) v;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((v >>> shift) - SUB_BUCKETS);
+	}
+
+	// the largest value which falls into bucket i
+	private static long upperBound(int i) {
+		if (i < SUB_BUCKETS) {
+			return i;
+		}
+		final int shift = i / SUB_BUCKETS - 1;
+		final long mantissa = i % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Adds everything recorded by <tt>other</tt> to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length(); i++) {
+			final long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long m;
+		final long otherMax = other.max.get();
+		while (otherMax > (m = max.get())) {
+			if (max.compareAndSet(m, otherMax)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return A copy of this histogram. Unless recording has stopped, the copy
+	 *         is only approximately consistent, e.g. the count may be off by
+	 *         the few latencies recorded while copying.
+	 */
+	public LatencyHistogram copy() {
+		final LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+
+	/**
+	 * @return The number of latencies recorded
+	 */
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * @return The mean latency in nanoseconds, or 0 if nothing was recorded
+	 */
+	public double mean() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @return The largest latency recorded, in nanoseconds
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, e.g. 99.9
+	 *
+	 * @return A latency in nanoseconds which at least <tt>percentile</tt> percent of
+	 *         all recorded latencies do not exceed, or 0 if nothing was recorded
+	 */
+	public long percentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length() && total > 0; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.table;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over 64 bit key hashes, so that an {@link SSTableReader} can answer
+ * most lookups of missing keys without reading anything. </p>
+ *
+ * <p> The <tt>k</tt> bit positions are derived from the two halves of a single hash
+ * (Kirsch and Mitzenmacher's double hashing), so every key is hashed only once. With
+ * 10 bits per key and 7 probes, about 1% of the lookups for missing keys get through. </p>
+ *
+ * @author smacke
+ *
+ */
+final class BloomFilter {
+
+	private final long[] bits;
+	private final int hashes;
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * @param keyHashes The {@link #hash(byte[]) hashes} of all keys
+	 *
+	 * @param count The number of hashes in <tt>keyHashes</tt>
+	 *
+	 * @param bitsPerKey The size of the filter per key
+	 */
+	static BloomFilter build(long[] keyHashes, int count, int bitsPerKey) {
+		final long size = Math.max(64, (long) count * bitsPerKey);
+		if (size > (long) Integer.MAX_VALUE * 64) {
+			throw new IllegalArgumentException("bloom filter of " + size + " bits is too large");
+		}
+		// k = ln 2 * bits per key minimizes the false positive rate
+		final int hashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+		final BloomFilter filter = new BloomFilter(new long[(int) ((size + 63) >>> 6)], hashes);
+		for (int i = 0; i < count; i++) {
+			filter.add(keyHashes[i]);
+		}
+		return filter;
+	}
+
+	private void add(long hash) {
+		final long m = (long) bits.length << 6;
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % m;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	boolean mightContain(long hash) {
+		final long m = (long) bits.length << 6;
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % m;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int hashes() {
+		return hashes;
+	}
+
+	byte[] encode() {
+		final ByteBuffer b = ByteBuffer.allocate(bits.length * 8);
+		b.asLongBuffer().put(bits);
+		return b.array();
+	}
+
+	static BloomFilter decode(byte[] data, int hashes) {
+		final long[] bits = new long[data.length / 8];
+		ByteBuffer.wrap(data).asLongBuffer().get(bits);
+		return new BloomFilter(bits, hashes);
+	}
+
+	/**
+	 * @return A 64 bit hash of <tt>key</tt>: FNV-1a, followed by MurmurHash3's
+	 *         finalizer to spread it over all bits
+	 */
+	static long hash(byte[] key) {
+		long h = 0xCBF29CE484222325L;
+		for (byte b : key) {
+			h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.table;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+
+/**
+ * Walks the records of an {@link SSTableReader} in key order, from a start key up to
+ * an end key. </p>
+ *
+ * <p> The data blocks of a table are contiguous, so a scan is a sequential read from
+ * the first block which may hold the start key. It goes through a
+ * {@link DirectIoByteChannelAligner} whose readahead grows up to the reader's scan
+ * buffer size, with the next window prefetched in the background. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class SSTableCursor implements Closeable {
+
+	private final SSTableReader table;
+	private final byte[] from;
+	private final byte[] to;
+	private final DirectIoByteChannelAligner in;
+
+	private final byte[] data;
+	private int block;
+	private int remaining;
+	private int pos;
+	private boolean done;
+
+	private byte[] key;
+	private byte[] value;
+
+	SSTableCursor(SSTableReader table, DirectIoLib lib, File file, int bufferSize, byte[] from, byte[] to)
+			throws IOException {
+		this.table = table;
+		this.from = from == null ? null : from.clone();
+		this.to = to == null ? null : to.clone();
+		this.data = new byte[table.maxBlockLength()];
+		this.block = from == null ? 0 : table.findBlock(from);
+		if (block == table.blockCount()) {
+			this.in = null;
+			this.done = true;
+			return;
+		}
+		this.in = DirectIoByteChannelAligner.open(lib, file, bufferSize, true);
+		try {
+			in.setMaxReadahead(bufferSize);
+			in.setPrefetchDepth(2);
+			in.position(table.blockOffset(block));
+			// records before the start key can only be in the first block
+			loadBlock();
+			while (remaining > 0 && from != null
+					&& SSTableWriter.compare(data, pos + 8, SSTableWriter.getInt(data, pos), from, 0, from.length) < 0) {
+				skip();
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private void loadBlock() throws IOException {
+		final int length = table.blockLength(block);
+		int n = 0;
+		while (n < length) {
+			final int r = in.readBytes(data, n, length - n);
+			if (r < 0) {
+				throw new EOFException("table ends within block " + block);
+			}
+			n += r;
+		}
+		remaining = SSTableWriter.getInt(data, 0);
+		pos = 4;
+		block++;
+	}
+
+	private void skip() {
+		pos += 8 + SSTableWriter.getInt(data, pos) + SSTableWriter.getInt(data, pos + 4);
+		remaining--;
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return <tt>false</tt> if there are no more records in the range
+	 */
+	public boolean next() throws IOException {
+		if (done) {
+			return false;
+		}
+		while (remaining == 0) {
+			if (block == table.blockCount()) {
+				return finish();
+			}
+			loadBlock();
+		}
+		final int keyLength = SSTableWriter.getInt(data, pos);
+		final int valueLength = SSTableWriter.getInt(data, pos + 4);
+		if (to != null && SSTableWriter.compare(data, pos + 8, keyLength, to, 0, to.length) >= 0) {
+			return finish();
+		}
+		key = new byte[keyLength];
+		value = new byte[valueLength];
+		System.arraycopy(data, pos + 8, key, 0, keyLength);
+		System.arraycopy(data, pos + 8 + keyLength, value, 0, valueLength);
+		skip();
+		return true;
+	}
+
+	private boolean finish() throws IOException {
+		done = true;
+		key = null;
+		value = null;
+		close();
+		return false;
+	}
+
+	/**
+	 * @return The key of the current record, or <tt>null</tt> if {@link #next()} hasn't
+	 *         returned <tt>true</tt>
+	 */
+	public byte[] key() {
+		return key;
+	}
+
+	/**
+	 * @return The value of the current record, or <tt>null</tt> if {@link #next()}
+	 *         hasn't returned <tt>true</tt>
+	 */
+	public byte[] value() {
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null && in.isOpen()) {
+			in.close();
+		}
+	}
+}
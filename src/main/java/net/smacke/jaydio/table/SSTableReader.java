@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.table;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.stats.IoStats;
+
+/**
+ * Reads a table written by an {@link SSTableWriter}. </p>
+ *
+ * <p> Opening a table reads its footer, block index and Bloom filter once, and keeps
+ * them in memory. After that, {@link #get(byte[])} costs one aligned read of a single
+ * data block, or none at all if the filter rules the key out. Lookups may run in any
+ * number of threads at once; each uses one of a pool of aligned block buffers. Range
+ * scans, see {@link #scan(byte[], byte[])}, read the file sequentially with readahead
+ * and prefetching instead. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class SSTableReader implements Closeable {
+
+	public static final int DEFAULT_SCAN_BUFFER_SIZE = 1 << 20;
+
+	private final DirectIoLib lib;
+	private final File file;
+	private final DirectIoByteChannel channel;
+	private final int scanBufferSize;
+
+	// the last key, offset and padded length of every data block
+	private final byte[][] lastKeys;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final int maxBlockLength;
+	private final BloomFilter bloom;
+	private final long count;
+
+	// a pooled lookup buffer, with a big endian view of it for absolute gets
+	private static final class BlockBuffer {
+		final AlignedDirectByteBuffer buffer;
+		final ByteBuffer view;
+
+		BlockBuffer(AlignedDirectByteBuffer buffer) {
+			this.buffer = buffer;
+			this.view = buffer.asByteBuffer().order(ByteOrder.BIG_ENDIAN);
+		}
+	}
+
+	private final Queue<BlockBuffer> buffers = new ConcurrentLinkedQueue<BlockBuffer>();
+	private volatile boolean closed;
+
+	public static SSTableReader open(File file) throws IOException {
+		return open(DirectIoLib.getLibForPath(file.toString()), file, DEFAULT_SCAN_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param scanBufferSize The size of the readahead window of scans; a multiple of the
+	 *        block size
+	 */
+	public static SSTableReader open(DirectIoLib lib, File file, int scanBufferSize) throws IOException {
+		if (scanBufferSize <= 0 || scanBufferSize % lib.blockSize() != 0) {
+			throw new IllegalArgumentException("scan buffer size " + scanBufferSize
+					+ " must be a positive multiple of the block size " + lib.blockSize());
+		}
+		final DirectIoByteChannel channel = DirectIoByteChannel.getChannel(lib, file, true);
+		try {
+			return new SSTableReader(lib, file, channel, scanBufferSize);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private SSTableReader(DirectIoLib lib, File file, DirectIoByteChannel channel, int scanBufferSize)
+			throws IOException {
+		this.lib = lib;
+		this.file = file;
+		this.channel = channel;
+		this.scanBufferSize = scanBufferSize;
+
+		final long size = channel.size();
+		if (size < lib.blockSize() || size % lib.blockSize() != 0) {
+			throw new IOException(file + " is not a table: its size " + size + " is not a multiple of "
+					+ lib.blockSize());
+		}
+		final ByteBuffer footer = ByteBuffer.wrap(readRegion(size - lib.blockSize(), SSTableWriter.FOOTER_SIZE));
+		if (footer.getLong() != SSTableWriter.MAGIC) {
+			throw new IOException(file + " is not a table");
+		}
+		if (footer.getInt(SSTableWriter.FOOTER_SIZE - 4)
+				!= SSTableWriter.checksum(Arrays.copyOf(footer.array(), SSTableWriter.FOOTER_SIZE - 4))) {
+			throw new IOException(file + " has a corrupt footer");
+		}
+		final int version = footer.getInt();
+		if (version != SSTableWriter.VERSION) {
+			throw new IOException(file + " has unsupported version " + version);
+		}
+		final int bloomHashes = footer.getInt();
+		final byte[] index = readChecked(footer.getLong(), footer.getInt(), footer.getInt(), "index");
+		final byte[] bloomBits = readChecked(footer.getLong(), footer.getInt(), footer.getInt(), "bloom filter");
+		this.count = footer.getLong();
+		this.bloom = bloomBits.length == 0 ? null : BloomFilter.decode(bloomBits, bloomHashes);
+
+		final ByteBuffer b = ByteBuffer.wrap(index);
+		final int blocks = b.getInt();
+		lastKeys = new byte[blocks][];
+		offsets = new long[blocks];
+		lengths = new int[blocks];
+		int max = lib.blockSize();
+		for (int i = 0; i < blocks; i++) {
+			lastKeys[i] = new byte[b.getInt()];
+			b.get(lastKeys[i]);
+			offsets[i] = b.getLong();
+			lengths[i] = b.getInt();
+			max = Math.max(max, lengths[i]);
+		}
+		maxBlockLength = max;
+	}
+
+	private byte[] readChecked(long offset, int length, int checksum, String what) throws IOException {
+		final byte[] data = readRegion(offset, length);
+		if (SSTableWriter.checksum(data) != checksum) {
+			throw new IOException(file + " has a corrupt " + what);
+		}
+		return data;
+	}
+
+	// reads length bytes at the block aligned offset with a single read
+	private byte[] readRegion(long offset, int length) throws IOException {
+		final byte[] data = new byte[length];
+		if (length == 0) {
+			return data;
+		}
+		final AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, lib.blockEnd(length));
+		try {
+			if (channel.read(buffer, offset) < length) {
+				throw new IOException(file + " is truncated");
+			}
+			buffer.get(0, data, 0, length);
+			return data;
+		} finally {
+			buffer.close();
+		}
+	}
+
+	/**
+	 * @return The number of records
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * @return The I/O counters of the table's file, not counting scans
+	 */
+	public IoStats getStats() {
+		return channel.getStats();
+	}
+
+	/**
+	 * @return <tt>false</tt> if the table certainly doesn't contain <tt>key</tt>
+	 */
+	public boolean mightContain(byte[] key) {
+		return bloom == null || bloom.mightContain(BloomFilter.hash(key));
+	}
+
+	/**
+	 * @return The index of the first block whose last key is at least <tt>key</tt>, or
+	 *         the number of blocks if there is none
+	 */
+	int findBlock(byte[] key) {
+		int lo = 0;
+		int hi = lastKeys.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			final byte[] last = lastKeys[mid];
+			if (SSTableWriter.compare(last, 0, last.length, key, 0, key.length) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	int blockCount() {
+		return offsets.length;
+	}
+
+	long blockOffset(int block) {
+		return offsets[block];
+	}
+
+	int blockLength(int block) {
+		return lengths[block];
+	}
+
+	int maxBlockLength() {
+		return maxBlockLength;
+	}
+
+	/**
+	 * @return The value of <tt>key</tt>, or <tt>null</tt> if the table doesn't contain it
+	 */
+	public byte[] get(byte[] key) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (!mightContain(key)) {
+			return null;
+		}
+		final int block = findBlock(key);
+		if (block == offsets.length) {
+			return null;
+		}
+		BlockBuffer b = buffers.poll();
+		if (b == null) {
+			b = new BlockBuffer(AlignedDirectByteBuffer.allocate(lib, maxBlockLength));
+		}
+		try {
+			b.buffer.clear();
+			b.buffer.limit(lengths[block]);
+			if (channel.read(b.buffer, offsets[block]) < lengths[block]) {
+				throw new IOException(file + " is truncated");
+			}
+			// scan the block where it was read, and copy out nothing but the value
+			final ByteBuffer data = b.view;
+			final int records = data.getInt(0);
+			int pos = 4;
+			for (int i = 0; i < records; i++) {
+				final int keyLength = data.getInt(pos);
+				final int valueLength = data.getInt(pos + 4);
+				final int cmp = compare(data, pos + 8, keyLength, key);
+				if (cmp == 0) {
+					final byte[] value = new byte[valueLength];
+					b.buffer.get(pos + 8 + keyLength, value, 0, valueLength);
+					return value;
+				} else if (cmp > 0) {
+					break;
+				}
+				pos += 8 + keyLength + valueLength;
+			}
+			return null;
+		} finally {
+			buffers.add(b);
+		}
+	}
+
+	// like SSTableWriter.compare, with the first key in a buffer
+	private static int compare(ByteBuffer a, int aOffset, int aLength, byte[] b) {
+		final int n = Math.min(aLength, b.length);
+		for (int i = 0; i < n; i++) {
+			final int cmp = (a.get(aOffset + i) & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return aLength - b.length;
+	}
+
+	/**
+	 * Returns a cursor over the records with keys in <tt>[from, to)</tt>. The cursor
+	 * reads the file through its own {@link net.smacke.jaydio.align.DirectIoByteChannelAligner}
+	 * and must be closed.
+	 *
+	 * @param from The first key, or <tt>null</tt> to start at the smallest key
+	 *
+	 * @param to The key to stop at, or <tt>null</tt> to go on to the largest key
+	 */
+	public SSTableCursor scan(byte[] from, byte[] to) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		return new SSTableCursor(this, lib, file, scanBufferSize, from, to);
+	}
+
+	/**
+	 * Closes the table. Lookups must not be running anymore; open cursors stay usable.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			channel.close();
+		} finally {
+			BlockBuffer b;
+			while ((b = buffers.poll()) != null) {
+				b.buffer.close();
+			}
+		}
+	}
+}
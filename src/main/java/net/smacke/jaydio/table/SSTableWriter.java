@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.table;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.smacke.jaydio.DirectFileOutputStream;
+import net.smacke.jaydio.DirectIoLib;
+
+/**
+ * Writes an immutable sorted table of key/value records, to be read with an
+ * {@link SSTableReader}. Keys are ordered as unsigned bytes, lexicographically, and
+ * must be added in strictly increasing order. </p>
+ *
+ * <p> A table consists of data blocks, the block index, a Bloom filter and a footer,
+ * each starting at a multiple of the device block size, so that any of them can be
+ * read with one aligned read and nothing else. A data block holds its number of
+ * records as a big-endian int, then each record as key length, value length (ints),
+ * key and value, and is padded with zeroes to the next device block boundary. Blocks
+ * are closed once adding a record would take them past <tt>blockSize</tt>; a record
+ * larger than that gets a block of its own. The index holds the number of blocks,
+ * then for each block its last key (length and bytes), offset (a long) and padded
+ * length (an int). The footer, in the last device block, locates the index and the
+ * filter, and carries checksums of both and of itself. </p>
+ *
+ * <p> The table is written sequentially with write-behind, so the caller produces
+ * records while earlier blocks go to the device. The filter is built from the hashes
+ * of all keys when the table is closed, which takes 8 bytes of memory per key until
+ * then. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class SSTableWriter implements Closeable {
+
+	public static final int DEFAULT_BLOCK_SIZE = 16384;
+	public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+
+	static final long MAGIC = 0x4A41595353544142L; // "JAYSSTAB"
+	static final int VERSION = 1;
+	static final int FOOTER_SIZE = 60;
+
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+	private final DirectIoLib lib;
+	private final DirectFileOutputStream out;
+	private final int blockSize;
+	private final int bloomBitsPerKey;
+
+	private byte[] block = new byte[1024];
+	private int blockUsed;
+	private int blockCount;
+	private byte[] lastKey;
+
+	private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+	private final DataOutputStream index = new DataOutputStream(indexBytes);
+	private int indexCount;
+	private final byte[] zeros;
+	private long[] hashes = new long[1024];
+	private long count;
+	private long position;
+	private boolean closed;
+
+	public static SSTableWriter create(File file) throws IOException {
+		final DirectIoLib lib = DirectIoLib.getLibForPath(file.getAbsoluteFile().getParent());
+		return create(lib, file, DirectIoLib.lcm(DEFAULT_BLOCK_SIZE, lib.blockSize()), DEFAULT_BLOOM_BITS_PER_KEY);
+	}
+
+	/**
+	 * Creates a table in <tt>file</tt>, replacing whatever was there.
+	 *
+	 * @param blockSize The size of a data block; a multiple of the block size
+	 *
+	 * @param bloomBitsPerKey The size of the Bloom filter per key, or 0 for no filter
+	 */
+	public static SSTableWriter create(DirectIoLib lib, File file, int blockSize, int bloomBitsPerKey)
+			throws IOException {
+		if (blockSize <= 0 || blockSize % lib.blockSize() != 0) {
+			throw new IllegalArgumentException("table block size " + blockSize
+					+ " must be a positive multiple of the block size " + lib.blockSize());
+		}
+		if (bloomBitsPerKey < 0) {
+			throw new IllegalArgumentException("bloom bits per key must not be negative, got " + bloomBitsPerKey);
+		}
+		final DirectFileOutputStream out = new DirectFileOutputStream(file, false, OUTPUT_BUFFER_SIZE);
+		try {
+			out.getChannel().enableWriteBehind(4L * OUTPUT_BUFFER_SIZE, 0, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		return new SSTableWriter(lib, out, blockSize, bloomBitsPerKey);
+	}
+
+	private SSTableWriter(DirectIoLib lib, DirectFileOutputStream out, int blockSize, int bloomBitsPerKey) {
+		this.lib = lib;
+		this.out = out;
+		this.blockSize = blockSize;
+		this.bloomBitsPerKey = bloomBitsPerKey;
+		this.blockUsed = 4;
+		this.zeros = new byte[lib.blockSize()];
+	}
+
+	/**
+	 * @return The number of records added so far
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Appends a record.
+	 *
+	 * @throws IllegalArgumentException If <tt>key</tt> is not larger than the previous key
+	 */
+	public void add(byte[] key, byte[] value) throws IOException {
+		if (closed) {
+			throw new IOException("table writer is closed");
+		}
+		if (lastKey != null && compare(lastKey, 0, lastKey.length, key, 0, key.length) >= 0) {
+			throw new IllegalArgumentException("keys must be strictly increasing, got " + Arrays.toString(key)
+					+ " after " + Arrays.toString(lastKey));
+		}
+		final int size = 8 + key.length + value.length;
+		if (blockCount > 0 && blockUsed + size > blockSize) {
+			finishBlock();
+		}
+		if (blockUsed + size > block.length) {
+			block = Arrays.copyOf(block, Math.max(blockUsed + size, block.length * 2));
+		}
+		putInt(block, blockUsed, key.length);
+		putInt(block, blockUsed + 4, value.length);
+		System.arraycopy(key, 0, block, blockUsed + 8, key.length);
+		System.arraycopy(value, 0, block, blockUsed + 8 + key.length, value.length);
+		blockUsed += size;
+		blockCount++;
+		lastKey = key.clone();
+
+		if (bloomBitsPerKey > 0) {
+			if (count == hashes.length) {
+				if (count == Integer.MAX_VALUE - 8) {
+					throw new IllegalStateException("too many keys for a bloom filter");
+				}
+				hashes = Arrays.copyOf(hashes, (int) Math.min(Integer.MAX_VALUE - 8, count * 2));
+			}
+			hashes[(int) count] = BloomFilter.hash(key);
+		}
+		count++;
+	}
+
+	private void finishBlock() throws IOException {
+		putInt(block, 0, blockCount);
+		final int length = lib.blockEnd(blockUsed);
+		write(block, blockUsed, length);
+		index.writeInt(lastKey.length);
+		index.write(lastKey);
+		index.writeLong(position);
+		index.writeInt(length);
+		indexCount++;
+		position += length;
+		blockUsed = 4;
+		blockCount = 0;
+	}
+
+	// writes data[0, used) followed by zeroes up to length
+	private void write(byte[] data, int used, int length) throws IOException {
+		out.write(data, 0, used);
+		out.write(zeros, 0, length - used);
+	}
+
+	/**
+	 * Writes the last block, the index, the filter and the footer, and makes the table
+	 * durable.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (blockCount > 0) {
+				finishBlock();
+			}
+			final ByteArrayOutputStream all = new ByteArrayOutputStream(4 + indexBytes.size());
+			new DataOutputStream(all).writeInt(indexCount);
+			indexBytes.writeTo(all);
+			final byte[] indexData = all.toByteArray();
+			final long indexOffset = position;
+			write(indexData, indexData.length, lib.blockEnd(indexData.length));
+			position += lib.blockEnd(indexData.length);
+
+			final long bloomOffset = position;
+			byte[] bloomBytes = new byte[0];
+			int bloomHashes = 0;
+			if (bloomBitsPerKey > 0 && count > 0) {
+				final BloomFilter bloom = BloomFilter.build(hashes, (int) count, bloomBitsPerKey);
+				bloomBytes = bloom.encode();
+				bloomHashes = bloom.hashes();
+			}
+			hashes = null;
+			write(bloomBytes, bloomBytes.length, lib.blockEnd(bloomBytes.length));
+			position += lib.blockEnd(bloomBytes.length);
+
+			final ByteBuffer footer = ByteBuffer.allocate(lib.blockSize());
+			footer.putLong(MAGIC).putInt(VERSION).putInt(bloomHashes);
+			footer.putLong(indexOffset).putInt(indexData.length).putInt(checksum(indexData));
+			footer.putLong(bloomOffset).putInt(bloomBytes.length).putInt(checksum(bloomBytes));
+			footer.putLong(count);
+			footer.putInt(checksum(Arrays.copyOf(footer.array(), FOOTER_SIZE - 4)));
+			out.write(footer.array(), 0, footer.capacity());
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	static int checksum(byte[] data) {
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
+	}
+
+	static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+	static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8
+				| (b[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Compares keys as unsigned bytes, lexicographically; a proper prefix comes first.
+	 */
+	static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+		final int n = Math.min(aLength, bLength);
+		for (int i = 0; i < n; i++) {
+			final int cmp = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return aLength - bLength;
+	}
+}
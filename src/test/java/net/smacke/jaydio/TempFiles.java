@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Temporary directories for tests which need real files, on whatever file system
+ * <tt>java.io.tmpdir</tt> is. </p>
+ *
+ * @author smacke
+ *
+ */
+public final class TempFiles {
+
+	private TempFiles() {
+	}
+
+	/**
+	 * @return A new, empty directory
+	 */
+	public static File getTempDirectory(String prefix, String suffix) throws IOException {
+		File temp = File.createTempFile(prefix, suffix);
+		if (!(temp.delete())) {
+			throw new IOException("Could not delete temp file: " + temp.getAbsolutePath());
+		} else if (!temp.mkdir()) {
+			throw new IOException("could not create temporary directory");
+		}
+		return temp;
+	}
+
+	/**
+	 * Deletes <tt>f</tt> and, if it is a directory, everything in it; symbolic links
+	 * are deleted rather than followed. Failures are ignored.
+	 */
+	public static void delete(File f) {
+		final File[] children = f.listFiles();
+		if (children != null && !Files.isSymbolicLink(f.toPath())) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DirectFileChannel}, checking file contents against a byte array
+ * which receives the same writes. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestDirectFileChannel extends Assert {
+
+	private File dir;
+	private File file;
+	private DirectIoLib lib;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "channel");
+		file = new File(dir, "direct_file");
+		lib = DirectIoLib.getLibForPath(dir.toString());
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	private static byte[] randomBytes(Random r, int n) {
+		byte[] b = new byte[n];
+		r.nextBytes(b);
+		return b;
+	}
+
+	private static ByteBuffer direct(byte[] b) {
+		ByteBuffer bb = ByteBuffer.allocateDirect(b.length);
+		bb.put(b).flip();
+		return bb;
+	}
+
+	@Test
+	public void testReadAndWrite() throws IOException {
+		Random r = new Random(42);
+		int blockSize = lib.blockSize();
+		byte[] gold = randomBytes(r, 5*blockSize + 123);
+
+		DirectFileChannel channel = DirectFileChannel.open(file);
+		try {
+			// heap buffer with a non-zero array offset, then a direct buffer
+			ByteBuffer heap = ByteBuffer.wrap(new byte[gold.length + 10], 3, blockSize + 7).slice();
+			heap.put(gold, 0, blockSize + 7).flip();
+			assertEquals(blockSize + 7, channel.write(heap));
+			assertFalse(heap.hasRemaining());
+			assertEquals(gold.length - blockSize - 7,
+					channel.write(direct(Arrays.copyOfRange(gold, blockSize + 7, gold.length))));
+			assertEquals(gold.length, channel.position());
+			assertEquals(gold.length, channel.size());
+
+			// positional overwrite doesn't move the position
+			byte[] patch = randomBytes(r, 300);
+			System.arraycopy(patch, 0, gold, blockSize - 100, patch.length);
+			assertEquals(patch.length, channel.write(ByteBuffer.wrap(patch), blockSize - 100));
+			assertEquals(gold.length, channel.position());
+
+			ByteBuffer dst = ByteBuffer.allocateDirect(gold.length + 50);
+			assertEquals(gold.length, channel.read(dst, 0));
+			dst.flip();
+			byte[] actual = new byte[dst.remaining()];
+			dst.get(actual);
+			assertArrayEquals(gold, actual);
+
+			assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+			assertEquals(-1, channel.read(ByteBuffer.allocate(10), gold.length));
+
+			// scatter read from the middle, running into EOF
+			channel.position(17);
+			ByteBuffer[] dsts = { ByteBuffer.allocate(blockSize), ByteBuffer.allocateDirect(3*blockSize),
+					ByteBuffer.allocate(10*blockSize) };
+			assertEquals(gold.length - 17, channel.read(dsts));
+			assertEquals(gold.length, channel.position());
+			byte[] scattered = new byte[gold.length - 17];
+			int n = 0;
+			for (ByteBuffer b : dsts) {
+				b.flip();
+				int len = b.remaining();
+				b.get(scattered, n, len);
+				n += len;
+			}
+			assertArrayEquals(Arrays.copyOfRange(gold, 17, gold.length), scattered);
+			for (ByteBuffer b : dsts) {
+				b.clear();
+			}
+			assertEquals(-1, channel.read(dsts));
+		} finally {
+			channel.close();
+		}
+		assertFalse(channel.isOpen());
+		assertArrayEquals(gold, readFile(file));
+	}
+
+	@Test
+	public void testGatherWriteAndTruncate() throws IOException {
+		Random r = new Random(7);
+		byte[] a = randomBytes(r, 1000);
+		byte[] b = randomBytes(r, 3000);
+		DirectFileChannel channel = DirectFileChannel.open(file);
+		try {
+			assertEquals(a.length + b.length, channel.write(new ByteBuffer[] { ByteBuffer.wrap(a), direct(b) }));
+			channel.force(true);
+			channel.truncate(1500);
+			assertEquals(1500, channel.size());
+			assertEquals(1500, channel.position());
+			// growing is a no-op
+			channel.truncate(5000);
+			assertEquals(1500, channel.size());
+		} finally {
+			channel.close();
+		}
+		byte[] expected = new byte[1500];
+		System.arraycopy(a, 0, expected, 0, a.length);
+		System.arraycopy(b, 0, expected, a.length, 500);
+		assertArrayEquals(expected, readFile(file));
+	}
+
+	@Test
+	public void testTransfers() throws IOException {
+		Random r = new Random(1);
+		byte[] gold = randomBytes(r, 3*DirectFileChannel.CHUNK_SIZE/2 + 77);
+		File copy = new File(dir, "copy");
+		writeFile(copy, gold);
+
+		DirectFileChannel channel = DirectFileChannel.open(file);
+		FileChannel other = new RandomAccessFile(copy, "rw").getChannel();
+		try {
+			assertEquals(gold.length, channel.transferFrom(other, 0, Long.MAX_VALUE));
+			assertEquals(gold.length, channel.size());
+			// past the end, nothing happens
+			assertEquals(0, channel.transferFrom(other.position(0), gold.length + 1, 10));
+
+			other.truncate(0);
+			assertEquals(gold.length - 99, channel.transferTo(99, Long.MAX_VALUE, other));
+			assertEquals(0, channel.transferTo(gold.length, 10, other));
+		} finally {
+			other.close();
+			channel.close();
+		}
+		assertArrayEquals(gold, readFile(file));
+		assertArrayEquals(Arrays.copyOfRange(gold, 99, gold.length), readFile(copy));
+	}
+
+	@Test
+	public void testLocking() throws IOException {
+		DirectFileChannel channel = DirectFileChannel.open(file);
+		try {
+			FileLock lock = channel.lock();
+			assertSame(channel, lock.channel());
+			assertTrue(lock.isValid());
+			lock.release();
+			assertFalse(lock.isValid());
+			lock = channel.tryLock(0, 100, false);
+			assertNotNull(lock);
+			lock.release();
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testMapUnsupported() throws IOException {
+		DirectFileChannel channel = DirectFileChannel.open(file);
+		try {
+			channel.map(FileChannel.MapMode.READ_ONLY, 0, 1);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			byte[] b = new byte[(int) raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeFile(File f, byte[] b) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DirectFileInputStream} and {@link DirectFileOutputStream}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestDirectFileStreams extends Assert {
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "streams");
+		file = new File(dir, "direct_file");
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	@Test
+	public void testGzippedLines() throws IOException {
+		Writer writer = new OutputStreamWriter(new GZIPOutputStream(new DirectFileOutputStream(file)), "UTF-8");
+		try {
+			for (int i=0; i<100000; i++) {
+				writer.write("line " + i + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new DirectFileInputStream(file)), "UTF-8"));
+		try {
+			for (int i=0; i<100000; i++) {
+				assertEquals("line " + i, reader.readLine());
+			}
+			assertNull(reader.readLine());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testStreamContract() throws IOException {
+		Random r = new Random(42);
+		byte[] gold = new byte[3*DirectFileOutputStream.DEFAULT_BUFFER_SIZE + 1234];
+		r.nextBytes(gold);
+
+		// truncates whatever was there, then appends in two sessions
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(10*gold.length);
+		raf.close();
+		OutputStream out = new DirectFileOutputStream(file);
+		out.write(gold, 0, 1000);
+		out.write(gold[1000]);
+		out.close();
+		assertEquals(1001, file.length());
+		out = new DirectFileOutputStream(file, true);
+		out.write(gold, 1001, gold.length - 1001);
+		out.flush();
+		out.close();
+		assertEquals(gold.length, file.length());
+
+		DirectFileInputStream in = new DirectFileInputStream(file);
+		try {
+			assertEquals(gold.length, in.available());
+			byte[] b = new byte[100];
+			assertEquals(0, in.read(b, 0, 0));
+			assertEquals(100, in.read(b, 0, 100));
+			assertArrayEquals(Arrays.copyOf(gold, 100), b);
+			assertEquals(gold[100] & 0xFF, in.read());
+
+			assertTrue(in.markSupported());
+			in.mark(0);
+			assertEquals(500000, in.skip(500000));
+			assertEquals(gold[500101] & 0xFF, in.read());
+			in.reset();
+			assertEquals(gold[101] & 0xFF, in.read());
+
+			ByteArrayOutputStream rest = new ByteArrayOutputStream();
+			assertEquals(gold.length - 102, in.transferTo(rest));
+			assertArrayEquals(Arrays.copyOfRange(gold, 102, gold.length), rest.toByteArray());
+			assertEquals(0, in.available());
+			assertEquals(-1, in.read());
+			assertEquals(-1, in.read(b, 0, b.length));
+			assertEquals(0, in.read(b, 0, 0));
+			assertEquals(0, in.skip(10));
+		} finally {
+			in.close();
+		}
+
+		InputStream whole = new DirectFileInputStream(file);
+		try {
+			byte[] all = new byte[gold.length];
+			int n = 0;
+			int k;
+			while ((k = whole.read(all, n, all.length - n)) > 0) {
+				n += k;
+			}
+			assertEquals(gold.length, n);
+			assertArrayEquals(gold, all);
+		} finally {
+			whole.close();
+		}
+	}
+}
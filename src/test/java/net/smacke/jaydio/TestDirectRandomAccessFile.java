@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the parts of {@link DirectRandomAccessFile} which do more than
+ * delegate to its aligner. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestDirectRandomAccessFile extends Assert {
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "raf");
+		file = new File(dir, "direct_file");
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	private void writeFile(byte[] contents) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testReadLineDecodesUtf8() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		lines.add("plain ascii");
+		lines.add("gr\u00FC\u00DFe aus K\u00F6ln");
+		lines.add("");
+		lines.add("\u65E5\u672C\u8A9E \uD83D\uDE00");
+		StringBuilder sb = new StringBuilder("\uFEFF");
+		// long enough to span several windows
+		for (int i=0; i<3000; i++) {
+			sb.append("\u00E9\u20AC");
+		}
+		lines.add(sb.substring(1));
+		StringBuilder contents = new StringBuilder();
+		contents.append(lines.get(0)).append("\r\n");
+		contents.append(lines.get(1)).append('\n');
+		contents.append(lines.get(2)).append('\r');
+		contents.append(lines.get(3)).append('\n');
+		contents.append(sb);
+		writeFile(contents.toString().getBytes("UTF-8"));
+
+		DirectRandomAccessFile raf = new DirectRandomAccessFile(file, "r", 4096);
+		try {
+			for (String line : lines) {
+				assertEquals(line, raf.readLine());
+			}
+			assertNull(raf.readLine());
+			raf.seek(0);
+
+			// the reusable variant hands out the same object, and keeps the byte order mark
+			LineBuffer line = new LineBuffer(4);
+			for (int i=0; i<lines.size() - 1; i++) {
+				assertTrue(raf.readLine(line));
+				assertEquals(lines.get(i), line.toString());
+				assertEquals(lines.get(i).getBytes("UTF-8").length, line.byteLength());
+			}
+			assertTrue(raf.readLine(line));
+			assertEquals(sb.toString(), line.toString());
+			assertEquals(sb.length(), line.length());
+			assertEquals('\u20AC', line.charAt(2));
+			assertFalse(raf.readLine(line));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private byte[] readFile() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] contents = new byte[(int) raf.length()];
+			raf.readFully(contents);
+			return contents;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testStringsMatchDataOutputStream() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<5000; i++) {
+			sb.append((char) i);
+		}
+		String[] strings = { "", "ascii", "nul \u0000 and \u00E9\u20AC \uD83D\uDE00", sb.toString() };
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(expected);
+		DirectRandomAccessFile raf = new DirectRandomAccessFile(file, "rw", 4096);
+		try {
+			for (String s : strings) {
+				out.writeUTF(s);
+				out.writeChars(s);
+				out.writeBytes(s);
+				raf.writeUTF(s);
+				raf.writeChars(s);
+				raf.writeBytes(s);
+			}
+			out.writeInt(0xCAFEBABE);
+			out.writeLong(-42L);
+			raf.writeInt(0xCAFEBABE);
+			raf.writeLong(-42L);
+
+			raf.seek(0);
+			for (String s : strings) {
+				assertEquals(s, raf.readUTF());
+				raf.skipBytes(3*s.length());
+			}
+			assertEquals(0xCAFEBABE, raf.readInt());
+			assertEquals(-42L, raf.readLong());
+
+			char[] tooLong = new char[30000];
+			Arrays.fill(tooLong, '\u20AC');
+			try {
+				raf.writeUTF(new String(tooLong));
+				fail("strings longer than 65535 encoded bytes can't be written");
+			} catch (UTFDataFormatException expectedException) {
+				// expected
+			}
+		} finally {
+			raf.close();
+		}
+		out.close();
+		assertArrayEquals(expected.toByteArray(), readFile());
+	}
+
+	@Test
+	public void testWriterOverwritesInPlace() throws IOException {
+		Random r = new Random(42);
+		byte[] gold = new byte[10*4096 + 100];
+		r.nextBytes(gold);
+		writeFile(gold);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<4000; i++) {
+			sb.append(i).append(i % 7 == 0 ? "\u00E9\u20AC\uD83D\uDE00" : ",");
+		}
+		String text = sb.toString();
+		byte[] encoded = text.getBytes("UTF-8");
+		assertTrue(encoded.length < gold.length - 2*4096);
+		// unaligned at both ends, so that partial blocks have to be merged
+		final int at = 4096 + 11;
+		System.arraycopy(encoded, 0, gold, at, encoded.length);
+
+		DirectRandomAccessFile raf = new DirectRandomAccessFile(file, "rw", 4096);
+		raf.seek(at);
+		DirectFileWriter writer = new DirectFileWriter(raf);
+		// split a surrogate pair between two writes
+		final int split = text.indexOf('\uD83D') + 1;
+		writer.write(text, 0, split);
+		writer.flush();
+		writer.write(text.toCharArray(), split, text.length() - split);
+		writer.flush();
+		assertEquals(at + encoded.length, raf.getFilePointer());
+		writer.close();
+
+		assertArrayEquals(gold, readFile());
+	}
+}
@@ -15,15 +15,22 @@
  */
 package net.smacke.jaydio.align;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.JavaHeapByteBuffer;
 import net.smacke.jaydio.buffer.JaydioByteBuffer;
 import net.smacke.jaydio.channel.BufferedChannel;
 import net.smacke.jaydio.channel.MockByteChannel;
+import net.smacke.jaydio.stats.IoStats;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -117,6 +124,68 @@ public class TestAlignedIO extends Assert {
         // underlying channel gets closed in checkConsistency
     }
 
+    @Test
+    public void testByteBufferReadsAndWrites() throws IOException {
+        int fileSize = 2*ByteChannelAligner.BYTE_BUFFER_CHUNK_SIZE + 13;
+        byte[] gold = getGoldBytes(fileSize);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, mockLib.blockSize(), false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, bufferSize, 0);
+
+        // a slice has a non-zero array offset
+        ByteBuffer heap = ByteBuffer.wrap(new byte[fileSize + 5], 5, 1000).slice();
+        heap.put(gold, 0, 1000).flip();
+        assertEquals(1000, aligned.write(heap));
+        ByteBuffer direct = ByteBuffer.allocateDirect(fileSize - 1000);
+        direct.put(gold, 1000, fileSize - 1000).flip();
+        assertEquals(fileSize - 1000, aligned.write(direct));
+
+        aligned.position(0);
+        ByteBuffer dst = ByteBuffer.allocateDirect(fileSize + 100);
+        assertEquals(fileSize, aligned.read(dst));
+        assertEquals(fileSize, dst.position());
+        assertEquals(-1, aligned.read(dst));
+        assertEquals(fileSize, dst.position());
+        byte[] actual = new byte[fileSize];
+        dst.flip();
+        dst.get(actual);
+        assertArrayEquals(gold, actual);
+        aligned.close();
+    }
+
+    @Test
+    public void testPositionalByteBuffers() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 5*blockSize + 77;
+        byte[] gold = getGoldBytes(fileSize);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, blockSize, false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, bufferSize, 0);
+
+        // unaligned at both ends, so both edge blocks are read, patched and written back
+        ByteBuffer direct = ByteBuffer.allocateDirect(fileSize);
+        direct.put(gold).position(100).limit(fileSize - 50);
+        assertEquals(fileSize - 150, aligned.write(100, direct));
+        assertEquals(fileSize - 50, direct.position());
+        ByteBuffer heap = ByteBuffer.wrap(new byte[150 + 7], 7, 150).slice();
+        heap.put(gold, 0, 100).put(gold, fileSize - 50, 50).flip();
+        heap.limit(100);
+        assertEquals(100, aligned.write(0, heap));
+        heap.limit(150);
+        assertEquals(50, aligned.write(fileSize - 50, heap));
+        assertEquals(fileSize, aligned.size());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(fileSize + 10);
+        dst.position(10);
+        assertEquals(fileSize - 3, aligned.read(3, dst));
+        assertEquals(-1, aligned.read(fileSize, dst));
+        byte[] actual = new byte[fileSize - 3];
+        dst.position(10);
+        dst.get(actual);
+        assertArrayEquals(Arrays.copyOfRange(gold, 3, fileSize), actual);
+        checkConsistency(mockLib, channel, bufferSize, gold, fileSize);
+    }
+
     @Test
     public void testIdempotentFlush() throws IOException {
         // unaligned file size less than one buffer long
@@ -191,6 +260,454 @@ public class TestAlignedIO extends Assert {
         // underlying channel gets closed in checkConsistency
     }
 
+    @Test
+    public void testReadaheadGrowsAndShrinksWindow() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 64*blockSize + 217;
+        byte[] gold = getGoldBytes(fileSize);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, blockSize, false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, blockSize);
+        aligned.writeBytes(gold, 0, fileSize);
+        aligned.flush();
+
+        // stream through the file in small reads using a single block buffer
+        MockByteChannelAligner reader = getMockAlignedChannel(mockLib, channel, blockSize);
+        reader.setMaxReadahead(8*blockSize);
+        byte[] directRead = new byte[fileSize];
+        int position = 0;
+        while (position < fileSize) {
+            final int toRead = Math.min(1+rand.nextInt(smallWriteSize), fileSize - position);
+            reader.readBytes(directRead, position, toRead);
+            position += toRead;
+        }
+        assertTrue(Arrays.equals(gold, directRead));
+        assertEquals(8*blockSize, reader.windowSize());
+
+        // jumping back to the start is not sequential
+        reader.position(0);
+        assertEquals(blockSize, reader.windowSize());
+        for (int i=0; i<seekTrials; i++) {
+            final int newpos = rand.nextInt(fileSize);
+            reader.position(newpos);
+            assertEquals(gold[newpos], (byte) reader.read());
+        }
+        reader.close();
+        // underlying channel gets closed along with the reader
+    }
+
+    @Test
+    public void testPrefetchingReads() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 64*blockSize + 217;
+        byte[] gold = getGoldBytes(fileSize);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, blockSize, false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, blockSize);
+        aligned.setMaxReadahead(4*blockSize);
+        aligned.setPrefetchDepth(3);
+        aligned.writeBytes(gold, 0, fileSize);
+        aligned.position(0);
+
+        // stream through the file, mixing in writes and random seeks
+        // which must drop whatever is in flight
+        int position = 0;
+        for (int i=0; i<seekTrials; i++) {
+            while (position < fileSize && rand.nextInt(8) != 0) {
+                final int toRead = Math.min(1+rand.nextInt(blockSize), fileSize - position);
+                byte[] directRead = new byte[toRead];
+                aligned.readBytes(directRead, 0, toRead);
+                for (int j=0; j<toRead; j++) {
+                    assertEquals(gold[position+j], directRead[j]);
+                }
+                position += toRead;
+            }
+            if (position < fileSize && rand.nextBoolean()) {
+                final int toWrite = Math.min(1+rand.nextInt(smallWriteSize), fileSize - position);
+                byte[] newBytes = new byte[toWrite];
+                rand.nextBytes(newBytes);
+                aligned.writeBytes(newBytes, 0, toWrite);
+                System.arraycopy(newBytes, 0, gold, position, toWrite);
+                position += toWrite;
+            }
+            position = rand.nextInt(fileSize/2);
+            aligned.position(position);
+        }
+        assertTrue(aligned.prefetchHits() > 0);
+
+        aligned.truncate(fileSize);
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+        // underlying channel gets closed in checkConsistency
+    }
+
+    @Test
+    public void testCancelWaitsForRunningPrefetch() throws Exception {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 64*blockSize;
+        byte[] gold = getGoldBytes(fileSize);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean();
+        CountingChannel channel = new CountingChannel(MockByteChannel.getChannel(fileSize, blockSize, false)) {
+            @Override
+            public int read(JaydioByteBuffer dst, long position) throws IOException {
+                if (!Thread.currentThread().getName().startsWith("jaydio-prefetch") || started.getCount() == 0) {
+                    return super.read(dst, position);
+                }
+                started.countDown();
+                try {
+                    release.await(60, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                final int n = super.read(dst, position);
+                finished.set(true);
+                return n;
+            }
+        };
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, blockSize);
+        aligned.setMaxReadahead(4*blockSize);
+        aligned.writeBytes(gold, 0, fileSize);
+        aligned.flush();
+        aligned.position(0);
+        aligned.setPrefetchDepth(2);
+        byte[] directRead = new byte[blockSize];
+        while (started.getCount() != 0) {
+            assertEquals(blockSize, aligned.readBytes(directRead, 0, blockSize));
+        }
+
+        // seeking away drops the window in flight, but must not hand its buffer
+        // back while the read is still filling it
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // release right away
+                }
+                release.countDown();
+            }
+        };
+        releaser.start();
+        aligned.position(fileSize/2);
+        assertTrue(finished.get());
+        releaser.join();
+
+        aligned.truncate(fileSize);
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+        // underlying channel gets closed in checkConsistency
+    }
+
+    @Test
+    public void testWriteBehind() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 32*blockSize + 217;
+        byte[] gold = getGoldBytes(fileSize);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, blockSize, false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, blockSize);
+        aligned.enableWriteBehind(4*blockSize, 0, TimeUnit.MILLISECONDS);
+        assertTrue(aligned.isWriteBehindEnabled());
+
+        // stream the file out in small pieces, some of them single bytes
+        int position = 0;
+        while (position < fileSize) {
+            if (rand.nextInt(4) == 0) {
+                aligned.write(gold[position++]);
+            } else {
+                final int toWrite = Math.min(1+rand.nextInt(blockSize), fileSize - position);
+                aligned.writeBytes(gold, position, toWrite);
+                position += toWrite;
+            }
+        }
+
+        // seek back into windows which may still be queued, and
+        // check that reads see what was written
+        for (int i=0; i<seekTrials; i++) {
+            final int newpos = rand.nextInt(fileSize);
+            final int toWrite = Math.min(rand.nextInt(2*blockSize), fileSize - newpos);
+            byte[] newBytes = new byte[toWrite];
+            rand.nextBytes(newBytes);
+            aligned.position(newpos);
+            aligned.writeBytes(newBytes, 0, toWrite);
+            System.arraycopy(newBytes, 0, gold, newpos, toWrite);
+
+            final int readpos = rand.nextInt(fileSize);
+            final int toRead = Math.min(1+rand.nextInt(2*blockSize), fileSize - readpos);
+            byte[] directRead = new byte[toRead];
+            aligned.position(readpos);
+            aligned.readBytes(directRead, 0, toRead);
+            for (int j=0; j<toRead; j++) {
+                assertEquals(gold[readpos+j], directRead[j]);
+            }
+        }
+
+        aligned.truncate(fileSize);
+        aligned.disableWriteBehind();
+        assertFalse(aligned.isWriteBehindEnabled());
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+        // underlying channel gets closed in checkConsistency
+    }
+
+    @Test
+    public void testWriteBehindExpiresDirtyWindow() throws Exception {
+        final int fileSize = smallWriteSize;
+        byte[] gold = getGoldBytes(fileSize);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, mockLib.blockSize(), false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, bufferSize);
+        aligned.enableWriteBehind(bufferSize, 10, TimeUnit.MILLISECONDS);
+        aligned.writeBytes(gold, 0, fileSize);
+
+        // nobody flushes, so the bytes can only reach the channel through the timer
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (channel.size() < fileSize && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(channel.size() >= fileSize);
+
+        aligned.disableWriteBehind();
+        checkConsistency(mockLib, channel, bufferSize, gold, fileSize);
+        // underlying channel gets closed in checkConsistency
+    }
+
+    @Test
+    public void testBulkPrimitives() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 8*blockSize;
+        byte[] gold = getGoldBytes(fileSize);
+        MockByteChannel channel = MockByteChannel.getChannel(fileSize, blockSize, false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, bufferSize);
+        aligned.writeBytes(gold, 0, fileSize);
+        aligned.flush();
+
+        // odd offsets, so that elements straddle both block and window boundaries
+        int[] ints = new int[3000];
+        long[] longs = new long[1500];
+        double[] doubles = new double[700];
+        for (int i=0; i<ints.length; i++) {
+            ints[i] = rand.nextInt();
+        }
+        for (int i=0; i<longs.length; i++) {
+            longs[i] = rand.nextLong();
+        }
+        for (int i=0; i<doubles.length; i++) {
+            doubles[i] = rand.nextDouble();
+        }
+        final int intsAt = 3;
+        final int longsAt = intsAt + 4*ints.length + 1;
+        final int doublesAt = longsAt + 8*longs.length;
+        ByteBuffer encoded = ByteBuffer.wrap(gold);
+        encoded.position(intsAt);
+        encoded.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(ints);
+        encoded.position(longsAt);
+        encoded.order(ByteOrder.BIG_ENDIAN).asLongBuffer().put(longs);
+        encoded.position(doublesAt);
+        encoded.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(doubles);
+
+        aligned.position(intsAt);
+        aligned.writeInts(ints, 0, ints.length, ByteOrder.LITTLE_ENDIAN);
+        aligned.position(longsAt);
+        aligned.writeLongs(longs, 0, 10, ByteOrder.BIG_ENDIAN);
+        aligned.writeLongs(longs, 10, longs.length - 10, ByteOrder.BIG_ENDIAN);
+        aligned.writeDoubles(doubles, 0, doubles.length, ByteOrder.LITTLE_ENDIAN);
+        assertEquals(doublesAt + 8*doubles.length, aligned.position());
+
+        int[] intsBack = new int[ints.length + 2];
+        aligned.position(intsAt);
+        aligned.readInts(intsBack, 1, ints.length, ByteOrder.LITTLE_ENDIAN);
+        assertArrayEquals(ints, Arrays.copyOfRange(intsBack, 1, ints.length + 1));
+        long[] longsBack = new long[longs.length];
+        aligned.position(longsAt);
+        aligned.readLongs(longsBack, 0, longs.length, ByteOrder.BIG_ENDIAN);
+        assertArrayEquals(longs, longsBack);
+        double[] doublesBack = new double[doubles.length];
+        aligned.readDoubles(doublesBack, 0, doubles.length, ByteOrder.LITTLE_ENDIAN);
+        assertTrue(Arrays.equals(doubles, doublesBack));
+
+        aligned.position(fileSize - 7);
+        try {
+            aligned.readLongs(longsBack, 0, 1, ByteOrder.BIG_ENDIAN);
+            fail("reading past EOF should fail");
+        } catch (EOFException expected) {
+            // expected
+        }
+        assertEquals(fileSize - 7, aligned.position());
+        aligned.flush();
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+    }
+
+    @Test
+    public void testReadLineBytes() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        // a "\r\n" split by the window boundary, a lone '\r', and no terminator at EOF
+        byte[] rest = "\r\nb\rc\n\nlast".getBytes("US-ASCII");
+        byte[] contents = new byte[bufferSize - 1 + rest.length];
+        Arrays.fill(contents, (byte) 'a');
+        System.arraycopy(rest, 0, contents, bufferSize - 1, rest.length);
+        MockByteChannel channel = MockByteChannel.getChannel(contents.length, blockSize, false);
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, bufferSize);
+        aligned.writeBytes(contents, 0, contents.length);
+        aligned.position(0);
+
+        byte[] dst = new byte[2*bufferSize];
+        assertEquals(bufferSize, aligned.readLineBytes(dst, 0, dst.length));
+        assertEquals('\r', dst[bufferSize - 1]);
+        assertEquals(bufferSize + 1, aligned.position());
+        assertEquals(2, aligned.readLineBytes(dst, 0, dst.length));
+        assertEquals('b', dst[0]);
+        assertEquals('\r', dst[1]);
+        assertEquals(2, aligned.readLineBytes(dst, 0, dst.length));
+        assertEquals(1, aligned.readLineBytes(dst, 0, dst.length));
+        assertEquals('\n', dst[0]);
+        // stops at the given length, and at EOF
+        assertEquals(2, aligned.readLineBytes(dst, 5, 2));
+        assertEquals(2, aligned.readLineBytes(dst, 7, 10));
+        assertEquals("last", new String(dst, 5, 4, "US-ASCII"));
+        assertEquals(-1, aligned.readLineBytes(dst, 0, dst.length));
+        aligned.close();
+    }
+
+    @Test
+    public void testReadRangesCoalesces() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 32*blockSize + 100;
+        byte[] gold = getGoldBytes(fileSize);
+
+        CountingChannel channel = new CountingChannel(MockByteChannel.getChannel(fileSize, blockSize, false));
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, 4*blockSize);
+        aligned.writeBytes(gold, 0, fileSize);
+        // still dirty in the window, must be flushed before reading
+        aligned.position(fileSize - 50);
+        byte[] newBytes = new byte[20];
+        rand.nextBytes(newBytes);
+        aligned.writeBytes(newBytes, 0, newBytes.length);
+        System.arraycopy(newBytes, 0, gold, fileSize - 50, newBytes.length);
+        final long position = aligned.position();
+        channel.reads = 0;
+
+        // unsorted; the first three share or touch blocks 2-4, then block 10,
+        // then the file's partial last block, plus an empty range
+        long[] offsets = { 10*blockSize + 5, 2*blockSize + 1, fileSize - 60, 3*blockSize + 7, 0, 4*blockSize };
+        int[] lengths = { 30, 10, 60, blockSize, 0, 3 };
+        byte[] dst = new byte[5 + 30 + 10 + 60 + blockSize + 3];
+        aligned.readRanges(offsets, lengths, dst, 5);
+        assertEquals(3, channel.reads);
+
+        int n = 5;
+        for (int i=0; i<offsets.length; i++) {
+            assertArrayEquals(Arrays.copyOfRange(gold, (int) offsets[i], (int) offsets[i] + lengths[i]),
+                    Arrays.copyOfRange(dst, n, n + lengths[i]));
+            n += lengths[i];
+        }
+        assertEquals(position, aligned.position());
+
+        try {
+            aligned.readRanges(new long[] { fileSize - 1 }, new int[] { 2 }, dst, 0);
+            fail("reading past EOF should fail");
+        } catch (EOFException expected) {
+            // expected
+        }
+        aligned.close();
+    }
+
+    @Test
+    public void testOverwritesSkipReads() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 16*blockSize;
+        byte[] gold = getGoldBytes(fileSize);
+
+        CountingChannel channel = new CountingChannel(MockByteChannel.getChannel(fileSize, blockSize, false));
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, 4*blockSize);
+        aligned.writeBytes(gold, 0, fileSize);
+        aligned.flush();
+        assertEquals(0, channel.reads);
+
+        // block aligned overwrites after a seek need nothing from the channel
+        byte[] newBytes = new byte[2*blockSize];
+        rand.nextBytes(newBytes);
+        aligned.position(5*blockSize);
+        aligned.writeBytes(newBytes, 0, newBytes.length);
+        System.arraycopy(newBytes, 0, gold, 5*blockSize, newBytes.length);
+        assertEquals(0, channel.reads);
+
+        // an unaligned one only needs its two edge blocks
+        aligned.position(9*blockSize + 1);
+        aligned.writeBytes(newBytes, 0, newBytes.length);
+        System.arraycopy(newBytes, 0, gold, 9*blockSize + 1, newBytes.length);
+        assertEquals(2, channel.reads);
+
+        aligned.flush();
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+        // underlying channel gets closed in checkConsistency
+    }
+
+    @Test
+    public void testLargeTransfersBypassWindow() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 64*blockSize + 217;
+        byte[] gold = getGoldBytes(fileSize);
+
+        CountingChannel channel = new CountingChannel(MockByteChannel.getChannel(fileSize, blockSize, false));
+        MockByteChannelAligner aligned = getMockAlignedChannel(mockLib, channel, blockSize);
+        aligned.writeBytes(gold, 0, 100);
+        aligned.writeBytes(gold, 100, fileSize - 100);
+        aligned.flush();
+        // head window, interior, tail window
+        assertEquals(3, channel.writes);
+
+        byte[] newBytes = new byte[40*blockSize];
+        rand.nextBytes(newBytes);
+        aligned.position(3*blockSize + 5);
+        aligned.writeBytes(newBytes, 0, newBytes.length);
+        System.arraycopy(newBytes, 0, gold, 3*blockSize + 5, newBytes.length);
+
+        channel.reads = 0;
+        byte[] directRead = new byte[fileSize];
+        aligned.position(7);
+        assertEquals(fileSize - 7, aligned.readBytes(directRead, 7, fileSize));
+        aligned.position(0);
+        aligned.readBytes(directRead, 0, 7);
+        assertTrue(Arrays.equals(gold, directRead));
+        assertTrue(channel.reads <= 5);
+        aligned.position(fileSize);
+        assertEquals(-1, aligned.readBytes(directRead, 0, 1));
+
+        aligned.truncate(fileSize);
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+        // underlying channel gets closed in checkConsistency
+    }
+
+    @Test
+    public void testSubclassWithoutAllocateBuffer() throws IOException {
+        final int blockSize = mockLib.blockSize();
+        final int fileSize = 64*blockSize + 217;
+        byte[] gold = getGoldBytes(fileSize);
+
+        // written before allocateBuffer existed: one fixed window, and no extras
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, blockSize, false);
+        ByteChannelAligner<JaydioByteBuffer> aligned = new ByteChannelAligner<JaydioByteBuffer>(mockLib, channel,
+                JavaHeapByteBuffer.allocate(bufferSize)) {
+        };
+        aligned.setMaxReadahead(16*blockSize);
+        aligned.writeBytes(gold, 0, 100);
+        aligned.writeBytes(gold, 100, fileSize - 100);
+        byte[] directRead = new byte[fileSize];
+        aligned.position(0);
+        assertEquals(fileSize, aligned.readBytes(directRead, 0, fileSize));
+        assertTrue(Arrays.equals(gold, directRead));
+        try {
+            aligned.setPrefetchDepth(2);
+            fail("prefetching without allocateBuffer");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        aligned.truncate(fileSize);
+        checkConsistency(mockLib, channel, blockSize, gold, fileSize);
+    }
+
     private static MockByteChannelAligner getMockAlignedChannel(DirectIoLib mockLib, BufferedChannel<JaydioByteBuffer> channel, int bufferSize, long fileSize) throws IOException {
         JaydioByteBuffer buffer = JavaHeapByteBuffer.allocate(bufferSize);
         return new MockByteChannelAligner(mockLib, channel, buffer);
@@ -231,4 +748,68 @@ public class TestAlignedIO extends Assert {
         // make sure the byte arrays are the same
         assertTrue(Arrays.equals(gold, directRead));
     }
+
+    // counts the reads reaching the channel
+    private static class CountingChannel implements BufferedChannel<JaydioByteBuffer> {
+        private final BufferedChannel<JaydioByteBuffer> delegate;
+        int reads;
+        int writes;
+
+        CountingChannel(BufferedChannel<JaydioByteBuffer> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read(JaydioByteBuffer dst, long position) throws IOException {
+            reads++;
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(JaydioByteBuffer src, long position) throws IOException {
+            writes++;
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public long size() {
+            return delegate.size();
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return delegate.isReadOnly();
+        }
+
+        @Override
+        public CountingChannel truncate(long fileLength) throws IOException {
+            delegate.truncate(fileLength);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public int getFD() {
+            return delegate.getFD();
+        }
+
+        @Override
+        public IoStats getStats() {
+            return delegate.getStats();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
 }
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Fuzzes {@link BlockBitmap} against {@link BitSet}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestBlockBitmap extends Assert {
+
+    private static final int TRIALS = 2000;
+
+    @Test
+    public void testAgainstBitSet() {
+        Random rand = new Random(42);
+        // sizes around word boundaries
+        int[] sizes = {1, 63, 64, 65, 127, 128, 129, 1000};
+        for (int size : sizes) {
+            BlockBitmap bitmap = new BlockBitmap(size);
+            BitSet gold = new BitSet(size);
+            for (int t=0; t<TRIALS; t++) {
+                int from = rand.nextInt(size + 1);
+                int to = from + rand.nextInt(size - from + 1);
+                if (rand.nextInt(3) == 0) {
+                    bitmap.clear(from, to);
+                    gold.clear(from, to);
+                } else {
+                    bitmap.set(from, to);
+                    gold.set(from, to);
+                }
+                if (rand.nextInt(50) == 0) {
+                    bitmap.clear();
+                    gold.clear();
+                }
+                checkSame(gold, bitmap, rand.nextInt(size + 1));
+            }
+        }
+    }
+
+    private static void checkSame(BitSet gold, BlockBitmap bitmap, int from) {
+        assertEquals(gold.cardinality(), bitmap.cardinality());
+        assertEquals(gold.length(), bitmap.length());
+        assertEquals(gold.nextSetBit(from), bitmap.nextSetBit(from));
+        assertEquals(Math.min(gold.nextClearBit(from), bitmap.size()), bitmap.nextClearBit(from));
+        if (from < bitmap.size()) {
+            assertEquals(gold.get(from), bitmap.get(from));
+        }
+    }
+}
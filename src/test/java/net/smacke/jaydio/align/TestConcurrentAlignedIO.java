@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.align;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.buffer.JavaHeapByteBuffer;
+import net.smacke.jaydio.buffer.JaydioByteBuffer;
+import net.smacke.jaydio.channel.BufferedChannel;
+import net.smacke.jaydio.channel.MockByteChannel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Hammers {@link ConcurrentByteChannelAligner}s from several threads at once, with
+ * few enough pages that frames keep getting evicted underneath the other threads. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestConcurrentAlignedIO extends Assert {
+
+    private static final int THREADS = 4;
+    // smaller than a block, so that threads keep sharing pages
+    private static final int STRIPE = 100;
+
+    private final DirectIoLib mockLib = new MockDirectIoLib(512);
+
+    @Test
+    public void testConcurrentStripedWrites() throws Exception {
+        final int fileSize = 64*mockLib.blockSize() + 217;
+        final byte[] gold = new byte[fileSize];
+        new Random(42).nextBytes(gold);
+
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(fileSize, mockLib.blockSize(), false);
+        final ConcurrentByteChannelAligner<JaydioByteBuffer> aligned =
+                new MockConcurrentByteChannelAligner(mockLib, channel, 2*mockLib.blockSize(), 3);
+
+        hammer(aligned, gold);
+        aligned.flush();
+
+        // read back through an independent aligner
+        MockByteChannelAligner reader = new MockByteChannelAligner(mockLib, channel, JavaHeapByteBuffer.allocate(mockLib.blockSize()));
+        byte[] directRead = new byte[fileSize];
+        reader.readBytes(directRead, 0, fileSize);
+        assertTrue(Arrays.equals(gold, directRead));
+        aligned.close();
+    }
+
+    @Test
+    public void testTruncateZeroesCutOffBytes() throws IOException {
+        final int pageSize = 2*mockLib.blockSize();
+        BufferedChannel<JaydioByteBuffer> channel = MockByteChannel.getChannel(2*pageSize, mockLib.blockSize(), false);
+        ConcurrentByteChannelAligner<JaydioByteBuffer> aligned = new MockConcurrentByteChannelAligner(mockLib, channel, pageSize, 2);
+
+        byte[] ones = new byte[pageSize + 10];
+        Arrays.fill(ones, (byte) 1);
+        aligned.write(0, ones, 0, ones.length);
+        aligned.truncate(pageSize - 10);
+        assertEquals(pageSize - 10, aligned.size());
+        assertEquals(-1, aligned.read(pageSize - 10, ones, 0, 1));
+
+        // grow the file again past the cut
+        aligned.write(pageSize + 5, ones, 0, 1);
+        byte[] directRead = new byte[20];
+        assertEquals(16, aligned.read(pageSize - 10, directRead, 0, 20));
+        for (int i=0; i<15; i++) {
+            assertEquals(0, directRead[i]);
+        }
+        assertEquals(1, directRead[15]);
+        aligned.close();
+    }
+
+    @Test
+    public void testConcurrentDirectIO() throws Exception {
+        File temp = File.createTempFile("concurrent", Long.toString(System.nanoTime()));
+        DirectIoLib lib = DirectIoLib.getLibForPath(temp.toString());
+        final int fileSize = 256*1024 + 217;
+        final byte[] gold = new byte[fileSize];
+        new Random(System.nanoTime()).nextBytes(gold);
+
+        try {
+            ConcurrentByteChannelAligner<?> aligned = DirectIoConcurrentByteChannelAligner.open(lib, temp, 4*lib.blockSize(), 8, false);
+            try {
+                hammer(aligned, gold);
+            } finally {
+                aligned.close();
+            }
+            assertEquals(fileSize, temp.length());
+
+            ConcurrentByteChannelAligner<?> reopened = DirectIoConcurrentByteChannelAligner.open(lib, temp, 4*lib.blockSize(), 8, true);
+            try {
+                byte[] directRead = new byte[fileSize];
+                assertEquals(fileSize, reopened.read(0, directRead, 0, fileSize));
+                assertTrue(Arrays.equals(gold, directRead));
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    // each thread writes every THREADS-th stripe of gold, then reads its stripes back
+    private static void hammer(final ConcurrentByteChannelAligner<?> aligned, final byte[] gold) throws Exception {
+        final int fileSize = gold.length;
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t=0; t<THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int pos=id*STRIPE; pos<fileSize; pos+=THREADS*STRIPE) {
+                            aligned.write(pos, gold, pos, Math.min(STRIPE, fileSize - pos));
+                        }
+                        byte[] directRead = new byte[STRIPE];
+                        for (int pos=id*STRIPE; pos<fileSize; pos+=THREADS*STRIPE) {
+                            final int n = aligned.read(pos, directRead, 0, Math.min(STRIPE, fileSize - pos));
+                            for (int i=0; i<n; i++) {
+                                if (directRead[i] != gold[pos+i]) {
+                                    throw new AssertionError("wrong byte at " + (pos+i));
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+        }
+        assertEquals(fileSize, aligned.size());
+    }
+}
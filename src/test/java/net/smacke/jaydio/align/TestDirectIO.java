@@ -23,6 +23,7 @@ import java.util.Random;
 
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+import net.smacke.jaydio.channel.MmapByteChannel;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -52,6 +53,7 @@ public class TestDirectIO extends Assert {
     private int unalignedFileSize;
     private int bufferSize;
     private DirectIoLib lib;
+    private boolean mapped; // whether to go through MmapByteChannel instead
 
     public TestDirectIO() {
         this.smallWriteSize = 42;
@@ -91,6 +93,19 @@ public class TestDirectIO extends Assert {
     }
 
 
+    @Test
+    public void testMappedSeekingWithSmallEdits() throws IOException {
+        mapped = true;
+        performWriteTest(unalignedFileSize, true, true);
+        performWriteTest(alignedFileSize, true, true);
+    }
+
+    private DirectIoByteChannelAligner openAligner(File file) throws IOException {
+        return mapped ?
+                DirectIoByteChannelAligner.openMapped(lib, file, bufferSize, false, false, MmapByteChannel.Advice.RANDOM) :
+                DirectIoByteChannelAligner.open(lib, file, bufferSize, false);
+    }
+
     private void performWriteTest(final int fileSize, final boolean seek, final boolean smallWrites) throws IOException {
         File temp = getTempDirectory("temp", Long.toString(System.nanoTime()));
 
@@ -101,7 +116,7 @@ public class TestDirectIO extends Assert {
         
         // channel for direct i/o
         File directFile = new File(temp, DIRECT_FILE_NAME);
-        DirectIoByteChannelAligner direct = DirectIoByteChannelAligner.open(lib, directFile, bufferSize, false);
+        DirectIoByteChannelAligner direct = openAligner(directFile);
 
         try {
             Random rand = new Random(System.nanoTime());
@@ -263,6 +278,81 @@ public class TestDirectIO extends Assert {
         }
     }
 
+    @Test
+    public void testConcurrentPositionalIO() throws Exception {
+        File temp = getTempDirectory("temp", Long.toString(System.nanoTime()));
+
+        File goldFile = new File(temp, GOLD_FILE_NAME);
+        RandomAccessFile gold = new RandomAccessFile(goldFile, "rw");
+
+        File directFile = new File(temp, DIRECT_FILE_NAME);
+        final DirectIoByteChannelAligner direct = DirectIoByteChannelAligner.open(lib, directFile, bufferSize, false);
+
+        final int fileSize = unalignedFileSize;
+        final int nThreads = 4;
+        // stripes are smaller than a block, so that threads keep patching the same blocks
+        final int stripe = 100;
+
+        try {
+            Random rand = new Random(System.nanoTime());
+            final byte[] writeBuffer = new byte[fileSize];
+            rand.nextBytes(writeBuffer);
+            gold.write(writeBuffer);
+
+            final Throwable[] failure = new Throwable[1];
+            Thread[] threads = new Thread[nThreads];
+            for (int t=0; t<nThreads; t++) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int pos=id*stripe; pos<fileSize; pos+=nThreads*stripe) {
+                                direct.write(pos, writeBuffer, pos, Math.min(stripe, fileSize - pos));
+                            }
+                            byte[] directRead = new byte[3*stripe];
+                            for (int pos=id*stripe; pos<fileSize; pos+=nThreads*stripe) {
+                                final int n = direct.read(pos, directRead, 0, Math.min(stripe, fileSize - pos));
+                                for (int i=0; i<n; i++) {
+                                    if (directRead[i] != writeBuffer[pos+i]) {
+                                        throw new AssertionError("wrong byte at " + (pos+i));
+                                    }
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            synchronized (failure) {
+                if (failure[0] != null) {
+                    throw new AssertionError(failure[0]);
+                }
+            }
+            // positional I/O leaves the file pointer alone
+            assertEquals(0, direct.position());
+            assertEquals(-1, direct.read(fileSize, writeBuffer, 0, 1));
+
+            checkConsistency(direct, gold, directFile, fileSize);
+        }
+        finally {
+            gold.close();
+            direct.close();
+            goldFile.delete();
+            directFile.delete();
+            if (!temp.delete()) {
+                throw new IOException("Error: could not delete temp directory " + temp.getAbsolutePath());
+            }
+        }
+    }
+
     // Make sure we wrote the same stuff
     // (assuming direct input works)
     private static void checkConsistency(DirectIoByteChannelAligner direct, RandomAccessFile gold, File directFile, int fileSize) throws IOException {
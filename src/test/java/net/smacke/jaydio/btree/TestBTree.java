@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.TempFiles;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BTree}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestBTree extends Assert {
+
+	private static final Comparator<byte[]> ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			return BTree.compare(a, b);
+		}
+	};
+
+	private File dir;
+	private File file;
+	private DirectIoLib lib;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "btree");
+		file = new File(dir, "btree");
+		lib = DirectIoLib.getLibForPath(dir.toString());
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	// a small page and cache, so that trees get several levels and pages get evicted
+	private BTree open() throws IOException {
+		return BTree.open(lib, file, Math.max(512, lib.blockSize()), 16);
+	}
+
+	private static byte[] randomBytes(Random r, int maxLength) {
+		final byte[] b = new byte[r.nextInt(maxLength + 1)];
+		r.nextBytes(b);
+		return b;
+	}
+
+	private static void assertScan(SortedMap<byte[], byte[]> expected, BTreeCursor cursor) throws IOException {
+		for (Map.Entry<byte[], byte[]> e : expected.entrySet()) {
+			assertTrue(cursor.next());
+			assertArrayEquals(e.getKey(), cursor.key());
+			assertArrayEquals(e.getValue(), cursor.value());
+		}
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testRandomOperations() throws IOException {
+		final TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(ORDER);
+		final Random r = new Random(3);
+		BTree tree = open();
+		try {
+			for (int i = 0; i < 30000; i++) {
+				// few distinct short keys, so that removals and replacements hit
+				final byte[] key = randomBytes(r, 3);
+				if (r.nextInt(3) == 0) {
+					assertEquals(expected.remove(key) != null, tree.remove(key));
+				} else {
+					final byte[] value = randomBytes(r, 40);
+					assertArrayEquals(expected.put(key, value), tree.put(key, value));
+				}
+			}
+			assertEquals(expected.size(), tree.size());
+			for (byte[] key : expected.keySet()) {
+				assertArrayEquals(expected.get(key), tree.get(key));
+			}
+		} finally {
+			tree.close();
+		}
+
+		tree = open();
+		try {
+			assertEquals(expected.size(), tree.size());
+			assertScan(expected, tree.scan(null, null));
+			for (int i = 0; i < 100; i++) {
+				byte[] from = randomBytes(r, 2);
+				byte[] to = randomBytes(r, 2);
+				if (ORDER.compare(from, to) > 0) {
+					final byte[] t = from;
+					from = to;
+					to = t;
+				}
+				assertScan(expected.subMap(from, to), tree.scan(from, to));
+			}
+
+			// emptying the tree puts its pages on the free list, and refilling takes them back
+			for (byte[] key : new ArrayList<byte[]>(expected.keySet())) {
+				assertTrue(tree.remove(key));
+			}
+			assertEquals(0, tree.size());
+			assertFalse(tree.scan(null, null).next());
+			tree.flush();
+			final long length = file.length();
+			for (int i = 0; i < 1000; i++) {
+				tree.put(new byte[] { (byte) (i >> 8), (byte) i }, new byte[20]);
+			}
+			tree.flush();
+			assertEquals(length, file.length());
+		} finally {
+			tree.close();
+		}
+	}
+
+	@Test
+	public void testBulkLoadAndScan() throws IOException {
+		final List<Map.Entry<byte[], byte[]>> entries = new ArrayList<Map.Entry<byte[], byte[]>>();
+		final TreeMap<byte[], byte[]> expected = new TreeMap<byte[], byte[]>(ORDER);
+		for (int i = 0; i < 50000; i++) {
+			final byte[] key = String.format("key%08d", i * 7).getBytes("US-ASCII");
+			final byte[] value = String.valueOf(i).getBytes("US-ASCII");
+			entries.add(new AbstractMap.SimpleEntry<byte[], byte[]>(key, value));
+			expected.put(key, value);
+		}
+
+		BTree tree = open();
+		try {
+			// out of order keys leave the tree as it was
+			final List<Map.Entry<byte[], byte[]>> unsorted = new ArrayList<Map.Entry<byte[], byte[]>>(entries);
+			unsorted.add(entries.get(0));
+			try {
+				tree.bulkLoad(unsorted.iterator(), 0.9f);
+				fail("loaded unsorted keys");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			assertEquals(0, tree.size());
+			assertFalse(tree.scan(null, null).next());
+
+			tree.bulkLoad(entries.iterator(), 0.9f);
+			assertEquals(entries.size(), tree.size());
+		} finally {
+			tree.close();
+		}
+
+		tree = open();
+		try {
+			assertScan(expected, tree.scan(null, null));
+			final byte[] from = "key00100000".getBytes("US-ASCII");
+			final byte[] to = "key00200003".getBytes("US-ASCII");
+			assertScan(expected.subMap(from, to), tree.scan(from, to));
+			assertNull(tree.get("key00000001".getBytes("US-ASCII")));
+			assertArrayEquals("3".getBytes("US-ASCII"), tree.get("key00000021".getBytes("US-ASCII")));
+
+			// the loaded tree takes inserts between its keys
+			final byte[] key = "key00000020".getBytes("US-ASCII");
+			tree.put(key, new byte[1]);
+			expected.put(key, new byte[1]);
+			assertScan(expected, tree.scan(null, null));
+		} finally {
+			tree.close();
+		}
+	}
+
+	@Test
+	public void testCursorIsInvalidatedByChanges() throws IOException {
+		final BTree tree = open();
+		try {
+			tree.put(new byte[] { 1 }, new byte[] { 1 });
+			tree.put(new byte[] { 2 }, new byte[] { 2 });
+			final BTreeCursor cursor = tree.scan(null, null);
+			assertTrue(cursor.next());
+			tree.put(new byte[] { 3 }, new byte[] { 3 });
+			try {
+				cursor.next();
+				fail("cursor survived a change");
+			} catch (ConcurrentModificationException e) {
+				// expected
+			}
+			try {
+				tree.put(new byte[tree.maxEntrySize()], new byte[1]);
+				fail("entry larger than the maximum");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			tree.close();
+		}
+	}
+}
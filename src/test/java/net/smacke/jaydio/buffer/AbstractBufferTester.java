@@ -86,6 +86,27 @@ public abstract class AbstractBufferTester extends Assert {
 		assertEquals(oldPos + size, buffer.position());
 	}
 
+	@Test
+	public void testAbsoluteBulkGetAndPut() {
+		int size = 5;
+		assert 3 + size < buffer.limit();
+		byte[] src = {1, 2, 3, 4, 5};
+		byte[] dst = new byte[size + 2];
+		int oldPos = buffer.position();
+		buffer.put(3, src, 0, size);
+		buffer.get(3, dst, 2, size);
+		assertEquals(oldPos, buffer.position());
+		for (int i=0; i<size; i++) {
+			assertEquals(src[i], dst[i + 2]);
+		}
+	}
+
+    @Test(expected = IndexOutOfBoundsException.class)
+	public void testAbsoluteGetPastLimitFails() {
+		byte[] anything = new byte[10];
+		buffer.get(buffer.limit() - 5, anything, 0, 10);
+	}
+
     @Test(expected = IndexOutOfBoundsException.class)
 	public void testReadPastArrayBoundFails() {
 		int size = 10;
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author smacke
+ *
+ */
+public class TestBlockLocks extends Assert {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int STRIPES = 8;
+
+    @Test
+    public void testUnlockReleasesEverything() throws InterruptedException {
+        BlockLocks locks = new BlockLocks(BLOCK_SIZE, STRIPES);
+        Random rand = new Random(42);
+        for (int t=0; t<1000; t++) {
+            long from = rand.nextInt(40 * BLOCK_SIZE);
+            long to = from + rand.nextInt(12 * BLOCK_SIZE);
+            boolean write = rand.nextBoolean();
+            locks.lock(from, to, write);
+            // reentrant, so taking them all again must not deadlock
+            if (write) {
+                locks.lockAll();
+                locks.unlockAll();
+            }
+            locks.unlock(from, to, write);
+        }
+        assertTrue(lockAllFromOtherThread(locks));
+    }
+
+    @Test
+    public void testWrappedRangeExcludesOverlappingBlocks() throws InterruptedException {
+        BlockLocks locks = new BlockLocks(BLOCK_SIZE, STRIPES);
+        // blocks 6..9, i.e. stripes 6, 7, 0 and 1
+        locks.lock(6L * BLOCK_SIZE, 10L * BLOCK_SIZE - 1, true);
+        assertFalse(lockFromOtherThread(locks, 17L * BLOCK_SIZE));
+        assertFalse(lockFromOtherThread(locks, 22L * BLOCK_SIZE));
+        assertTrue(lockFromOtherThread(locks, 2L * BLOCK_SIZE));
+        assertTrue(lockFromOtherThread(locks, 13L * BLOCK_SIZE));
+        locks.unlock(6L * BLOCK_SIZE, 10L * BLOCK_SIZE - 1, true);
+        assertTrue(lockAllFromOtherThread(locks));
+    }
+
+    private static boolean lockFromOtherThread(final BlockLocks locks, final long blockPos) throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                locks.lock(blockPos, blockPos + BLOCK_SIZE, false);
+                locked.countDown();
+                locks.unlock(blockPos, blockPos + BLOCK_SIZE, false);
+                done.countDown();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        boolean acquired = locked.await(200, TimeUnit.MILLISECONDS);
+        if (acquired) {
+            done.await();
+        }
+        return acquired;
+    }
+
+    private static boolean lockAllFromOtherThread(final BlockLocks locks) throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                locks.lockAll();
+                locks.unlockAll();
+                locked.countDown();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return locked.await(5, TimeUnit.SECONDS);
+    }
+}
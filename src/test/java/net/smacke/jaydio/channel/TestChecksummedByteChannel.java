@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.TempFiles;
+import net.smacke.jaydio.align.DirectIoByteChannelAligner;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ChecksummedByteChannel} and {@link Crc32c}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestChecksummedByteChannel extends Assert {
+
+	private File dir;
+	private File file;
+	private DirectIoLib lib;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "crc");
+		file = new File(dir, "crc");
+		lib = DirectIoLib.getLibForPath(dir.toString());
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	@Test
+	public void testKnownValues() {
+		assertEquals(0xE3069283, Crc32c.compute("123456789".getBytes(), 0, 9));
+		assertEquals(0x8A9136AA, Crc32c.compute(new byte[32], 0, 32));
+		assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+
+		// the table implementation agrees with whichever one is in use, padding included
+		final byte[] b = new byte[1000];
+		new Random(1).nextBytes(b);
+		for (int n = 0; n < 40; n++) {
+			final ByteBuffer padded = ByteBuffer.allocate(n + 30);
+			padded.put(b, 0, n).clear();
+			assertEquals(Crc32c.update(0, padded), Crc32c.compute(ByteBuffer.wrap(b, 0, n), 30));
+		}
+		assertEquals(Crc32c.update(0, ByteBuffer.wrap(b, 3, 997)), Crc32c.compute(b, 3, 997));
+	}
+
+	@Test
+	public void testRoundTripAndCorruption() throws IOException {
+		final int bufferSize = 4 * lib.blockSize();
+		final byte[] data = new byte[10 * lib.blockSize() + 123];
+		new Random(2).nextBytes(data);
+
+		DirectIoByteChannelAligner aligner = DirectIoByteChannelAligner.openChecksummed(lib, file, bufferSize, false);
+		try {
+			aligner.writeBytes(data, 0, data.length);
+			// rewrite the middle, so that some blocks get checksummed twice
+			aligner.position(3 * lib.blockSize() + 7);
+			aligner.writeBytes(data, 0, 2 * lib.blockSize());
+			System.arraycopy(data, 0, data, 3 * lib.blockSize() + 7, 2 * lib.blockSize());
+		} finally {
+			aligner.close();
+		}
+		assertEquals(data.length, file.length());
+		assertEquals(11 * 4, ChecksummedByteChannel.sidecarFile(file).length());
+
+		aligner = DirectIoByteChannelAligner.openChecksummed(lib, file, bufferSize, true);
+		try {
+			final byte[] read = new byte[data.length];
+			aligner.readBytes(read, 0, read.length);
+			assertArrayEquals(data, read);
+		} finally {
+			aligner.close();
+		}
+
+		// flip a bit behind the channel's back
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(6 * lib.blockSize() + 5);
+			final int b = raf.read();
+			raf.seek(6 * lib.blockSize() + 5);
+			raf.write(b ^ 0x10);
+		} finally {
+			raf.close();
+		}
+		aligner = DirectIoByteChannelAligner.openChecksummed(lib, file, bufferSize, true);
+		try {
+			final byte[] read = new byte[lib.blockSize()];
+			aligner.readBytes(read, 0, read.length); // an intact window is fine
+			assertArrayEquals(Arrays.copyOf(data, read.length), read);
+			aligner.position(5 * lib.blockSize());
+			try {
+				aligner.readBytes(read, 0, read.length);
+				fail("read a corrupt block");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("block 6"));
+			}
+		} finally {
+			aligner.close();
+		}
+	}
+
+	@Test
+	public void testTruncateAndMissingSidecar() throws IOException {
+		final byte[] data = new byte[3 * lib.blockSize()];
+		new Random(3).nextBytes(data);
+		DirectIoByteChannelAligner aligner = DirectIoByteChannelAligner.open(file, false);
+		try {
+			aligner.writeBytes(data, 0, data.length);
+		} finally {
+			aligner.close();
+		}
+
+		// nothing recorded yet, so nothing checked
+		aligner = DirectIoByteChannelAligner.openChecksummed(file, false);
+		try {
+			final byte[] read = new byte[data.length];
+			aligner.readBytes(read, 0, read.length);
+			assertArrayEquals(data, read);
+			// cutting the last block short checksums what is left of it
+			aligner.position(lib.blockSize());
+			aligner.writeBytes(data, 0, 2 * lib.blockSize());
+			aligner.truncate(lib.blockSize() + 10);
+		} finally {
+			aligner.close();
+		}
+		assertEquals(2 * 4, ChecksummedByteChannel.sidecarFile(file).length());
+
+		aligner = DirectIoByteChannelAligner.openChecksummed(file, true);
+		try {
+			final byte[] read = new byte[lib.blockSize() + 10];
+			assertEquals(read.length, aligner.readBytes(read, 0, read.length));
+			assertArrayEquals(Arrays.copyOf(data, lib.blockSize()), Arrays.copyOf(read, lib.blockSize()));
+			assertArrayEquals(Arrays.copyOf(data, 10), Arrays.copyOfRange(read, lib.blockSize(), read.length));
+		} finally {
+			aligner.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentWritesAreNeverSeenHalfDone() throws Exception {
+		final ChecksummedByteChannel channel = ChecksummedByteChannel.getChannel(lib, file, false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		try {
+			final Thread writer = new Thread() {
+				@Override
+				public void run() {
+					final AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, 2 * lib.blockSize());
+					try {
+						for (int i = 0; i < 2000 && failure.get() == null; i++) {
+							buffer.clear();
+							buffer.put(new byte[] { (byte) i, (byte) (i >> 8) });
+							buffer.clear();
+							channel.write(buffer, 0);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						buffer.close();
+					}
+				}
+			};
+			final AlignedDirectByteBuffer buffer = AlignedDirectByteBuffer.allocate(lib, 2 * lib.blockSize());
+			try {
+				buffer.clear();
+				channel.write(buffer, 0);
+				writer.start();
+				while (writer.isAlive() && failure.get() == null) {
+					buffer.clear();
+					channel.read(buffer, 0);
+				}
+			} catch (IOException e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				writer.join();
+				buffer.close();
+			}
+		} finally {
+			channel.close();
+		}
+		assertNull(String.valueOf(failure.get()), failure.get());
+	}
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.channels.NonWritableChannelException;
 import java.util.Arrays;
+import java.util.Random;
 
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
@@ -94,6 +95,30 @@ public class TestDirectIoByteChannel extends BufferedChannelAbstractTester<Align
         super.testCannotWriteToReadOnlyChannel();
     }
 
+    @Test
+    public void testReadRanges() throws IOException {
+        final int blockSize = lib.blockSize();
+        byte[] contents = new byte[8*blockSize];
+        new Random(5).nextBytes(contents);
+        buffer.close();
+        buffer = AlignedDirectByteBuffer.allocate(lib, contents.length);
+        buffer.put(contents);
+        buffer.clear();
+        channel.write(buffer, 0);
+        DirectIoByteChannel direct = (DirectIoByteChannel) channel;
+
+        long[] offsets = { 6*blockSize + 3, 17, blockSize - 1, 5*blockSize };
+        int[] lengths = { 2*blockSize - 3, 100, 2, 1 };
+        byte[] dst = new byte[2*blockSize - 3 + 100 + 2 + 1];
+        direct.readRanges(offsets, lengths, dst, 0);
+        int n = 0;
+        for (int i=0; i<offsets.length; i++) {
+            assertArrayEquals(Arrays.copyOfRange(contents, (int) offsets[i], (int) offsets[i] + lengths[i]),
+                    Arrays.copyOfRange(dst, n, n + lengths[i]));
+            n += lengths[i];
+        }
+    }
+
     public void testCannotOpenNewFileInReadOnlyMode() throws IOException {
         tearDown(); // delete temp file
         try{
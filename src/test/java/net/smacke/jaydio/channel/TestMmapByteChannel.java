@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.TempFiles;
+import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
+import net.smacke.jaydio.channel.MmapByteChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test class which extends {@link BufferedChannelAbstractTester}.
+ * This does actual file I/O through a memory mapping (through JNA). </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestMmapByteChannel extends BufferedChannelAbstractTester<AlignedDirectByteBuffer> {
+
+    private File tempDir;
+    private File tempFile;
+    private static DirectIoLib lib;
+    
+    @BeforeClass public static void setupClass() {
+        lib = DirectIoLib.getLibForPath(System.getProperty("java.io.tmpdir"));
+    }
+
+
+    private void subSetup(boolean readOnly) throws IOException {
+        channel = MmapByteChannel.getChannel(tempFile, readOnly);
+        buffer = AlignedDirectByteBuffer.allocate(lib, 2*lib.blockSize());
+        testPosition = lib.blockSize();
+        int startFilelength = 2*lib.blockSize();
+        byte[] fileContents = new byte[startFilelength];
+        Arrays.fill(fileContents, (byte)7);
+        buffer.put(fileContents);
+        channel.write(buffer, 0);
+        buffer.clear();
+    }
+
+	@Override
+    @Before public void setUp() throws IOException {
+        tempDir = TempFiles.getTempDirectory("temp", Long.toString(System.nanoTime()));
+        tempFile = new File(tempDir, "channel");
+        subSetup(false);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws IOException {
+        super.tearDown();
+        tempFile.delete();
+        if (!tempDir.delete()) {
+            throw new IOException("could not delete temp directory " + tempDir.getAbsolutePath());
+        }
+    }
+
+    @Override
+    @Test(expected = NonWritableChannelException.class)
+    public void testCannotWriteToReadOnlyChannel() throws IOException {
+        super.tearDown(); // super method doesn't delete file 
+        subSetup(true);
+        super.testCannotWriteToReadOnlyChannel();
+    }
+
+    @Test
+    public void testGrowingRemapsAndTruncates() throws IOException {
+        final int blockSize = lib.blockSize();
+        byte[] contents = new byte[blockSize];
+        new Random(5).nextBytes(contents);
+        buffer.clear();
+        buffer.put(contents);
+        buffer.clear();
+        buffer.limit(blockSize);
+        // far past the initial mapping, so that it has to grow
+        for (int i=0; i<64; i++) {
+            channel.write(buffer, (2 + i)*blockSize);
+        }
+        assertEquals(66*blockSize, channel.size());
+        channel.force(false);
+
+        buffer.clear();
+        buffer.limit(blockSize);
+        assertEquals(blockSize, channel.read(buffer, 40*blockSize));
+        byte[] read = new byte[blockSize];
+        buffer.get(read);
+        assertArrayEquals(contents, read);
+
+        channel.truncate(3*blockSize + 10);
+        assertEquals(3*blockSize + 10, channel.size());
+        buffer.clear();
+        assertEquals(10, channel.read(buffer, 3*blockSize));
+        channel.close();
+        assertEquals(3*blockSize + 10, tempFile.length());
+    }
+
+    @Test
+    public void testWritesRaceWithTruncation() throws Exception {
+        final int blockSize = lib.blockSize();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread truncator = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i=0; i<2000; i++) {
+                        channel.truncate(blockSize);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        truncator.start();
+        buffer.clear();
+        buffer.limit(blockSize);
+        // each write grows the file, and must not touch the mapping past EOF if a
+        // truncation slips in between growing it and copying the block
+        for (int i=0; truncator.isAlive(); i=(i+1)%32) {
+            channel.write(buffer, (1 + i)*blockSize);
+            buffer.clear();
+            buffer.limit(blockSize);
+        }
+        truncator.join();
+        assertNull(failure.get());
+    }
+
+    public void testCannotOpenNewFileInReadOnlyMode() throws IOException {
+        tearDown(); // delete temp file
+        try{
+            subSetup(true);
+            fail("trying to open file in read only mode should throw exception");
+        } catch (IOException expected) {
+        	// expected
+        }
+        setUp(); // recreate temp file
+    }
+}
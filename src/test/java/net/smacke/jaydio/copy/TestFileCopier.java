@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.smacke.jaydio.TempFiles;
+import net.smacke.jaydio.channel.DirectIoByteChannel;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FileCopier}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestFileCopier extends Assert {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "copy");
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	private static byte[] write(File f, int length, long seed) throws IOException {
+		final byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.write(data);
+		} finally {
+			raf.close();
+		}
+		return data;
+	}
+
+	private static void assertSameContent(File expected, File actual) throws IOException {
+		assertEquals(expected.length(), actual.length());
+		assertTrue(Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())));
+	}
+
+	@Test
+	public void testSparseFile() throws IOException {
+		final File src = new File(dir, "sparse");
+		final RandomAccessFile raf = new RandomAccessFile(src, "rw");
+		final byte[] data = new byte[10000];
+		new Random(1).nextBytes(data);
+		try {
+			// a leading hole, data, a hole in the middle, and an odd sized tail
+			raf.seek(4 << 20);
+			raf.write(data);
+			raf.seek(12 << 20);
+			raf.write(data, 0, 777);
+		} finally {
+			raf.close();
+		}
+
+		final File dst = new File(new File(dir, "out"), "sparse");
+		final FileCopier copier = new FileCopier();
+		copier.setBufferSize(1 << 20);
+		final AtomicLong last = new AtomicLong();
+		copier.setProgress(new FileCopier.Progress() {
+			@Override
+			public void update(long bytesCopied, long bytesTotal) {
+				assertTrue(bytesCopied <= bytesTotal);
+				last.set(bytesCopied);
+			}
+		});
+		assertEquals(src.length(), copier.copy(src, dst));
+		assertEquals(src.length(), last.get());
+		assertSameContent(src, dst);
+		assertEquals(src.lastModified() / 1000, dst.lastModified() / 1000);
+
+		final DirectIoByteChannel in = DirectIoByteChannel.getChannel(src, true);
+		final DirectIoByteChannel out = DirectIoByteChannel.getChannel(dst, true);
+		try {
+			if (in.nextData(0) > 0) {
+				// the file system keeps track of holes, so the copy has to keep them too
+				assertTrue(out.nextData(0) > 0);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	@Test
+	public void testOverwriteWithParallelRanges() throws IOException {
+		final File src = new File(dir, "src");
+		write(src, 3 * 65536 + 123, 2);
+		final File dst = new File(dir, "dst");
+		write(dst, 10 * 65536, 3); // longer, so it has to shrink
+
+		final FileCopier copier = new FileCopier();
+		copier.setBufferSize(8192);
+		copier.setQueueDepth(2);
+		copier.setRangeWorkers(4);
+		copier.setParallelThreshold(0);
+		copier.copy(src, dst);
+		assertSameContent(src, dst);
+	}
+
+	@Test
+	public void testDirectoryTree() throws IOException {
+		final File src = new File(dir, "tree");
+		assertTrue(new File(src, "a/b").mkdirs());
+		assertTrue(new File(src, "empty").mkdirs());
+		write(new File(src, "top"), 100000, 4);
+		write(new File(src, "a/middle"), 4096, 5);
+		write(new File(src, "a/b/bottom"), 1, 6);
+		write(new File(src, "a/b/nothing"), 0, 7);
+		Files.createSymbolicLink(new File(src, "a/link").toPath(), new File("b/bottom").toPath());
+
+		final File dst = new File(dir, "copy");
+		final FileCopier copier = new FileCopier();
+		copier.setBufferSize(4096);
+		copier.setFileWorkers(2);
+		assertEquals(100000 + 4096 + 1, copier.copy(src, dst));
+
+		for (String name : new String[] { "top", "a/middle", "a/b/bottom", "a/b/nothing" }) {
+			assertSameContent(new File(src, name), new File(dst, name));
+		}
+		assertTrue(new File(dst, "empty").isDirectory());
+		assertEquals(new File("b/bottom").toPath(), Files.readSymbolicLink(new File(dst, "a/link").toPath()));
+	}
+
+	@Test(timeout = 60000)
+	public void testWriterFailureStopsReader() throws IOException {
+		final File src = new File(dir, "src");
+		write(src, 64 * 4096, 8);
+		final Thread caller = Thread.currentThread();
+		final FileCopier copier = new FileCopier();
+		copier.setBufferSize(4096);
+		copier.setQueueDepth(2);
+		// fails the writer, which reports progress on its own thread, after its first chunk;
+		// the reader then waits for a buffer which the writer would never have returned
+		copier.setProgress(new FileCopier.Progress() {
+			@Override
+			public void update(long bytesCopied, long bytesTotal) {
+				if (Thread.currentThread() != caller) {
+					throw new IllegalStateException("destination failed");
+				}
+			}
+		});
+		try {
+			copier.copy(src, new File(dir, "dst"));
+			fail("copy should have failed");
+		} catch (IllegalStateException e) {
+			assertEquals("destination failed", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testCopyOntoItselfIsRefused() throws IOException {
+		final File src = new File(dir, "src");
+		final byte[] data = write(src, 10000, 9);
+		final File link = new File(dir, "link");
+		Files.createLink(link.toPath(), src.toPath());
+		for (File dst : new File[] { src, new File(dir, "./src"), link }) {
+			try {
+				new FileCopier().copy(src, dst);
+				fail("copied onto itself as " + dst);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertTrue(Arrays.equals(data, Files.readAllBytes(src.toPath())));
+		try {
+			new FileCopier().copy(dir, dir);
+			fail("copied a directory onto itself");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(Arrays.equals(data, Files.readAllBytes(src.toPath())));
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.jfr;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import net.smacke.jaydio.DirectRandomAccessFile;
+import net.smacke.jaydio.TempFiles;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link IoEvents}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestIoEvents extends Assert {
+
+	private static final String[] EVENTS = { "Read", "Write", "Truncate", "Open", "Close", "Flush", "Refill" };
+
+	private File dir;
+	private File file;
+	private File dump;
+
+	@Before
+	public void setUp() throws IOException {
+		Assume.assumeTrue(IoEvents.isAvailable());
+		dir = TempFiles.getTempDirectory("jaydio", "jfr");
+		file = new File(dir, "direct_file");
+		dump = new File(dir, "recording.jfr");
+	}
+
+	@After
+	public void tearDown() {
+		if (dir != null) {
+			TempFiles.delete(dir);
+		}
+	}
+
+	@Test
+	public void testNothingWithoutRecording() {
+		assertNull(IoEvents.begin(IoEvents.READ));
+		// committing nothing is fine
+		IoEvents.commit(null, 0, 0, 0);
+	}
+
+	@Test
+	public void testEventsAreRecorded() throws IOException {
+		final Recording recording = new Recording();
+		try {
+			for (String name : EVENTS) {
+				recording.enable("net.smacke.jaydio." + name).withThreshold(Duration.ZERO);
+			}
+			recording.start();
+			final DirectRandomAccessFile raf = new DirectRandomAccessFile(file, "rw", 1 << 16);
+			try {
+				raf.write(new byte[100000]);
+				raf.seek(10);
+				raf.write(42);
+				raf.seek(70000);
+				assertEquals(0, raf.read());
+			} finally {
+				raf.close();
+			}
+			recording.stop();
+			recording.dump(dump.toPath());
+		} finally {
+			recording.close();
+		}
+
+		final Set<String> seen = new HashSet<String>();
+		for (RecordedEvent e : RecordingFile.readAllEvents(dump.toPath())) {
+			final String name = e.getEventType().getName();
+			if (name.startsWith("net.smacke.jaydio.")) {
+				assertEquals(file.toString(), e.getString("path"));
+				assertTrue(e.getLong("offset") >= 0);
+				seen.add(name.substring("net.smacke.jaydio.".length()));
+			}
+		}
+		for (String name : EVENTS) {
+			assertTrue(name + " missing from " + seen, seen.contains(name));
+		}
+		assertNull(IoEvents.begin(IoEvents.READ));
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.TempFiles;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DirectLog} and {@link DirectLogReader}, using small segments and
+ * staging buffers so that rollover and partial blocks happen all the time. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestDirectLog extends Assert {
+
+	private File dir;
+	private DirectIoLib lib;
+	private long segmentSize;
+	private int bufferSize;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "log");
+		lib = DirectIoLib.getLibForPath(dir.toString());
+		bufferSize = 4*lib.blockSize();
+		segmentSize = 16*lib.blockSize();
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	private DirectLog openLog() throws IOException {
+		return DirectLog.open(lib, dir, segmentSize, bufferSize, 3);
+	}
+
+	private List<byte[]> readAll() throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		DirectLogReader reader = DirectLogReader.open(lib, dir, 2*lib.blockSize());
+		try {
+			byte[] r;
+			while ((r = reader.next()) != null) {
+				records.add(r);
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	private static byte[] record(Random r, int maxSize) {
+		byte[] b = new byte[r.nextInt(maxSize + 1)];
+		r.nextBytes(b);
+		return b;
+	}
+
+	@Test
+	public void testAppendSyncAndRead() throws IOException {
+		Random r = new Random(3);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		DirectLog log = openLog();
+		try {
+			long last = 0;
+			for (int i=0; i<500; i++) {
+				byte[] b = record(r, i % 50 == 0 ? log.maxRecordSize() : 300);
+				expected.add(b);
+				long lsn = log.append(b);
+				assertTrue(lsn > last);
+				last = lsn;
+				if (i % 7 == 0) {
+					log.sync(lsn);
+					assertTrue(log.durablePosition() >= lsn);
+				}
+			}
+			assertEquals(last, log.position());
+		} finally {
+			log.close();
+		}
+		assertTrue(DirectLog.listSegments(dir).size() > 1);
+		List<byte[]> actual = readAll();
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception {
+		final int threads = 8;
+		final int perThread = 300;
+		final DirectLog log = openLog();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for (int t=0; t<threads; t++) {
+			final int id = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Random r = new Random(id);
+						for (int i=0; i<perThread; i++) {
+							// thread id and sequence number, then random padding
+							byte[] b = new byte[8 + r.nextInt(200)];
+							DirectLog.putInt(b, 0, id);
+							DirectLog.putInt(b, 4, i);
+							long lsn = log.append(b);
+							if (r.nextInt(4) == 0) {
+								log.sync(lsn);
+							}
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread t : workers) {
+			t.join();
+		}
+		log.close();
+		assertNull(error.get());
+
+		int[] next = new int[threads];
+		for (byte[] b : readAll()) {
+			int id = DirectLog.getInt(b, 0);
+			assertEquals(next[id]++, DirectLog.getInt(b, 4));
+		}
+		for (int n : next) {
+			assertEquals(perThread, n);
+		}
+	}
+
+	@Test
+	public void testReopenAfterTornTail() throws IOException {
+		Random r = new Random(11);
+		List<byte[]> expected = new ArrayList<byte[]>();
+		DirectLog log = openLog();
+		long durable;
+		try {
+			for (int i=0; i<20; i++) {
+				byte[] b = record(r, 100);
+				expected.add(b);
+				log.append(b);
+			}
+			log.sync();
+			durable = log.durablePosition();
+			// this one gets corrupted below, as if the machine crashed while writing it
+			log.append(new byte[] { 1, 2, 3, 4, 5 });
+		} finally {
+			log.close();
+		}
+		List<Long> segments = DirectLog.listSegments(dir);
+		long segment = segments.get(segments.size() - 1);
+		RandomAccessFile raf = new RandomAccessFile(DirectLog.segmentFile(dir, segment), "rw");
+		try {
+			raf.seek(durable - segment + DirectLog.HEADER_SIZE + 2);
+			raf.write(42);
+		} finally {
+			raf.close();
+		}
+
+		log = openLog();
+		try {
+			assertEquals(durable, log.position());
+			for (int i=0; i<10; i++) {
+				byte[] b = record(r, 100);
+				expected.add(b);
+				log.append(b);
+			}
+		} finally {
+			log.close();
+		}
+		List<byte[]> actual = readAll();
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			assertTrue(Arrays.equals(expected.get(i), actual.get(i)));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRecordTooLarge() throws IOException {
+		DirectLog log = openLog();
+		try {
+			log.append(new byte[log.maxRecordSize() + 1]);
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testAppendAfterClose() throws IOException {
+		DirectLog log = openLog();
+		log.close();
+		log.append(new byte[1]);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.sort;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import net.smacke.jaydio.TempFiles;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ExternalSorter}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestExternalSorter extends Assert {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "sort");
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	private static int compareUnsigned(byte[] a, byte[] b) {
+		final int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			final int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	@Test
+	public void testFixedSizeMultiPass() throws IOException {
+		final int recordSize = 16;
+		final int count = 50000;
+		final byte[] data = new byte[recordSize * count];
+		final Random r = new Random(7);
+		r.nextBytes(data);
+		// plenty of duplicate prefixes, so that ties get compared in full
+		for (int i = 0; i < count; i++) {
+			data[i * recordSize] = (byte) r.nextInt(4);
+			data[i * recordSize + 1] = 0;
+		}
+		final File in = new File(dir, "in");
+		final File out = new File(dir, "out");
+		Files.write(in.toPath(), data);
+
+		final ExternalSorter sorter = ExternalSorter.fixedSize(recordSize, RecordOrder.bytes());
+		// runs of 64 KiB, so 13 of them merged 3 at a time
+		sorter.setMemory(3 << 16);
+		sorter.setSortThreads(2);
+		sorter.setMergeBufferSize(8192);
+		sorter.setMaxFanIn(3);
+		assertEquals(count, sorter.sort(in, out));
+
+		final List<byte[]> expected = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			expected.add(Arrays.copyOfRange(data, i * recordSize, (i + 1) * recordSize));
+		}
+		Collections.sort(expected, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				return compareUnsigned(a, b);
+			}
+		});
+		final ByteBuffer actual = ByteBuffer.wrap(Files.readAllBytes(out.toPath()));
+		assertEquals(data.length, actual.remaining());
+		final byte[] record = new byte[recordSize];
+		for (byte[] e : expected) {
+			actual.get(record);
+			assertArrayEquals(e, record);
+		}
+		assertEquals(2, dir.list().length); // no runs left behind
+	}
+
+	@Test
+	public void testLengthPrefixedIsStable() throws IOException {
+		// orders by the first byte only, so that stability shows in the rest
+		final RecordOrder firstByte = new RecordOrder() {
+			@Override
+			public int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+				return (a[aOffset] & 0xFF) - (b[bOffset] & 0xFF);
+			}
+		};
+		final int count = 20000;
+		final Random r = new Random(11);
+		final List<byte[]> records = new ArrayList<byte[]>();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream data = new DataOutputStream(bytes);
+		for (int i = 0; i < count; i++) {
+			final byte[] record = new byte[5 + r.nextInt(60)];
+			record[0] = (byte) r.nextInt(256);
+			ByteBuffer.wrap(record).putInt(1, i);
+			records.add(record);
+			data.writeInt(record.length);
+			data.write(record);
+		}
+		final File in = new File(dir, "in");
+		final File out = new File(dir, "out");
+		Files.write(in.toPath(), bytes.toByteArray());
+
+		final ExternalSorter sorter = ExternalSorter.lengthPrefixed(firstByte);
+		sorter.setMemory(1 << 17);
+		sorter.setSortThreads(3);
+		sorter.setMergeBufferSize(4096);
+		assertEquals(count, sorter.sort(in, out));
+
+		// Collections.sort is stable too
+		Collections.sort(records, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				return (a[0] & 0xFF) - (b[0] & 0xFF);
+			}
+		});
+		final ByteBuffer actual = ByteBuffer.wrap(Files.readAllBytes(out.toPath()));
+		for (byte[] e : records) {
+			final byte[] record = new byte[actual.getInt()];
+			actual.get(record);
+			assertArrayEquals(e, record);
+		}
+		assertFalse(actual.hasRemaining());
+	}
+
+	@Test
+	public void testEmptyAndTruncatedInput() throws IOException {
+		final File in = new File(dir, "in");
+		final File out = new File(dir, "out");
+		Files.write(in.toPath(), new byte[0]);
+		final ExternalSorter sorter = ExternalSorter.fixedSize(8, RecordOrder.bytes(0, 4));
+		assertEquals(0, sorter.sort(in, out));
+		assertEquals(0, out.length());
+
+		Files.write(in.toPath(), new byte[20]);
+		try {
+			sorter.sort(in, out);
+			fail("sorted half a record");
+		} catch (IOException expected) {
+			// 20 bytes aren't a whole number of 8 byte records
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.DirectRandomAccessFile;
+import net.smacke.jaydio.TempFiles;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link IoStats} and {@link LatencyHistogram}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestIoStats extends Assert {
+
+	private static final int FILE_SIZE = 1 << 16;
+
+	private File dir;
+	private File file;
+	private int blockSize;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "stats");
+		file = new File(dir, "direct_file");
+		blockSize = DirectIoLib.getLibForPath(dir.toString()).blockSize();
+		final byte[] data = new byte[FILE_SIZE];
+		new Random(1).nextBytes(data);
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write(data);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	@Test
+	public void testHistogram() {
+		final LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.percentile(99));
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i);
+		}
+		assertEquals(1000, h.count());
+		assertEquals(500.5, h.mean(), 1e-9);
+		assertEquals(1000, h.max());
+		assertEquals(1000, h.percentile(100));
+		// buckets are 1/16 of a power of two wide
+		assertTrue(h.percentile(50) >= 500 && h.percentile(50) <= 500 * 17 / 16);
+		assertTrue(h.percentile(99) >= 990 && h.percentile(99) <= 1000);
+
+		final LatencyHistogram copy = h.copy();
+		copy.record(5000);
+		assertEquals(1000, h.count());
+		assertEquals(1001, copy.count());
+		assertEquals(5000, copy.max());
+	}
+
+	@Test
+	public void testLogicalAndPhysical() throws IOException {
+		final DirectRandomAccessFile out = new DirectRandomAccessFile(file, "rw", 4 * blockSize);
+		final IoStats stats = out.getStats();
+		out.seek(100);
+		out.write(new byte[10]);
+		out.close();
+
+		IoStatsSnapshot s = stats.snapshot();
+		assertEquals(1, s.getLogicalWrites());
+		assertEquals(10, s.getLogicalBytesWritten());
+		// the partially overwritten block had to be read, and was written back whole
+		assertEquals(blockSize, s.getReadModifyWriteBytes());
+		assertEquals(blockSize, s.getPhysicalBytesRead());
+		assertEquals(blockSize, s.getPhysicalBytesWritten());
+		assertEquals(1, s.getPhysicalWrites());
+		assertEquals(1, s.getFlushes());
+		assertEquals(blockSize / 10.0, s.getWriteAmplification(), 1e-9);
+		assertEquals(1, s.getWriteLatency().count());
+
+		final DirectRandomAccessFile in = new DirectRandomAccessFile(file, "r", 4 * blockSize);
+		final byte[] buf = new byte[1000];
+		try {
+			for (int n = 0; n < FILE_SIZE; n += buf.length) {
+				in.readFully(buf, 0, Math.min(buf.length, FILE_SIZE - n));
+			}
+			s = in.getStats().snapshot();
+		} finally {
+			in.close();
+		}
+		assertEquals((FILE_SIZE + buf.length - 1) / buf.length, s.getLogicalReads());
+		assertEquals(FILE_SIZE, s.getLogicalBytesRead());
+		assertTrue(s.getPhysicalBytesRead() >= FILE_SIZE);
+		assertEquals(s.getPhysicalReads(), s.getReadLatency().count());
+		assertTrue(s.getWindowSwitches() > 0);
+		assertTrue(s.getRefills() > 0);
+		assertEquals(0, s.getLogicalWrites());
+		assertEquals(0, s.getWriteAmplification(), 0);
+	}
+
+	@Test
+	public void testSingleBytesCountOnceFolded() throws IOException {
+		final DirectRandomAccessFile out = new DirectRandomAccessFile(file, "rw", 4 * blockSize);
+		final IoStats stats = out.getStats();
+		for (int i = 0; i < 10 * blockSize; i++) {
+			out.write(i);
+		}
+		out.seek(0);
+		for (int i = 0; i < 3; i++) {
+			out.read();
+		}
+		out.close();
+
+		final IoStatsSnapshot s = stats.snapshot();
+		assertEquals(10 * blockSize, s.getLogicalWrites());
+		assertEquals(10 * blockSize, s.getLogicalBytesWritten());
+		assertEquals(3, s.getLogicalReads());
+		assertEquals(3, s.getLogicalBytesRead());
+	}
+
+	@Test
+	public void testProcessTotalsAndMBeans() throws IOException, JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName process = new ObjectName(IoStats.PROCESS_OBJECT_NAME);
+		final long before = IoStats.processSnapshot().getLogicalBytesWritten();
+
+		final DirectRandomAccessFile out = new DirectRandomAccessFile(file, "rw");
+		final ObjectName name;
+		try {
+			name = out.getStats().registerMBean();
+			assertTrue(server.isRegistered(name));
+			out.write(new byte[12345]);
+			assertEquals(12345L, server.getAttribute(name, "LogicalBytesWritten"));
+			// open files count too
+			assertTrue(IoStats.processSnapshot().getLogicalBytesWritten() - before >= 12345);
+		} finally {
+			out.close();
+		}
+		assertFalse(server.isRegistered(name));
+
+		// and so do closed ones
+		assertTrue(IoStats.processSnapshot().getLogicalBytesWritten() - before >= 12345);
+		assertTrue((Long) server.getAttribute(process, "LogicalBytesWritten") - before >= 12345);
+		assertTrue((Long) server.getAttribute(process, "PhysicalWrites") > 0);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2014 Stephen Macke (smacke@cs.stanford.edu)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.smacke.jaydio.table;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.smacke.jaydio.DirectIoLib;
+import net.smacke.jaydio.TempFiles;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SSTableWriter} and {@link SSTableReader}. </p>
+ *
+ * @author smacke
+ *
+ */
+public class TestSSTable extends Assert {
+
+	private File dir;
+	private File file;
+	private DirectIoLib lib;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TempFiles.getTempDirectory("jaydio", "sstable");
+		file = new File(dir, "sstable");
+		lib = DirectIoLib.getLibForPath(dir.toString());
+	}
+
+	@After
+	public void tearDown() {
+		TempFiles.delete(dir);
+	}
+
+	private static byte[] key(long i) {
+		return String.format("key%010d", i).getBytes();
+	}
+
+	private static void assertScan(SortedMap<String, byte[]> expected, SSTableCursor cursor) throws IOException {
+		try {
+			for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+				assertTrue(cursor.next());
+				assertEquals(e.getKey(), new String(cursor.key()));
+				assertArrayEquals(e.getValue(), cursor.value());
+			}
+			assertFalse(cursor.next());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void testLookupsAndScans() throws IOException {
+		final TreeMap<String, byte[]> expected = new TreeMap<String, byte[]>();
+		final Random r = new Random(5);
+		final SSTableWriter writer = SSTableWriter.create(lib, file, lib.blockSize(), 10);
+		try {
+			for (long i = 0; i < 40000; i++) {
+				// even keys only, so that odd ones are missing; now and then a record
+				// larger than a block
+				final byte[] value = new byte[r.nextInt(50) == 0 ? 3 * lib.blockSize() : r.nextInt(100)];
+				r.nextBytes(value);
+				writer.add(key(2 * i), value);
+				expected.put(new String(key(2 * i)), value);
+			}
+			try {
+				writer.add(key(0), new byte[0]);
+				fail("added a key out of order");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			writer.close();
+		}
+		assertEquals(0, file.length() % lib.blockSize());
+
+		final SSTableReader reader = SSTableReader.open(lib, file, 64 * lib.blockSize());
+		try {
+			assertEquals(expected.size(), reader.size());
+			final long readsBefore = reader.getStats().snapshot().getPhysicalReads();
+			for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+				assertArrayEquals(e.getValue(), reader.get(e.getKey().getBytes()));
+			}
+			// one aligned read per lookup
+			assertEquals(expected.size(), reader.getStats().snapshot().getPhysicalReads() - readsBefore);
+
+			int passed = 0;
+			for (long i = 0; i < 10000; i++) {
+				assertNull(reader.get(key(2 * i + 1)));
+				if (reader.mightContain(key(2 * i + 1))) {
+					passed++;
+				}
+			}
+			assertTrue("bloom filter let " + passed + " of 10000 missing keys through", passed < 300);
+			assertNull(reader.get(key(Long.MAX_VALUE / 4)));
+
+			assertScan(expected, reader.scan(null, null));
+			for (int i = 0; i < 20; i++) {
+				final long a = r.nextInt(90000);
+				final long b = a + r.nextInt(5000);
+				assertScan(expected.subMap(new String(key(a)), new String(key(b))), reader.scan(key(a), key(b)));
+			}
+			assertScan(expected.tailMap(new String(key(79999))), reader.scan(key(79999), null));
+			assertScan(expected.tailMap(new String(key(80000))), reader.scan(key(80000), null));
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testEmptyTable() throws IOException {
+		SSTableWriter.create(lib, file, lib.blockSize(), 10).close();
+		final SSTableReader reader = SSTableReader.open(file);
+		try {
+			assertEquals(0, reader.size());
+			assertNull(reader.get(key(1)));
+			assertScan(new TreeMap<String, byte[]>(), reader.scan(null, null));
+		} finally {
+			reader.close();
+		}
+	}
+}